@@ -0,0 +1,279 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
+import com.sonyericsson.hudson.plugins.metadata.model.values.AbstractMetadataValue;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.AbstractResourceSelection;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.StringResourceSelection;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AvailabilityFilter;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.util.DescribableList;
+import org.objenesis.ObjenesisStd;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Benchmarks of the scheduling hot path against a synthetic node with a large metadata tree.
+ * Run with <code>mvn -Pbenchmark test</code>, the GC profiler reports the allocation rate next to the throughput.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final String[] PRODUCTS = {"Anzu", "Nozomi", "Hayabusa", "Aoba", "Mint"};
+    private static final String[] OPERATORS = {"Telia", "Orange", "Tele2", "Vodafone"};
+    private static final int RESERVED_EVERY = 10;
+    private static final int DISABLED_EVERY = 20;
+    private static final int PER_RACK = 50;
+
+    /**
+     * Number of resources on the node.
+     */
+    @Param({"1000", "5000"})
+    private int resources;
+
+    private Node node;
+    private MetadataNodeProperty property;
+    private List<ExternalResource> all;
+    private SelectionCriteria criteria;
+    private StringResourceSelection selection;
+    private ExternalResourceQueueTaskDispatcher dispatcher;
+    private Queue.BuildableItem item;
+    private PluginImpl plugin;
+    private int next;
+
+    /**
+     * Builds the node, the project and the queue item.
+     *
+     * @throws Exception if so.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        property = new MetadataNodeProperty(new LinkedList<MetadataValue>());
+        for (int i = 0; i < resources; i++) {
+            ExternalResource resource = new ExternalResource("phone" + i, "id" + i);
+            TreeStructureUtil.addValue(resource, PRODUCTS[i % PRODUCTS.length], "description", "product", "name");
+            TreeStructureUtil.addValue(resource, OPERATORS[i % OPERATORS.length], "description", "sim", "operator");
+            TreeStructureUtil.addValue(resource, "0" + i, "Serial number", "serial");
+            if (i % RESERVED_EVERY == 0) {
+                resource.setReserved(new StashInfo(StashInfo.StashType.INTERNAL, "benchmark", null, "key" + i));
+            }
+            if (i % DISABLED_EVERY == 1) {
+                resource.setEnabled(false);
+            }
+            TreeStructureUtil.addValue(property, resource, "attached", "rack" + (i / PER_RACK));
+        }
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("benchmarkNode");
+        DescribableList properties = mock(DescribableList.class);
+        when(properties.get(MetadataNodeProperty.class)).thenReturn(property);
+        when(node.getNodeProperties()).thenReturn(properties);
+        ExternalResourceRegistry.getInstance().invalidateAll();
+        all = AvailabilityFilter.getInstance().getExternalResourcesList(node);
+
+        List<AbstractResourceSelection> selections = new LinkedList<AbstractResourceSelection>();
+        selection = new StringResourceSelection("product.name", "Anzu");
+        selections.add(selection);
+        selections.add(new StringResourceSelection("sim.operator", "Telia"));
+        criteria = new SelectionCriteria(true, selections);
+
+        FreeStyleProject project = mock(FreeStyleProject.class);
+        when(project.getProperty(SelectionCriteria.class)).thenReturn(criteria);
+        item = new ObjenesisStd().newInstance(Queue.BuildableItem.class);
+        setField(Queue.Item.class, item, "id", 1);
+        setField(Queue.Item.class, item, "task", project);
+
+        plugin = mock(PluginImpl.class);
+        when(plugin.getManager()).thenReturn(new StubManager());
+        when(plugin.getReserveTime()).thenReturn(Constants.DEFAULT_RESERVE_TIME);
+        dispatcher = new ExternalResourceQueueTaskDispatcher();
+    }
+
+    /**
+     * Sets a (final) field with reflection.
+     *
+     * @param type   the class declaring the field.
+     * @param target the object.
+     * @param name   the field name.
+     * @param value  the value.
+     * @throws Exception if so.
+     */
+    private static void setField(Class<?> type, Object target, String name, Object value) throws Exception {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * The flat list of resources from the registry, as canTake sees it.
+     *
+     * @return the list.
+     */
+    @Benchmark
+    public List<ExternalResource> getExternalResourcesList() {
+        return AvailabilityFilter.getInstance().getExternalResourcesList(node);
+    }
+
+    /**
+     * The flat list of resources when the node has just been reconfigured and the tree must be walked again.
+     *
+     * @return the list.
+     */
+    @Benchmark
+    public List<ExternalResource> getExternalResourcesListAfterInvalidate() {
+        ExternalResourceRegistry.getInstance().invalidate(property);
+        return AvailabilityFilter.getInstance().getExternalResourcesList(node);
+    }
+
+    /**
+     * Filtering out the enabled and available resources.
+     *
+     * @return the filtered list.
+     */
+    @Benchmark
+    public List<ExternalResource> filterEnabledAndAvailable() {
+        return AvailabilityFilter.getInstance().filterEnabledAndAvailable(all);
+    }
+
+    /**
+     * Matching through the registry index.
+     *
+     * @return the matching resources.
+     */
+    @Benchmark
+    public List<ExternalResource> getMatchingResourcesOnNode() {
+        return criteria.getMatchingResources(node);
+    }
+
+    /**
+     * Matching by scanning the list.
+     *
+     * @return the matching resources.
+     */
+    @Benchmark
+    public List<ExternalResource> getMatchingResourcesInList() {
+        return criteria.getMatchingResources(all);
+    }
+
+    /**
+     * One comparison of a selection with a resource.
+     *
+     * @return the outcome.
+     */
+    @Benchmark
+    public boolean equalToExternalResourceValue() {
+        next++;
+        if (next >= all.size()) {
+            next = 0;
+        }
+        return selection.equalToExternalResourceValue(all.get(next));
+    }
+
+    /**
+     * A full canTake that ends with a reservation through the stub manager.
+     *
+     * @return the blockage, null.
+     */
+    @Benchmark
+    public CauseOfBlockage canTake() {
+        //Forget what the previous round reserved so the item goes all the way again.
+        item.getActions().clear();
+        return dispatcher.doCanTake(node, item, plugin);
+    }
+
+    /**
+     * A manager that hands out the first candidate without touching its state,
+     * so every benchmark round sees the same node.
+     */
+    private static class StubManager extends ExternalResourceManager {
+
+        @Override
+        public String getDisplayName() {
+            return "Benchmark";
+        }
+
+        @Override
+        public ExternalResource reserveAny(Node n, List<ExternalResource> candidates, int seconds, String by) {
+            return candidates.get(0);
+        }
+
+        @Override
+        protected StashResult doReserve(Node n, ExternalResource resource, int seconds, String reservedBy) {
+            return new StashResult("benchmark", "key");
+        }
+
+        @Override
+        protected StashResult doLock(Node n, ExternalResource resource, String key, String lockedBy) {
+            return new StashResult("benchmark", "key");
+        }
+
+        @Override
+        protected StashResult doRelease(Node n, ExternalResource resource, String key, String releasedBy) {
+            return new StashResult("benchmark", "key");
+        }
+
+        @Override
+        public boolean isExternalLockingOk() {
+            return false;
+        }
+
+        @Override
+        public void updateMetadata(AbstractMetadataValue value) {
+        }
+    }
+}
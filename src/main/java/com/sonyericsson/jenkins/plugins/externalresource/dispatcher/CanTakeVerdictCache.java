@@ -0,0 +1,200 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import hudson.model.queue.CauseOfBlockage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the blockages that {@link ExternalResourceQueueTaskDispatcher} has handed out, so that the repeated
+ * calls to canTake for the same item and node (one per idle executor) don't have to redo the work.
+ *
+ * A verdict is only valid as long as the
+ * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry#getVersion()}
+ * is the same as when it was stored, the node has the same metadata property and the project has the same
+ * {@link SelectionCriteria}. Verdicts that depend on something outside of the registry, like a failed reservation,
+ * can be given an expiry time as well.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+final class CanTakeVerdictCache {
+
+    /**
+     * When there are more verdicts than this, all of them are thrown away.
+     * Keeps the map from growing with items and nodes that are long gone.
+     */
+    static final int MAX_SIZE = 10000;
+
+    private final Map<Key, Verdict> verdicts = new ConcurrentHashMap<Key, Verdict>();
+
+    /**
+     * Gets the verdict for the item on the node, if it is still valid.
+     *
+     * @param itemId   the id of the queue item.
+     * @param nodeName the name of the node.
+     * @param property the metadata property of the node, only compared by identity.
+     * @param criteria the selection criteria of the project, only compared by identity.
+     * @param version  the current registry version.
+     * @return the cached blockage or null if there is none.
+     */
+    CauseOfBlockage get(int itemId, String nodeName, Object property, SelectionCriteria criteria, long version) {
+        Key key = new Key(itemId, nodeName);
+        Verdict verdict = verdicts.get(key);
+        if (verdict == null) {
+            return null;
+        }
+        if (verdict.version != version || verdict.property != property || verdict.criteria != criteria
+                || (verdict.expires > 0 && verdict.expires < System.currentTimeMillis())) {
+            verdicts.remove(key);
+            return null;
+        }
+        return verdict.cause;
+    }
+
+    /**
+     * Stores a verdict that is valid until the version changes.
+     *
+     * @param itemId   the id of the queue item.
+     * @param nodeName the name of the node.
+     * @param property the metadata property of the node.
+     * @param criteria the selection criteria of the project.
+     * @param version  the registry version the verdict was based on.
+     * @param cause    the blockage.
+     */
+    void put(int itemId, String nodeName, Object property, SelectionCriteria criteria, long version,
+             CauseOfBlockage cause) {
+        put(itemId, nodeName, property, criteria, version, cause, 0);
+    }
+
+    /**
+     * Stores a verdict.
+     *
+     * @param itemId     the id of the queue item.
+     * @param nodeName   the name of the node.
+     * @param property   the metadata property of the node.
+     * @param criteria   the selection criteria of the project.
+     * @param version    the registry version the verdict was based on.
+     * @param cause      the blockage.
+     * @param timeToLive milliseconds until the verdict expires regardless of version, 0 for never.
+     */
+    void put(int itemId, String nodeName, Object property, SelectionCriteria criteria, long version,
+             CauseOfBlockage cause, long timeToLive) {
+        if (verdicts.size() >= MAX_SIZE) {
+            verdicts.clear();
+        }
+        long expires = 0;
+        if (timeToLive > 0) {
+            expires = System.currentTimeMillis() + timeToLive;
+        }
+        verdicts.put(new Key(itemId, nodeName), new Verdict(property, criteria, version, cause, expires));
+    }
+
+    /**
+     * Throws away all verdicts.
+     */
+    void clear() {
+        verdicts.clear();
+    }
+
+    /**
+     * The number of stored verdicts.
+     *
+     * @return the size.
+     */
+    int size() {
+        return verdicts.size();
+    }
+
+    /**
+     * Cache key of item id and node name.
+     */
+    private static final class Key {
+        private final int itemId;
+        private final String nodeName;
+
+        /**
+         * Standard constructor.
+         *
+         * @param itemId   the id of the queue item.
+         * @param nodeName the name of the node, null is treated as the master.
+         */
+        private Key(int itemId, String nodeName) {
+            this.itemId = itemId;
+            if (nodeName == null) {
+                this.nodeName = "";
+            } else {
+                this.nodeName = nodeName;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return itemId == other.itemId && nodeName.equals(other.nodeName);
+        }
+
+        @Override
+        public int hashCode() {
+            //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: Standard hash multiplier.
+            return 31 * itemId + nodeName.hashCode();
+        }
+    }
+
+    /**
+     * A stored verdict.
+     */
+    private static final class Verdict {
+        private final Object property;
+        private final SelectionCriteria criteria;
+        private final long version;
+        private final CauseOfBlockage cause;
+        private final long expires;
+
+        /**
+         * Standard constructor.
+         *
+         * @param property the metadata property of the node.
+         * @param criteria the selection criteria of the project.
+         * @param version  the registry version.
+         * @param cause    the blockage.
+         * @param expires  when the verdict expires, 0 for never.
+         */
+        private Verdict(Object property, SelectionCriteria criteria, long version, CauseOfBlockage cause,
+                        long expires) {
+            this.property = property;
+            this.criteria = criteria;
+            this.version = version;
+            this.cause = cause;
+            this.expires = expires;
+        }
+    }
+}
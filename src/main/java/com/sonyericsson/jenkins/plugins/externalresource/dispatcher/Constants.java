@@ -83,6 +83,69 @@ public final class Constants {
      * Default number of seconds to reserve a resource.
      */
     public static final int DEFAULT_RESERVE_TIME = 3; //TODO probably needs tweaking.
+
+    /**
+     * Number of milliseconds that {@link ExternalResourceQueueTaskDispatcher} remembers that it failed to reserve
+     * anything for an item on a node. Long enough to cover the repeated calls during one queue maintenance.
+     */
+    public static final long NOTHING_RESERVED_VERDICT_TIME_TO_LIVE = 1000;
+
+    /**
+     * Default number of milliseconds to wait for a connection to a JSON-RPC service.
+     */
+    public static final int DEFAULT_RPC_CONNECTION_TIMEOUT = 5000;
+
+    /**
+     * Default number of milliseconds to wait for a response from a JSON-RPC service.
+     */
+    public static final int DEFAULT_RPC_READ_TIMEOUT = 30000;
+    /**
+     * Default number of seconds a build has to wait in the queue to gain one point of priority.
+     */
+    public static final long DEFAULT_AGING_INTERVAL = 60;
+
+    /**
+     * Number of milliseconds since {@link ExternalResourceQueueTaskDispatcher} was last asked about a build for the
+     * build to still hold back resources from other builds. A build that isn't offered any executors, because it is
+     * blocked by something else, should not keep the resources from the others.
+     */
+    public static final long PRIORITY_ACTIVE_WINDOW = 15000;
+
+    /**
+     * Number of milliseconds that {@link ExternalResourceQueueTaskDispatcher} reuses the ranking of the builds that
+     * are waiting for resources, and the blockages that it handed out from it, unless the registry changes. Long
+     * enough to cover the repeated calls during one queue maintenance.
+     */
+    public static final long PRIORITY_RANKING_TIME_TO_LIVE = 1000;
+
+    /**
+     * Number of milliseconds between two heartbeats of the
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.LeaseManager}.
+     */
+    public static final long LEASE_HEARTBEAT_INTERVAL = 10000;
+
+    /**
+     * Number of milliseconds before a lock's lease expires that it is renewed. Locks without a lease are checked with
+     * the same interval.
+     */
+    public static final long LEASE_RENEW_MARGIN = 60000;
+
+    /**
+     * Number of failed calls in a row to a node's resource monitor before it is considered to be down.
+     */
+    public static final int CIRCUIT_BREAKER_FAILURE_THRESHOLD = 3;
+
+    /**
+     * Number of milliseconds to leave a node's resource monitor alone after it has been considered to be down,
+     * before it is probed again.
+     */
+    public static final long CIRCUIT_BREAKER_OPEN_TIME = 30000;
+
+    /**
+     * Number of milliseconds before a resource monitor that didn't know about a newer method is asked again, in case
+     * it has been upgraded.
+     */
+    public static final long UNSUPPORTED_METHOD_RETRY_INTERVAL = 600000;
     /**
      * JSON Attribute for {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo#stashedBy}.
      */
@@ -119,6 +182,16 @@ public final class Constants {
      * default admin notifier file.
      */
     public static final String DEFAULT_ADMIN_NOTIFIER_FILE = "adminNotifier/notify.csv";
+    /**
+     * The directory, relative to the Jenkins root, where the
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.EventJournal} is written.
+     */
+    public static final String JOURNAL_DIRECTORY = "externalResourceJournal";
+    /**
+     * The file, relative to the Jenkins root, where the
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReleaseQueue} is kept.
+     */
+    public static final String RELEASE_QUEUE_FILE = "externalResourceReleaseQueue.xml";
 
 
     /**
@@ -29,7 +29,9 @@ import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
 import com.sonyericsson.hudson.plugins.metadata.model.MetadataParent;
 import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResourceTreeNode;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.MonitorEndpointResolver;
 import hudson.Extension;
 
 import java.util.Collection;
@@ -46,6 +48,12 @@ public class ExternalResourceMetadataUpdateListener extends MetadataUpdateListen
 
     @Override
     public void metadataNodePropertyChanged(MetadataNodeProperty property) {
+        ExternalResourceRegistry.getInstance().invalidate(property);
+        if (property.getNode() != null) {
+            MonitorEndpointResolver.getInstance().invalidate(property.getNode().getNodeName());
+        } else {
+            MonitorEndpointResolver.getInstance().invalidateAll();
+        }
         List<ExternalResourceTreeNode> forest = findExternalResourceTreeNodes(property);
         for (ExternalResourceTreeNode tree : forest) {
             ExternalResourceManager manager = tree.findManager();
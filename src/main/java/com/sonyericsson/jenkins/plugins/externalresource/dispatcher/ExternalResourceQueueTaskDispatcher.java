@@ -24,29 +24,47 @@
  */
 package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
 
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ReservedExternalResourceAction;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
-import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseHeldForWaitingBuild;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseNoAvailableResources;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseNoMatchingResource;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseNothingReserved;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseAlreadyReserved;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseNotEnoughResources;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseNotPlanned;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecausePlannedElsewhere;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseReservationPending;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseResourceManagerUnavailable;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.SelectionMatcher;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AdminNotifier;
-import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AvailabilityFilter;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.DispatcherMetrics;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReservationPipeline;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies.ResourceChoiceStrategy;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
 import hudson.Extension;
 import hudson.matrix.MatrixConfiguration;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
-import jenkins.model.Jenkins;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,8 +79,45 @@ public class ExternalResourceQueueTaskDispatcher extends QueueTaskDispatcher {
 
     private static final Logger logger = Logger.getLogger(ExternalResourceQueueTaskDispatcher.class.getName());
 
+    /**
+     * Blockages already handed out, canTake is called once for every idle executor on the node.
+     */
+    private final CanTakeVerdictCache verdictCache = new CanTakeVerdictCache();
+
+    /**
+     * The global placement plan, used when {@link PluginImpl#isGlobalPlacement()}.
+     */
+    private final PlacementPlanner placementPlanner = new PlacementPlanner();
+
+    /**
+     * When each item with a selection criteria was last asked about, used by {@link PluginImpl#isPriorityScheduling()}
+     * to tell the items that are offered executors from the ones that are blocked by something else.
+     */
+    private final Map<Integer, Long> lastAsked = new ConcurrentHashMap<Integer, Long>();
+
+    /**
+     * The latest ranking of the builds waiting for resources, used by {@link PluginImpl#isPriorityScheduling()}.
+     */
+    private volatile Ranking ranking;
+
     @Override
     public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        long start = System.nanoTime();
+        CauseOfBlockage cause = doCanTake(node, item, null);
+        DispatcherMetrics.getInstance().canTake(cause, System.nanoTime() - start);
+        return cause;
+    }
+
+    /**
+     * The real work of {@link #canTake(hudson.model.Node, hudson.model.Queue.BuildableItem)}.
+     * The plugin is given by the benchmarks, that run without a Jenkins instance.
+     *
+     * @param node   the node.
+     * @param item   the item.
+     * @param plugin the plugin configuration, or null to look it up when it is needed.
+     * @return the blockage or null if the item can be built on the node.
+     */
+    CauseOfBlockage doCanTake(Node node, Queue.BuildableItem item, PluginImpl plugin) {
         logger.entering("ExternalResourceQueueTaskDispatcher", "canTake", new Object[]{node, item});
         // check whether there is already something reserved for use. skip the following step if so.
         // the cantake() method will be called several times, depending on how many available executors left.
@@ -76,57 +131,98 @@ public class ExternalResourceQueueTaskDispatcher extends QueueTaskDispatcher {
         SelectionCriteria selectionCriteria = getSelectionCriteria(item.task);
         if (selectionCriteria == null
                 || !selectionCriteria.getSelectionEnabled()
-                || selectionCriteria.getResourceSelectionList() == null
-                || selectionCriteria.getResourceSelectionList().isEmpty()) {
+                || !selectionCriteria.hasSelection()) {
             //Either it is not a buildable item that we are interested in, or it is a project that
             // doesn't have a configured criteria. So we say ok.
             logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "OK - not buildable or no selection");
             return null;
         }
+        lastAsked.put(item.id, System.currentTimeMillis());
 
-        AvailabilityFilter availabilityFilter = AvailabilityFilter.getInstance();
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        long version = registry.getVersion();
+        MetadataNodeProperty property = node.getNodeProperties().get(MetadataNodeProperty.class);
+        CauseOfBlockage cached = verdictCache.get(item.id, node.getNodeName(), property, selectionCriteria, version);
+        if (cached != null) {
+            logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "Cached verdict");
+            return cached;
+        }
 
         //Find all resources
-        List<ExternalResource> resources = availabilityFilter.getExternalResourcesList(node);
+        List<ExternalResource> resources = registry.getExternalResources(node);
         if (resources == null || resources.isEmpty()) {
             //No resources configured, block the build on this node.
             logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNoAvailableResources-1");
-            return new BecauseNoAvailableResources(node);
+            return remember(item, node, property, selectionCriteria, version, new BecauseNoAvailableResources(node));
         }
-        //Filter out what is available
-        resources = availabilityFilter.filterEnabledAndAvailable(resources);
-        if (resources == null || resources.isEmpty()) {
+        //Check that something is available
+        if (!registry.hasEnabledAndAvailable(node)) {
             //No available resources, block the build on this node.
             logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNoAvailableResources-2");
-            return new BecauseNoAvailableResources(node);
+            return remember(item, node, property, selectionCriteria, version, new BecauseNoAvailableResources(node));
         }
 
-        resources = selectionCriteria.getMatchingResources(resources);
+        PluginImpl settings = plugin;
+        if (settings == null) {
+            settings = PluginImpl.getInstance();
+        }
+        if (selectionCriteria.isMultiResource()) {
+            return reserveGroups(node, item, storage, property, selectionCriteria, version, settings);
+        }
+
+        resources = selectionCriteria.getMatchingResources(node);
 
         if (resources == null || resources.isEmpty()) {
             //No matching resources, block the build on this node.
             logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNoMatchingResource");
-            return new BecauseNoMatchingResource(node);
+            return remember(item, node, property, selectionCriteria, version, new BecauseNoMatchingResource(node));
         }
+        DispatcherMetrics.getInstance().candidates(resources.size());
 
-        //Reserve something
-        ExternalResource reservedResource = null;
-        ExternalResourceManager manager = PluginImpl.getInstance().getManager();
-
-        for (ExternalResource resource : resources) {
-            StashResult result = manager.reserve(node, resource, PluginImpl.getInstance().getReserveTime(),
-                    item.task.getUrl());
-            logger.log(Level.FINEST, "Reserve result for [{0}]: Status {1} code {2} message {3}",
-                    new Object[]{resource.getFullName(), result.getStatus().name(),
-                            result.getErrorCode(), result.getMessage(), });
-            if (result != null && result.isOk()) {
-                reservedResource = resource;
-                logger.finest("reservation ok");
-                break;
-            } else {
-                logger.finest("Not reserved");
+        ExternalResourceManager manager = settings.getManager();
+        if (!manager.isAvailable(node)) {
+            //No point in waiting for a connection timeout, try another node.
+            logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseResourceManagerUnavailable");
+            return new BecauseResourceManagerUnavailable(node);
+        }
+        resources = chooseOrder(node, resources, settings);
+        if (settings.isPriorityScheduling() && !settings.isGlobalPlacement()) {
+            List<ExternalResource> share = new ArrayList<ExternalResource>(1);
+            CauseOfBlockage held = holdBack(node, item, property, selectionCriteria, version,
+                    Collections.singletonList(resources), settings, share);
+            if (held != null) {
+                logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseHeldForWaitingBuild");
+                return held;
             }
+            resources = plannedFirst(resources, share.get(0).getId());
         }
+        if (settings.isGlobalPlacement()) {
+            PlacementPlanner.Candidate planned = getPlannedResource(item, version);
+            //The plan can change with the queue as well, so only remember it until it can be recomputed.
+            if (planned == null) {
+                logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNotPlanned");
+                BecauseNotPlanned cause = new BecauseNotPlanned(node);
+                verdictCache.put(item.id, node.getNodeName(), property, selectionCriteria, version, cause,
+                        PlacementPlanner.MIN_PLAN_INTERVAL);
+                return cause;
+            }
+            if (!planned.isOn(node.getNodeName())) {
+                logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecausePlannedElsewhere");
+                BecausePlannedElsewhere cause = new BecausePlannedElsewhere(node, planned.getNodeName(),
+                        planned.getResourceId());
+                verdictCache.put(item.id, node.getNodeName(), property, selectionCriteria, version, cause,
+                        PlacementPlanner.MIN_PLAN_INTERVAL);
+                return cause;
+            }
+            resources = plannedFirst(resources, planned.getResourceId());
+        }
+        if (settings.isAsyncReservation()) {
+            return reserveAsync(node, item, storage, resources, property, selectionCriteria, version, settings);
+        }
+
+        //Reserve something
+        ExternalResource reservedResource = manager.reserveAny(node, resources,
+                settings.getReserveTime(), item.task.getUrl());
 
         if (reservedResource == null) {
             //None of the matching resources could be reserved, block the build
@@ -134,11 +230,16 @@ public class ExternalResourceQueueTaskDispatcher extends QueueTaskDispatcher {
                     node, reservedResource, "Found one or more matching external resources but could not reserve any "
                             + "of them.");
             logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNothingReserved");
-            return new BecauseNothingReserved(node);
+            //Nothing in the registry changes when a reservation fails, so only remember it for a short while.
+            BecauseNothingReserved cause = new BecauseNothingReserved(node);
+            verdictCache.put(item.id, node.getNodeName(), property, selectionCriteria, version, cause,
+                    Constants.NOTHING_RESERVED_VERDICT_TIME_TO_LIVE);
+            return cause;
         }
 
         //Cannot create a metadata action since it requires a build. Temporarily storing it in a separate action.
         storage.push(reservedResource);
+        queueWait(item, selectionCriteria);
 
 
         //Everything is fine, now continue.
@@ -146,6 +247,479 @@ public class ExternalResourceQueueTaskDispatcher extends QueueTaskDispatcher {
         return null;
     }
 
+    /**
+     * The variant of canTake for builds that need several resources. A distinct resource is picked for every slot of
+     * the criteria and all of them are reserved in one go, or none of them. Always done while the Queue is locked,
+     * the {@link ReservationPipeline} only handles one resource per build.
+     *
+     * @param node     the node.
+     * @param item     the item.
+     * @param storage  where to put the reserved resources.
+     * @param property the metadata of the node.
+     * @param criteria the selection criteria of the item's project.
+     * @param version  the registry version the matching is based on.
+     * @param plugin   the plugin configuration.
+     * @return the blockage or null if all the resources are reserved on this node.
+     */
+    private CauseOfBlockage reserveGroups(Node node, Queue.BuildableItem item, ReservedExternalResourceAction storage,
+                                          MetadataNodeProperty property, SelectionCriteria criteria, long version,
+                                          PluginImpl plugin) {
+        List<SelectionMatcher> slots = criteria.getSlots();
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        Map<SelectionMatcher, List<ExternalResource>> matching = new IdentityHashMap<SelectionMatcher,
+                List<ExternalResource>>();
+        List<List<ExternalResource>> candidates = new ArrayList<List<ExternalResource>>(slots.size());
+        if (plugin.isGlobalPlacement()) {
+            refreshPlan(item, version);
+        }
+        int total = 0;
+        for (SelectionMatcher slot : slots) {
+            List<ExternalResource> resources = matching.get(slot);
+            if (resources == null) {
+                resources = registry.getMatchingResources(node, slot);
+                if (resources.isEmpty()) {
+                    logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNoMatchingResource-group");
+                    return remember(item, node, property, criteria, version, new BecauseNoMatchingResource(node));
+                }
+                if (plugin.isGlobalPlacement()) {
+                    resources = notPlannedForOthers(node, item, resources);
+                }
+                resources = chooseOrder(node, resources, plugin);
+                matching.put(slot, resources);
+                total += resources.size();
+            }
+            candidates.add(resources);
+        }
+        DispatcherMetrics.getInstance().candidates(total);
+        List<ExternalResource> assigned = MultiResourceAssignment.assign(candidates);
+        if (assigned == null) {
+            logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNotEnoughResources");
+            BecauseNotEnoughResources cause = new BecauseNotEnoughResources(node, slots.size());
+            if (plugin.isGlobalPlacement()) {
+                //Depends on the plan as well, that can change with the queue.
+                verdictCache.put(item.id, node.getNodeName(), property, criteria, version, cause,
+                        PlacementPlanner.MIN_PLAN_INTERVAL);
+                return cause;
+            }
+            return remember(item, node, property, criteria, version, cause);
+        }
+        if (plugin.isPriorityScheduling()) {
+            List<ExternalResource> share = new ArrayList<ExternalResource>(slots.size());
+            CauseOfBlockage held = holdBack(node, item, property, criteria, version, candidates, plugin, share);
+            if (held != null) {
+                logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseHeldForWaitingBuild-group");
+                return held;
+            }
+            assigned = share;
+        }
+        ExternalResourceManager manager = plugin.getManager();
+        if (!manager.isAvailable(node)) {
+            logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseResourceManagerUnavailable");
+            return new BecauseResourceManagerUnavailable(node);
+        }
+        if (!manager.reserveAll(node, assigned, plugin.getReserveTime(), item.task.getUrl())) {
+            AdminNotifier.getInstance().notify(AdminNotifier.MessageType.WARNING, AdminNotifier.OperationType.RESERVE,
+                    node, null, "Found matching external resources for all " + slots.size()
+                            + " slots but could not reserve all of them.");
+            logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNothingReserved-group");
+            BecauseNothingReserved cause = new BecauseNothingReserved(node);
+            verdictCache.put(item.id, node.getNodeName(), property, criteria, version, cause,
+                    Constants.NOTHING_RESERVED_VERDICT_TIME_TO_LIVE);
+            return cause;
+        }
+        storage.pushAll(assigned);
+        queueWait(item, criteria);
+        logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "OK-group");
+        return null;
+    }
+
+    /**
+     * Checks if the matching resources on the node should be held back for builds that are before this one in line.
+     * The builds that are waiting for resources, can run on the node and have been asked about lately are ranked
+     * with {@link PriorityRanking}. The resources of the node are then shared out in order of rank, and this build
+     * is held back if there is nothing left for it when the builds before it have got theirs.
+     * The ranking is shared by all calls during one queue maintenance, see {@link #getRanking(long, PluginImpl)}.
+     *
+     * @param node     the node.
+     * @param item     the item.
+     * @param property the metadata of the node.
+     * @param criteria the selection criteria of the item's project.
+     * @param version  the registry version the matching is based on.
+     * @param ownSlots the matching resources of each of the resources the item needs, in order of preference.
+     * @param plugin   the plugin configuration.
+     * @param share    filled with the resources that this build may take, one for each slot, if not held back.
+     * @return the blockage or null if the item is not held back.
+     */
+    private CauseOfBlockage holdBack(Node node, Queue.BuildableItem item, MetadataNodeProperty property,
+                                     SelectionCriteria criteria, long version, List<List<ExternalResource>> ownSlots,
+                                     PluginImpl plugin, List<ExternalResource> share) {
+        Ranking current = getRanking(version, plugin);
+        PriorityRanking.Waiting own = new PriorityRanking.Waiting(item.id, item.getInQueueSince(),
+                criteria.getPriority(), criteria);
+        int position = PriorityRanking.position(current.waiting, own, current.created, current.agingInterval);
+
+        List<Contender> ahead = new ArrayList<Contender>();
+        List<List<List<ExternalResource>>> demands = new ArrayList<List<List<ExternalResource>>>();
+        for (Contender contender : getContenders(current, node)) {
+            if (contender.rank >= position) {
+                break;
+            }
+            ahead.add(contender);
+            demands.add(contender.slots);
+        }
+        demands.add(ownSlots);
+        List<List<ExternalResource>> shares = MultiResourceAssignment.assignByRank(demands);
+        List<ExternalResource> ownShare = shares.get(shares.size() - 1);
+        if (ownShare != null) {
+            share.addAll(ownShare);
+            return null;
+        }
+        //Name the first build in line that took something this build could have used.
+        Set<ExternalResource> wanted = Collections.newSetFromMap(new IdentityHashMap<ExternalResource, Boolean>());
+        for (List<ExternalResource> slot : ownSlots) {
+            wanted.addAll(slot);
+        }
+        Queue.BuildableItem heldFor = null;
+        for (int i = 0; i < ahead.size() && heldFor == null; i++) {
+            List<ExternalResource> taken = shares.get(i);
+            if (taken != null && !Collections.disjoint(taken, wanted)) {
+                heldFor = ahead.get(i).item;
+            }
+        }
+        if (heldFor == null) {
+            heldFor = ahead.get(0).item;
+        }
+        //The line only changes when the registry does or the ranking is made again.
+        CauseOfBlockage cause = new BecauseHeldForWaitingBuild(node, heldFor.task.getFullDisplayName());
+        verdictCache.put(item.id, node.getNodeName(), property, criteria, version, cause,
+                Constants.PRIORITY_RANKING_TIME_TO_LIVE);
+        return cause;
+    }
+
+    /**
+     * The ranking of the builds that are waiting for resources and have been asked about lately. Made again when the
+     * registry changes or when it is older than {@link Constants#PRIORITY_RANKING_TIME_TO_LIVE}, so that the queue is
+     * only walked once per queue maintenance. The items that haven't been asked about in a while are forgotten at the
+     * same time.
+     *
+     * @param version the current registry version.
+     * @param plugin  the plugin configuration.
+     * @return the ranking.
+     */
+    private Ranking getRanking(long version, PluginImpl plugin) {
+        long now = System.currentTimeMillis();
+        long agingInterval = plugin.getAgingInterval();
+        Ranking current = ranking;
+        if (current != null && current.version == version && current.agingInterval == agingInterval
+                && now - current.created < Constants.PRIORITY_RANKING_TIME_TO_LIVE) {
+            return current;
+        }
+        purgeLastAsked(now);
+        List<PriorityRanking.Waiting> waiting = new ArrayList<PriorityRanking.Waiting>();
+        Map<Integer, Queue.BuildableItem> items = new HashMap<Integer, Queue.BuildableItem>();
+        for (Queue.BuildableItem queued : Hudson.getInstance().getQueue().getBuildableItems()) {
+            Long asked = lastAsked.get(queued.id);
+            if (asked == null || now - asked > Constants.PRIORITY_ACTIVE_WINDOW) {
+                continue;
+            }
+            SelectionCriteria other = getSelectionCriteria(queued.task);
+            if (other == null || !other.getSelectionEnabled() || !other.hasSelection() || hasReservation(queued)) {
+                continue;
+            }
+            waiting.add(new PriorityRanking.Waiting(queued.id, queued.getInQueueSince(), other.getPriority(), other));
+            items.put(queued.id, queued);
+        }
+        PriorityRanking.sort(waiting, now, agingInterval);
+        current = new Ranking(version, now, agingInterval, waiting, items);
+        ranking = current;
+        return current;
+    }
+
+    /**
+     * The builds in the ranking that can run on the node and can get everything they need there, in order of rank.
+     * Found once per node and ranking.
+     *
+     * @param current the ranking.
+     * @param node    the node.
+     * @return the contenders for the resources of the node.
+     */
+    private List<Contender> getContenders(Ranking current, Node node) {
+        List<Contender> contenders = current.contenders.get(node.getNodeName());
+        if (contenders != null) {
+            return contenders;
+        }
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        contenders = new ArrayList<Contender>();
+        for (int rank = 0; rank < current.waiting.size(); rank++) {
+            PriorityRanking.Waiting w = current.waiting.get(rank);
+            Queue.BuildableItem queued = current.items.get(w.getItemId());
+            if (node.canTake(queued) != null) {
+                continue;
+            }
+            List<List<ExternalResource>> slots = new ArrayList<List<ExternalResource>>();
+            for (SelectionMatcher matcher : w.getCriteria().getSlots()) {
+                List<ExternalResource> resources = registry.getMatchingResources(node, matcher);
+                if (resources.isEmpty()) {
+                    //It can't get everything it needs here anyway.
+                    slots = null;
+                    break;
+                }
+                slots.add(resources);
+            }
+            if (slots != null) {
+                contenders.add(new Contender(rank, queued, slots));
+            }
+        }
+        current.contenders.put(node.getNodeName(), contenders);
+        return contenders;
+    }
+
+    /**
+     * Forgets about the items that haven't been asked about in a long while, they have most likely left the queue.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void purgeLastAsked(long now) {
+        Iterator<Map.Entry<Integer, Long>> iterator = lastAsked.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() > Constants.PRIORITY_ACTIVE_WINDOW) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Records how long the item waited in the queue before it got its resources.
+     *
+     * @param item     the item.
+     * @param criteria the selection criteria of the item's project.
+     */
+    private void queueWait(Queue.BuildableItem item, SelectionCriteria criteria) {
+        DispatcherMetrics.getInstance().queueWait(criteria.getPriority(),
+                System.currentTimeMillis() - item.getInQueueSince());
+    }
+
+    /**
+     * The asynchronous variant of the reservation part of canTake. The reservation is handed over to the
+     * {@link ReservationPipeline} and the item is blocked until the pipeline is done. The next call for the item on
+     * the same node picks up the result.
+     *
+     * @param node      the node.
+     * @param item      the item.
+     * @param storage   where to put the reserved resource.
+     * @param resources the matching resources to try.
+     * @param property  the metadata of the node.
+     * @param criteria  the selection criteria of the item's project.
+     * @param version   the registry version the matching was based on.
+     * @param plugin    the plugin configuration.
+     * @return the blockage or null if a resource is reserved on this node.
+     */
+    private CauseOfBlockage reserveAsync(Node node, Queue.BuildableItem item, ReservedExternalResourceAction storage,
+                                         List<ExternalResource> resources, MetadataNodeProperty property,
+                                         SelectionCriteria criteria, long version, PluginImpl plugin) {
+        ReservationPipeline pipeline = ReservationPipeline.getInstance();
+        ReservationPipeline.Ticket ticket = pipeline.getTicket(item.id);
+        if (ticket != null && ticket.isDone() && !ticket.isFor(node)) {
+            ExternalResource other = ticket.getReserved();
+            if (other != null && other.getReserved() != null) {
+                //Reserved on another node, wait for that node to come asking.
+                logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseAlreadyReserved-async");
+                return new BecauseAlreadyReserved();
+            }
+            //Failed or expired on the other node, try here instead.
+            pipeline.remove(item.id);
+            ticket = null;
+        }
+        if (ticket == null) {
+            ticket = pipeline.submit(item.id, node, resources, plugin.getManager(), plugin.getReserveTime(),
+                    item.task.getUrl());
+        }
+        if (!ticket.isDone()) {
+            logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseReservationPending");
+            return new BecauseReservationPending(node);
+        }
+        pipeline.remove(item.id);
+        ExternalResource reservedResource = ticket.getReserved();
+        if (reservedResource == null || reservedResource.getReserved() == null) {
+            AdminNotifier.getInstance().notify(AdminNotifier.MessageType.WARNING, AdminNotifier.OperationType.RESERVE,
+                    node, reservedResource, "Found one or more matching external resources but could not reserve "
+                            + "any of them.");
+            logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "BecauseNothingReserved-async");
+            BecauseNothingReserved cause = new BecauseNothingReserved(node);
+            verdictCache.put(item.id, node.getNodeName(), property, criteria, version, cause,
+                    Constants.NOTHING_RESERVED_VERDICT_TIME_TO_LIVE);
+            return cause;
+        }
+        storage.push(reservedResource);
+        queueWait(item, criteria);
+        logger.exiting("ExternalResourceQueueTaskDispatcher", "canTake", "OK-async");
+        return null;
+    }
+
+    /**
+     * The resource that the global placement plan has picked for the item. The plan is recomputed first if the
+     * resources or the queue have changed since it was made.
+     *
+     * @param item    the item.
+     * @param version the current registry version.
+     * @return the planned resource or null if the item didn't get any.
+     */
+    private PlacementPlanner.Candidate getPlannedResource(Queue.BuildableItem item, long version) {
+        refreshPlan(item, version);
+        return placementPlanner.getAssignment(item.id);
+    }
+
+    /**
+     * Recomputes the global placement plan if the resources or the queue have changed since it was made.
+     *
+     * @param item    the item that is asked about.
+     * @param version the current registry version.
+     */
+    private void refreshPlan(Queue.BuildableItem item, long version) {
+        if (placementPlanner.isStale(version, item.id)) {
+            placementPlanner.update(collectDemands(), version);
+        }
+    }
+
+    /**
+     * Leaves out the resources that the global placement plan has promised to other items. Builds that need several
+     * resources are not part of the plan, but they should not take what the plan has given to someone else.
+     *
+     * @param node      the node.
+     * @param item      the item.
+     * @param resources the matching resources on the node.
+     * @return the resources that aren't planned for any other item.
+     */
+    private List<ExternalResource> notPlannedForOthers(Node node, Queue.BuildableItem item,
+                                                       List<ExternalResource> resources) {
+        List<ExternalResource> free = new ArrayList<ExternalResource>(resources.size());
+        for (ExternalResource resource : resources) {
+            PlacementPlanner.Candidate candidate = new PlacementPlanner.Candidate(node.getNodeName(),
+                    resource.getId());
+            if (!placementPlanner.isPlannedForOther(candidate, item.id)) {
+                free.add(resource);
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Finds the free matching resources of every buildable item with a selection criteria, on the online nodes where
+     * the item can run.
+     *
+     * @return the demands for the {@link PlacementPlanner}.
+     */
+    private List<PlacementPlanner.Demand> collectDemands() {
+        Hudson hudson = Hudson.getInstance();
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(hudson);
+        nodes.addAll(hudson.getNodes());
+        List<PlacementPlanner.Demand> demands = new ArrayList<PlacementPlanner.Demand>();
+        for (Queue.BuildableItem queued : hudson.getQueue().getBuildableItems()) {
+            SelectionCriteria criteria = getSelectionCriteria(queued.task);
+            if (criteria == null || !criteria.getSelectionEnabled() || !criteria.hasSelection()
+                    || criteria.isMultiResource()) {
+                //Builds that need several resources are not part of the plan, they keep out of its way instead.
+                continue;
+            }
+            if (hasReservation(queued)) {
+                continue;
+            }
+            List<PlacementPlanner.Candidate> candidates = new ArrayList<PlacementPlanner.Candidate>();
+            for (Node candidateNode : nodes) {
+                Computer computer = candidateNode.toComputer();
+                if (computer == null || computer.isOffline() || candidateNode.canTake(queued) != null) {
+                    continue;
+                }
+                for (ExternalResource resource : criteria.getMatchingResources(candidateNode)) {
+                    candidates.add(new PlacementPlanner.Candidate(candidateNode.getNodeName(), resource.getId()));
+                }
+            }
+            demands.add(new PlacementPlanner.Demand(queued.id, queued.getInQueueSince(), candidates));
+        }
+        return demands;
+    }
+
+    /**
+     * Checks if the item already has a reserved resource, without touching its actions.
+     *
+     * @param item the item.
+     * @return true if so.
+     */
+    private boolean hasReservation(Queue.BuildableItem item) {
+        for (ReservedExternalResourceAction action : item.getActions(ReservedExternalResourceAction.class)) {
+            if (!action.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Orders the matching resources with the configured {@link ResourceChoiceStrategy}. Falls back to the given order
+     * if the strategy misbehaves, a broken strategy should not stop the builds.
+     *
+     * @param node      the node.
+     * @param resources the matching resources in tree order.
+     * @param plugin    the plugin configuration.
+     * @return the resources in the order they should be tried.
+     */
+    private List<ExternalResource> chooseOrder(Node node, List<ExternalResource> resources, PluginImpl plugin) {
+        ResourceChoiceStrategy strategy = plugin.getChoiceStrategy();
+        if (strategy == null || resources.size() < 2) {
+            return resources;
+        }
+        try {
+            List<ExternalResource> ordered = strategy.order(node, Collections.unmodifiableList(resources),
+                    ResourceUsageHistory.getInstance());
+            if (ordered != null && ordered.size() == resources.size()) {
+                return ordered;
+            }
+            logger.warning("The resource choice strategy " + strategy.getClass().getName()
+                    + " did not return all of the resources, using tree order.");
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "The resource choice strategy " + strategy.getClass().getName()
+                    + " failed, using tree order.", e);
+        }
+        return resources;
+    }
+
+    /**
+     * Moves the planned resource first so that it is the one that gets reserved, if it still can be.
+     *
+     * @param resources  the matching resources.
+     * @param resourceId the id of the planned resource.
+     * @return the resources in the new order.
+     */
+    private List<ExternalResource> plannedFirst(List<ExternalResource> resources, String resourceId) {
+        List<ExternalResource> ordered = new ArrayList<ExternalResource>(resources.size());
+        for (ExternalResource resource : resources) {
+            if (resource.getId().equals(resourceId)) {
+                ordered.add(0, resource);
+            } else {
+                ordered.add(resource);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Stores the blockage in the {@link #verdictCache} until the registry version changes.
+     *
+     * @param item     the item that is blocked.
+     * @param node     the node it is blocked from.
+     * @param property the metadata of the node.
+     * @param criteria the selection criteria of the item's project.
+     * @param version  the registry version the verdict was based on.
+     * @param cause    the blockage.
+     * @return the cause.
+     */
+    private CauseOfBlockage remember(Queue.BuildableItem item, Node node, MetadataNodeProperty property,
+                                     SelectionCriteria criteria, long version, CauseOfBlockage cause) {
+        verdictCache.put(item.id, node.getNodeName(), property, criteria, version, cause);
+        return cause;
+    }
+
     /**
      * Finds the action or creates and adds it to the item if it doesn't exsist.
      *
@@ -223,4 +797,57 @@ public class ExternalResourceQueueTaskDispatcher extends QueueTaskDispatcher {
         }
         return null;
     }
+
+    /**
+     * The builds that are waiting for resources in order of rank, shared by the canTake calls during one queue
+     * maintenance along with what each node can offer them.
+     */
+    private static final class Ranking {
+        private final long version;
+        private final long created;
+        private final long agingInterval;
+        private final List<PriorityRanking.Waiting> waiting;
+        private final Map<Integer, Queue.BuildableItem> items;
+        private final Map<String, List<Contender>> contenders = new ConcurrentHashMap<String, List<Contender>>();
+
+        /**
+         * Standard constructor.
+         *
+         * @param version       the registry version when the ranking was made.
+         * @param created       when the ranking was made, in milliseconds.
+         * @param agingInterval the aging interval that the builds were scored with.
+         * @param waiting       the waiting builds, sorted.
+         * @param items         the queue items of the waiting builds by id.
+         */
+        private Ranking(long version, long created, long agingInterval, List<PriorityRanking.Waiting> waiting,
+                        Map<Integer, Queue.BuildableItem> items) {
+            this.version = version;
+            this.created = created;
+            this.agingInterval = agingInterval;
+            this.waiting = waiting;
+            this.items = items;
+        }
+    }
+
+    /**
+     * A build in the ranking that can get what it needs on a node.
+     */
+    private static final class Contender {
+        private final int rank;
+        private final Queue.BuildableItem item;
+        private final List<List<ExternalResource>> slots;
+
+        /**
+         * Standard constructor.
+         *
+         * @param rank  the place of the build in the ranking.
+         * @param item  the queue item.
+         * @param slots the matching resources on the node for each of the resources the build needs.
+         */
+        private Contender(int rank, Queue.BuildableItem item, List<List<ExternalResource>> slots) {
+            this.rank = rank;
+            this.item = item;
+            this.slots = slots;
+        }
+    }
 }
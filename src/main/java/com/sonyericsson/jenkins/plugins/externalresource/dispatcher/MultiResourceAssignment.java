@@ -0,0 +1,164 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks one distinct resource for each slot of a build that needs several resources on one node. A resource can
+ * match more than one {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.ResourceGroup},
+ * so taking the first free resource for each slot can leave a later slot without any even though there is a way to
+ * fill them all. The slots with the fewest candidates are filled first and augmenting paths are used when a slot
+ * runs out, so a full assignment is found whenever there is one. The same matching is used to share the
+ * resources of a node between several waiting builds in order of rank, see {@link PriorityRanking}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+final class MultiResourceAssignment {
+
+    /**
+     * Utility constructor.
+     */
+    private MultiResourceAssignment() {
+    }
+
+    /**
+     * Assigns a distinct resource to every slot.
+     *
+     * @param slots the candidates of each slot, in order of preference.
+     * @return the resource of each slot in the same order as the slots, or null if not all slots can be filled.
+     */
+    static List<ExternalResource> assign(final List<List<ExternalResource>> slots) {
+        List<Integer> order = new ArrayList<Integer>(slots.size());
+        for (int i = 0; i < slots.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return slots.get(o1).size() - slots.get(o2).size();
+            }
+        });
+        Map<ExternalResource, Integer> owners = new IdentityHashMap<ExternalResource, Integer>();
+        for (Integer slot : order) {
+            Set<ExternalResource> visited = Collections.newSetFromMap(new IdentityHashMap<ExternalResource, Boolean>());
+            if (!augment(slot, slots, owners, visited)) {
+                return null;
+            }
+        }
+        ExternalResource[] assigned = new ExternalResource[slots.size()];
+        for (Map.Entry<ExternalResource, Integer> entry : owners.entrySet()) {
+            assigned[entry.getValue()] = entry.getKey();
+        }
+        List<ExternalResource> result = new ArrayList<ExternalResource>(slots.size());
+        Collections.addAll(result, assigned);
+        return result;
+    }
+
+    /**
+     * Assigns resources to several builds in order of rank. Each build is given a distinct resource for every one of
+     * its slots, or nothing at all. A build never loses its resources to a build further down the list, but they can
+     * be moved to other resources of the same slot to make room.
+     *
+     * @param demands the slots of each build, the builds in order of rank.
+     * @return the resources of each build, in the same order as the builds, null for the builds that got nothing.
+     */
+    static List<List<ExternalResource>> assignByRank(List<List<List<ExternalResource>>> demands) {
+        List<List<ExternalResource>> slots = new ArrayList<List<ExternalResource>>();
+        Map<ExternalResource, Integer> owners = new IdentityHashMap<ExternalResource, Integer>();
+        List<Integer> firstSlots = new ArrayList<Integer>(demands.size());
+        for (List<List<ExternalResource>> demand : demands) {
+            Map<ExternalResource, Integer> before = new IdentityHashMap<ExternalResource, Integer>(owners);
+            int first = slots.size();
+            slots.addAll(demand);
+            boolean all = true;
+            for (int slot = first; slot < slots.size() && all; slot++) {
+                Set<ExternalResource> visited =
+                        Collections.newSetFromMap(new IdentityHashMap<ExternalResource, Boolean>());
+                all = augment(slot, slots, owners, visited);
+            }
+            if (all) {
+                firstSlots.add(first);
+            } else {
+                //All or nothing, put everything back as it was.
+                owners = before;
+                firstSlots.add(null);
+            }
+        }
+        ExternalResource[] assigned = new ExternalResource[slots.size()];
+        for (Map.Entry<ExternalResource, Integer> entry : owners.entrySet()) {
+            assigned[entry.getValue()] = entry.getKey();
+        }
+        List<List<ExternalResource>> result = new ArrayList<List<ExternalResource>>(demands.size());
+        for (int i = 0; i < demands.size(); i++) {
+            Integer first = firstSlots.get(i);
+            if (first == null) {
+                result.add(null);
+            } else {
+                List<ExternalResource> resources = new ArrayList<ExternalResource>(demands.get(i).size());
+                for (int slot = first; slot < first + demands.get(i).size(); slot++) {
+                    resources.add(assigned[slot]);
+                }
+                result.add(resources);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tries to give the slot a resource, moving the slots that have the candidates over to other resources if
+     * needed.
+     *
+     * @param slot    the slot.
+     * @param slots   the candidates of each slot.
+     * @param owners  the slot that currently has each resource.
+     * @param visited the resources already looked at while looking for a path.
+     * @return true if the slot got a resource.
+     */
+    private static boolean augment(int slot, List<List<ExternalResource>> slots, Map<ExternalResource, Integer> owners,
+                                   Set<ExternalResource> visited) {
+        List<ExternalResource> candidates = slots.get(slot);
+        for (ExternalResource candidate : candidates) {
+            if (!owners.containsKey(candidate)) {
+                owners.put(candidate, slot);
+                return true;
+            }
+        }
+        for (ExternalResource candidate : candidates) {
+            if (visited.add(candidate) && augment(owners.get(candidate), slots, owners, visited)) {
+                owners.put(candidate, slot);
+                return true;
+            }
+        }
+        return false;
+    }
+}
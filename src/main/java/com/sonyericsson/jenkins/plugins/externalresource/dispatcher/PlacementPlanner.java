@@ -0,0 +1,387 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans which queued item gets which resource, across all nodes, so that {@link ExternalResourceQueueTaskDispatcher}
+ * doesn't hand a scarce resource to a build that could have used a common one.
+ *
+ * The plan is a maximum matching between the items and the free resources that match them. Items with the fewest
+ * candidates are placed first and each item prefers the candidate that the fewest other items want. Items that can't
+ * be placed that way get a resource by moving other items along an augmenting path (Kuhn's algorithm), so as many
+ * items as possible are satisfied. Assignments from the previous plan are kept when they are still possible, so the
+ * plan doesn't jump around when it is recomputed.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+final class PlacementPlanner {
+
+    /**
+     * The plan is recomputed at most this often in milliseconds, even if the resources or the queue have changed.
+     */
+    static final long MIN_PLAN_INTERVAL = 1000;
+
+    private volatile Plan plan;
+
+    /**
+     * Checks if the plan needs to be recomputed before the item is looked up in it.
+     *
+     * @param version the current registry version.
+     * @param itemId  the id of the queue item that is asked about.
+     * @return true if there is no plan, or if the resources or the queue have changed and the plan is old enough.
+     */
+    boolean isStale(long version, int itemId) {
+        Plan current = plan;
+        if (current == null) {
+            return true;
+        }
+        if (current.version == version && current.items.contains(itemId)) {
+            return false;
+        }
+        return System.currentTimeMillis() - current.created >= MIN_PLAN_INTERVAL;
+    }
+
+    /**
+     * Recomputes the plan.
+     *
+     * @param demands the queued items that want a resource.
+     * @param version the registry version that the candidates are based on.
+     */
+    void update(List<Demand> demands, long version) {
+        Map<Integer, Candidate> previous = Collections.emptyMap();
+        Plan current = plan;
+        if (current != null) {
+            previous = current.assignments;
+        }
+        Set<Integer> items = new HashSet<Integer>();
+        for (Demand demand : demands) {
+            items.add(demand.itemId);
+        }
+        plan = new Plan(version, System.currentTimeMillis(), assign(demands, previous), items);
+    }
+
+    /**
+     * The planned resource for the item.
+     *
+     * @param itemId the id of the queue item.
+     * @return the resource and where it is, or null if the item didn't get anything in the plan.
+     */
+    Candidate getAssignment(int itemId) {
+        Plan current = plan;
+        if (current == null) {
+            return null;
+        }
+        return current.assignments.get(itemId);
+    }
+
+    /**
+     * Checks if the resource is planned for another item. Used for the items that are not part of the plan, so that
+     * they don't take what the plan has promised to someone else.
+     *
+     * @param candidate the resource and where it is.
+     * @param itemId    the id of the queue item that wants the resource.
+     * @return true if the plan gives the resource to some other item.
+     */
+    boolean isPlannedForOther(Candidate candidate, int itemId) {
+        Plan current = plan;
+        if (current == null) {
+            return false;
+        }
+        Integer owner = current.owners.get(candidate);
+        return owner != null && owner != itemId;
+    }
+
+    /**
+     * Computes the assignment.
+     *
+     * @param demands  the queued items that want a resource.
+     * @param previous the assignments of the previous plan.
+     * @return the resource for each item that got one.
+     */
+    static Map<Integer, Candidate> assign(List<Demand> demands, Map<Integer, Candidate> previous) {
+        final Map<Candidate, Integer> contention = new HashMap<Candidate, Integer>();
+        for (Demand demand : demands) {
+            for (Candidate candidate : demand.candidates) {
+                Integer count = contention.get(candidate);
+                if (count == null) {
+                    contention.put(candidate, 1);
+                } else {
+                    contention.put(candidate, count + 1);
+                }
+            }
+        }
+        List<Demand> ordered = new ArrayList<Demand>(demands);
+        Collections.sort(ordered, new Comparator<Demand>() {
+            @Override
+            public int compare(Demand o1, Demand o2) {
+                int diff = compareLongs(o1.candidates.size(), o2.candidates.size());
+                if (diff == 0) {
+                    diff = compareLongs(o1.inQueueSince, o2.inQueueSince);
+                }
+                if (diff == 0) {
+                    diff = compareLongs(o1.itemId, o2.itemId);
+                }
+                return diff;
+            }
+        });
+        Map<Integer, List<Candidate>> preferences = new HashMap<Integer, List<Candidate>>();
+        for (Demand demand : ordered) {
+            List<Candidate> sorted = new ArrayList<Candidate>(demand.candidates);
+            Collections.sort(sorted, new Comparator<Candidate>() {
+                @Override
+                public int compare(Candidate o1, Candidate o2) {
+                    return contention.get(o1).compareTo(contention.get(o2));
+                }
+            });
+            preferences.put(demand.itemId, sorted);
+        }
+
+        Matching matching = new Matching(preferences);
+        for (Demand demand : ordered) {
+            Candidate kept = previous.get(demand.itemId);
+            if (kept != null && demand.candidates.contains(kept) && !matching.owners.containsKey(kept)) {
+                matching.take(demand.itemId, kept);
+            }
+        }
+        for (Demand demand : ordered) {
+            if (!matching.assignments.containsKey(demand.itemId)) {
+                matching.place(demand.itemId);
+            }
+        }
+        return matching.assignments;
+    }
+
+    /**
+     * Compares two numbers.
+     *
+     * @param a the first.
+     * @param b the second.
+     * @return negative, zero or positive.
+     */
+    private static int compareLongs(long a, long b) {
+        return Long.valueOf(a).compareTo(b);
+    }
+
+    /**
+     * The matching being built by {@link PlacementPlanner#assign(java.util.List, java.util.Map)}.
+     */
+    private static final class Matching {
+        private final Map<Integer, List<Candidate>> preferences;
+        private final Map<Integer, Candidate> assignments = new HashMap<Integer, Candidate>();
+        private final Map<Candidate, Integer> owners = new HashMap<Candidate, Integer>();
+
+        /**
+         * Standard constructor.
+         *
+         * @param preferences the candidates of each item, in order of preference.
+         */
+        private Matching(Map<Integer, List<Candidate>> preferences) {
+            this.preferences = preferences;
+        }
+
+        /**
+         * Gives the candidate to the item.
+         *
+         * @param itemId    the item.
+         * @param candidate the candidate.
+         */
+        private void take(int itemId, Candidate candidate) {
+            assignments.put(itemId, candidate);
+            owners.put(candidate, itemId);
+        }
+
+        /**
+         * Places the item on a free candidate, or frees one up by moving other items.
+         *
+         * @param itemId the item.
+         */
+        private void place(int itemId) {
+            for (Candidate candidate : preferences.get(itemId)) {
+                if (!owners.containsKey(candidate)) {
+                    take(itemId, candidate);
+                    return;
+                }
+            }
+            augment(itemId, new HashSet<Candidate>());
+        }
+
+        /**
+         * Looks for an augmenting path starting at the item.
+         *
+         * @param itemId  the item.
+         * @param visited the candidates already on the path.
+         * @return true if the item got a candidate.
+         */
+        private boolean augment(int itemId, Set<Candidate> visited) {
+            for (Candidate candidate : preferences.get(itemId)) {
+                if (visited.add(candidate)) {
+                    Integer owner = owners.get(candidate);
+                    if (owner == null || augment(owner, visited)) {
+                        take(itemId, candidate);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A computed plan.
+     */
+    private static final class Plan {
+        private final long version;
+        private final long created;
+        private final Map<Integer, Candidate> assignments;
+        private final Map<Candidate, Integer> owners;
+        private final Set<Integer> items;
+
+        /**
+         * Standard constructor.
+         *
+         * @param version     the registry version the plan is based on.
+         * @param created     when the plan was computed.
+         * @param assignments the resource for each item that got one.
+         * @param items       all items that were considered.
+         */
+        private Plan(long version, long created, Map<Integer, Candidate> assignments, Set<Integer> items) {
+            this.version = version;
+            this.created = created;
+            this.assignments = assignments;
+            this.items = items;
+            owners = new HashMap<Candidate, Integer>();
+            for (Map.Entry<Integer, Candidate> entry : assignments.entrySet()) {
+                owners.put(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * A queued item that wants a resource, and the free resources it could get.
+     */
+    static final class Demand {
+        private final int itemId;
+        private final long inQueueSince;
+        private final List<Candidate> candidates;
+
+        /**
+         * Standard constructor.
+         *
+         * @param itemId       the id of the queue item.
+         * @param inQueueSince when the item entered the queue, older items win ties.
+         * @param candidates   the matching free resources on the nodes where the item can run.
+         */
+        Demand(int itemId, long inQueueSince, List<Candidate> candidates) {
+            this.itemId = itemId;
+            this.inQueueSince = inQueueSince;
+            this.candidates = candidates;
+        }
+    }
+
+    /**
+     * A resource on a node.
+     */
+    static final class Candidate {
+        private final String nodeName;
+        private final String resourceId;
+
+        /**
+         * Standard constructor.
+         *
+         * @param nodeName   the name of the node, empty for the master.
+         * @param resourceId the id of the resource.
+         */
+        Candidate(String nodeName, String resourceId) {
+            if (nodeName == null) {
+                this.nodeName = "";
+            } else {
+                this.nodeName = nodeName;
+            }
+            this.resourceId = resourceId;
+        }
+
+        /**
+         * The name of the node.
+         *
+         * @return the node name, empty for the master.
+         */
+        String getNodeName() {
+            return nodeName;
+        }
+
+        /**
+         * The id of the resource.
+         *
+         * @return the id.
+         */
+        String getResourceId() {
+            return resourceId;
+        }
+
+        /**
+         * If the resource is on the node.
+         *
+         * @param name the name of the node.
+         * @return true if so.
+         */
+        boolean isOn(String name) {
+            if (name == null) {
+                return nodeName.isEmpty();
+            }
+            return nodeName.equals(name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Candidate)) {
+                return false;
+            }
+            Candidate other = (Candidate)o;
+            return nodeName.equals(other.nodeName) && resourceId.equals(other.resourceId);
+        }
+
+        @Override
+        public int hashCode() {
+            //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: Standard hash multiplier.
+            return 31 * nodeName.hashCode() + resourceId.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return resourceId + "@" + nodeName;
+        }
+    }
+}
@@ -25,6 +25,16 @@
 package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
 
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AdminNotifier;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ContainerSaver;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.EventJournal;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.JsonRpcUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.LeaseManager;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReleaseQueue;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReservationExpiry;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReservationPipeline;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies.ResourceChoiceStrategy;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies.TreeOrderChoiceStrategy;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.NoopExternalResourceManager;
 import hudson.ExtensionList;
@@ -40,7 +50,9 @@ import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 
 import javax.servlet.ServletException;
+import java.io.File;
 import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -102,6 +114,56 @@ public class PluginImpl extends Plugin {
      */
     protected static final String FORM_NAME_ADMIN_FILE = "adminNotifierFile";
 
+    /**
+     * Form field name for asynchronous reservation on the config page.
+     */
+    protected static final String FORM_NAME_ASYNC_RESERVATION = "asyncReservation";
+
+    /**
+     * Form field name for the JSON-RPC connection timeout on the config page.
+     */
+    protected static final String FORM_NAME_RPC_CONNECTION_TIMEOUT = "rpcConnectionTimeout";
+
+    /**
+     * Form field name for the JSON-RPC read timeout on the config page.
+     */
+    protected static final String FORM_NAME_RPC_READ_TIMEOUT = "rpcReadTimeout";
+
+    /**
+     * Form field name for the save interval on the config page.
+     */
+    protected static final String FORM_NAME_SAVE_INTERVAL = "saveInterval";
+
+    /**
+     * Form field name for the event journal on the config page.
+     */
+    protected static final String FORM_NAME_JOURNAL_ENABLED = "journalEnabled";
+
+    /**
+     * Form field name for global placement on the config page.
+     */
+    protected static final String FORM_NAME_GLOBAL_PLACEMENT = "globalPlacement";
+
+    /**
+     * Form field name for priority scheduling on the config page.
+     */
+    protected static final String FORM_NAME_PRIORITY_SCHEDULING = "priorityScheduling";
+
+    /**
+     * Form field name for the aging interval on the config page.
+     */
+    protected static final String FORM_NAME_AGING_INTERVAL = "agingInterval";
+
+    /**
+     * Form field name for aborting builds that lose a lock on the config page.
+     */
+    protected static final String FORM_NAME_ABORT_ON_LOST_LOCK = "abortOnLostLock";
+
+    /**
+     * Form field name for the resource choice strategy on the config page.
+     */
+    protected static final String FORM_NAME_CHOICE_STRATEGY = "choiceStrategy";
+
     /**
      * Release Key, used by releaseAll().
      */
@@ -116,6 +178,15 @@ public class PluginImpl extends Plugin {
      */
     private String managerClass;
 
+    /**
+     * The selected resource choice strategy.
+     */
+    private transient ResourceChoiceStrategy choiceStrategy;
+    /**
+     * The class name of the choice strategy to store into config.
+     */
+    private String choiceStrategyClass;
+
     private int reserveTime = Constants.DEFAULT_RESERVE_TIME;
 
     /**
@@ -123,6 +194,57 @@ public class PluginImpl extends Plugin {
      */
     private String adminNotifierFile;
 
+    /**
+     * If reservations during scheduling should be made in the background.
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReservationPipeline}
+     */
+    private boolean asyncReservation;
+
+    /**
+     * Milliseconds to wait for a connection to a JSON-RPC service.
+     */
+    private int rpcConnectionTimeout = Constants.DEFAULT_RPC_CONNECTION_TIMEOUT;
+
+    /**
+     * Milliseconds to wait for a response from a JSON-RPC service.
+     */
+    private int rpcReadTimeout = Constants.DEFAULT_RPC_READ_TIMEOUT;
+
+    /**
+     * Milliseconds to collect resource state changes before the node is saved.
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ContainerSaver}
+     */
+    private long saveInterval;
+
+    /**
+     * If reservations, locks and releases should be recorded.
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.EventJournal}
+     */
+    private boolean journalEnabled;
+
+    /**
+     * If resources should be handed out according to a plan over all queued builds and nodes.
+     * {@link PlacementPlanner}
+     */
+    private boolean globalPlacement;
+
+    /**
+     * If free resources should be held back for the waiting build that is first in line.
+     * {@link PriorityRanking}
+     */
+    private boolean priorityScheduling;
+
+    /**
+     * Seconds a build has to wait to gain one point of priority.
+     */
+    private long agingInterval = Constants.DEFAULT_AGING_INTERVAL;
+
+    /**
+     * If a build whose lock is dropped by the external service should be aborted instead of marked as unstable.
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.LeaseManager}
+     */
+    private boolean abortOnLostLock;
+
     /**
      * Empty constructor, method getInstance() brings the singleton instance.
      */
@@ -139,6 +261,43 @@ public class PluginImpl extends Plugin {
     public void start() throws Exception {
         registerXStreamAlias();
         load();
+        JsonRpcUtil.setTimeouts(rpcConnectionTimeout, rpcReadTimeout);
+        ContainerSaver.getInstance().setInterval(saveInterval);
+        LeaseManager.getInstance().setAbortOnLostLock(abortOnLostLock);
+        updateJournal();
+        ReleaseQueue.getInstance().start(new File(Hudson.getInstance().getRootDir(), Constants.RELEASE_QUEUE_FILE));
+    }
+
+    /**
+     * Saves any resource state that hasn't been written yet and stops the background workers.
+     *
+     * @throws Exception an Exception.
+     */
+    @Override
+    public void stop() throws Exception {
+        ContainerSaver.getInstance().flush();
+        EventJournal.getInstance().stop();
+        ReleaseQueue.getInstance().stop();
+        ReservationPipeline.getInstance().stop();
+        ReservationExpiry.getInstance().stop();
+        LeaseManager.getInstance().stop();
+        AdminNotifier.getInstance().stop();
+    }
+
+    /**
+     * Starts or stops the {@link EventJournal} according to the configuration.
+     */
+    private void updateJournal() {
+        EventJournal journal = EventJournal.getInstance();
+        if (!journalEnabled) {
+            journal.stop();
+        } else if (!journal.isStarted()) {
+            try {
+                journal.start(getJournalDirectory());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not start the external resource event journal.", e);
+            }
+        }
     }
 
 
@@ -181,8 +340,33 @@ public class PluginImpl extends Plugin {
         this.manager = dynamic;
         this.managerClass = dynamic.getClass().getName();
 
+        String strategyName = formData.optString(FORM_NAME_CHOICE_STRATEGY);
+        if (strategyName != null && !strategyName.isEmpty()) {
+            ResourceChoiceStrategy strategy = getAvailableChoiceStrategies().getDynamic(strategyName);
+            if (strategy == null) {
+                throw new FormException("Unknown resource choice strategy: " + strategyName,
+                        FORM_NAME_CHOICE_STRATEGY);
+            }
+            this.choiceStrategy = strategy;
+            this.choiceStrategyClass = strategy.getClass().getName();
+        }
+
         this.reserveTime = formData.getInt(FORM_NAME_RESERVE_TIME);
         this.adminNotifierFile = formData.getString(FORM_NAME_ADMIN_FILE);
+        this.asyncReservation = formData.optBoolean(FORM_NAME_ASYNC_RESERVATION);
+        this.globalPlacement = formData.optBoolean(FORM_NAME_GLOBAL_PLACEMENT);
+        this.priorityScheduling = formData.optBoolean(FORM_NAME_PRIORITY_SCHEDULING);
+        this.agingInterval = formData.optLong(FORM_NAME_AGING_INTERVAL, Constants.DEFAULT_AGING_INTERVAL);
+        this.rpcConnectionTimeout = formData.optInt(FORM_NAME_RPC_CONNECTION_TIMEOUT,
+                Constants.DEFAULT_RPC_CONNECTION_TIMEOUT);
+        this.rpcReadTimeout = formData.optInt(FORM_NAME_RPC_READ_TIMEOUT, Constants.DEFAULT_RPC_READ_TIMEOUT);
+        JsonRpcUtil.setTimeouts(rpcConnectionTimeout, rpcReadTimeout);
+        this.saveInterval = formData.optLong(FORM_NAME_SAVE_INTERVAL, 0);
+        ContainerSaver.getInstance().setInterval(saveInterval);
+        this.abortOnLostLock = formData.optBoolean(FORM_NAME_ABORT_ON_LOST_LOCK);
+        LeaseManager.getInstance().setAbortOnLostLock(abortOnLostLock);
+        this.journalEnabled = formData.optBoolean(FORM_NAME_JOURNAL_ENABLED);
+        updateJournal();
 
         logger.fine("Saving config.");
         save();
@@ -197,6 +381,15 @@ public class PluginImpl extends Plugin {
         return Hudson.getInstance().getExtensionList(ExternalResourceManager.class);
     }
 
+    /**
+     * The list of {@link ResourceChoiceStrategy} Extensions.
+     *
+     * @return a list of available strategies.
+     */
+    public ExtensionList<ResourceChoiceStrategy> getAvailableChoiceStrategies() {
+        return Hudson.getInstance().getExtensionList(ResourceChoiceStrategy.class);
+    }
+
     /**
      * Get this singleton when the user is going to configure the project. The singleton will first make available some
      * global configuration values for the user, then it will be used to configure variables in the current project and
@@ -259,6 +452,28 @@ public class PluginImpl extends Plugin {
         return manager;
     }
 
+    /**
+     * The selected resource choice strategy, first in tree order if none is selected or the selected one can't be
+     * found.
+     *
+     * @return the strategy.
+     */
+    public synchronized ResourceChoiceStrategy getChoiceStrategy() {
+        if (choiceStrategy == null) {
+            if (choiceStrategyClass != null && !choiceStrategyClass.isEmpty()) {
+                choiceStrategy = getAvailableChoiceStrategies().getDynamic(choiceStrategyClass);
+                if (choiceStrategy == null) {
+                    logger.severe("The configured resource choice strategy could not be found! "
+                            + choiceStrategyClass + " Using tree order.");
+                }
+            }
+            if (choiceStrategy == null) {
+                choiceStrategy = getAvailableChoiceStrategies().get(TreeOrderChoiceStrategy.class);
+            }
+        }
+        return choiceStrategy;
+    }
+
     /**
      * The configured number of seconds to reserve a resource during scheduling in
      * {@link ExternalResourceQueueTaskDispatcher}.
@@ -289,4 +504,103 @@ public class PluginImpl extends Plugin {
     public String getAdminNotifierFile() {
         return adminNotifierFile;
     }
+
+    /**
+     * If the {@link ExternalResourceQueueTaskDispatcher} should reserve resources in the background instead of while
+     * the Queue is locked.
+     *
+     * @return true if reservations are made asynchronously.
+     * @see com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReservationPipeline
+     */
+    public boolean isAsyncReservation() {
+        return asyncReservation;
+    }
+
+    /**
+     * If the {@link ExternalResourceQueueTaskDispatcher} should only let builds take the resources that a plan over
+     * all queued builds and all nodes has picked for them, instead of the first matching one.
+     *
+     * @return true if so.
+     * @see PlacementPlanner
+     */
+    public boolean isGlobalPlacement() {
+        return globalPlacement;
+    }
+
+    /**
+     * If the {@link ExternalResourceQueueTaskDispatcher} should hold back free resources for the waiting build with
+     * the highest priority, instead of handing them to whichever build asks first.
+     *
+     * @return true if so.
+     * @see PriorityRanking
+     */
+    public boolean isPriorityScheduling() {
+        return priorityScheduling;
+    }
+
+    /**
+     * Seconds a build has to wait in the queue to gain one point of priority, 0 for no aging.
+     *
+     * @return the aging interval.
+     */
+    public long getAgingInterval() {
+        return agingInterval;
+    }
+
+    /**
+     * If a build whose lock has been dropped by the external service is aborted, instead of marked as unstable.
+     *
+     * @return true if so.
+     * @see com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.LeaseManager
+     */
+    public boolean isAbortOnLostLock() {
+        return abortOnLostLock;
+    }
+
+    /**
+     * Milliseconds to wait for a connection to a JSON-RPC service, 0 for no timeout.
+     *
+     * @return the connection timeout.
+     */
+    public int getRpcConnectionTimeout() {
+        return rpcConnectionTimeout;
+    }
+
+    /**
+     * Milliseconds to wait for a response from a JSON-RPC service, 0 for no timeout.
+     *
+     * @return the read timeout.
+     */
+    public int getRpcReadTimeout() {
+        return rpcReadTimeout;
+    }
+
+    /**
+     * Milliseconds to collect resource state changes before the node is saved, 0 to save right away.
+     *
+     * @return the save interval.
+     * @see com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ContainerSaver
+     */
+    public long getSaveInterval() {
+        return saveInterval;
+    }
+
+    /**
+     * If reservations, locks and releases are recorded in the event journal.
+     *
+     * @return true if so.
+     * @see com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.EventJournal
+     */
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    /**
+     * The directory where the event journal is written.
+     *
+     * @return the directory.
+     */
+    public File getJournalDirectory() {
+        return new File(Hudson.getInstance().getRootDir(), Constants.JOURNAL_DIRECTORY);
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which waiting build is first in line for a resource. Every build has the priority of its
+ * {@link SelectionCriteria} and gains one more point of priority for each aging interval it has been in the queue,
+ * so a build with a low priority is not kept waiting forever by a steady stream of more important ones. Builds with
+ * the same score are ranked by how long they have waited.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+final class PriorityRanking {
+
+    /**
+     * Orders scored builds with the first in line first.
+     */
+    private static final Comparator<Waiting> ORDER = new Comparator<Waiting>() {
+        @Override
+        public int compare(Waiting o1, Waiting o2) {
+            return o1.compareTo(o2);
+        }
+    };
+
+    /**
+     * Utility constructor.
+     */
+    private PriorityRanking() {
+    }
+
+    /**
+     * The score of a waiting build.
+     *
+     * @param priority      the priority of the build.
+     * @param inQueueSince  when the build entered the queue, in milliseconds.
+     * @param now           the current time in milliseconds.
+     * @param agingInterval the number of seconds of waiting that is worth one point of priority, 0 for no aging.
+     * @return the score, higher goes first.
+     */
+    static double score(int priority, long inQueueSince, long now, long agingInterval) {
+        if (agingInterval <= 0) {
+            return priority;
+        }
+        long waited = Math.max(0, now - inQueueSince);
+        return priority + (double)waited / TimeUnit.SECONDS.toMillis(agingInterval);
+    }
+
+    /**
+     * Sorts the builds with the first in line first.
+     *
+     * @param waiting       the builds to sort.
+     * @param now           the current time in milliseconds.
+     * @param agingInterval the number of seconds of waiting that is worth one point of priority, 0 for no aging.
+     */
+    static void sort(List<Waiting> waiting, long now, long agingInterval) {
+        for (Waiting w : waiting) {
+            w.score = score(w.priority, w.inQueueSince, now, agingInterval);
+        }
+        Collections.sort(waiting, ORDER);
+    }
+
+    /**
+     * Finds the place of a build in a line that has already been sorted, without sorting it again.
+     *
+     * @param sorted        the line, sorted with the same time and aging interval.
+     * @param waiting       the build, it doesn't have to be in the line.
+     * @param now           the time that the line was sorted with, in milliseconds.
+     * @param agingInterval the number of seconds of waiting that is worth one point of priority, 0 for no aging.
+     * @return the number of builds in the line that are ahead of the build.
+     */
+    static int position(List<Waiting> sorted, Waiting waiting, long now, long agingInterval) {
+        waiting.score = score(waiting.priority, waiting.inQueueSince, now, agingInterval);
+        int index = Collections.binarySearch(sorted, waiting, ORDER);
+        if (index < 0) {
+            return -index - 1;
+        }
+        return index;
+    }
+
+    /**
+     * A build waiting for resources.
+     */
+    static final class Waiting {
+        private final int itemId;
+        private final long inQueueSince;
+        private final int priority;
+        private final SelectionCriteria criteria;
+        private double score;
+
+        /**
+         * Standard constructor.
+         *
+         * @param itemId       the id of the queue item.
+         * @param inQueueSince when the item entered the queue.
+         * @param priority     the priority of the build.
+         * @param criteria     what the build needs, can be null in the tests.
+         */
+        Waiting(int itemId, long inQueueSince, int priority, SelectionCriteria criteria) {
+            this.itemId = itemId;
+            this.inQueueSince = inQueueSince;
+            this.priority = priority;
+            this.criteria = criteria;
+        }
+
+        /**
+         * The id of the queue item.
+         *
+         * @return the id.
+         */
+        int getItemId() {
+            return itemId;
+        }
+
+        /**
+         * What the build needs.
+         *
+         * @return the criteria.
+         */
+        SelectionCriteria getCriteria() {
+            return criteria;
+        }
+
+        /**
+         * The score as of the last {@link PriorityRanking#sort(java.util.List, long, long)}.
+         *
+         * @return the score.
+         */
+        double getScore() {
+            return score;
+        }
+
+        /**
+         * Compares the rank of the two builds, after both have been scored.
+         *
+         * @param other the other build.
+         * @return negative if this build is ahead of the other.
+         */
+        private int compareTo(Waiting other) {
+            int c = Double.compare(other.score, score);
+            if (c != 0) {
+                return c;
+            }
+            if (inQueueSince != other.inQueueSince) {
+                if (inQueueSince < other.inQueueSince) {
+                    return -1;
+                }
+                return 1;
+            }
+            return itemId - other.itemId;
+        }
+    }
+}
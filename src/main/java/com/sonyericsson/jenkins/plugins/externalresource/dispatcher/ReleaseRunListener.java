@@ -26,12 +26,14 @@ package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
 
 import com.sonyericsson.hudson.plugins.metadata.model.MetadataBuildAction;
 import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeNodeMetadataValue;
 import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
-import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AdminNotifier;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AvailabilityFilter;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.LeaseManager;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReleaseQueue;
 import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
@@ -42,12 +44,13 @@ import java.io.PrintStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants.getBuildLockedResourcePath;
+import static com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants.getBuildLockedResourceParentPath;
 
 /**
  * RunListener in charge of releasing a locked
  * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource}
- * if the build has any.
+ * if the build has any, or all of them if the build needed several. The release itself is made in the background
+ * by the {@link ReleaseQueue}.
  *
  * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
  */
@@ -59,14 +62,21 @@ public class ReleaseRunListener extends RunListener<AbstractBuild> {
     @Override
     public void onCompleted(AbstractBuild build, TaskListener listener) {
         logger.entering("ReleaseRunListener", "onCompleted", build);
+        LeaseManager.getInstance().untrack(build);
         MetadataBuildAction metadata = build.getAction(MetadataBuildAction.class);
         if (metadata != null) {
-            MetadataValue value = TreeStructureUtil.getPath(metadata, getBuildLockedResourcePath());
-            if (value != null && value instanceof ExternalResource) {
-                ExternalResource buildResource = (ExternalResource)value;
-                PrintStream buildLogger = listener.getLogger();
-                release(build, buildResource, buildLogger);
-            } else {
+            MetadataValue value = TreeStructureUtil.getPath(metadata, getBuildLockedResourceParentPath());
+            boolean found = false;
+            if (value instanceof TreeNodeMetadataValue) {
+                //A build that needed several resources has one child for each of them.
+                for (MetadataValue child : ((TreeNodeMetadataValue)value).getChildren()) {
+                    if (child instanceof ExternalResource) {
+                        release(build, (ExternalResource)child, listener.getLogger());
+                        found = true;
+                    }
+                }
+            }
+            if (!found) {
                 logger.log(Level.FINE, "No locked resource found: {0}", value);
             }
         } else {
@@ -76,7 +86,7 @@ public class ReleaseRunListener extends RunListener<AbstractBuild> {
     }
 
     /**
-     * Performs the release.
+     * Queues the release in the {@link ReleaseQueue} so that the build doesn't wait for the manager.
      *
      * @param build         the build.
      * @param buildResource the resource instance that is attached to the build.
@@ -91,14 +101,10 @@ public class ReleaseRunListener extends RunListener<AbstractBuild> {
         if (nodeResource != null) {
             StashInfo lockInfo = nodeResource.getLocked();
             if (lockInfo != null) {
-                StashResult result = PluginImpl.getInstance().getManager().release(build.getBuiltOn(),
-                        nodeResource, lockInfo.getKey(), build.getUrl());
-                if (result != null && result.isOk()) {
-                    //Success!
-                    logReleaseSuccess(build, buildResource, buildLogger);
-                } else {
-                    logReleaseFailure(build, buildLogger, nodeResource, result);
-                }
+                ReleaseQueue.getInstance().submit(build.getBuiltOn(), nodeResource, lockInfo.getKey(),
+                        build.getUrl());
+                buildLogger.println("The release of resource " + buildResource.getId()
+                        + " has been queued, failures are reported to the administrators.");
             } else {
                 logWarningPreReleased(build, buildLogger, nodeResource);
             }
@@ -141,51 +147,4 @@ public class ReleaseRunListener extends RunListener<AbstractBuild> {
                 + " by some other means",
                 new String[]{nodeResource.getId(), build.getBuiltOn().getNodeName()});
     }
-
-    /**
-     * Inform the user that the resource was successfully released.
-     *
-     * @param build         the build
-     * @param buildResource the resource attached to the build.
-     * @param buildLogger   to inform the user with.
-     */
-    private void logReleaseSuccess(AbstractBuild build, ExternalResource buildResource, PrintStream buildLogger) {
-        buildLogger.println("Resource " + buildResource.getId() + " successfully released.");
-        logger.log(Level.FINE, "Resource [{0}] successfully released from build [{1}]",
-                new String[]{buildResource.getId(), build.getFullDisplayName()});
-    }
-
-    /**
-     * Inform the user and admins that the manager failed to release the resource.
-     *
-     * @param build        the build
-     * @param buildLogger  to inform the user with.
-     * @param nodeResource the resource instance attached to the node.
-     * @param result       the result returned by the manager.
-     * @see com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager
-     *      #release(hudson.model.Node, ExternalResource, String)
-     */
-    private void logReleaseFailure(AbstractBuild build, PrintStream buildLogger,
-                                   ExternalResource nodeResource, StashResult result) {
-        buildLogger.println("ERROR Failed to release resource " + nodeResource.getId());
-        if (result != null) {
-            AdminNotifier.getInstance().notify(AdminNotifier.MessageType.ERROR, AdminNotifier.OperationType.RELEASE,
-                        build.getBuiltOn(), nodeResource, "Failed to release external resource from build: "
-                            + build.getFullDisplayName() + " Status: " + result.getStatus() + ", Code: "
-                            + result.getErrorCode() + ", Message: " + result.getMessage());
-            buildLogger.println("\tStatus: " + result.getStatus()
-                    + " Code: " + result.getErrorCode() + " Message: " + result.getMessage());
-            logger.log(Level.SEVERE, "Failed to release resource [{0}] from build [{1}]:"
-                    + " Status: {2}, Code: {3}, Message: {4}",
-                    new Object[]{nodeResource.getId(), build.getFullDisplayName(),
-                            result.getStatus(), result.getErrorCode(), result.getMessage(), });
-        } else {
-            AdminNotifier.getInstance().notify(AdminNotifier.MessageType.ERROR, AdminNotifier.OperationType.RELEASE,
-                        build.getBuiltOn(), nodeResource, "Failed to release external resource  from build:"
-                            + build.getFullDisplayName() + "No result!");
-            logger.log(Level.SEVERE, "Failed to release resource [{0}] from build [{1}]: "
-                    + "No Result!",
-                    new Object[]{nodeResource.getId(), build.getFullDisplayName()});
-        }
-    }
 }
@@ -24,8 +24,11 @@
  */
 package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,7 +39,11 @@ import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.Reserve
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.AbstractResourceSelection;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.ResourceGroup;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.SelectionMatcher;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AdminNotifier;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.LeaseManager;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
@@ -70,17 +77,51 @@ public class SelectionCriteria extends JobProperty<AbstractProject<?, ?>> {
     private static final Logger logger = Logger.getLogger(SelectionCriteria.class.getName());
     private boolean selectionEnabled;
     private List<AbstractResourceSelection> resourceSelectionList;
+    private List<ResourceGroup> groups;
+    private int priority;
+    /**
+     * The compiled form of {@link #resourceSelectionList}.
+     */
+    private transient volatile SelectionMatcher matcher;
 
     /**
      * Standard DataBound Constructor.
      *
      * @param selectionEnabled if true, selection is checked
      * @param resourceSelectionList the selection list
+     * @param groups further resources needed by the build
+     * @param priority how important the build is when several builds wait for the same resources
      */
     @DataBoundConstructor
-    public SelectionCriteria(boolean selectionEnabled, List<AbstractResourceSelection> resourceSelectionList) {
+    public SelectionCriteria(boolean selectionEnabled, List<AbstractResourceSelection> resourceSelectionList,
+                             List<ResourceGroup> groups, int priority) {
         this.selectionEnabled = selectionEnabled;
         this.resourceSelectionList = resourceSelectionList;
+        this.groups = groups;
+        this.priority = priority;
+        this.matcher = SelectionMatcher.compile(resourceSelectionList);
+    }
+
+    /**
+     * Constructor for a build with the default priority.
+     *
+     * @param selectionEnabled if true, selection is checked
+     * @param resourceSelectionList the selection list
+     * @param groups further resources needed by the build
+     */
+    public SelectionCriteria(boolean selectionEnabled, List<AbstractResourceSelection> resourceSelectionList,
+                             List<ResourceGroup> groups) {
+        this(selectionEnabled, resourceSelectionList, groups, 0);
+    }
+
+    /**
+     * Constructor for a build that needs one resource.
+     *
+     * @param selectionEnabled if true, selection is checked
+     * @param resourceSelectionList the selection list
+     */
+    public SelectionCriteria(boolean selectionEnabled, List<AbstractResourceSelection> resourceSelectionList) {
+        this(selectionEnabled, resourceSelectionList, null);
     }
 
     /**
@@ -90,6 +131,7 @@ public class SelectionCriteria extends JobProperty<AbstractProject<?, ?>> {
      */
     public SelectionCriteria(List<AbstractResourceSelection> resourceSelectionList) {
         this.resourceSelectionList = resourceSelectionList;
+        this.matcher = SelectionMatcher.compile(resourceSelectionList);
     }
 
     /**
@@ -104,6 +146,103 @@ public class SelectionCriteria extends JobProperty<AbstractProject<?, ?>> {
         return resourceSelectionList;
     }
 
+    /**
+     * The groups of further resources needed by the build, if null, then create a new list.
+     *
+     * @return the groups.
+     */
+    public synchronized List<ResourceGroup> getGroups() {
+        if (groups == null) {
+            groups = new LinkedList<ResourceGroup>();
+        }
+        return groups;
+    }
+
+    /**
+     * How important the build is when several builds wait for the same resources, higher goes first. Only used
+     * when {@link PluginImpl#isPriorityScheduling()}.
+     *
+     * @return the priority, 0 is the default.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * If there is anything to select, either a simple selection or groups.
+     *
+     * @return true if so.
+     */
+    public boolean hasSelection() {
+        return !getResourceSelectionList().isEmpty() || isMultiResource();
+    }
+
+    /**
+     * If the build needs more than the one resource of the simple selection.
+     *
+     * @return true if any group needs a resource.
+     */
+    public boolean isMultiResource() {
+        for (ResourceGroup group : getGroups()) {
+            if (group.getCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The matchers of all the resources the build needs, one for each resource. The simple selection comes first if
+     * there is one, followed by each group repeated as many times as its count.
+     *
+     * @return the matchers.
+     */
+    public List<SelectionMatcher> getSlots() {
+        List<SelectionMatcher> slots = new ArrayList<SelectionMatcher>();
+        if (!getResourceSelectionList().isEmpty()) {
+            slots.add(getMatcher());
+        }
+        for (ResourceGroup group : getGroups()) {
+            for (int i = 0; i < group.getCount(); i++) {
+                slots.add(group.getMatcher());
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * The names that the locked resources are exposed under in the build, in the same order as {@link #getSlots()}.
+     * The resource of the simple selection is exposed as {@link Constants#BUILD_LOCKED_RESOURCE_NAME} and the ones
+     * of the groups as the group name followed by a number.
+     *
+     * @return the names.
+     */
+    public List<String> getSlotNames() {
+        List<String> names = new ArrayList<String>();
+        if (!getResourceSelectionList().isEmpty()) {
+            names.add(BUILD_LOCKED_RESOURCE_NAME);
+        }
+        Map<String, Integer> numbers = new HashMap<String, Integer>();
+        for (ResourceGroup group : getGroups()) {
+            String name = group.getName();
+            if (name == null || name.trim().isEmpty()) {
+                name = BUILD_LOCKED_RESOURCE_NAME;
+            } else {
+                name = name.trim();
+            }
+            for (int i = 0; i < group.getCount(); i++) {
+                Integer number = numbers.get(name);
+                if (number == null) {
+                    number = 0;
+                }
+                number++;
+                numbers.put(name, number);
+                names.add(name + number);
+            }
+        }
+        return names;
+    }
+
     /**
      * SelectionEnabled value.
      *
@@ -121,22 +260,35 @@ public class SelectionCriteria extends JobProperty<AbstractProject<?, ?>> {
      * @return the matching resource list if exists.
      */
     public List<ExternalResource> getMatchingResources(List<ExternalResource> availableResourceList) {
-        List<ExternalResource> matchingResourceList = new LinkedList<ExternalResource>();
-        boolean foundFlag = true;
-        for (ExternalResource er : availableResourceList) {
-            foundFlag = true;
-            for (AbstractResourceSelection resourceSelection : resourceSelectionList) {
-                if (!resourceSelection.equalToExternalResourceValue(er)) {
-                    foundFlag = false;
-                    break;
-                }
-            }
-            if (foundFlag) {
-                matchingResourceList.add(er);
-            }
+        return getMatcher().filter(availableResourceList);
+    }
+
+    /**
+     * Get the enabled and available resources on the node that match the criteria.
+     * Looked up in the inverted index of the
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry}.
+     *
+     * @param node the node to look on.
+     * @return the matching resources, in the order they appear on the node.
+     */
+    public List<ExternalResource> getMatchingResources(Node node) {
+        return ExternalResourceRegistry.getInstance().getMatchingResources(node, getMatcher());
+    }
+
+    /**
+     * The compiled form of the resource selection list.
+     * It is built when the job is configured or on first use after being loaded from disk.
+     *
+     * @return the matcher.
+     */
+    public SelectionMatcher getMatcher() {
+        SelectionMatcher m = matcher;
+        if (m == null) {
+            m = SelectionMatcher.compile(getResourceSelectionList());
+            matcher = m;
         }
-        return matchingResourceList;
-     }
+        return m;
+    }
 
     @Override
     public boolean prebuild(AbstractBuild<?, ?> build,
@@ -158,9 +310,89 @@ public class SelectionCriteria extends JobProperty<AbstractProject<?, ?>> {
                     "No phone chosen even though we have selection criteria, aborting build.");
             return false;
         }
-        ExternalResource reserved = action.pop();
-        StashInfo reservedInfo = reserved.getReserved();
+        List<ExternalResource> reserved = action.popAll();
+        if (reserved.isEmpty()) {
+            AdminNotifier.getInstance().notify(AdminNotifier.MessageType.ERROR, AdminNotifier.OperationType.RESERVE,
+                    node, null, "Nothing reserved even though we have selection criteria, aborting build: "
+                            + buildName);
+            logger.log(Level.SEVERE,
+                    "Nothing reserved even though we have selection criteria, aborting build: [{0}].", buildName);
+            listener.getLogger().println("Nothing reserved even though we have selection criteria, aborting build.");
+            return false;
+        }
         ExternalResourceManager resourceManager = PluginImpl.getInstance().getManager();
+        List<ExternalResource> locked = new ArrayList<ExternalResource>(reserved.size());
+        List<String> lockKeys = new ArrayList<String>(reserved.size());
+        for (ExternalResource resource : reserved) {
+            StashResult lockResult = lock(build, listener, node, resource, resourceManager);
+            if (lockResult == null) {
+                rollback(build, node, locked, lockKeys, reserved, resourceManager);
+                return false;
+            }
+            locked.add(resource);
+            lockKeys.add(lockResult.getKey());
+        }
+
+        //update the node and build information.
+        List<String> names = getSlotNames();
+        if (names.size() != locked.size()) {
+            //The criteria has been changed since the resources were reserved.
+            names = new ArrayList<String>(locked.size());
+            names.add(BUILD_LOCKED_RESOURCE_NAME);
+            for (int i = 1; i < locked.size(); i++) {
+                names.add(BUILD_LOCKED_RESOURCE_NAME + i);
+            }
+        }
+        MetadataBuildAction metadataBuildAction = build.getAction(MetadataBuildAction.class);
+        if (metadataBuildAction == null) {
+            metadataBuildAction = new MetadataBuildAction(build);
+            build.addAction(metadataBuildAction);
+        }
+        for (int i = 0; i < locked.size(); i++) {
+            ExternalResource resource = locked.get(i);
+            ExternalResource buildResource;
+            try {
+                buildResource = resource.clone();
+            } catch (CloneNotSupportedException e) {
+                //should not happen since ExternalResource and its ancestors are cloneable.
+                AdminNotifier.getInstance().notify(AdminNotifier.MessageType.ERROR,
+                        AdminNotifier.OperationType.LOCK, node, resource,
+                        "Could not clone the External resource, aborting the build: " + buildName);
+                logger.log(Level.SEVERE,
+                        "Could not clone the External resource: [{0}], aborting the build: [{1}].",
+                        new String[]{resource.getId(), buildName});
+                listener.getLogger().println(
+                        "Could not clone the External resource: " + resource.getId() + ", aborting the build.");
+                rollback(build, node, locked, lockKeys, reserved, resourceManager);
+                return false;
+            }
+            buildResource.setName(names.get(i));
+            TreeNodeMetadataValue lockedTree = TreeStructureUtil.createPath(buildResource,
+                    getBuildLockedResourceParentPath());
+            metadataBuildAction.addChild(lockedTree);
+            buildResource.setExposeToEnvironment(true);
+        }
+        for (ExternalResource resource : locked) {
+            LeaseManager.getInstance().track(build, listener, node, resource);
+        }
+        //The resources have been locked and we can continue with the build.
+        return true;
+    }
+
+    /**
+     * Locks one of the reserved resources of the build, reserving it again first if the reservation has run out.
+     *
+     * @param build           the build.
+     * @param listener        the build listener to tell the user with.
+     * @param node            the node the build runs on.
+     * @param reserved        the resource.
+     * @param resourceManager the manager.
+     * @return the result of the lock, or null if it failed.
+     */
+    private StashResult lock(AbstractBuild<?, ?> build, BuildListener listener, Node node,
+                             ExternalResource reserved, ExternalResourceManager resourceManager) {
+        String buildName = build.getFullDisplayName();
+        StashInfo reservedInfo = reserved.getReserved();
 
         //If the phone is not reserved anymore, try to reserve it again.
         //If it cannot be reserved, fail the build.
@@ -175,7 +407,7 @@ public class SelectionCriteria extends JobProperty<AbstractProject<?, ?>> {
                         reserved.getId());
                 listener.getLogger().println("External resource: " + reserved.getId()
                         + " has been taken by someone else, aborting build");
-                return false;
+                return null;
             } else {
                 reservedInfo = new StashInfo(result, build.getUrl());
             }
@@ -189,34 +421,41 @@ public class SelectionCriteria extends JobProperty<AbstractProject<?, ?>> {
             logger.log(Level.SEVERE, "Could not lock resource: [{0}], aborting the build: [{1}].",
                     new String[]{reserved.getId(), buildName});
             listener.getLogger().println("Could not lock resource: " + reserved.getId() + ", aborting the build.");
-            return false;
+            return null;
         }
-        //update the node and build information.
-        ExternalResource locked;
-        try {
-            locked = reserved.clone();
-        } catch (CloneNotSupportedException e) {
-            //should not happen since ExternalResource and its ancestors are cloneable.
-            AdminNotifier.getInstance().notify(AdminNotifier.MessageType.ERROR, AdminNotifier.OperationType.LOCK,
-                    node, reserved, "Could not clone the External resource, aborting the build: " + buildName);
-            logger.log(Level.SEVERE,
-                    "Could not clone the External resource: [{0}], aborting the build: [{1}].",
-                    new String[]{reserved.getId(), buildName});
-            listener.getLogger().println(
-                    "Could not clone the External resource: " + reserved.getId() + ", aborting the build.");
-            return false;
+        return lockResult;
+    }
+
+    /**
+     * Gives back everything the build has taken when it can't get all of its resources. The locked resources are
+     * released and the ones that are still only reserved are released with their reservation key.
+     *
+     * @param build           the build.
+     * @param node            the node the build runs on.
+     * @param locked          the resources that were locked.
+     * @param lockKeys        the keys of the locks, in the same order.
+     * @param reserved        all of the resources of the build.
+     * @param resourceManager the manager.
+     */
+    private void rollback(AbstractBuild<?, ?> build, Node node, List<ExternalResource> locked,
+                          List<String> lockKeys, List<ExternalResource> reserved,
+                          ExternalResourceManager resourceManager) {
+        for (int i = 0; i < locked.size(); i++) {
+            ExternalResource resource = locked.get(i);
+            StashResult result = resourceManager.release(node, resource, lockKeys.get(i), build.getUrl());
+            if (result == null || !result.isOk()) {
+                AdminNotifier.getInstance().notify(AdminNotifier.MessageType.ERROR,
+                        AdminNotifier.OperationType.RELEASE, node, resource,
+                        "Could not release the resource after failing to lock all resources of the build: "
+                                + build.getFullDisplayName());
+            }
         }
-        MetadataBuildAction metadataBuildAction = build.getAction(MetadataBuildAction.class);
-        if (metadataBuildAction == null) {
-            metadataBuildAction = new MetadataBuildAction(build);
-            build.addAction(metadataBuildAction);
+        for (ExternalResource resource : reserved) {
+            StashInfo info = resource.getReserved();
+            if (!locked.contains(resource) && info != null) {
+                resourceManager.release(node, resource, info.getKey(), build.getUrl());
+            }
         }
-        locked.setName(BUILD_LOCKED_RESOURCE_NAME);
-        TreeNodeMetadataValue lockedTree = TreeStructureUtil.createPath(locked, getBuildLockedResourceParentPath());
-        metadataBuildAction.addChild(lockedTree);
-        locked.setExposeToEnvironment(true);
-        //The resource has been locked and we can continue with the build.
-        return true;
     }
 
     /**
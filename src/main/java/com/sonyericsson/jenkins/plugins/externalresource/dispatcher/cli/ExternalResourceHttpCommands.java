@@ -27,18 +27,44 @@ package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.cli;
 import com.sonyericsson.hudson.plugins.metadata.cli.CliResponse;
 import com.sonyericsson.hudson.plugins.metadata.cli.CliUtils;
 import com.sonyericsson.hudson.plugins.metadata.cli.CliResponse.Type;
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.AbstractResourceSelection;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.SelectionMatcher;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.StringResourceSelection;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AvailabilityFilter;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ContainerSaver;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.DispatcherMetrics;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceStateExport;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.StateChangeFeed;
 import hudson.Extension;
 import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.apache.commons.io.IOUtils;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,6 +86,31 @@ public class ExternalResourceHttpCommands implements RootAction {
 
     private static final Logger logger = Logger.getLogger(ExternalResourceHttpCommands.class.getName());
 
+    /**
+     * The encoding of the JSON responses.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Status of a batch operation that was applied.
+     */
+    private static final String BATCH_OK = "ok";
+
+    /**
+     * Status of a batch operation that came from this Jenkins in the first place.
+     */
+    private static final String BATCH_IGNORED = "ignored";
+
+    /**
+     * Status of a batch operation that could not be applied.
+     */
+    private static final String BATCH_ERROR = "error";
+
+    /**
+     * Seconds between keep-alive comments on an idle event stream.
+     */
+    private static final int EVENTS_KEEP_ALIVE_SECONDS = 15;
+
     @Override
     public String getIconFileName() {
         return null;
@@ -306,6 +357,321 @@ public class ExternalResourceHttpCommands implements RootAction {
         doSomething(node, id, something, response);
     }
 
+    /**
+     * Writes the counters and latency histograms of the dispatcher and the external resource manager as JSON.
+     *
+     * @param response the response handle to write to.
+     * @throws IOException if so.
+     * @see DispatcherMetrics
+     */
+    @SuppressWarnings("unused")
+    public void doMetrics(StaplerResponse response) throws IOException {
+        writeJson(response, DispatcherMetrics.getInstance().toJson());
+    }
+
+    /**
+     * Writes JSON to the response, encoded as UTF-8.
+     *
+     * @param response the response handle to write to.
+     * @param json     the JSON to write.
+     * @throws IOException if so.
+     */
+    private void writeJson(StaplerResponse response, JSON json) throws IOException {
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(json.toString().getBytes(CHARSET));
+    }
+
+    /**
+     * Applies a batch of signals from an external lock handler in one request. The body is POSTed as either a JSON
+     * array of operations or an object with the array in <code>operations</code> and a common
+     * <code>clientInfo</code>. Each operation is an object with <code>op</code> (lock, reserve or release),
+     * <code>node</code>, <code>id</code> and optionally <code>by</code> and <code>clientInfo</code>.
+     * Every affected node is saved once after all operations are applied. The response holds one result per
+     * operation in the same order.
+     *
+     * @param request  the request to read the operations from.
+     * @param response the response handle to write to.
+     * @throws IOException if so.
+     */
+    @SuppressWarnings("unused")
+    public void doBatch(StaplerRequest request, StaplerResponse response) throws IOException {
+        if (!"POST".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "POST the operations as JSON.");
+            return;
+        }
+        JSONArray operations;
+        Object commonClientInfo = null;
+        try {
+            JSON body = JSONSerializer.toJSON(IOUtils.toString(request.getReader()));
+            if (body instanceof JSONObject) {
+                operations = ((JSONObject)body).getJSONArray("operations");
+                commonClientInfo = ((JSONObject)body).opt("clientInfo");
+            } else if (body instanceof JSONArray) {
+                operations = (JSONArray)body;
+            } else {
+                sendResponse(Type.error, 0, "Error", "Bad batch: expected a JSON array of operations.", response);
+                return;
+            }
+        } catch (JSONException e) {
+            sendResponse(Type.error, 0, "Error", "Bad batch: " + e.getMessage(), response);
+            return;
+        }
+
+        Map<String, Node> nodes = new HashMap<String, Node>();
+        Map<MetadataContainer<MetadataValue>, Boolean> changed =
+                new IdentityHashMap<MetadataContainer<MetadataValue>, Boolean>();
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < operations.size(); i++) {
+            JSONObject result = new JSONObject();
+            result.put("index", i);
+            Object operation = operations.get(i);
+            if (operation instanceof JSONObject) {
+                applyBatchOperation((JSONObject)operation, commonClientInfo, nodes, changed, result);
+            } else {
+                result.put("status", BATCH_ERROR);
+                result.put("message", "Not an object.");
+            }
+            results.add(result);
+        }
+
+        Type type = Type.ok;
+        for (MetadataContainer<MetadataValue> container : changed.keySet()) {
+            try {
+                ContainerSaver.getInstance().save(container);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Probably failed to save the node config to disk! ", e);
+                type = Type.warning;
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("type", type.name());
+        json.put("results", results);
+        writeJson(response, json);
+    }
+
+    /**
+     * Applies one operation of a batch without saving.
+     *
+     * @param operation        the operation.
+     * @param commonClientInfo the client info of the whole batch, if any.
+     * @param nodes            the nodes looked up so far in the batch.
+     * @param changed          the containers of the resources that have changed state.
+     * @param result           where to put the result of the operation.
+     * @see #doBatch(org.kohsuke.stapler.StaplerRequest, org.kohsuke.stapler.StaplerResponse)
+     */
+    private void applyBatchOperation(JSONObject operation, Object commonClientInfo, Map<String, Node> nodes,
+                                     Map<MetadataContainer<MetadataValue>, Boolean> changed, JSONObject result) {
+        String op = operation.optString("op");
+        String nodeName = operation.optString("node");
+        String id = operation.optString("id");
+        String by = operation.optString("by", null);
+        result.put("node", nodeName);
+        result.put("id", id);
+        Object clientInfo = operation.opt("clientInfo");
+        if (clientInfo == null) {
+            clientInfo = commonClientInfo;
+        }
+        if (clientInfo != null && ErCliUtils.isRequestCircular(clientInfo.toString())) {
+            result.put("status", BATCH_IGNORED);
+            return;
+        }
+        Node node;
+        if (nodes.containsKey(nodeName)) {
+            node = nodes.get(nodeName);
+        } else {
+            if (nodeName.isEmpty()) {
+                node = Jenkins.getInstance();
+            } else {
+                node = Hudson.getInstance().getNode(nodeName);
+            }
+            nodes.put(nodeName, node);
+        }
+        if (node == null) {
+            result.put("status", BATCH_ERROR);
+            result.put("message", "No node with name " + nodeName + " exists on this Jenkins server.");
+            return;
+        }
+        ExternalResource resource = AvailabilityFilter.getInstance().getExternalResourceById(node, id);
+        if (resource == null) {
+            result.put("status", BATCH_ERROR);
+            result.put("message", "No resource with id " + id + " exists on this node.");
+            return;
+        }
+        try {
+            if ("lock".equals(op)) {
+                resource.markLocked(new StashInfo(StashInfo.StashType.EXTERNAL, by, null, null));
+            } else if ("reserve".equals(op)) {
+                resource.markReserved(new StashInfo(StashInfo.StashType.EXTERNAL, by, null, null));
+            } else if ("release".equals(op)) {
+                resource.markReleased();
+            } else {
+                result.put("status", BATCH_ERROR);
+                result.put("message", "Unknown operation: " + op);
+                return;
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not " + op + " resource " + id + " on " + nodeName, e);
+            result.put("status", BATCH_ERROR);
+            result.put("message", e.getMessage());
+            return;
+        }
+        MetadataContainer<MetadataValue> container = resource.getMetadataContainer();
+        if (container != null) {
+            changed.put(container, Boolean.TRUE);
+        }
+        result.put("status", BATCH_OK);
+    }
+
+    /**
+     * Streams the state of all external resources as newline delimited JSON, one resource per line.
+     * The resources can be filtered on the node name (empty for the master), the state (free, reserved or locked)
+     * and any number of <code>select=path.to.leaf=value</code> selections that all have to match.
+     *
+     * @param node     only resources on this node, or null for all nodes.
+     * @param state    only resources in this state, or null for all.
+     * @param request  the request to read the selections from.
+     * @param response the response handle to write to.
+     * @throws IOException if so.
+     * @see ResourceStateExport
+     */
+    @SuppressWarnings("unused")
+    public void doState(
+            @QueryParameter(value = "node") final String node,
+            @QueryParameter(value = "state") final String state,
+            StaplerRequest request, StaplerResponse response) throws IOException {
+        ResourceStateExport.StateFilter stateFilter = null;
+        if (state != null && !state.isEmpty()) {
+            try {
+                stateFilter = ResourceStateExport.StateFilter.valueOf(state.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown state: " + state);
+                return;
+            }
+        }
+        SelectionMatcher matcher = null;
+        String[] selections = request.getParameterValues("select");
+        if (selections != null && selections.length > 0) {
+            List<AbstractResourceSelection> list = new LinkedList<AbstractResourceSelection>();
+            for (String selection : selections) {
+                int separator = selection.indexOf('=');
+                if (separator <= 0) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad selection: " + selection);
+                    return;
+                }
+                list.add(new StringResourceSelection(selection.substring(0, separator),
+                        selection.substring(separator + 1)));
+            }
+            matcher = SelectionMatcher.compile(list);
+        }
+        List<Node> nodes = new LinkedList<Node>();
+        nodes.add(Jenkins.getInstance());
+        nodes.addAll(Hudson.getInstance().getNodes());
+        response.setContentType("application/x-ndjson;charset=UTF-8");
+        new ResourceStateExport(node, stateFilter, matcher).write(nodes, response.getOutputStream());
+    }
+
+    /**
+     * A long lived stream of server-sent events, one for every reserve, lock, release, expire, enable and disable
+     * of any external resource. The id of each event is the epoch and its sequence number, <code>epoch-seq</code>, a
+     * client that reconnects with the Last-Event-ID header, or the <code>since</code> parameter, gets the events it
+     * missed if they are still in the history. A <code>missed</code> event tells the client that some events are gone,
+     * for example because Jenkins has restarted, and that it should fetch the full state. A client that doesn't keep
+     * up gets a <code>dropped</code> event and the stream is closed.
+     *
+     * @param since    the id of the last event the client has seen, or just its sequence number, or null.
+     * @param request  the request.
+     * @param response the response handle to write to.
+     * @throws IOException if so.
+     * @see StateChangeFeed
+     */
+    @SuppressWarnings("unused")
+    public void doEvents(
+            @QueryParameter(value = "since") final String since,
+            StaplerRequest request, StaplerResponse response) throws IOException {
+        StateChangeFeed feed = StateChangeFeed.getInstance();
+        long epoch = feed.getEpoch();
+        long cursor = -1;
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (lastEventId == null || lastEventId.isEmpty()) {
+            lastEventId = since;
+        }
+        if (lastEventId != null && !lastEventId.isEmpty()) {
+            String id = lastEventId.trim();
+            try {
+                int separator = id.indexOf('-');
+                if (separator > 0) {
+                    epoch = Long.parseLong(id.substring(0, separator));
+                    id = id.substring(separator + 1);
+                }
+                cursor = Long.parseLong(id);
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad sequence number: " + lastEventId);
+                return;
+            }
+        }
+        StateChangeFeed.Subscriber subscriber = feed.subscribe(epoch, cursor);
+        if (subscriber == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many subscribers.");
+            return;
+        }
+        try {
+            response.setContentType("text/event-stream;charset=UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            ServletOutputStream out = response.getOutputStream();
+            if (subscriber.hasMissed()) {
+                write(out, "event: missed\ndata: {}\n\n");
+            }
+            out.flush();
+            while (true) {
+                StateChangeFeed.Event event = subscriber.poll(EVENTS_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                if (event == null) {
+                    if (subscriber.isDropped()) {
+                        write(out, "event: dropped\ndata: {}\n\n");
+                        out.flush();
+                        return;
+                    }
+                    //A comment to find out if the client is still there.
+                    write(out, ": keep-alive\n\n");
+                } else {
+                    writeEvent(out, event);
+                    for (StateChangeFeed.Event queued : subscriber.drain()) {
+                        writeEvent(out, queued);
+                    }
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            logger.log(Level.FINE, "Interrupted while streaming events.", e);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Event stream closed by the client.", e);
+        } finally {
+            feed.unsubscribe(subscriber);
+        }
+    }
+
+    /**
+     * Writes one server-sent event.
+     *
+     * @param out   the stream to write to.
+     * @param event the event.
+     * @throws IOException if so.
+     */
+    private void writeEvent(ServletOutputStream out, StateChangeFeed.Event event) throws IOException {
+        write(out, "id: " + event.getId() + "\nevent: " + event.getType().name().toLowerCase(Locale.ENGLISH)
+                + "\ndata: " + event.toJson().toString() + "\n\n");
+    }
+
+    /**
+     * Writes text to the event stream, encoded as UTF-8.
+     *
+     * @param out  the stream to write to.
+     * @param text the text.
+     * @throws IOException if so.
+     */
+    private void write(ServletOutputStream out, String text) throws IOException {
+        out.write(text.getBytes(CHARSET));
+    }
+
     /**
      * Does something with an external resource.
      *
@@ -0,0 +1,129 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.cli;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.PluginImpl;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.EventJournal;
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.Hudson;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints the records in the {@link EventJournal}, one tab separated line per record.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@Extension
+public class ExternalResourceJournalCommand extends CLICommand {
+
+    //CS IGNORE VisibilityModifier FOR NEXT 11 LINES. REASON: Standard Jenkins Args4J design pattern.
+
+    /**
+     * The number of records to print from the end of the journal.
+     */
+    @Option(required = false, name = "-last", usage = "Only print the last n records")
+    public int last;
+    /**
+     * The id of the resource.
+     */
+    @Option(required = false, name = "-id", usage = "Only print records about this external resource")
+    public String id;
+
+    @Override
+    public String getShortDescription() {
+        return Messages.ExternalResourceJournalCliCommand_Description();
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        File directory = PluginImpl.getInstance().getJournalDirectory();
+        if (!directory.isDirectory()) {
+            stderr.println("There is no journal in " + directory);
+            return 1;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        if (last > 0) {
+            //Only the last records are kept while the journal is read.
+            final Deque<EventJournal.Event> tail = new ArrayDeque<EventJournal.Event>();
+            EventJournal.read(directory, new EventJournal.Visitor() {
+                @Override
+                public void visit(EventJournal.Event event) {
+                    if (matches(event)) {
+                        if (tail.size() >= last) {
+                            tail.removeFirst();
+                        }
+                        tail.addLast(event);
+                    }
+                }
+            });
+            for (EventJournal.Event event : tail) {
+                print(format, event);
+            }
+        } else {
+            EventJournal.read(directory, new EventJournal.Visitor() {
+                @Override
+                public void visit(EventJournal.Event event) {
+                    if (matches(event)) {
+                        print(format, event);
+                    }
+                }
+            });
+        }
+        return 0;
+    }
+
+    /**
+     * If the record should be printed.
+     *
+     * @param event the record.
+     * @return true if no id was given or if the record is about that resource.
+     */
+    private boolean matches(EventJournal.Event event) {
+        return id == null || id.equals(event.getResourceId());
+    }
+
+    /**
+     * Prints one record.
+     *
+     * @param format the format of the time stamp.
+     * @param event  the record.
+     */
+    private void print(SimpleDateFormat format, EventJournal.Event event) {
+        stdout.println(format.format(new Date(event.getTime())) + "\t" + event.getOperation()
+                + "\t" + event.getStatus() + "\t" + event.getResultCode()
+                + "\t" + event.getNodeName() + "\t" + event.getResourceId()
+                + "\t" + event.getOwner()
+                + "\t" + TimeUnit.NANOSECONDS.toMicros(event.getLatency()));
+    }
+}
@@ -34,6 +34,10 @@ import com.sonyericsson.hudson.plugins.metadata.model.values.TreeNodeMetadataVal
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.PluginImpl;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ContainerSaver;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReservationExpiry;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.StateChangeFeed;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -51,6 +55,7 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import static com.sonyericsson.hudson.plugins.metadata.Constants.REQUEST_ATTR_METADATA_CONTAINER;
 import static com.sonyericsson.hudson.plugins.metadata.model.JsonUtils.CHILDREN;
@@ -77,9 +82,19 @@ public class ExternalResource extends TreeNodeMetadataValue {
      */
     private static final String NO_RESOURCE_MONITOR_EXCEPTION_MSG =
             "No resource monitor is currently active, this operation is not permitted.";
+
+    /**
+     * Atomic access to {@link #state}.
+     */
+    private static final AtomicReferenceFieldUpdater<ExternalResource, ResourceState> STATE_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ExternalResource.class, ResourceState.class, "state");
+
     private String id;
-    private transient StashInfo reserved;
-    private transient StashInfo locked;
+    /**
+     * The reservation and lock status, null is the same as {@link ResourceState#FREE}.
+     * Only changed through {@link #STATE_UPDATER}.
+     */
+    private transient volatile ResourceState state;
     /**
      * For access control purposes enabled can internally have 3 values; not set, true or false.
      * All logic related to enabled should handle "not set" as enabled.
@@ -171,22 +186,190 @@ public class ExternalResource extends TreeNodeMetadataValue {
         super.setName(name);
     }
 
+    /**
+     * The current reservation and lock status of the resource.
+     *
+     * @return the state, never null.
+     */
+    public ResourceState getState() {
+        ResourceState current = state;
+        if (current == null) {
+            STATE_UPDATER.compareAndSet(this, null, ResourceState.FREE);
+            current = state;
+        }
+        return current;
+    }
+
+    /**
+     * Sets the state to update if the current state is expect.
+     *
+     * @param expect the state that the resource should be in.
+     * @param update the new state.
+     * @return true if successful, false if the resource is in another state.
+     */
+    public boolean compareAndSetState(ResourceState expect, ResourceState update) {
+        return compareAndSetState(expect, update, null);
+    }
+
+    /**
+     * Sets the state to update if the current state is expect.
+     *
+     * @param expect the state that the resource should be in.
+     * @param update the new state.
+     * @param type   the kind of transition to publish, or null to derive it from the states.
+     * @return true if successful, false if the resource is in another state.
+     */
+    private boolean compareAndSetState(ResourceState expect, ResourceState update, StateChangeFeed.Type type) {
+        getState();
+        if (STATE_UPDATER.compareAndSet(this, expect, update)) {
+            if (isOnNode()) {
+                ExternalResourceRegistry.getInstance().stateChanged(this);
+                StateChangeFeed.getInstance().stateChanged(this, expect, update, type);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * If this instance is the one attached to a node, as opposed to for example the copy attached to a build.
+     * Only changes to those are told to the {@link ExternalResourceRegistry} and the {@link StateChangeFeed}.
+     *
+     * @return true if so.
+     */
+    private boolean isOnNode() {
+        return getMetadataContainer() instanceof MetadataNodeProperty;
+    }
+
+    /**
+     * Reserves the resource if it is available.
+     *
+     * @param info the reservation.
+     * @return true if the resource was reserved, false if it is already reserved or locked.
+     */
+    public boolean tryReserve(StashInfo info) {
+        ResourceState current = getState();
+        while (current.isAvailable()) {
+            if (compareAndSetState(current, ResourceState.reserved(info))) {
+                return true;
+            }
+            current = getState();
+        }
+        return false;
+    }
+
+    /**
+     * Locks the resource if it isn't already locked or reserved with another key.
+     *
+     * @param info the lock.
+     * @param key  the key of the reservation that is turned into a lock.
+     * @return true if the resource was locked.
+     * @see ResourceState#canBeLockedWith(String)
+     */
+    public boolean tryLock(StashInfo info, String key) {
+        ResourceState current = getState();
+        while (current.canBeLockedWith(key)) {
+            if (compareAndSetState(current, ResourceState.locked(info))) {
+                return true;
+            }
+            current = getState();
+        }
+        return false;
+    }
+
+    /**
+     * Removes the reservation if it still is the expected one and the resource isn't locked.
+     *
+     * @param expected the reservation to remove, compared by identity.
+     * @return true if the reservation was removed.
+     */
+    public boolean expireReservation(StashInfo expected) {
+        ResourceState current = getState();
+        while (expected != null && current.getReserved() == expected) {
+            if (compareAndSetState(current, current.withReserved(null), StateChangeFeed.Type.EXPIRE)) {
+                return true;
+            }
+            current = getState();
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the lock with one that has a renewed lease, if the lock still is the expected one.
+     *
+     * @param expected the lock that was renewed, compared by identity.
+     * @param renewed  the lock with the new lease.
+     * @return true if the lock was replaced.
+     */
+    public boolean renewLock(StashInfo expected, StashInfo renewed) {
+        ResourceState current = getState();
+        while (expected != null && current.getLocked() == expected) {
+            if (compareAndSetState(current, current.withLocked(renewed))) {
+                return true;
+            }
+            current = getState();
+        }
+        return false;
+    }
+
+    /**
+     * Removes the lock if it still is the expected one, when the external service no longer holds it.
+     *
+     * @param expected the lock to remove, compared by identity.
+     * @return true if the lock was removed.
+     */
+    public boolean dropLock(StashInfo expected) {
+        ResourceState current = getState();
+        while (expected != null && current.getLocked() == expected) {
+            if (compareAndSetState(current, current.withLocked(null), StateChangeFeed.Type.RELEASE)) {
+                return true;
+            }
+            current = getState();
+        }
+        return false;
+    }
+
+    /**
+     * Removes any reservation and lock.
+     */
+    public void release() {
+        setState(ResourceState.FREE);
+    }
+
+    /**
+     * Sets the state regardless of what it was before.
+     *
+     * @param update the new state.
+     */
+    private void setState(ResourceState update) {
+        getState();
+        ResourceState previous = STATE_UPDATER.getAndSet(this, update);
+        if (isOnNode()) {
+            ExternalResourceRegistry.getInstance().stateChanged(this);
+            StateChangeFeed.getInstance().stateChanged(this, previous, update, null);
+        }
+    }
+
     /**
      * Information about the reservation status if the resource. Null indicating not reserved.
      *
      * @return the reservation status.
      */
     public StashInfo getReserved() {
-        return reserved;
+        return getState().getReserved();
     }
 
     /**
      * Information about the reservation status if the resource. Null indicating not reserved.
+     * Any lock is kept as it is.
      *
      * @param reserved the reservation status.
      */
     public void setReserved(StashInfo reserved) {
-        this.reserved = reserved;
+        ResourceState current = getState();
+        while (!compareAndSetState(current, current.withReserved(reserved))) {
+            current = getState();
+        }
     }
 
     /**
@@ -195,18 +378,23 @@ public class ExternalResource extends TreeNodeMetadataValue {
      * @return the lock status.
      */
     public StashInfo getLocked() {
-        return locked;
+        return getState().getLocked();
     }
 
     /**
      * Information about the lock status if the resource. Null indicating not locked.
+     * Setting a lock removes the reservation.
      *
      * @param locked the lock status.
      */
     public void setLocked(StashInfo locked) {
-        this.locked = locked;
-        if(locked != null){
-            setReserved(null);
+        if (locked != null) {
+            setState(ResourceState.locked(locked));
+        } else {
+            ResourceState current = getState();
+            while (!compareAndSetState(current, current.withLocked(null))) {
+                current = getState();
+            }
         }
     }
 
@@ -234,7 +422,14 @@ public class ExternalResource extends TreeNodeMetadataValue {
      * @param enabled enabled or not.
      */
     public void setEnabled(boolean enabled) {
+        boolean before = isEnabled();
         this.enabled = enabled;
+        if (isOnNode()) {
+            ExternalResourceRegistry.getInstance().stateChanged(this);
+            if (before != enabled) {
+                StateChangeFeed.getInstance().enabledChanged(this);
+            }
+        }
     }
 
     /**
@@ -244,14 +439,14 @@ public class ExternalResource extends TreeNodeMetadataValue {
      * @param enable true to enable, false to disable.
      * @throws IOException if so during save.
      * @see PluginImpl#ENABLE_DISABLE_EXTERNAL_RESOURCE
-     * @see com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer#save()
+     * @see ContainerSaver#save(com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer)
      * @see #setEnabled(boolean)
      */
     @JavaScriptMethod
     public synchronized void doEnable(boolean enable) throws IOException {
         getACL().checkPermission(PluginImpl.ENABLE_DISABLE_EXTERNAL_RESOURCE);
         setEnabled(enable);
-        getContainer().save();
+        ContainerSaver.getInstance().save(getContainer());
     }
 
     /**
@@ -261,13 +456,19 @@ public class ExternalResource extends TreeNodeMetadataValue {
      * @throws IOException if the container cannot be saved.
      */
     public synchronized void doLock(StashInfo info) throws IOException {
-        if (!(PluginImpl.getInstance().getManager().isExternalLockingOk())) {
-            throw new IllegalStateException(NO_RESOURCE_MONITOR_EXCEPTION_MSG);
-        }
-        getACL().checkPermission(PluginImpl.LOCK_RELEASE_EXTERNAL_RESOURCE);
-        setLocked(info);
-        setReserved(null);
-        getContainer().save();
+        markLocked(info);
+        ContainerSaver.getInstance().save(getContainer());
+    }
+
+    /**
+     * Locks a resource on a signal from an external lock handler, without saving the container.
+     *
+     * @param info the StashInfo containing the lock information.
+     * @see #doLock(StashInfo)
+     */
+    public synchronized void markLocked(StashInfo info) {
+        checkExternalLocking();
+        setState(ResourceState.locked(info));
     }
 
     /**
@@ -277,13 +478,19 @@ public class ExternalResource extends TreeNodeMetadataValue {
      * @throws IOException if the container cannot be saved.
      */
     public synchronized void doReserve(StashInfo info) throws IOException {
-        if (!(PluginImpl.getInstance().getManager().isExternalLockingOk())) {
-            throw new IllegalStateException(NO_RESOURCE_MONITOR_EXCEPTION_MSG);
-        }
-        getACL().checkPermission(PluginImpl.LOCK_RELEASE_EXTERNAL_RESOURCE);
-        setReserved(info);
-        setLocked(null);
-        getContainer().save();
+        markReserved(info);
+        ContainerSaver.getInstance().save(getContainer());
+    }
+
+    /**
+     * Reserves a resource on a signal from an external lock handler, without saving the container.
+     *
+     * @param info the StashInfo containing the reservation information.
+     * @see #doReserve(StashInfo)
+     */
+    public synchronized void markReserved(StashInfo info) {
+        checkExternalLocking();
+        setState(ResourceState.reserved(info));
     }
 
     /**
@@ -292,25 +499,44 @@ public class ExternalResource extends TreeNodeMetadataValue {
      * @throws IOException if the container cannot be saved.
      */
     public synchronized void doRelease() throws IOException {
+        markReleased();
+        ContainerSaver.getInstance().save(getContainer());
+    }
+
+    /**
+     * Releases a resource on a signal from an external lock handler, without saving the container.
+     *
+     * @see #doRelease()
+     */
+    public synchronized void markReleased() {
+        checkExternalLocking();
+        release();
+    }
+
+    /**
+     * Checks that the manager allows external locking and that the current user may lock and release.
+     */
+    private void checkExternalLocking() {
         if (!(PluginImpl.getInstance().getManager().isExternalLockingOk())) {
             throw new IllegalStateException(NO_RESOURCE_MONITOR_EXCEPTION_MSG);
         }
         getACL().checkPermission(PluginImpl.LOCK_RELEASE_EXTERNAL_RESOURCE);
-        setLocked(null);
-        setReserved(null);
-        getContainer().save();
     }
 
     /**
      * Make this resource reservation expired and save the Node's config.
      *
      * @throws IOException if so during save.
-     * @see com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer#save()
+     * @see ContainerSaver#save(com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer)
      * @see #setReserved(com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo)
      */
     public synchronized void doExpireReservation() throws IOException {
-        setReserved(null);
-        getContainer().save();
+        ResourceState current = getState();
+        while (current.getReserved() != null
+                && !compareAndSetState(current, current.withReserved(null), StateChangeFeed.Type.EXPIRE)) {
+            current = getState();
+        }
+        ContainerSaver.getInstance().save(getContainer());
     }
 
     /**
@@ -320,7 +546,7 @@ public class ExternalResource extends TreeNodeMetadataValue {
      * @return true if the resource is available to take.
      */
     public boolean isAvailable() {
-        return getReserved() == null && getLocked() == null;
+        return getState().isAvailable();
     }
 
     /**
@@ -364,6 +590,16 @@ public class ExternalResource extends TreeNodeMetadataValue {
         return false;
     }
 
+    /**
+     * The container that this resource belongs to, typically the
+     * {@link MetadataNodeProperty} of the node it is attached to.
+     *
+     * @return the container or null if the resource isn't attached.
+     */
+    public MetadataContainer<MetadataValue> getMetadataContainer() {
+        return getContainer();
+    }
+
     /**
      * Searches up the parent hierarchy for the container.
      *
@@ -414,12 +650,19 @@ public class ExternalResource extends TreeNodeMetadataValue {
         super.replacementOf(old);
         if (old instanceof ExternalResource) {
             ExternalResource other = (ExternalResource)old;
+            ResourceState mine = getState();
+            ResourceState theirs = other.getState();
+            StashInfo reserved = mine.getReserved();
             if (reserved == null) {
-                reserved = other.reserved;
+                reserved = theirs.getReserved();
             }
+            StashInfo locked = mine.getLocked();
             if (locked == null) {
-                locked = other.locked;
+                locked = theirs.getLocked();
             }
+            STATE_UPDATER.set(this, ResourceState.valueOf(reserved, locked));
+            //The old instance is detached from the node, its pending expiry would never reach this one.
+            ReservationExpiry.getInstance().replaced(other, this);
             if (enabled == null) {
                 enabled = other.enabled;
             }
@@ -432,12 +675,16 @@ public class ExternalResource extends TreeNodeMetadataValue {
     @Override
     public ExternalResource clone() throws CloneNotSupportedException {
         ExternalResource other = (ExternalResource)super.clone();
+        ResourceState current = getState();
+        StashInfo reserved = current.getReserved();
         if (reserved != null) {
-            other.reserved = reserved.clone();
+            reserved = reserved.clone();
         }
+        StashInfo locked = current.getLocked();
         if (locked != null) {
-            other.locked = this.locked.clone();
+            locked = locked.clone();
         }
+        other.state = ResourceState.valueOf(reserved, locked);
         return other;
     }
 
@@ -446,6 +693,9 @@ public class ExternalResource extends TreeNodeMetadataValue {
         JSONObject json = super.toJson();
         json.put(JSON_ATTR_ID, id);
         json.put(JSON_ATTR_ENABLED, isEnabled());
+        ResourceState current = getState();
+        StashInfo reserved = current.getReserved();
+        StashInfo locked = current.getLocked();
         if (reserved != null) {
             json.put(JSON_ATTR_RESERVED, reserved.toJson());
         } else {
@@ -34,6 +34,7 @@ import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.PluginImpl;
 import com.sonyericsson.jenkins.plugins.externalresource.
         dispatcher.utils.resourcemanagers.DefaultExternalResourceManager;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.MonitorEndpoint;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.model.Descriptor;
@@ -53,6 +54,10 @@ public class ExternalResourceTreeNode extends TreeNodeMetadataValue {
 
     private ExternalResourceManager manager;
 
+    /**
+     * Where the resource monitor for the resources below this node is, null to use the node's.
+     */
+    private MonitorEndpoint monitorEndpoint;
 
     /**
      * Standard DataBoundConstructor.
@@ -61,8 +66,31 @@ public class ExternalResourceTreeNode extends TreeNodeMetadataValue {
      * @param children the list of children of this ExternalResourceTreeNode.
      * @param managerName the class name of the chosen ExternalResourceManager.
      * @param exposedToEnvironment if this value should be exposed to the build as an environment variable.
+     * @param monitorScheme the scheme of the resource monitor, empty to use the node's.
+     * @param monitorPort the port of the resource monitor, empty to use the node's.
+     * @param monitorPath the path of the resource monitor, empty to use the node's.
      */
     @DataBoundConstructor
+    public ExternalResourceTreeNode(String name, String description,
+                                    List<MetadataValue> children,
+                                    String managerName,
+                                    boolean exposedToEnvironment,
+                                    String monitorScheme,
+                                    String monitorPort,
+                                    String monitorPath) {
+        this(name, description, children, managerName, exposedToEnvironment);
+        setMonitorEndpoint(new MonitorEndpoint(monitorScheme, null, MonitorEndpoint.parsePort(monitorPort),
+                monitorPath));
+    }
+
+    /**
+     * Standard constructor.
+     * @param name the name.
+     * @param description the description.
+     * @param children the list of children of this ExternalResourceTreeNode.
+     * @param managerName the class name of the chosen ExternalResourceManager.
+     * @param exposedToEnvironment if this value should be exposed to the build as an environment variable.
+     */
     public ExternalResourceTreeNode(String name, String description,
                                     List<MetadataValue> children,
                                     String managerName,
@@ -130,6 +158,59 @@ public class ExternalResourceTreeNode extends TreeNodeMetadataValue {
         return manager;
     }
 
+    /**
+     * Where the resource monitor for the resources below this node is.
+     * @return the endpoint, or null if the node's is used.
+     */
+    public MonitorEndpoint getMonitorEndpoint() {
+        return monitorEndpoint;
+    }
+
+    /**
+     * Sets where the resource monitor for the resources below this node is.
+     * @param monitorEndpoint the endpoint, null or empty to use the node's.
+     */
+    public void setMonitorEndpoint(MonitorEndpoint monitorEndpoint) {
+        if (monitorEndpoint == null || monitorEndpoint.isEmpty()) {
+            this.monitorEndpoint = null;
+        } else {
+            this.monitorEndpoint = monitorEndpoint;
+        }
+    }
+
+    /**
+     * The scheme of the resource monitor, for the config page.
+     * @return the scheme or null.
+     */
+    public String getMonitorScheme() {
+        if (monitorEndpoint == null) {
+            return null;
+        }
+        return monitorEndpoint.getScheme();
+    }
+
+    /**
+     * The port of the resource monitor, for the config page.
+     * @return the port or an empty string.
+     */
+    public String getMonitorPort() {
+        if (monitorEndpoint == null || monitorEndpoint.getPort() <= 0) {
+            return "";
+        }
+        return String.valueOf(monitorEndpoint.getPort());
+    }
+
+    /**
+     * The path of the resource monitor, for the config page.
+     * @return the path or null.
+     */
+    public String getMonitorPath() {
+        if (monitorEndpoint == null) {
+            return null;
+        }
+        return monitorEndpoint.getPath();
+    }
+
     @Override
     public Descriptor<AbstractMetadataValue> getDescriptor() {
         return Hudson.getInstance().getDescriptorByType(ExternalResourceTreeNodeDescriptor.class);
@@ -25,7 +25,8 @@ package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data;
 
 import hudson.model.Action;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
 /**
@@ -36,6 +37,8 @@ import java.util.Stack;
  * serves as a temporary storage. The storage consists of a stack of all the reserved resources for the future build.
  * The intent is to have a history of the resources where the first one in the stack is the latest one reserved. The
  * other resources could then be released one by one if they haven't been already.
+ * When the build needs several resources they are all pushed with {@link #pushAll(java.util.List)} and taken
+ * together with {@link #popAll()}, a build never gets only some of them.
  *
  * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
  */
@@ -84,6 +87,28 @@ public class ReservedExternalResourceAction implements Action {
         return stack.push(resource);
     }
 
+    /**
+     * Pushes the resources onto the internal stack, the last one ends up on top.
+     *
+     * @param resources the resources.
+     */
+    public synchronized void pushAll(List<ExternalResource> resources) {
+        for (ExternalResource resource : resources) {
+            stack.push(resource);
+        }
+    }
+
+    /**
+     * Empties the internal stack.
+     *
+     * @return all the resources, in the order they were pushed.
+     */
+    public synchronized List<ExternalResource> popAll() {
+        List<ExternalResource> resources = new ArrayList<ExternalResource>(stack);
+        stack.clear();
+        return resources;
+    }
+
     /**
      * See what is on top of the internal stack without modifying the it..
      *
@@ -107,14 +132,14 @@ public class ReservedExternalResourceAction implements Action {
     }
 
     /**
-     * Maintain the Action in case that a resource's lease is run out.
+     * Maintain the Action in case that a resource's lease is run out. Since the resources are reserved all or
+     * nothing, everything is dropped if any lease has run out. The leases of the others run out on their own.
      */
     public synchronized void maintain() {
-        Iterator<ExternalResource> iterator = stack.iterator();
-        while (iterator.hasNext()) {
-            ExternalResource resource = iterator.next();
+        for (ExternalResource resource : stack) {
             if (resource.getReserved() == null) {
-                iterator.remove();
+                stack.clear();
+                return;
             }
         }
     }
@@ -0,0 +1,154 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2011 Sony Ericsson Mobile Communications. All rights reserved.
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data;
+
+/**
+ * The reservation and lock status of an {@link ExternalResource} at one point in time.
+ * Instances are immutable, a new state is swapped in with
+ * {@link ExternalResource#compareAndSetState(ResourceState, ResourceState)}, so a reader always sees a reservation
+ * and a lock that belong together.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class ResourceState {
+
+    /**
+     * The state of a resource that is neither reserved nor locked.
+     */
+    public static final ResourceState FREE = new ResourceState(null, null);
+
+    private final StashInfo reserved;
+    private final StashInfo locked;
+
+    /**
+     * Standard constructor.
+     *
+     * @param reserved the reservation, null if not reserved.
+     * @param locked   the lock, null if not locked.
+     */
+    private ResourceState(StashInfo reserved, StashInfo locked) {
+        this.reserved = reserved;
+        this.locked = locked;
+    }
+
+    /**
+     * Creates a state.
+     *
+     * @param reserved the reservation, null if not reserved.
+     * @param locked   the lock, null if not locked.
+     * @return the state, {@link #FREE} if both are null.
+     */
+    public static ResourceState valueOf(StashInfo reserved, StashInfo locked) {
+        if (reserved == null && locked == null) {
+            return FREE;
+        }
+        return new ResourceState(reserved, locked);
+    }
+
+    /**
+     * The state of a resource that is reserved.
+     *
+     * @param info the reservation.
+     * @return the state.
+     */
+    public static ResourceState reserved(StashInfo info) {
+        return valueOf(info, null);
+    }
+
+    /**
+     * The state of a resource that is locked.
+     *
+     * @param info the lock.
+     * @return the state.
+     */
+    public static ResourceState locked(StashInfo info) {
+        return valueOf(null, info);
+    }
+
+    /**
+     * Information about the reservation. Null indicating not reserved.
+     *
+     * @return the reservation.
+     */
+    public StashInfo getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Information about the lock. Null indicating not locked.
+     *
+     * @return the lock.
+     */
+    public StashInfo getLocked() {
+        return locked;
+    }
+
+    /**
+     * If the resource is neither reserved nor locked.
+     *
+     * @return true if available.
+     */
+    public boolean isAvailable() {
+        return reserved == null && locked == null;
+    }
+
+    /**
+     * A copy of this state with the reservation replaced.
+     *
+     * @param info the new reservation, null to remove it.
+     * @return the new state.
+     */
+    public ResourceState withReserved(StashInfo info) {
+        return valueOf(info, locked);
+    }
+
+    /**
+     * A copy of this state with the lock replaced.
+     *
+     * @param info the new lock, null to remove it.
+     * @return the new state.
+     */
+    public ResourceState withLocked(StashInfo info) {
+        return valueOf(reserved, info);
+    }
+
+    /**
+     * If a resource in this state can be locked with the key. It can as long as it isn't already locked and any
+     * reservation it has was made with the same key. A resource whose reservation has expired can be locked as well,
+     * since the external service has already accepted the lock when this is checked.
+     *
+     * @param key the key from the reservation.
+     * @return true if it can be locked.
+     */
+    public boolean canBeLockedWith(String key) {
+        if (locked != null) {
+            return false;
+        }
+        if (reserved == null || key == null || reserved.getKey() == null) {
+            return true;
+        }
+        return reserved.getKey().equals(key);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import hudson.model.Node;
+
+/**
+ * A veto describing that the matching resources on the node are held back for a build that is before this one in
+ * line, because it has a higher priority or has waited longer.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class BecauseHeldForWaitingBuild extends BecauseOfExternalResource {
+
+    private final String waitingBuild;
+
+    /**
+     * Standard constructor.
+     *
+     * @param node         who it is all about.
+     * @param waitingBuild the name of the build that the resources are held for.
+     */
+    public BecauseHeldForWaitingBuild(Node node, String waitingBuild) {
+        super(node);
+        this.waitingBuild = waitingBuild;
+    }
+
+    /**
+     * The name of the build that the resources are held for.
+     *
+     * @return the name.
+     */
+    public String getWaitingBuild() {
+        return waitingBuild;
+    }
+
+    @Override
+    public String getShortDescription() {
+        return Messages.BecauseHeldForWaitingBuild(getNodeName(), waitingBuild);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import hudson.model.Node;
+
+/**
+ * A veto describing that the node has matching resources for some, but not all, of the resources that the build
+ * needs.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class BecauseNotEnoughResources extends BecauseOfExternalResource {
+
+    private final int needed;
+
+    /**
+     * Standard constructor.
+     *
+     * @param node   who it is all about.
+     * @param needed the number of resources the build needs.
+     */
+    public BecauseNotEnoughResources(Node node, int needed) {
+        super(node);
+        this.needed = needed;
+    }
+
+    /**
+     * The number of resources the build needs.
+     *
+     * @return the number.
+     */
+    public int getNeeded() {
+        return needed;
+    }
+
+    @Override
+    public String getShortDescription() {
+        return Messages.BecauseNotEnoughResources(getNodeName(), needed);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import hudson.model.Node;
+
+/**
+ * A veto describing that the global placement plan has picked a resource on another node for the build.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class BecausePlannedElsewhere extends BecauseOfExternalResource {
+
+    private final String plannedNode;
+    private final String plannedResource;
+
+    /**
+     * Standard constructor.
+     *
+     * @param node            who it is all about.
+     * @param plannedNode     the name of the node in the plan.
+     * @param plannedResource the id of the resource in the plan.
+     */
+    public BecausePlannedElsewhere(Node node, String plannedNode, String plannedResource) {
+        super(node);
+        this.plannedNode = plannedNode;
+        this.plannedResource = plannedResource;
+    }
+
+    @Override
+    public String getShortDescription() {
+        return Messages.BecausePlannedElsewhere(plannedResource, plannedNode);
+    }
+}
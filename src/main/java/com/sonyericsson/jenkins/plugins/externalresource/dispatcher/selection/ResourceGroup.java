@@ -0,0 +1,126 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import hudson.model.Node;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.Serializable;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A number of resources that a build needs on top of the one selected directly by the
+ * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.SelectionCriteria}, for example two phones
+ * of one kind and a SIM box. All the resources of all the groups are reserved and locked together or not at all.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@ExportedBean
+@XStreamAlias("resourceGroup")
+public class ResourceGroup implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String name;
+    private int count;
+    private List<AbstractResourceSelection> resourceSelectionList;
+    /**
+     * The compiled form of {@link #resourceSelectionList}.
+     */
+    private transient volatile SelectionMatcher matcher;
+
+    /**
+     * Standard DataBound Constructor.
+     *
+     * @param name                  the name that the locked resources are exposed under in the build, can be empty.
+     * @param count                 the number of resources needed.
+     * @param resourceSelectionList what the resources need to match.
+     */
+    @DataBoundConstructor
+    public ResourceGroup(String name, int count, List<AbstractResourceSelection> resourceSelectionList) {
+        this.name = name;
+        this.count = count;
+        this.resourceSelectionList = resourceSelectionList;
+        this.matcher = SelectionMatcher.compile(resourceSelectionList);
+    }
+
+    /**
+     * The name that the locked resources of the group are exposed under in the build, followed by a number.
+     *
+     * @return the name, can be null or empty.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of resources needed.
+     *
+     * @return the count.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The list of resource selections, if null, then create a new list.
+     *
+     * @return all the resource selections.
+     */
+    public synchronized List<AbstractResourceSelection> getResourceSelectionList() {
+        if (resourceSelectionList == null) {
+            resourceSelectionList = new LinkedList<AbstractResourceSelection>();
+        }
+        return resourceSelectionList;
+    }
+
+    /**
+     * The compiled form of the resource selection list.
+     *
+     * @return the matcher.
+     */
+    public SelectionMatcher getMatcher() {
+        SelectionMatcher m = matcher;
+        if (m == null) {
+            m = SelectionMatcher.compile(getResourceSelectionList());
+            matcher = m;
+        }
+        return m;
+    }
+
+    /**
+     * Get the enabled and available resources on the node that match the group.
+     *
+     * @param node the node to look on.
+     * @return the matching resources, in the order they appear on the node.
+     */
+    public List<ExternalResource> getMatchingResources(Node node) {
+        return ExternalResourceRegistry.getInstance().getMatchingResources(node, getMatcher());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ExternalResourceRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable, precompiled form of a list of {@link AbstractResourceSelection}s.
+ * A resource matches when all of the selections are equal to the resource's values.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class SelectionMatcher {
+
+    private final AbstractResourceSelection[] selections;
+    /**
+     * The key in the {@link ExternalResourceRegistry}'s inverted index for each selection,
+     * or null if the selection can't be looked up there.
+     */
+    private final String[] indexKeys;
+
+    /**
+     * Standard constructor.
+     *
+     * @param selections the selections, the array is not copied.
+     */
+    private SelectionMatcher(AbstractResourceSelection[] selections) {
+        this.selections = selections;
+        this.indexKeys = new String[selections.length];
+        for (int i = 0; i < selections.length; i++) {
+            if (selections[i] instanceof StringResourceSelection) {
+                StringResourceSelection selection = (StringResourceSelection)selections[i];
+                if (selection.getValue() != null) {
+                    indexKeys[i] = ExternalResourceRegistry.createIndexKey(selection.getPath(), selection.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles the selections into a matcher.
+     *
+     * @param resourceSelectionList the selections, null is treated as an empty list.
+     * @return the matcher.
+     */
+    public static SelectionMatcher compile(List<AbstractResourceSelection> resourceSelectionList) {
+        if (resourceSelectionList == null) {
+            return new SelectionMatcher(new AbstractResourceSelection[0]);
+        }
+        return new SelectionMatcher(
+                resourceSelectionList.toArray(new AbstractResourceSelection[resourceSelectionList.size()]));
+    }
+
+    /**
+     * If there are no selections to match against.
+     *
+     * @return true if empty.
+     */
+    public boolean isEmpty() {
+        return selections.length == 0;
+    }
+
+    /**
+     * The number of selections.
+     *
+     * @return the number of selections.
+     */
+    public int size() {
+        return selections.length;
+    }
+
+    /**
+     * The selection at the given index.
+     *
+     * @param index the index.
+     * @return the selection.
+     */
+    public AbstractResourceSelection get(int index) {
+        return selections[index];
+    }
+
+    /**
+     * The key to look up the selection at the given index with in the {@link ExternalResourceRegistry}.
+     *
+     * @param index the index.
+     * @return the key, or null if the selection is of a type that isn't indexed.
+     * @see ExternalResourceRegistry#createIndexKey(String[], String)
+     */
+    public String getIndexKey(int index) {
+        return indexKeys[index];
+    }
+
+    /**
+     * Checks if the resource matches all the selections.
+     *
+     * @param resource the resource to check.
+     * @return true if so.
+     */
+    public boolean matches(ExternalResource resource) {
+        for (int i = 0; i < selections.length; i++) {
+            if (!selections[i].equalToExternalResourceValue(resource)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives a new list of the resources that {@link #matches(ExternalResource)}.
+     *
+     * @param resources the resources to filter.
+     * @return the matching resources in the same order as provided.
+     */
+    public List<ExternalResource> filter(List<ExternalResource> resources) {
+        List<ExternalResource> matching = new ArrayList<ExternalResource>();
+        for (ExternalResource resource : resources) {
+            if (matches(resource)) {
+                matching.add(resource);
+            }
+        }
+        return matching;
+    }
+}
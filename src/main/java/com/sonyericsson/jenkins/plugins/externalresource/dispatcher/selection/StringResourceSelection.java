@@ -30,6 +30,9 @@ import hudson.Extension;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import com.sonyericsson.hudson.plugins.metadata.model.Metadata;
@@ -37,7 +40,7 @@ import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import static com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants.
-        STRING_RESOURCE_SELECTION_SEPARATOR_WITH_ESCAPE;
+        STRING_RESOURCE_SELECTION_SEPARATOR;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 /**
@@ -50,6 +53,10 @@ public class StringResourceSelection extends AbstractResourceSelection {
 
     private String name;
     private String value;
+    /**
+     * {@link #name} split into path segments, calculated on first use.
+     */
+    private transient String[] path;
 
     /**
      * Standard Constructor.
@@ -100,8 +107,7 @@ public class StringResourceSelection extends AbstractResourceSelection {
     }
     @Override
     public boolean equalToExternalResourceValue(ExternalResource externalResource) {
-        String[] path = name.split(STRING_RESOURCE_SELECTION_SEPARATOR_WITH_ESCAPE);
-        Metadata externalResourceValue = TreeStructureUtil.getLeaf(externalResource, path);
+        Metadata externalResourceValue = TreeStructureUtil.getLeaf(externalResource, getPath());
         if (externalResourceValue != null) {
             Object tmpValue = externalResourceValue.getValue();
             if (tmpValue != null && value.equals(tmpValue.toString())) {
@@ -110,4 +116,45 @@ public class StringResourceSelection extends AbstractResourceSelection {
         }
         return false;
     }
+
+    /**
+     * The name split into path segments on {@link
+     * com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants#STRING_RESOURCE_SELECTION_SEPARATOR}.
+     * The array is shared between calls so it must not be modified.
+     *
+     * @return the path to the leaf to compare with.
+     */
+    String[] getPath() {
+        String[] p = path;
+        if (p == null) {
+            p = splitPath(name);
+            path = p;
+        }
+        return p;
+    }
+
+    /**
+     * Splits the string on {@link
+     * com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants#STRING_RESOURCE_SELECTION_SEPARATOR}
+     * without going through a regular expression. Trailing empty segments are removed, like String.split does.
+     *
+     * @param str the string to split.
+     * @return the segments.
+     */
+    static String[] splitPath(String str) {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        int index = str.indexOf(STRING_RESOURCE_SELECTION_SEPARATOR);
+        while (index >= 0) {
+            segments.add(str.substring(start, index));
+            start = index + STRING_RESOURCE_SELECTION_SEPARATOR.length();
+            index = str.indexOf(STRING_RESOURCE_SELECTION_SEPARATOR, start);
+        }
+        segments.add(str.substring(start));
+        int size = segments.size();
+        while (size > 1 && segments.get(size - 1).isEmpty()) {
+            size--;
+        }
+        return segments.subList(0, size).toArray(new String[size]);
+    }
 }
@@ -29,18 +29,39 @@ import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.PluginImpl;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import hudson.model.Hudson;
 import hudson.model.Node;
+import hudson.util.DaemonThreadFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Utility for sending notification to administrators when request failed.
  * Record the failed info into an admin file.
+ *
+ * Notifications are put on a bounded queue and written to the file by a background thread, so the caller (often the
+ * build queue) never waits for the disk. If the queue is full the notification is dropped and counted instead.
+ * The file is rotated when it grows too big or gets too old, and the rotated files are compressed.
  * @author Hu, Jack &lt;jack.hu@sonyericsson.com&gt;
  */
 public final class AdminNotifier {
@@ -50,6 +71,38 @@ public final class AdminNotifier {
       */
     private static final Logger logger = Logger.getLogger(AdminNotifier.class.getName());
 
+    /**
+     * The most notifications that can wait to be written.
+     */
+    static final int QUEUE_CAPACITY = 10000;
+
+    /**
+     * Size of the write buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The file is rotated when it is bigger than this.
+     */
+    static final long MAX_FILE_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * The file is rotated when it was started longer ago than this.
+     */
+    static final long MAX_FILE_AGE = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * The number of rotated files to keep.
+     */
+    static final int MAX_ROTATED_FILES = 10;
+
+    /**
+     * How long the writer sleeps when there is nothing to write.
+     */
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
     private static AdminNotifier instance = new AdminNotifier();
 
     /**
@@ -64,12 +117,25 @@ public final class AdminNotifier {
     /**
       * the administrator file for record the notification..
       */
-    private String adminFile = "";
+    private volatile String adminFile = "";
+
+    private final Queue<String> queue = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object writeLock = new Object();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private volatile Thread writer;
+    private volatile long maxFileSize = MAX_FILE_SIZE;
 
     /**
-      * the Random Access File..
+      * the open file, guarded by writeLock.
+      */
+    private FileChannel channel = null;
+    /**
+      * when the open file was started, guarded by writeLock.
       */
-    private RandomAccessFile raf = null;
+    private long fileStarted;
+
     /**
       * the constructor.
       */
@@ -82,21 +148,6 @@ public final class AdminNotifier {
             String defaultDir = rootDir + "/" + Constants.DEFAULT_ADMIN_NOTIFIER_FILE;
             setAdminFile(defaultDir);
         }
-        try {
-            File file = new File(adminFile);
-            if (!(file.exists())) {
-                String adminFilePath = file.getParent();
-                if (null != adminFilePath && !(adminFilePath.equals(""))) {
-                    File p = new File(adminFilePath);
-                    if (!(p.exists())) {
-                        boolean result = p.mkdirs();
-                    }
-                }
-            }
-            raf = new RandomAccessFile(adminFile, "rw");
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Failed to open the Admin Notifier File.", e);
-        }
     }
 
     /**
@@ -121,34 +172,277 @@ public final class AdminNotifier {
     }
 
     /**
-     * Record the failed info into an admin file.
+     * Queue the failed info to be written into the admin file.
      *
      * @param msg       the failed info.
      */
-    private synchronized void recordFile(String msg) {
+    private void recordFile(String msg) {
+        if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+            queued.decrementAndGet();
+            if (dropped.getAndIncrement() == 0) {
+                logger.log(Level.WARNING, "The admin notifier queue is full, dropping notifications.");
+            }
+            return;
+        }
+        queue.add(msg);
+        Thread current = writer;
+        if (current == null) {
+            startWriter();
+        } else {
+            LockSupport.unpark(current);
+        }
+    }
+
+    /**
+     * Starts the background writer if it isn't running.
+     */
+    private synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        Thread thread = new DaemonThreadFactory().newThread(new Runnable() {
+            @Override
+            public void run() {
+                while (writer == Thread.currentThread()) {
+                    try {
+                        flush();
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Failed to write to the admin notifier file.", e);
+                    }
+                    if (queue.isEmpty()) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                }
+            }
+        });
+        thread.setName("External Resource Admin Notifier");
+        writer = thread;
+        thread.start();
+    }
+
+    /**
+     * Writes all queued notifications to the file now.
+     * Called by the background writer, but can be called by anyone who needs the file to be up to date.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            String msg = queue.poll();
+            if (msg == null) {
+                return;
+            }
+            try {
+                FileChannel out = openFile();
+                while (msg != null) {
+                    queued.decrementAndGet();
+                    byte[] bytes = msg.getBytes(CHARSET);
+                    if (out == null) {
+                        logger.log(Level.WARNING,
+                                "Failed to record the following message into admin notifier file: {0} since the "
+                                    + "file couldn't be opened", msg);
+                    } else {
+                        if (bytes.length > buffer.remaining()) {
+                            writeBuffer(out);
+                        }
+                        if (bytes.length > buffer.remaining()) {
+                            out.write(ByteBuffer.wrap(bytes));
+                        } else {
+                            buffer.put(bytes);
+                        }
+                    }
+                    msg = queue.poll();
+                }
+                if (out != null) {
+                    writeBuffer(out);
+                }
+            } catch (IOException e) {
+                buffer.clear();
+                closeFile();
+                logger.log(Level.WARNING, "Failed to record messages into admin notifier file.", e);
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                logger.log(Level.WARNING, "{0} admin notifications were dropped since the queue was full.", lost);
+            }
+        }
+    }
+
+    /**
+     * Writes what is queued, closes the file and stops the background writer.
+     * A new writer is started if anything is notified after this.
+     */
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            current = writer;
+            writer = null;
+        }
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+        flush();
+        synchronized (writeLock) {
+            closeFile();
+        }
+    }
+
+    /**
+     * Writes what is in the buffer to the channel.
+     *
+     * @param out the channel.
+     * @throws IOException if so.
+     */
+    private void writeBuffer(FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Opens the file, rotating it first if needed. Should be called with the write lock held.
+     *
+     * @return the channel to write to or null if it couldn't be opened.
+     */
+    private FileChannel openFile() {
         try {
-            if (raf != null) {
-                raf.seek(raf.length());
-                raf.writeBytes(msg);
-            } else {
-                logger.log(Level.WARNING,
-                        "Failed to record the following message into admin notifier file: {0} since the file "
-                            + "couldn't be opened", msg);
+            if (channel != null && (channel.size() >= maxFileSize
+                    || System.currentTimeMillis() - fileStarted >= MAX_FILE_AGE)) {
+                closeFile();
+                rotate(new File(adminFile));
+            }
+            if (channel == null) {
+                File file = new File(adminFile);
+                File parent = file.getParentFile();
+                if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                    logger.log(Level.WARNING, "Failed to create the directory of the Admin Notifier File.");
+                }
+                if (file.exists() && file.length() > 0) {
+                    fileStarted = file.lastModified();
+                } else {
+                    fileStarted = System.currentTimeMillis();
+                }
+                channel = new FileOutputStream(file, true).getChannel();
             }
         } catch (IOException e) {
-            logger.log(Level.WARNING, MessageFormat.format(
-                    "Failed to record the following message into admin notifier file: {0}",
-                    msg), e);
+            logger.log(Level.WARNING, "Failed to open the Admin Notifier File.", e);
+            closeFile();
+        }
+        return channel;
+    }
+
+    /**
+     * Closes the file if it is open. Should be called with the write lock held.
+     */
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to close the Admin Notifier File.", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Compresses the file into a time stamped file next to it, and removes the oldest rotated files.
+     *
+     * @param file the file to rotate.
+     * @throws IOException if so.
+     */
+    private void rotate(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        //The sequence number keeps the files of several rotations within the same second apart, and in order.
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        int sequence = 0;
+        File rotated = new File(String.format("%s.%s-%03d.gz", file.getPath(), stamp, sequence));
+        while (rotated.exists()) {
+            sequence++;
+            rotated = new File(String.format("%s.%s-%03d.gz", file.getPath(), stamp, sequence));
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(rotated));
+            try {
+                byte[] bytes = new byte[BUFFER_SIZE];
+                int read = in.read(bytes);
+                while (read >= 0) {
+                    out.write(bytes, 0, read);
+                    read = in.read(bytes);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
         }
+        if (!file.delete()) {
+            logger.log(Level.WARNING, "Failed to remove the rotated Admin Notifier File {0}.", file);
+        }
+        removeOldRotations(file);
     }
 
     /**
-      * the setter method.
+     * Removes all but the {@link #MAX_ROTATED_FILES} newest rotated files.
+     *
+     * @param file the admin file.
+     */
+    private void removeOldRotations(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return;
+        }
+        String prefix = file.getName() + ".";
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(".gz")) {
+                names[count++] = name;
+            }
+        }
+        //The time stamp sorts in time order.
+        Arrays.sort(names, 0, count);
+        for (int i = 0; i < count - MAX_ROTATED_FILES; i++) {
+            if (!new File(dir, names[i]).delete()) {
+                logger.log(Level.WARNING, "Failed to remove the old Admin Notifier File {0}.", names[i]);
+            }
+        }
+    }
+
+    /**
+      * the setter method. Anything still queued is written to the new file.
      *
      * @param adminFile        admin notifier file.        .
       */
     public void setAdminFile(String adminFile) {
-        this.adminFile = adminFile;
+        synchronized (writeLock) {
+            this.adminFile = adminFile;
+            closeFile();
+        }
+    }
+
+    /**
+     * Sets the size at which the file is rotated.
+     *
+     * @param maxFileSize the size in bytes.
+     */
+    void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * The number of notifications waiting to be written.
+     *
+     * @return the queue size.
+     */
+    public int getQueueSize() {
+        return queued.get();
     }
 
     /**
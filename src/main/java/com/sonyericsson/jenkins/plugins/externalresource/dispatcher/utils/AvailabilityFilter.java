@@ -23,7 +23,6 @@
  */
 package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
 
-import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
 import com.sonyericsson.hudson.plugins.metadata.model.MetadataParent;
 import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
@@ -61,14 +60,10 @@ public final class AvailabilityFilter {
      * @param node the node to search on.
      * @param id   the id of the resource to find.
      * @return the external resource if any.
+     * @see ExternalResourceRegistry#getExternalResourceById(hudson.model.Node, String)
      */
     public ExternalResource getExternalResourceById(Node node, String id) {
-        MetadataNodeProperty property = node.getNodeProperties().get(MetadataNodeProperty.class);
-        if (property != null) {
-            return getExternalResourceById(property, id);
-        } else {
-            return null;
-        }
+        return ExternalResourceRegistry.getInstance().getExternalResourceById(node, id);
     }
 
     /**
@@ -121,38 +116,12 @@ public final class AvailabilityFilter {
 
     /**
      * Gets all configured external resources on the node in a flat list.
+     * The list is shared from the {@link ExternalResourceRegistry} and can not be modified.
      *
      * @param node the node to get them from.
      * @return a list of {@link ExternalResource}s or null if there is no metadata on the node.
      */
     public List<ExternalResource> getExternalResourcesList(Node node) {
-        MetadataNodeProperty property = node.getNodeProperties().get(MetadataNodeProperty.class);
-        if (property != null) {
-            List<ExternalResource> list = new LinkedList<ExternalResource>();
-            for (MetadataValue value : property.getChildren()) {
-                populateExternalResourcesFrom(value, list);
-            }
-            return list;
-        } else {
-            return null;
-        }
-    }
-
-    /**
-     * Recursively searches the metadata value for any external resources and adds them to the provided list.
-     *
-     * @param value the value to "scan"
-     * @param list  the list to populate.
-     * @see #getExternalResourcesList(hudson.model.Node)
-     */
-    private void populateExternalResourcesFrom(MetadataValue value, List<ExternalResource> list) {
-        if (value instanceof ExternalResource) {
-            list.add((ExternalResource)value);
-        } else if (value instanceof MetadataParent) {
-            MetadataParent<MetadataValue> parent = (MetadataParent<MetadataValue>)value;
-            for (MetadataValue child : parent.getChildren()) {
-                populateExternalResourcesFrom(child, list);
-            }
-        }
+        return ExternalResourceRegistry.getInstance().getExternalResources(node);
     }
 }
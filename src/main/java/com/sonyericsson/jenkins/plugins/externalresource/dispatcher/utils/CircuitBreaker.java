@@ -0,0 +1,169 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+/**
+ * Keeps track of the health of a remote host, so that calls to a host that is down can fail right away instead of
+ * waiting for a connection timeout each time.
+ *
+ * The breaker starts {@link State#CLOSED}, where every call is let through. After a number of failures in a row it
+ * goes {@link State#OPEN} and no calls are let through. When the open time has passed it goes
+ * {@link State#HALF_OPEN} and lets one probe through per open time. A successful call closes it again, a failed probe
+ * opens it again.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of a breaker.
+     */
+    public static enum State {
+        /**
+         * The host is healthy, all calls are let through.
+         */
+        CLOSED,
+        /**
+         * The host is down, no calls are let through.
+         */
+        OPEN,
+        /**
+         * The host has been down, a probe is let through now and then to see if it is back.
+         */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openTime;
+    private State state = State.CLOSED;
+    private int failures;
+    private long totalFailures;
+    private long openUntil;
+    private long lastFailure;
+
+    /**
+     * Standard constructor.
+     *
+     * @param failureThreshold number of failures in a row that opens the breaker.
+     * @param openTime         milliseconds to keep the breaker open before a probe is let through.
+     */
+    public CircuitBreaker(int failureThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Checks if a call may be made, and if so counts it as the probe when the open time has passed.
+     *
+     * @return true if the call may be made.
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now < openUntil) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        openUntil = now + openTime;
+        return true;
+    }
+
+    /**
+     * Checks if a call would be let through, without counting it as a probe.
+     *
+     * @return true if so.
+     */
+    public synchronized boolean isAvailable() {
+        return state == State.CLOSED || System.currentTimeMillis() >= openUntil;
+    }
+
+    /**
+     * Records a call that reached the host.
+     *
+     * @return true if the breaker was closed by this, i.e. the host has recovered.
+     */
+    public synchronized boolean onSuccess() {
+        boolean recovered = state != State.CLOSED;
+        state = State.CLOSED;
+        failures = 0;
+        openUntil = 0;
+        return recovered;
+    }
+
+    /**
+     * Records a call that couldn't reach the host.
+     *
+     * @return true if the breaker was opened by this.
+     */
+    public synchronized boolean onFailure() {
+        failures++;
+        totalFailures++;
+        lastFailure = System.currentTimeMillis();
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            boolean opened = state == State.CLOSED;
+            state = State.OPEN;
+            openUntil = lastFailure + openTime;
+            return opened;
+        }
+        return false;
+    }
+
+    /**
+     * The current state.
+     *
+     * @return the state.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Number of failures in a row.
+     *
+     * @return the number of failures since the last success.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Number of failures since the breaker was created.
+     *
+     * @return the total number of failures.
+     */
+    public synchronized long getTotalFailures() {
+        return totalFailures;
+    }
+
+    /**
+     * When the last failure happened.
+     *
+     * @return the time in milliseconds, 0 if there hasn't been any.
+     */
+    public synchronized long getLastFailure() {
+        return lastFailure;
+    }
+}
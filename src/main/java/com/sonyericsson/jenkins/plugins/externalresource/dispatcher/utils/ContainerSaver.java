@@ -0,0 +1,165 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the containers of {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource}s
+ * when their state has changed.
+ *
+ * With an interval of 0 (the default) the container is saved right away, just like calling
+ * {@link MetadataContainer#save()}. With a positive interval the container is only marked as dirty and all dirty
+ * containers are saved together once the interval has passed, so a burst of lock and release calls against the same
+ * node ends up as one write of the node's configuration instead of one per call.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class ContainerSaver {
+
+    private static final Logger logger = Logger.getLogger(ContainerSaver.class.getName());
+
+    private static ContainerSaver ourInstance = new ContainerSaver();
+
+    private final Object flushLock = new Object();
+    private final Map<MetadataContainer<?>, Boolean> dirty = new IdentityHashMap<MetadataContainer<?>, Boolean>();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+    private volatile long interval;
+    private boolean scheduled;
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static ContainerSaver getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor.
+     */
+    private ContainerSaver() {
+    }
+
+    /**
+     * Sets the number of milliseconds to wait before saving a dirty container. 0 or less saves right away.
+     * Anything that is dirty when the interval is turned off is saved immediately.
+     *
+     * @param interval the interval in milliseconds.
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+        if (interval <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * The number of milliseconds to wait before saving a dirty container.
+     *
+     * @return the interval in milliseconds.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Saves the container now or later depending on {@link #getInterval()}.
+     *
+     * @param container the container to save.
+     * @throws IOException if the container is saved right away and that fails.
+     */
+    public void save(MetadataContainer<?> container) throws IOException {
+        if (container == null) {
+            return;
+        }
+        long delay = interval;
+        if (delay <= 0) {
+            container.save();
+            return;
+        }
+        synchronized (dirty) {
+            dirty.put(container, Boolean.TRUE);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves all dirty containers now. Called when Jenkins shuts down.
+     * Only one flush runs at a time, so a container is never saved by two threads at once.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<MetadataContainer<?>> toSave;
+            synchronized (dirty) {
+                toSave = new ArrayList<MetadataContainer<?>>(dirty.keySet());
+                dirty.clear();
+                scheduled = false;
+            }
+            for (MetadataContainer<?> container : toSave) {
+                try {
+                    container.save();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to save the external resource state of " + container, e);
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Failed to save the external resource state of " + container, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of containers waiting to be saved.
+     *
+     * @return the number of dirty containers.
+     */
+    public int getDirtyCount() {
+        synchronized (dirty) {
+            return dirty.size();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import hudson.model.Node;
+import hudson.model.queue.CauseOfBlockage;
+import net.sf.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the
+ * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.ExternalResourceQueueTaskDispatcher} and the
+ * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager}
+ * calls to the external service. Latencies are recorded in microseconds, the time builds wait in the queue for their
+ * resources in milliseconds.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class DispatcherMetrics {
+
+    /**
+     * The key of the verdict counter when canTake let the item through.
+     */
+    public static final String VERDICT_OK = "OK";
+
+    /**
+     * What the master is called in the per node histograms.
+     */
+    private static final String MASTER_NAME = "(master)";
+
+    private static DispatcherMetrics ourInstance = new DispatcherMetrics();
+
+    private final LatencyHistogram canTake = new LatencyHistogram();
+    private final LatencyHistogram candidates = new LatencyHistogram();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final ConcurrentMap<Integer, LatencyHistogram> queueWaitPerPriority =
+            new ConcurrentHashMap<Integer, LatencyHistogram>();
+    private final ConcurrentMap<String, AtomicLong> verdicts = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<EventJournal.Operation, ConcurrentMap<String, LatencyHistogram>> operations;
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static DispatcherMetrics getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor.
+     */
+    DispatcherMetrics() {
+        operations = new EnumMap<EventJournal.Operation, ConcurrentMap<String, LatencyHistogram>>(
+                EventJournal.Operation.class);
+        for (EventJournal.Operation operation : EventJournal.Operation.values()) {
+            operations.put(operation, new ConcurrentHashMap<String, LatencyHistogram>());
+        }
+    }
+
+    /**
+     * Records a finished canTake.
+     *
+     * @param cause   the returned blockage, null if the item can be taken.
+     * @param latency how long it took in nanoseconds.
+     */
+    public void canTake(CauseOfBlockage cause, long latency) {
+        canTake.record(TimeUnit.NANOSECONDS.toMicros(latency));
+        String key = VERDICT_OK;
+        if (cause != null) {
+            key = cause.getClass().getSimpleName();
+        }
+        AtomicLong counter = verdicts.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = verdicts.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Records the number of matching resources that canTake had to choose from.
+     *
+     * @param count the number of candidates.
+     */
+    public void candidates(int count) {
+        candidates.record(count);
+    }
+
+    /**
+     * Records how long a build that needed resources waited in the queue before it got them.
+     *
+     * @param priority the priority of the build.
+     * @param millis   the time it waited in milliseconds.
+     */
+    public void queueWait(int priority, long millis) {
+        queueWait.record(millis);
+        LatencyHistogram histogram = queueWaitPerPriority.get(priority);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = queueWaitPerPriority.putIfAbsent(priority, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(millis);
+    }
+
+    /**
+     * The time the builds that needed resources have waited in the queue, in milliseconds.
+     *
+     * @return the histogram.
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Records a call to the external service.
+     *
+     * @param operation the operation.
+     * @param node      the node.
+     * @param latency   how long it took in nanoseconds.
+     */
+    public void operation(EventJournal.Operation operation, Node node, long latency) {
+        String name = MASTER_NAME;
+        if (node != null && node.getNodeName() != null && !node.getNodeName().isEmpty()) {
+            name = node.getNodeName();
+        }
+        ConcurrentMap<String, LatencyHistogram> perNode = operations.get(operation);
+        LatencyHistogram histogram = perNode.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = perNode.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(latency));
+    }
+
+    /**
+     * The number of times canTake returned a blockage of the type.
+     *
+     * @param key the simple class name of the blockage or {@link #VERDICT_OK}.
+     * @return the count.
+     */
+    public long getVerdictCount(String key) {
+        AtomicLong counter = verdicts.get(key);
+        if (counter == null) {
+            return 0;
+        }
+        return counter.get();
+    }
+
+    /**
+     * All the metrics as JSON.
+     *
+     * @return the metrics.
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("canTake", canTake.toJson());
+        json.put("candidates", candidates.toJson());
+        JSONObject queueWaitJson = queueWait.toJson();
+        JSONObject perPriority = new JSONObject();
+        for (Map.Entry<Integer, LatencyHistogram> entry : queueWaitPerPriority.entrySet()) {
+            perPriority.put(String.valueOf(entry.getKey()), entry.getValue().toJson());
+        }
+        queueWaitJson.put("perPriority", perPriority);
+        json.put("queueWait", queueWaitJson);
+        JSONObject verdictsJson = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : verdicts.entrySet()) {
+            verdictsJson.put(entry.getKey(), entry.getValue().get());
+        }
+        json.put("verdicts", verdictsJson);
+        JSONObject operationsJson = new JSONObject();
+        for (Map.Entry<EventJournal.Operation, ConcurrentMap<String, LatencyHistogram>> entry
+                : operations.entrySet()) {
+            JSONObject perNode = new JSONObject();
+            for (Map.Entry<String, LatencyHistogram> node : entry.getValue().entrySet()) {
+                perNode.put(node.getKey(), node.getValue().toJson());
+            }
+            operationsJson.put(entry.getKey().name().toLowerCase(Locale.ENGLISH), perNode);
+        }
+        json.put("operations", operationsJson);
+        return json;
+    }
+}
@@ -0,0 +1,1086 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import hudson.model.Node;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append only journal of the reserve, lock and release operations made through the
+ * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager}.
+ *
+ * The journal is a directory of memory mapped segment files with fixed size records, see {@link #RECORD_SIZE}.
+ * Node names, resource ids and owners are stored as ordinals, the names of the ordinals are appended to a separate
+ * text file the first time they are seen. The build number of an owner is kept in the record itself, so that only
+ * the project url ends up in the names file. When old segments are deleted the names file is rewritten with only the
+ * names that are still used. A writer claims a slot in the segment with an atomic counter and writes
+ * the time stamp last, so a record with a time stamp of 0 is not (yet) written and marks the end of the journal.
+ * Recording an event doesn't allocate anything once the names are known. Only the newest segments are kept, see
+ * {@link #DEFAULT_MAX_SEGMENTS}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class EventJournal {
+
+    private static final Logger logger = Logger.getLogger(EventJournal.class.getName());
+
+    /**
+     * Size of one record in bytes.
+     * time (long), operation (short), status (short), node (int), resource (int), result code (int), owner (long,
+     * the ordinal in the high half and the build number in the low half) and latency in nanoseconds (long).
+     */
+    public static final int RECORD_SIZE = 40;
+
+    /**
+     * Size of the segment header, magic (int), version (int), record size (int) and capacity (int).
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Default number of records per segment, 2.5 MB.
+     */
+    static final int DEFAULT_SEGMENT_CAPACITY = 1 << 16;
+
+    /**
+     * Default number of segments to keep, the oldest ones are deleted when a new segment is started.
+     */
+    static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    /**
+     * When there are more known owners than this the map is cleared. New ordinals are handed out, the names file
+     * keeps the old ones.
+     */
+    private static final int MAX_OWNERS = 100000;
+
+    /**
+     * The low half of the owner field when the owner has no build number.
+     */
+    private static final long NO_BUILD = 0xffffffffL;
+
+    /**
+     * The most digits of a build number that is kept in the record, so that it fits in the low half of the owner.
+     */
+    private static final int MAX_BUILD_DIGITS = 9;
+
+    private static final int MAGIC = 0x45524a31;
+    private static final int VERSION = 1;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final String NAMES_FILE = "names.txt";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int OFFSET_OPERATION = 8;
+    private static final int OFFSET_STATUS = 10;
+    private static final int OFFSET_NODE = 12;
+    private static final int OFFSET_RESOURCE = 16;
+    private static final int OFFSET_RESULT = 20;
+    private static final int OFFSET_OWNER = 24;
+    private static final int OFFSET_LATENCY = 32;
+    private static final int OWNER_SHIFT = 32;
+
+    private static EventJournal ourInstance = new EventJournal();
+
+    private volatile Segment segment;
+    private File directory;
+    private int segmentCapacity = DEFAULT_SEGMENT_CAPACITY;
+    private int maxSegments = DEFAULT_MAX_SEGMENTS;
+    private OutputStream namesOut;
+    private final Map<String, Integer> nodes = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Integer> resources = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Integer> owners = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Long> ownerFields = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static EventJournal getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor.
+     */
+    EventJournal() {
+    }
+
+    /**
+     * Starts writing to the journal in the directory, continuing after the last record of an existing journal.
+     *
+     * @param dir the directory.
+     * @throws IOException if the journal can't be opened.
+     */
+    public void start(File dir) throws IOException {
+        start(dir, DEFAULT_SEGMENT_CAPACITY, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Starts writing to the journal in the directory, continuing after the last record of an existing journal.
+     *
+     * @param dir      the directory.
+     * @param capacity the number of records in new segments.
+     * @param segments the number of segments to keep.
+     * @throws IOException if the journal can't be opened.
+     */
+    synchronized void start(File dir, int capacity, int segments) throws IOException {
+        stop();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create the journal directory " + dir);
+        }
+        directory = dir;
+        segmentCapacity = capacity;
+        maxSegments = segments;
+        nodes.clear();
+        resources.clear();
+        owners.clear();
+        ownerFields.clear();
+        Names names = readNames(dir);
+        nodes.putAll(names.nodes);
+        resources.putAll(names.resources);
+        owners.putAll(names.owners);
+        nextOrdinal.set(names.maxOrdinal + 1);
+        namesOut = new FileOutputStream(new File(dir, NAMES_FILE), true);
+        File[] files = listSegments(dir);
+        if (files.length > 0) {
+            File lastFile = files[files.length - 1];
+            Segment last = Segment.open(lastFile, segmentNumber(lastFile));
+            if (last.isFull()) {
+                last.close();
+                last = Segment.create(dir, last.number + 1, segmentCapacity);
+            }
+            segment = last;
+        } else {
+            segment = Segment.create(dir, 0, segmentCapacity);
+        }
+        prune();
+    }
+
+    /**
+     * Stops writing to the journal, forcing what has been written to disk.
+     */
+    public synchronized void stop() {
+        Segment current = segment;
+        segment = null;
+        if (current != null) {
+            current.close();
+        }
+        if (namesOut != null) {
+            try {
+                namesOut.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to close the journal names.", e);
+            }
+            namesOut = null;
+        }
+    }
+
+    /**
+     * If the journal is being written.
+     *
+     * @return true if so.
+     */
+    public boolean isStarted() {
+        return segment != null;
+    }
+
+    /**
+     * Records an operation if the journal is started.
+     *
+     * @param operation the operation.
+     * @param node      the node.
+     * @param resource  the resource.
+     * @param owner     who made the operation, a build or project url.
+     * @param result    the result of the operation, null if there was none.
+     * @param latency   how long the operation took in nanoseconds.
+     */
+    public void record(Operation operation, Node node, ExternalResource resource, String owner, StashResult result,
+                       long latency) {
+        if (segment == null) {
+            return;
+        }
+        Status status = Status.NONE;
+        int code = 0;
+        if (result != null) {
+            code = result.getErrorCode();
+            if (result.isOk()) {
+                status = Status.OK;
+            } else {
+                status = Status.FAILED;
+            }
+        }
+        String nodeName = null;
+        if (node != null) {
+            nodeName = node.getNodeName();
+        }
+        String resourceId = null;
+        if (resource != null) {
+            resourceId = resource.getId();
+        }
+        record(System.currentTimeMillis(), operation, status, nodeName, resourceId, owner, code, latency);
+    }
+
+    /**
+     * Records an event if the journal is started.
+     *
+     * @param time       the time stamp in milliseconds, must not be 0.
+     * @param operation  the operation.
+     * @param status     how it went.
+     * @param nodeName   the name of the node.
+     * @param resourceId the id of the resource.
+     * @param owner      who made the operation.
+     * @param resultCode the protocol specific result code.
+     * @param latency    how long the operation took in nanoseconds.
+     */
+    void record(long time, Operation operation, Status status, String nodeName, String resourceId, String owner,
+                int resultCode, long latency) {
+        Segment current = segment;
+        while (current != null) {
+            int index = current.claim();
+            if (index >= 0) {
+                current.write(index, time, operation, status, ordinal(nodes, Kind.NODE, nodeName),
+                        ordinal(resources, Kind.RESOURCE, resourceId), resultCode, ownerField(owner), latency);
+                return;
+            }
+            current = roll(current);
+        }
+    }
+
+    /**
+     * Switches to a new segment when the current one is full.
+     *
+     * @param full the full segment.
+     * @return the new segment, or null if the journal is stopped.
+     */
+    private synchronized Segment roll(Segment full) {
+        if (segment != full) {
+            return segment;
+        }
+        try {
+            segment = Segment.create(directory, full.number + 1, segmentCapacity);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not create a new journal segment, stopping the journal.", e);
+            segment = null;
+        }
+        full.close();
+        prune();
+        return segment;
+    }
+
+    /**
+     * Deletes the oldest segments so that no more than the configured number of segments are kept, and then the names
+     * that are no longer used.
+     */
+    private synchronized void prune() {
+        File[] files = listSegments(directory);
+        if (files.length <= maxSegments) {
+            return;
+        }
+        for (int i = 0; i < files.length - maxSegments; i++) {
+            if (!files[i].delete()) {
+                logger.log(Level.WARNING, "Could not delete the old journal segment {0}", files[i]);
+            }
+        }
+        try {
+            compactNames();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to compact the journal names.", e);
+        }
+    }
+
+    /**
+     * Rewrites the names file with only the names that are used by the remaining segments, and forgets the other
+     * names so that they get a new ordinal if they are seen again. Must hold the lock, so that no names are assigned
+     * meanwhile.
+     *
+     * @throws IOException if so.
+     */
+    private void compactNames() throws IOException {
+        File file = new File(directory, NAMES_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        Set<Integer> used = new HashSet<Integer>();
+        File[] files = listSegments(directory);
+        for (File segmentFile : files) {
+            collectOrdinals(segmentFile, used);
+        }
+        nodes.values().retainAll(used);
+        resources.values().retainAll(used);
+        owners.values().retainAll(used);
+        ownerFields.clear();
+        if (files.length > 0) {
+            //Records that got their ordinals before they were forgotten can still have been written to the current
+            //segment since it was read.
+            collectOrdinals(files[files.length - 1], used);
+        }
+        File compacted = new File(directory, NAMES_FILE + ".tmp");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+        OutputStream out = new FileOutputStream(compacted);
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                String[] parts = line.split("\t", 3);
+                if (parts.length == 3 && isUsed(parts[1], used)) {
+                    out.write((line + "\n").getBytes(CHARSET));
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+            out.close();
+        }
+        if (namesOut != null) {
+            namesOut.close();
+            namesOut = null;
+        }
+        try {
+            if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+                throw new IOException("Could not replace the journal names with " + compacted);
+            }
+        } finally {
+            namesOut = new FileOutputStream(file, true);
+        }
+    }
+
+    /**
+     * If the ordinal on a line of the names file is among the used ones.
+     *
+     * @param ordinal the ordinal as written in the names file.
+     * @param used    the used ordinals.
+     * @return true if so, or if the line can't be understood, so it is kept.
+     */
+    private static boolean isUsed(String ordinal, Set<Integer> used) {
+        try {
+            return used.contains(Integer.parseInt(ordinal));
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Adds the ordinals of the names used by the records in a segment.
+     *
+     * @param file the segment file.
+     * @param used where to add the ordinals.
+     * @throws IOException if the segment can't be read.
+     */
+    private static void collectOrdinals(File file, Set<Integer> used) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int capacity = checkHeader(buffer, file);
+            for (int i = 0; i < capacity; i++) {
+                int position = HEADER_SIZE + i * RECORD_SIZE;
+                if (buffer.getLong(position) == 0) {
+                    break;
+                }
+                used.add(buffer.getInt(position + OFFSET_NODE));
+                used.add(buffer.getInt(position + OFFSET_RESOURCE));
+                used.add((int)(buffer.getLong(position + OFFSET_OWNER) >> OWNER_SHIFT));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The number of a segment file.
+     *
+     * @param file the segment file.
+     * @return the number.
+     * @throws IOException if the name isn't a segment name.
+     */
+    private static int segmentNumber(File file) throws IOException {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a journal segment: " + file);
+        }
+    }
+
+    /**
+     * The owner field of a record. Build urls, like job/name/42/, are split into the ordinal of the project url and
+     * the build number, so that a new build doesn't need a new name.
+     *
+     * @param owner the owner.
+     * @return the owner field, -1 for null.
+     */
+    private long ownerField(String owner) {
+        if (owner == null) {
+            return -1;
+        }
+        Long field = ownerFields.get(owner);
+        if (field != null) {
+            return field;
+        }
+        long value;
+        int number = buildNumber(owner);
+        if (number < 0) {
+            value = ((long)ordinal(owners, Kind.OWNER, owner) << OWNER_SHIFT) | NO_BUILD;
+        } else {
+            String project = owner.substring(0, owner.lastIndexOf('/', owner.length() - 2) + 1);
+            value = ((long)ordinal(owners, Kind.OWNER, project) << OWNER_SHIFT) | number;
+        }
+        if (ownerFields.size() >= MAX_OWNERS) {
+            ownerFields.clear();
+        }
+        ownerFields.put(owner, value);
+        return value;
+    }
+
+    /**
+     * Reverse of {@link #ownerField(String)}.
+     *
+     * @param names the names of the ordinals.
+     * @param field the owner field.
+     * @return the owner, or null if there was none.
+     */
+    private static String owner(Names names, long field) {
+        String name = names.get((int)(field >> OWNER_SHIFT));
+        if (name == null) {
+            return null;
+        }
+        long number = field & NO_BUILD;
+        if (number == NO_BUILD) {
+            return name;
+        }
+        return name + number + "/";
+    }
+
+    /**
+     * Finds the build number at the end of a build url, like the 42 in job/name/42/. Only numbers that come back the
+     * same from {@link #owner(Names, long)} are found.
+     *
+     * @param owner the owner.
+     * @return the number, or -1 if there is none.
+     */
+    private static int buildNumber(String owner) {
+        int end = owner.length() - 1;
+        if (end < 1 || owner.charAt(end) != '/') {
+            return -1;
+        }
+        int start = owner.lastIndexOf('/', end - 1) + 1;
+        if (start == end || end - start > MAX_BUILD_DIGITS || owner.charAt(start) == '0') {
+            return -1;
+        }
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            char c = owner.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: Decimal digits.
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    /**
+     * Gets or assigns the ordinal of a name.
+     *
+     * @param known the known names of the kind.
+     * @param kind  the kind of name.
+     * @param name  the name.
+     * @return the ordinal, -1 for null.
+     */
+    private int ordinal(Map<String, Integer> known, Kind kind, String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer ordinal = known.get(name);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        return assign(known, kind, name);
+    }
+
+    /**
+     * Assigns a new ordinal to the name and appends it to the names file.
+     *
+     * @param known the known names of the kind.
+     * @param kind  the kind of name.
+     * @param name  the name.
+     * @return the ordinal.
+     */
+    private synchronized int assign(Map<String, Integer> known, Kind kind, String name) {
+        Integer ordinal = known.get(name);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        if (known.size() >= MAX_OWNERS) {
+            known.clear();
+        }
+        int value = nextOrdinal.getAndIncrement();
+        known.put(name, value);
+        if (namesOut != null) {
+            try {
+                namesOut.write((kind.name() + "\t" + value + "\t" + escape(name) + "\n").getBytes(CHARSET));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to write the journal name " + name, e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reads all events in the journal directory, one segment at a time without keeping them.
+     *
+     * @param dir     the directory.
+     * @param visitor gets the events in the order they were recorded.
+     * @throws IOException if the journal can't be read.
+     */
+    public static void read(File dir, Visitor visitor) throws IOException {
+        Names names = readNames(dir);
+        Operation[] operations = Operation.values();
+        Status[] statuses = Status.values();
+        for (File file : listSegments(dir)) {
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(file, "r");
+            } catch (FileNotFoundException e) {
+                logger.log(Level.FINE, "The journal segment {0} was pruned while reading.", file);
+                continue;
+            }
+            try {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int capacity = checkHeader(buffer, file);
+                for (int i = 0; i < capacity; i++) {
+                    int position = HEADER_SIZE + i * RECORD_SIZE;
+                    long time = buffer.getLong(position);
+                    if (time == 0) {
+                        break;
+                    }
+                    short operation = buffer.getShort(position + OFFSET_OPERATION);
+                    short status = buffer.getShort(position + OFFSET_STATUS);
+                    if (operation < 0 || operation >= operations.length || status < 0 || status >= statuses.length) {
+                        logger.log(Level.WARNING, "Skipping the corrupt record {0} in the journal segment {1}",
+                                new Object[]{i, file});
+                        continue;
+                    }
+                    visitor.visit(new Event(time, operations[operation], statuses[status],
+                            names.get(buffer.getInt(position + OFFSET_NODE)),
+                            names.get(buffer.getInt(position + OFFSET_RESOURCE)),
+                            buffer.getInt(position + OFFSET_RESULT),
+                            owner(names, buffer.getLong(position + OFFSET_OWNER)),
+                            buffer.getLong(position + OFFSET_LATENCY)));
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Checks the header of a segment.
+     *
+     * @param buffer the mapped segment.
+     * @param file   the segment file.
+     * @return the capacity of the segment.
+     * @throws IOException if the header is wrong.
+     */
+    private static int checkHeader(MappedByteBuffer buffer, File file) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Not a journal segment: " + file);
+        }
+        int capacity = buffer.getInt(12);
+        if (buffer.limit() < HEADER_SIZE + (long)capacity * RECORD_SIZE) {
+            throw new IOException("Truncated journal segment: " + file);
+        }
+        return capacity;
+    }
+
+    /**
+     * Lists the segment files in order.
+     *
+     * @param dir the journal directory.
+     * @return the segment files.
+     */
+    private static File[] listSegments(File dir) {
+        List<File> segments = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.add(file);
+                }
+            }
+        }
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        //The segment number is zero padded so the names sort in order.
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Reads the names file.
+     *
+     * @param dir the journal directory.
+     * @return the names.
+     * @throws IOException if so.
+     */
+    private static Names readNames(File dir) throws IOException {
+        Names names = new Names();
+        File file = new File(dir, NAMES_FILE);
+        if (!file.exists()) {
+            return names;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                String[] parts = line.split("\t", 3);
+                if (parts.length == 3) {
+                    try {
+                        names.add(Kind.valueOf(parts[0]), Integer.parseInt(parts[1]), unescape(parts[2]));
+                    } catch (IllegalArgumentException e) {
+                        logger.log(Level.WARNING, "Bad line in the journal names: {0}", line);
+                    }
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return names;
+    }
+
+    /**
+     * Escapes tabs, new lines and backslashes.
+     *
+     * @param name the name.
+     * @return the escaped name.
+     */
+    private static String escape(String name) {
+        return name.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    /**
+     * Reverse of {@link #escape(String)}.
+     *
+     * @param name the escaped name.
+     * @return the name.
+     */
+    private static String unescape(String name) {
+        StringBuilder str = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\' && i + 1 < name.length()) {
+                i++;
+                char next = name.charAt(i);
+                if (next == 't') {
+                    str.append('\t');
+                } else if (next == 'n') {
+                    str.append('\n');
+                } else {
+                    str.append(next);
+                }
+            } else {
+                str.append(c);
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Gets the events when the journal is read.
+     */
+    public static interface Visitor {
+        /**
+         * Called for every event in the order they were recorded.
+         *
+         * @param event the event.
+         */
+        void visit(Event event);
+    }
+
+    /**
+     * The operations that are recorded.
+     */
+    public static enum Operation {
+        /**
+         * A reservation.
+         */
+        RESERVE,
+        /**
+         * A lock.
+         */
+        LOCK,
+        /**
+         * A release.
+         */
+        RELEASE
+    }
+
+    /**
+     * How an operation went.
+     */
+    public static enum Status {
+        /**
+         * The operation succeeded.
+         */
+        OK,
+        /**
+         * The service said no.
+         */
+        FAILED,
+        /**
+         * There was no answer.
+         */
+        NONE
+    }
+
+    /**
+     * The kinds of names that are stored as ordinals.
+     */
+    private static enum Kind {
+        /**
+         * A node name.
+         */
+        NODE,
+        /**
+         * A resource id.
+         */
+        RESOURCE,
+        /**
+         * A build or project url.
+         */
+        OWNER
+    }
+
+    /**
+     * The names of the ordinals as read from the names file.
+     */
+    private static final class Names {
+        private final Map<String, Integer> nodes = new HashMap<String, Integer>();
+        private final Map<String, Integer> resources = new HashMap<String, Integer>();
+        private final Map<String, Integer> owners = new HashMap<String, Integer>();
+        private final Map<Integer, String> byOrdinal = new HashMap<Integer, String>();
+        private int maxOrdinal = -1;
+
+        /**
+         * Adds a name.
+         *
+         * @param kind    the kind.
+         * @param ordinal the ordinal.
+         * @param name    the name.
+         */
+        private void add(Kind kind, int ordinal, String name) {
+            byOrdinal.put(ordinal, name);
+            maxOrdinal = Math.max(maxOrdinal, ordinal);
+            if (kind == Kind.NODE) {
+                nodes.put(name, ordinal);
+            } else if (kind == Kind.RESOURCE) {
+                resources.put(name, ordinal);
+            } else if (kind == Kind.OWNER) {
+                owners.put(name, ordinal);
+            }
+        }
+
+        /**
+         * The name of an ordinal.
+         *
+         * @param ordinal the ordinal.
+         * @return the name or null.
+         */
+        private String get(int ordinal) {
+            return byOrdinal.get(ordinal);
+        }
+    }
+
+    /**
+     * One memory mapped segment file.
+     */
+    private static final class Segment {
+        private final int number;
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final AtomicInteger next;
+
+        /**
+         * Standard constructor.
+         *
+         * @param number   the number of the segment.
+         * @param file     the open file.
+         * @param buffer   the mapped file.
+         * @param capacity the number of records.
+         * @param next     the index of the first free record.
+         */
+        private Segment(int number, RandomAccessFile file, MappedByteBuffer buffer, int capacity, int next) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.next = new AtomicInteger(next);
+        }
+
+        /**
+         * Creates a new segment file.
+         *
+         * @param dir      the journal directory.
+         * @param number   the segment number.
+         * @param capacity the number of records.
+         * @return the segment.
+         * @throws IOException if so.
+         */
+        private static Segment create(File dir, int number, int capacity) throws IOException {
+            File path = new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+            RandomAccessFile raf = new RandomAccessFile(path, "rw");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long)capacity * RECORD_SIZE);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(12, capacity);
+            return new Segment(number, raf, buffer, capacity, 0);
+        }
+
+        /**
+         * Opens an existing segment file to continue writing after its last record.
+         *
+         * @param path   the segment file.
+         * @param number the segment number.
+         * @return the segment.
+         * @throws IOException if so.
+         */
+        private static Segment open(File path, int number) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(path, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                int capacity = checkHeader(buffer, path);
+                int next = 0;
+                while (next < capacity && buffer.getLong(HEADER_SIZE + next * RECORD_SIZE) != 0) {
+                    next++;
+                }
+                return new Segment(number, raf, buffer, capacity, next);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Claims a record.
+         *
+         * @return the index of the record or -1 if the segment is full.
+         */
+        private int claim() {
+            int index = next.getAndIncrement();
+            if (index >= capacity) {
+                return -1;
+            }
+            return index;
+        }
+
+        /**
+         * If all records are claimed.
+         *
+         * @return true if so.
+         */
+        private boolean isFull() {
+            return next.get() >= capacity;
+        }
+
+        /**
+         * Writes a record. The time is written last so readers never see a half written record.
+         *
+         * @param index      the claimed index.
+         * @param time       the time stamp.
+         * @param operation  the operation.
+         * @param status     the status.
+         * @param node       the node ordinal.
+         * @param resource   the resource ordinal.
+         * @param resultCode the result code.
+         * @param owner      the owner ordinal.
+         * @param latency    the latency.
+         */
+        private void write(int index, long time, Operation operation, Status status, int node, int resource,
+                           int resultCode, long owner, long latency) {
+            int position = HEADER_SIZE + index * RECORD_SIZE;
+            buffer.putShort(position + OFFSET_OPERATION, (short)operation.ordinal());
+            buffer.putShort(position + OFFSET_STATUS, (short)status.ordinal());
+            buffer.putInt(position + OFFSET_NODE, node);
+            buffer.putInt(position + OFFSET_RESOURCE, resource);
+            buffer.putInt(position + OFFSET_RESULT, resultCode);
+            buffer.putLong(position + OFFSET_OWNER, owner);
+            buffer.putLong(position + OFFSET_LATENCY, latency);
+            buffer.putLong(position, time);
+        }
+
+        /**
+         * Forces the segment to disk and closes the file.
+         */
+        private void close() {
+            try {
+                buffer.force();
+                file.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close the journal segment.", e);
+            }
+        }
+    }
+
+    /**
+     * A recorded event.
+     */
+    public static final class Event {
+        private final long time;
+        private final Operation operation;
+        private final Status status;
+        private final String nodeName;
+        private final String resourceId;
+        private final int resultCode;
+        private final String owner;
+        private final long latency;
+
+        /**
+         * Standard constructor.
+         *
+         * @param time       the time stamp in milliseconds.
+         * @param operation  the operation.
+         * @param status     how it went.
+         * @param nodeName   the name of the node.
+         * @param resourceId the id of the resource.
+         * @param resultCode the protocol specific result code.
+         * @param owner      who made the operation.
+         * @param latency    how long the operation took in nanoseconds.
+         */
+        Event(long time, Operation operation, Status status, String nodeName, String resourceId, int resultCode,
+              String owner, long latency) {
+            this.time = time;
+            this.operation = operation;
+            this.status = status;
+            this.nodeName = nodeName;
+            this.resourceId = resourceId;
+            this.resultCode = resultCode;
+            this.owner = owner;
+            this.latency = latency;
+        }
+
+        /**
+         * The time stamp.
+         *
+         * @return milliseconds since the epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * The operation.
+         *
+         * @return the operation.
+         */
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * How it went.
+         *
+         * @return the status.
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * The name of the node, empty for the master.
+         *
+         * @return the node name.
+         */
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        /**
+         * The id of the resource.
+         *
+         * @return the resource id.
+         */
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        /**
+         * The protocol specific result code.
+         *
+         * @return the code.
+         */
+        public int getResultCode() {
+            return resultCode;
+        }
+
+        /**
+         * Who made the operation.
+         *
+         * @return the build or project url.
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * How long the operation took.
+         *
+         * @return nanoseconds.
+         */
+        public long getLatency() {
+            return latency;
+        }
+    }
+}
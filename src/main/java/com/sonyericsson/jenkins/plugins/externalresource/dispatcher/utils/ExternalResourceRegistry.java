@@ -0,0 +1,447 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataParent;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.SelectionMatcher;
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a flat, indexed view of the {@link ExternalResource}s attached to each node, so that lookups done by the
+ * scheduler don't need to walk the metadata tree every time.
+ *
+ * An entry is built lazily the first time a node is asked for and is thrown away when
+ * {@link #invalidate(com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty)} is called for its
+ * property, or when the node gets a new {@link MetadataNodeProperty} instance (i.e. the node was reconfigured).
+ *
+ * Each resource in an entry gets an ordinal, and the entry keeps an inverted index from every (path, value) leaf
+ * of the resources to a {@link BitSet} of the ordinals that has it, together with a bit set of the resources that
+ * are currently enabled and available. The latter is kept up to date by {@link #stateChanged(ExternalResource)}.
+ * Matching a {@link SelectionMatcher} is then mostly a matter of and-ing bit sets.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class ExternalResourceRegistry {
+
+    private static final Logger logger = Logger.getLogger(ExternalResourceRegistry.class.getName());
+
+    /**
+     * Separator between the path and the value in an index key.
+     * Can't appear in a metadata name created by the UI.
+     */
+    private static final char INDEX_KEY_VALUE_SEPARATOR = '\u0000';
+
+    private static ExternalResourceRegistry ourInstance = new ExternalResourceRegistry();
+
+    /**
+     * The entries, keyed by node name.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Which entry an indexed resource belongs to, so that state changes can find their way back to the bit sets.
+     */
+    private final Map<ExternalResource, Entry> owners =
+            Collections.synchronizedMap(new IdentityHashMap<ExternalResource, Entry>());
+
+    /**
+     * Bumped every time an entry is invalidated or the state of a resource changes.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static ExternalResourceRegistry getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor.
+     */
+    private ExternalResourceRegistry() {
+    }
+
+    /**
+     * All external resources attached to the node, in tree order.
+     * The returned list is shared and can not be modified.
+     *
+     * @param node the node.
+     * @return the resources or null if there is no metadata on the node.
+     */
+    public List<ExternalResource> getExternalResources(Node node) {
+        Entry entry = getEntry(node);
+        if (entry != null) {
+            return entry.list;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the external resource attached to the node with the given id.
+     *
+     * @param node the node to search on.
+     * @param id   the id of the resource.
+     * @return the resource or null if there is none.
+     */
+    public ExternalResource getExternalResourceById(Node node, String id) {
+        Entry entry = getEntry(node);
+        if (entry == null) {
+            return null;
+        }
+        ExternalResource resource = entry.byId.get(id);
+        if (resource == null) {
+            //Could have been added to the tree without anyone telling us, double check the hard way.
+            resource = AvailabilityFilter.getInstance().getExternalResourceById(entry.property, id);
+            if (resource != null) {
+                logger.fine("Resource [" + id + "] was not indexed, rebuilding.");
+                invalidate(entry.property);
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * If the node has at least one resource that is enabled and available.
+     *
+     * @param node the node.
+     * @return true if so.
+     */
+    public boolean hasEnabledAndAvailable(Node node) {
+        Entry entry = getEntry(node);
+        return entry != null && entry.hasAvailable();
+    }
+
+    /**
+     * Gives the enabled and available resources on the node that matches the selections, in tree order.
+     *
+     * @param node    the node.
+     * @param matcher the compiled selections.
+     * @return a new list of the matching resources, empty if there are none.
+     */
+    public List<ExternalResource> getMatchingResources(Node node, SelectionMatcher matcher) {
+        Entry entry = getEntry(node);
+        if (entry == null) {
+            return new ArrayList<ExternalResource>(0);
+        }
+        BitSet candidates = entry.copyAvailable();
+        boolean allIndexed = true;
+        for (int i = 0; i < matcher.size() && !candidates.isEmpty(); i++) {
+            String key = matcher.getIndexKey(i);
+            if (key == null) {
+                allIndexed = false;
+            } else {
+                BitSet bits = entry.index.get(key);
+                if (bits == null) {
+                    candidates.clear();
+                } else {
+                    candidates.and(bits);
+                }
+            }
+        }
+        List<ExternalResource> matching = new ArrayList<ExternalResource>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            ExternalResource resource = entry.resources[i];
+            if (allIndexed || matcher.matches(resource)) {
+                matching.add(resource);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Called by the resource when it is reserved, locked, released, enabled or disabled.
+     * Updates the enabled and available bit of the resource if it is indexed, and bumps the version.
+     *
+     * @param resource the resource that has changed.
+     */
+    public void stateChanged(ExternalResource resource) {
+        Entry entry = owners.get(resource);
+        if (entry != null) {
+            entry.update(resource);
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Throws away any entry built from the given property.
+     * Called from the {@link com.sonyericsson.hudson.plugins.metadata.MetadataUpdateListener} when the metadata on a
+     * node has changed.
+     *
+     * @param property the property that has changed.
+     */
+    public void invalidate(MetadataNodeProperty property) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.property == property) {
+                iterator.remove();
+                disown(entry);
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Throws away all entries.
+     */
+    public void invalidateAll() {
+        entries.clear();
+        owners.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * A counter that is increased every time the registry is invalidated or the state of a resource changes.
+     * Can be used by callers that cache things derived from the registry.
+     *
+     * @return the current version.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Creates the key used in the inverted index.
+     *
+     * @param path  the path segments from the resource down to the leaf.
+     * @param value the value of the leaf.
+     * @return the key.
+     */
+    public static String createIndexKey(String[] path, String value) {
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < path.length; i++) {
+            if (i > 0) {
+                str.append('.');
+            }
+            str.append(path[i]);
+        }
+        str.append(INDEX_KEY_VALUE_SEPARATOR).append(value);
+        return str.toString();
+    }
+
+    /**
+     * Gets or builds the entry for the node.
+     *
+     * @param node the node.
+     * @return the entry or null if the node has no metadata.
+     */
+    private Entry getEntry(Node node) {
+        MetadataNodeProperty property = node.getNodeProperties().get(MetadataNodeProperty.class);
+        if (property == null) {
+            return null;
+        }
+        String key = getKey(node);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.property != property) {
+            Entry old = entry;
+            entry = new Entry(property);
+            entries.put(key, entry);
+            if (old != null) {
+                disown(old);
+            }
+            for (ExternalResource resource : entry.resources) {
+                owners.put(resource, entry);
+            }
+            //Catch anything that changed while we were building.
+            for (ExternalResource resource : entry.resources) {
+                entry.update(resource);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Removes the resources of the entry from {@link #owners}.
+     *
+     * @param entry the entry that is no longer in use.
+     */
+    private void disown(Entry entry) {
+        synchronized (owners) {
+            for (ExternalResource resource : entry.resources) {
+                if (owners.get(resource) == entry) {
+                    owners.remove(resource);
+                }
+            }
+        }
+    }
+
+    /**
+     * The key to store the node's entry with.
+     *
+     * @param node the node.
+     * @return the node name, never null.
+     */
+    private static String getKey(Node node) {
+        String name = node.getNodeName();
+        if (name == null) {
+            return "";
+        }
+        return name;
+    }
+
+    /**
+     * The indexed resources of one node.
+     */
+    private static final class Entry {
+        private final MetadataNodeProperty property;
+        private final ExternalResource[] resources;
+        private final List<ExternalResource> list;
+        private final Map<String, ExternalResource> byId;
+        private final Map<ExternalResource, Integer> ordinals;
+        private final Map<String, BitSet> index;
+        /**
+         * The ordinals of the resources that are enabled and available. Guarded by this.
+         */
+        private final BitSet available;
+
+        /**
+         * Standard constructor, scans the property.
+         *
+         * @param property the metadata of the node.
+         */
+        private Entry(MetadataNodeProperty property) {
+            this.property = property;
+            List<ExternalResource> found = new ArrayList<ExternalResource>();
+            collect(property, found);
+            resources = found.toArray(new ExternalResource[found.size()]);
+            list = Collections.unmodifiableList(Arrays.asList(resources));
+            byId = new HashMap<String, ExternalResource>(resources.length * 2);
+            ordinals = new IdentityHashMap<ExternalResource, Integer>(resources.length * 2);
+            index = new HashMap<String, BitSet>();
+            available = new BitSet(resources.length);
+            List<String> path = new ArrayList<String>();
+            for (int i = 0; i < resources.length; i++) {
+                ExternalResource resource = resources[i];
+                if (!byId.containsKey(resource.getId())) {
+                    byId.put(resource.getId(), resource);
+                }
+                ordinals.put(resource, i);
+                indexLeaves(resource, path, i);
+                if (resource.isEnabled() && resource.isAvailable()) {
+                    available.set(i);
+                }
+            }
+        }
+
+        /**
+         * Adds all leaves below the parent to the index.
+         * Only the first child with a given name is indexed, since that is the one a path lookup would find.
+         * Leaves with a '.' somewhere in their path are skipped since they can't be expressed as a selection.
+         *
+         * @param parent  the parent to scan.
+         * @param path    the path from the resource down to the parent.
+         * @param ordinal the ordinal of the resource being indexed.
+         */
+        private void indexLeaves(MetadataParent<MetadataValue> parent, List<String> path, int ordinal) {
+            Set<String> seen = new HashSet<String>();
+            for (MetadataValue child : parent.getChildren()) {
+                String name = child.getName();
+                if (name == null || !seen.add(name) || name.indexOf('.') >= 0) {
+                    continue;
+                }
+                path.add(name);
+                if (child instanceof MetadataParent) {
+                    indexLeaves((MetadataParent<MetadataValue>)child, path, ordinal);
+                } else if (child.getValue() != null) {
+                    String key = createIndexKey(path.toArray(new String[path.size()]), child.getValue().toString());
+                    BitSet bits = index.get(key);
+                    if (bits == null) {
+                        bits = new BitSet(resources.length);
+                        index.put(key, bits);
+                    }
+                    bits.set(ordinal);
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+
+        /**
+         * Updates the available bit of the resource.
+         *
+         * @param resource the resource.
+         */
+        private synchronized void update(ExternalResource resource) {
+            Integer ordinal = ordinals.get(resource);
+            if (ordinal != null) {
+                available.set(ordinal, resource.isEnabled() && resource.isAvailable());
+            }
+        }
+
+        /**
+         * If there is at least one enabled and available resource.
+         *
+         * @return true if so.
+         */
+        private synchronized boolean hasAvailable() {
+            return !available.isEmpty();
+        }
+
+        /**
+         * A copy of the enabled and available bits.
+         *
+         * @return a new bit set.
+         */
+        private synchronized BitSet copyAvailable() {
+            return (BitSet)available.clone();
+        }
+
+        /**
+         * Recursively collects all external resources below the parent.
+         *
+         * @param parent the parent to scan.
+         * @param found  the list to add to.
+         */
+        private static void collect(MetadataParent<MetadataValue> parent, List<ExternalResource> found) {
+            for (MetadataValue value : parent.getChildren()) {
+                if (value instanceof ExternalResource) {
+                    found.add((ExternalResource)value);
+                } else if (value instanceof MetadataParent) {
+                    collect((MetadataParent<MetadataValue>)value, found);
+                }
+            }
+        }
+    }
+}
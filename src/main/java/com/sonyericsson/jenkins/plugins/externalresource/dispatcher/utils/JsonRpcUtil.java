@@ -28,16 +28,19 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.MessageFormat;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants;
 import com.googlecode.jsonrpc4j.JsonRpcHttpClient;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * this is the util class for json rpc.
- * you can create different rpc client for use.
+ * you can create different rpc client for use, or get a cached one via {@link #getJsonRpcClient(String, boolean)}.
  *
  * @author Leimeng Zhang
  */
@@ -54,6 +57,85 @@ public final class JsonRpcUtil {
      */
     private static final Logger logger = Logger.getLogger(JsonRpcUtil.class.getName());
 
+    /**
+     * The shared plain mapper used by the cached clients. An ObjectMapper is thread safe once configured.
+     */
+    private static final ObjectMapper SHARED_MAPPER = new ObjectMapper();
+
+    /**
+     * The shared customized mapper used by the cached clients, see {@link #customizeObjectMapper()}.
+     */
+    private static final ObjectMapper SHARED_CUSTOMIZED_MAPPER = customizeObjectMapper();
+
+    /**
+     * The cached clients, the key is the url plus which mapper the client uses.
+     */
+    private static final Map<String, JsonRpcHttpClient> CLIENTS = new ConcurrentHashMap<String, JsonRpcHttpClient>();
+
+    private static volatile int connectionTimeout = Constants.DEFAULT_RPC_CONNECTION_TIMEOUT;
+    private static volatile int readTimeout = Constants.DEFAULT_RPC_READ_TIMEOUT;
+
+    /**
+     * Sets the timeouts used by the cached clients. Clients created with other timeouts are thrown away.
+     *
+     * @param connectionTimeoutMillis milliseconds to wait for a connection, 0 for no timeout.
+     * @param readTimeoutMillis       milliseconds to wait for a response, 0 for no timeout.
+     */
+    public static synchronized void setTimeouts(int connectionTimeoutMillis, int readTimeoutMillis) {
+        if (connectionTimeout != connectionTimeoutMillis || readTimeout != readTimeoutMillis) {
+            connectionTimeout = connectionTimeoutMillis;
+            readTimeout = readTimeoutMillis;
+            CLIENTS.clear();
+        }
+    }
+
+    /**
+     * Gets a cached Json RPC client for the url, or creates one if there is none.
+     * The client uses one of the shared mappers, the configured timeouts and asks the server to keep the
+     * connection alive, so the JVM can reuse the same socket for the next call to the same host.
+     *
+     * @param url       the url of the RPC call.
+     * @param customized true to use the mapper from {@link #customizeObjectMapper()}, false for a plain one.
+     * @return the {@link JsonRpcHttpClient} to be used, or null if the url is malformed.
+     */
+    public static JsonRpcHttpClient getJsonRpcClient(String url, boolean customized) {
+        if (url == null) {
+            return null;
+        }
+        String key = url;
+        if (customized) {
+            key = "customized:" + url;
+        }
+        JsonRpcHttpClient client = CLIENTS.get(key);
+        if (client == null) {
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Connection", "keep-alive");
+            ObjectMapper mapper = SHARED_MAPPER;
+            if (customized) {
+                mapper = SHARED_CUSTOMIZED_MAPPER;
+            }
+            try {
+                client = new JsonRpcHttpClient(mapper, new URL(url), headers);
+            } catch (MalformedURLException e) {
+                logger.log(Level.WARNING, MessageFormat.format(
+                        "Can not create the json rpc client because of malformed url: {0}",
+                        url), e);
+                return null;
+            }
+            client.setConnectionTimeoutMillis(connectionTimeout);
+            client.setReadTimeoutMillis(readTimeout);
+            CLIENTS.put(key, client);
+        }
+        return client;
+    }
+
+    /**
+     * Throws away all cached clients.
+     */
+    public static void clearClientCache() {
+        CLIENTS.clear();
+    }
+
     /**
      * create the Json RPC client using the specified url.
      *
@@ -0,0 +1,174 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import net.sf.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non negative values with logarithmic buckets, in the style of HdrHistogram.
+ * Values below {@link #LINEAR_BUCKETS} are counted exactly, larger values are counted in eight sub buckets per
+ * power of two so any reported value is within 12.5% of the real one.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets holding exactly one value each.
+     */
+    static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BITS = 4;
+    private static final int LONG_BITS = 64;
+    private static final int BUCKETS = LINEAR_BUCKETS + (LONG_BITS - 1 - LINEAR_BITS) * SUB_BUCKETS;
+    private static final double PERCENT = 100.0;
+    private static final double[] REPORTED_PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+    private static final String[] REPORTED_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     *
+     * @param value the value.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * The number of recorded values.
+     *
+     * @return the count.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * The largest recorded value.
+     *
+     * @return the max, 0 if nothing is recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The mean of the recorded values.
+     *
+     * @return the mean, 0 if nothing is recorded.
+     */
+    public double getMean() {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        return (double)sum.get() / c;
+    }
+
+    /**
+     * The value at the percentile, reported as the highest value of its bucket but never more than the max.
+     *
+     * @param percentile the percentile, 0 to 100.
+     * @return the value, 0 if nothing is recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(total * Math.min(percentile, PERCENT) / PERCENT));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * A JSON summary with the count, mean, max and some percentiles.
+     *
+     * @return the summary.
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("count", getCount());
+        json.put("mean", getMean());
+        json.put("max", getMax());
+        for (int i = 0; i < REPORTED_PERCENTILES.length; i++) {
+            json.put(REPORTED_NAMES[i], getValueAtPercentile(REPORTED_PERCENTILES[i]));
+        }
+        return json;
+    }
+
+    /**
+     * The bucket that a value is counted in.
+     *
+     * @param value the non negative value.
+     * @return the bucket index.
+     */
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int)value;
+        }
+        int magnitude = LONG_BITS - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (magnitude - LINEAR_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The highest value that is counted in a bucket.
+     *
+     * @param bucket the bucket index.
+     * @return the value.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        int shift = magnitude - SUB_BUCKET_BITS;
+        long lowest = ((long)(SUB_BUCKETS + sub)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.PluginImpl;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.Lease;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the locks of running builds alive on the external service.
+ *
+ * Every lock taken by a build is tracked until the build completes. A worker thread wakes up every
+ * {@link Constants#LEASE_HEARTBEAT_INTERVAL} and renews the leases that expire within the renew margin, with one call
+ * per node so that the manager can batch them per host. Locks without a lease are checked as often as the margin.
+ * When the service answers that it no longer holds a lock, the lock is removed from the resource and the build is
+ * marked as unstable, or aborted if so configured. A lock that can't be renewed because the service doesn't answer is
+ * left alone, the admins are told once its lease has passed.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class LeaseManager {
+
+    private static final Logger logger = Logger.getLogger(LeaseManager.class.getName());
+
+    private static LeaseManager ourInstance = new LeaseManager(null, Constants.LEASE_RENEW_MARGIN);
+
+    private final ExternalResourceManager manager;
+    private final long renewMargin;
+    /**
+     * The tracked locks by the node's resource instance.
+     */
+    private final Map<ExternalResource, ActiveLock> active =
+            Collections.synchronizedMap(new IdentityHashMap<ExternalResource, ActiveLock>());
+    private volatile boolean abortOnLostLock;
+    private ScheduledExecutorService executor;
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static LeaseManager getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param manager     the manager to renew with, null to use the configured one.
+     * @param renewMargin milliseconds before a lease expires that it is renewed.
+     */
+    LeaseManager(ExternalResourceManager manager, long renewMargin) {
+        this.manager = manager;
+        this.renewMargin = renewMargin;
+    }
+
+    /**
+     * Sets what happens to a build whose lock has been dropped by the external service.
+     *
+     * @param abort true to abort the build, false to mark it as unstable.
+     */
+    public void setAbortOnLostLock(boolean abort) {
+        this.abortOnLostLock = abort;
+    }
+
+    /**
+     * If a build whose lock has been dropped is aborted.
+     *
+     * @return true if so, false if it is marked as unstable.
+     */
+    public boolean isAbortOnLostLock() {
+        return abortOnLostLock;
+    }
+
+    /**
+     * Starts tracking the current lock of the resource until the build completes.
+     *
+     * @param build    the build that locked the resource.
+     * @param listener the listener of the build, to tell the user if the lock is lost.
+     * @param node     the node holding the resource.
+     * @param resource the locked resource, the instance attached to the node.
+     */
+    public void track(AbstractBuild<?, ?> build, BuildListener listener, Node node, ExternalResource resource) {
+        StashInfo lock = resource.getLocked();
+        if (lock == null) {
+            return;
+        }
+        active.put(resource, new ActiveLock(build, listener, node, resource, lock, System.currentTimeMillis()));
+        ensureStarted();
+    }
+
+    /**
+     * Stops tracking all locks of the build.
+     *
+     * @param build the build.
+     */
+    public void untrack(AbstractBuild<?, ?> build) {
+        synchronized (active) {
+            Iterator<ActiveLock> iterator = active.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().build == build) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of locks that are tracked.
+     *
+     * @return the number of locks.
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Starts the worker if it isn't running.
+     */
+    private synchronized void ensureStarted() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        heartbeat(System.currentTimeMillis());
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "Failed to renew the leases of external resources.", e);
+                    }
+                }
+            }, Constants.LEASE_HEARTBEAT_INTERVAL, Constants.LEASE_HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the worker. It is started again if another lock is tracked after this.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Renews the leases that are due, one call per node.
+     *
+     * @param now the current time in milliseconds.
+     */
+    void heartbeat(long now) {
+        Map<String, List<ActiveLock>> due = new LinkedHashMap<String, List<ActiveLock>>();
+        synchronized (active) {
+            Iterator<ActiveLock> iterator = active.values().iterator();
+            while (iterator.hasNext()) {
+                ActiveLock lock = iterator.next();
+                if (lock.resource.getLocked() != lock.info || !lock.build.isBuilding()) {
+                    //Released or replaced by someone else, or the build is done.
+                    iterator.remove();
+                } else if (lock.isDue(now, renewMargin)) {
+                    List<ActiveLock> list = due.get(lock.node.getNodeName());
+                    if (list == null) {
+                        list = new ArrayList<ActiveLock>();
+                        due.put(lock.node.getNodeName(), list);
+                    }
+                    list.add(lock);
+                }
+            }
+        }
+        Map<MetadataContainer<MetadataValue>, Boolean> containers =
+                new IdentityHashMap<MetadataContainer<MetadataValue>, Boolean>();
+        for (List<ActiveLock> locks : due.values()) {
+            renew(locks, now, containers);
+        }
+        for (MetadataContainer<MetadataValue> container : containers.keySet()) {
+            try {
+                ContainerSaver.getInstance().save(container);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to save the renewed leases to disk!", e);
+            }
+        }
+    }
+
+    /**
+     * Renews the leases of the locks on one node.
+     *
+     * @param locks      the locks, all on the same node.
+     * @param now        the current time in milliseconds.
+     * @param containers where to put the containers of changed resources so they can be saved.
+     */
+    private void renew(List<ActiveLock> locks, long now, Map<MetadataContainer<MetadataValue>, Boolean> containers) {
+        Node node = locks.get(0).node;
+        List<ExternalResource> resources = new ArrayList<ExternalResource>(locks.size());
+        List<String> keys = new ArrayList<String>(locks.size());
+        for (ActiveLock lock : locks) {
+            resources.add(lock.resource);
+            keys.add(lock.info.getKey());
+        }
+        List<StashResult> results;
+        try {
+            results = getManager().renew(node, resources, keys);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to renew " + locks.size() + " leases on " + node.getNodeName(), e);
+            return;
+        }
+        if (results == null) {
+            //The manager's locks don't expire.
+            for (ActiveLock lock : locks) {
+                lock.checked = now;
+            }
+            return;
+        }
+        for (int i = 0; i < locks.size(); i++) {
+            ActiveLock lock = locks.get(i);
+            StashResult result = null;
+            if (i < results.size()) {
+                result = results.get(i);
+            }
+            if (result == null) {
+                notRenewed(lock, now);
+            } else if (result.isOk()) {
+                renewed(lock, result, now, containers);
+            } else {
+                lost(lock, result, containers);
+            }
+        }
+    }
+
+    /**
+     * Replaces the lock on the resource with one that has the new lease.
+     *
+     * @param lock       the lock.
+     * @param result     the result of the renewal.
+     * @param now        the current time in milliseconds.
+     * @param containers where to put the container of the resource so it can be saved.
+     */
+    private void renewed(ActiveLock lock, StashResult result, long now,
+                         Map<MetadataContainer<MetadataValue>, Boolean> containers) {
+        lock.checked = now;
+        lock.warned = false;
+        Lease lease = result.getLease();
+        if (lease == null || lease.getServerTime() == null) {
+            return;
+        }
+        StashInfo renewed = new StashInfo(lock.info.getType(), lock.info.getStashedBy(), lease, lock.info.getKey());
+        if (lock.resource.renewLock(lock.info, renewed)) {
+            lock.info = renewed;
+            MetadataContainer<MetadataValue> container = lock.resource.getMetadataContainer();
+            if (container != null) {
+                containers.put(container, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Tells the admins, once, when a lease has passed without being renewed.
+     *
+     * @param lock the lock.
+     * @param now  the current time in milliseconds.
+     */
+    private void notRenewed(ActiveLock lock, long now) {
+        long expiry = lock.getExpiry();
+        if (lock.warned || expiry < 0 || expiry > now) {
+            return;
+        }
+        lock.warned = true;
+        String message = "The lease of the lock held by " + lock.build.getFullDisplayName()
+                + " has passed without being renewed.";
+        logger.log(Level.WARNING, "{0} Resource: [{1}] on [{2}].",
+                new Object[]{message, lock.resource.getId(), lock.node.getNodeName()});
+        notifyAdmins(lock, message);
+    }
+
+    /**
+     * Handles a lock that the external service no longer holds. The lock is removed from the resource and the build is
+     * marked as unstable or aborted.
+     *
+     * @param lock       the lock.
+     * @param result     the result of the renewal.
+     * @param containers where to put the container of the resource so it can be saved.
+     */
+    private void lost(ActiveLock lock, StashResult result, Map<MetadataContainer<MetadataValue>, Boolean> containers) {
+        synchronized (active) {
+            if (active.get(lock.resource) == lock) {
+                active.remove(lock.resource);
+            }
+        }
+        if (lock.resource.dropLock(lock.info)) {
+            MetadataContainer<MetadataValue> container = lock.resource.getMetadataContainer();
+            if (container != null) {
+                containers.put(container, Boolean.TRUE);
+            }
+        }
+        String message = "The lock on external resource " + lock.resource.getId()
+                + " has been dropped by the external service: " + result.getMessage();
+        logger.log(Level.WARNING, "{0} Build: [{1}].", new Object[]{message, lock.build.getFullDisplayName()});
+        notifyAdmins(lock, message + " Build: " + lock.build.getFullDisplayName());
+        Executor buildExecutor = lock.build.getExecutor();
+        if (abortOnLostLock && buildExecutor != null) {
+            lock.listener.getLogger().println(message + " Aborting the build.");
+            buildExecutor.interrupt(Result.ABORTED);
+        } else {
+            lock.listener.getLogger().println(message + " Marking the build as unstable.");
+            lock.build.setResult(Result.UNSTABLE);
+        }
+    }
+
+    /**
+     * Tells the admins about a lock.
+     *
+     * @param lock    the lock.
+     * @param message what to tell.
+     */
+    private void notifyAdmins(ActiveLock lock, String message) {
+        try {
+            AdminNotifier.getInstance().notify(AdminNotifier.MessageType.WARNING, AdminNotifier.OperationType.LOCK,
+                    lock.node, lock.resource, message);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not notify the admins.", e);
+        }
+    }
+
+    /**
+     * The manager to renew with.
+     *
+     * @return the manager.
+     */
+    private ExternalResourceManager getManager() {
+        if (manager != null) {
+            return manager;
+        }
+        return PluginImpl.getInstance().getManager();
+    }
+
+    /**
+     * A lock held by a running build.
+     */
+    private static final class ActiveLock {
+        private final AbstractBuild<?, ?> build;
+        private final BuildListener listener;
+        private final Node node;
+        private final ExternalResource resource;
+        private volatile StashInfo info;
+        private volatile long checked;
+        private volatile boolean warned;
+
+        /**
+         * Standard constructor.
+         *
+         * @param build    the build that locked the resource.
+         * @param listener the listener of the build.
+         * @param node     the node holding the resource.
+         * @param resource the resource.
+         * @param info     the lock.
+         * @param checked  when the lock was taken.
+         */
+        private ActiveLock(AbstractBuild<?, ?> build, BuildListener listener, Node node, ExternalResource resource,
+                           StashInfo info, long checked) {
+            this.build = build;
+            this.listener = listener;
+            this.node = node;
+            this.resource = resource;
+            this.info = info;
+            this.checked = checked;
+        }
+
+        /**
+         * When the lease expires.
+         *
+         * @return the time in milliseconds, or -1 if the lock has no lease.
+         */
+        private long getExpiry() {
+            Lease lease = info.getLease();
+            if (lease == null || lease.getServerTime() == null) {
+                return -1;
+            }
+            return lease.getServerTime().getTimeInMillis();
+        }
+
+        /**
+         * If the lease should be renewed now. A lock without a lease is due once per margin.
+         *
+         * @param now    the current time in milliseconds.
+         * @param margin milliseconds before the expiry that the lease is renewed.
+         * @return true if so.
+         */
+        private boolean isDue(long now, long margin) {
+            long expiry = getExpiry();
+            if (expiry < 0) {
+                return now - checked >= margin;
+            }
+            return expiry - now <= margin;
+        }
+    }
+}
@@ -0,0 +1,672 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.PluginImpl;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.XmlFile;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Releases the resources locked by finished builds in the background, so that the completion of a build never
+ * waits on the device host.
+ *
+ * Failed releases are retried with an exponential backoff until they succeed, the resource is no longer locked with
+ * the same key or {@link #MAX_ATTEMPTS} is reached. The pending releases are grouped per node, each node is
+ * handled by at most one worker at a time and all due releases on it are done in one go. When one of them fails
+ * the host is most likely down, so the rest of the batch waits for the same retry instead of running into the same
+ * problem. The queue is written to disk by a worker thread after every change so that a restart of the master
+ * doesn't leave anything locked on the monitor side. The lock state of a resource isn't kept over a restart, so the
+ * releases loaded from disk are made with the stored key whatever the resource looks like in memory.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class ReleaseQueue {
+
+    private static final Logger logger = Logger.getLogger(ReleaseQueue.class.getName());
+
+    /**
+     * Milliseconds to wait before the first retry, doubled for each failed attempt.
+     */
+    static final long INITIAL_BACKOFF = 5000;
+
+    /**
+     * The longest time in milliseconds to wait between two attempts.
+     */
+    static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    /**
+     * Number of attempts before giving up on a release.
+     */
+    static final int MAX_ATTEMPTS = 20;
+
+    /**
+     * Number of worker threads, i.e. how many nodes can be handled at the same time.
+     */
+    private static final int WORKER_THREADS = 4;
+
+    /**
+     * Milliseconds to wait for the running batches when the queue is stopped.
+     */
+    private static final long STOP_TIMEOUT = 10000;
+
+    private static ReleaseQueue ourInstance = new ReleaseQueue(null, INITIAL_BACKOFF, MAX_ATTEMPTS);
+
+    private final ExternalResourceManager manager;
+    private final long initialBackoff;
+    private final int maxAttempts;
+    /**
+     * The workers, created when first needed and thrown away on {@link #stop()}, guarded by this.
+     */
+    private ScheduledExecutorService executor;
+    /**
+     * If the queue is being stopped, nothing new is scheduled while it is. Guarded by this.
+     */
+    private boolean stopping;
+    /**
+     * The pending releases per node name, guarded by this.
+     */
+    private final Map<String, List<PendingRelease>> pending = new HashMap<String, List<PendingRelease>>();
+    /**
+     * The nodes that have a batch scheduled or running, guarded by this.
+     */
+    private final Set<String> scheduled = new HashSet<String>();
+    /**
+     * Held while the queue file is written, so that the writes are made in order.
+     */
+    private final Object fileLock = new Object();
+    private XmlFile file;
+    /**
+     * If a write of the queue file is scheduled but hasn't taken its snapshot yet, guarded by this.
+     */
+    private boolean persistScheduled;
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static ReleaseQueue getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param manager        the manager to release with, null to use the configured one.
+     * @param initialBackoff milliseconds to wait before the first retry.
+     * @param maxAttempts    number of attempts before giving up.
+     */
+    ReleaseQueue(ExternalResourceManager manager, long initialBackoff, int maxAttempts) {
+        this.manager = manager;
+        this.initialBackoff = initialBackoff;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Loads the releases that were pending when the master was shut down and starts retrying them.
+     * From now on the queue is written to the file on every change.
+     *
+     * @param queueFile the file to keep the queue in.
+     */
+    @SuppressWarnings("unchecked")
+    public void start(File queueFile) {
+        XmlFile xmlFile = new XmlFile(queueFile);
+        List<PendingRelease> loaded = null;
+        if (xmlFile.exists()) {
+            try {
+                loaded = (List<PendingRelease>)xmlFile.read();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to load the pending releases of external resources.", e);
+            } catch (ClassCastException e) {
+                logger.log(Level.SEVERE, "Unexpected content in " + queueFile, e);
+            }
+        }
+        synchronized (this) {
+            file = xmlFile;
+            if (loaded != null) {
+                for (PendingRelease release : loaded) {
+                    release.restored = true;
+                    add(release);
+                }
+                logger.log(Level.INFO, "Loaded {0} pending releases of external resources.", loaded.size());
+            }
+            persist();
+        }
+    }
+
+    /**
+     * Stops the worker threads and writes what is still pending to disk, so it is retried after the next
+     * {@link #start(java.io.File)}. Releases submitted after this start new workers.
+     */
+    public void stop() {
+        ScheduledExecutorService current;
+        synchronized (this) {
+            stopping = true;
+            current = executor;
+            executor = null;
+        }
+        try {
+            if (current != null) {
+                current.shutdown();
+                try {
+                    if (!current.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        logger.log(Level.WARNING, "Timed out waiting for the releases of external resources.");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            writeFile();
+        } finally {
+            synchronized (this) {
+                //Written to disk, they are loaded again on the next start.
+                pending.clear();
+                scheduled.clear();
+                stopping = false;
+            }
+        }
+    }
+
+    /**
+     * The workers, started if needed. Must hold the lock.
+     *
+     * @return the executor, or null if the queue is being stopped.
+     */
+    private ScheduledExecutorService getExecutor() {
+        if (executor == null && !stopping) {
+            ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(WORKER_THREADS,
+                    new DaemonThreadFactory());
+            //The waiting retries are written to disk on stop, no need to wait for them.
+            pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * Queues the release of a locked resource. The first attempt is made right away by a worker thread.
+     *
+     * @param node       the node holding the resource.
+     * @param resource   the resource to release, the instance attached to the node.
+     * @param key        the key that the resource was locked with.
+     * @param releasedBy a String describing what released the resource.
+     */
+    public synchronized void submit(Node node, ExternalResource resource, String key, String releasedBy) {
+        PendingRelease release = new PendingRelease(node, resource, key, releasedBy);
+        add(release);
+        persist();
+    }
+
+    /**
+     * The number of releases that are waiting to be made.
+     *
+     * @return the number of pending releases.
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (List<PendingRelease> list : pending.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    /**
+     * A copy of the releases that are waiting to be made.
+     *
+     * @return the pending releases.
+     */
+    public synchronized List<PendingRelease> getPending() {
+        List<PendingRelease> all = new LinkedList<PendingRelease>();
+        for (List<PendingRelease> list : pending.values()) {
+            all.addAll(list);
+        }
+        return all;
+    }
+
+    /**
+     * Adds the release to its node and makes sure the node has a batch scheduled. Must hold the lock.
+     *
+     * @param release the release.
+     */
+    private void add(PendingRelease release) {
+        List<PendingRelease> list = pending.get(release.nodeName);
+        if (list == null) {
+            list = new LinkedList<PendingRelease>();
+            pending.put(release.nodeName, list);
+        }
+        list.add(release);
+        schedule(release.nodeName);
+    }
+
+    /**
+     * Schedules a batch for the node at the time of its earliest pending release,
+     * unless one is already scheduled or running. Must hold the lock.
+     *
+     * @param nodeName the name of the node.
+     */
+    private void schedule(final String nodeName) {
+        List<PendingRelease> list = pending.get(nodeName);
+        if (list == null || list.isEmpty() || scheduled.contains(nodeName)) {
+            return;
+        }
+        ScheduledExecutorService workers = getExecutor();
+        if (workers == null) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        for (PendingRelease release : list) {
+            next = Math.min(next, release.nextAttempt);
+        }
+        scheduled.add(nodeName);
+        workers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runBatch(nodeName);
+            }
+        }, Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a write of the queue to disk, if it has been started. Must hold the lock.
+     */
+    private void persist() {
+        if (file == null || persistScheduled) {
+            return;
+        }
+        ScheduledExecutorService workers = getExecutor();
+        if (workers == null) {
+            return;
+        }
+        persistScheduled = true;
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile();
+            }
+        });
+    }
+
+    /**
+     * Writes the current queue to disk, if it has been started.
+     */
+    private void writeFile() {
+        synchronized (fileLock) {
+            XmlFile xmlFile;
+            List<PendingRelease> snapshot;
+            synchronized (this) {
+                persistScheduled = false;
+                xmlFile = file;
+                snapshot = new ArrayList<PendingRelease>(getPending());
+            }
+            if (xmlFile == null) {
+                return;
+            }
+            try {
+                xmlFile.write(snapshot);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to save the pending releases of external resources.", e);
+            }
+        }
+    }
+
+    /**
+     * Makes all due releases on the node.
+     *
+     * @param nodeName the name of the node.
+     */
+    private void runBatch(String nodeName) {
+        List<PendingRelease> due = new LinkedList<PendingRelease>();
+        try {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                List<PendingRelease> list = pending.get(nodeName);
+                if (list != null) {
+                    for (PendingRelease release : list) {
+                        if (release.nextAttempt <= now) {
+                            due.add(release);
+                        }
+                    }
+                }
+            }
+            Map<MetadataContainer<MetadataValue>, Boolean> containers =
+                    new IdentityHashMap<MetadataContainer<MetadataValue>, Boolean>();
+            List<PendingRelease> finished = new LinkedList<PendingRelease>();
+            Iterator<PendingRelease> iterator = due.iterator();
+            while (iterator.hasNext()) {
+                PendingRelease release = iterator.next();
+                if (attempt(release, containers)) {
+                    finished.add(release);
+                } else {
+                    //The host is probably down, let the rest of the batch wait for the same retry.
+                    while (iterator.hasNext()) {
+                        iterator.next().nextAttempt = release.nextAttempt;
+                    }
+                }
+            }
+            for (MetadataContainer<MetadataValue> container : containers.keySet()) {
+                try {
+                    ContainerSaver.getInstance().save(container);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to save the new release state to disk!", e);
+                }
+            }
+            synchronized (this) {
+                List<PendingRelease> list = pending.get(nodeName);
+                if (list != null) {
+                    list.removeAll(finished);
+                    if (list.isEmpty()) {
+                        pending.remove(nodeName);
+                    }
+                }
+                persist();
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to release external resources on " + nodeName, e);
+            //Don't come straight back to the same problem.
+            long retry = System.currentTimeMillis();
+            synchronized (this) {
+                for (PendingRelease release : due) {
+                    if (release.nextAttempt <= retry) {
+                        release.nextAttempt = retry + getBackoff(release.attempts);
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                scheduled.remove(nodeName);
+                schedule(nodeName);
+            }
+        }
+    }
+
+    /**
+     * Makes one attempt to release.
+     *
+     * @param release    the release.
+     * @param containers where to put the container of a released resource so it can be saved.
+     * @return true if the release is finished, either successfully, because it isn't needed any more or because it
+     *         has been given up on. false if it should be retried.
+     */
+    private boolean attempt(PendingRelease release, Map<MetadataContainer<MetadataValue>, Boolean> containers) {
+        Node node = release.getNode();
+        if (node == null) {
+            logger.log(Level.WARNING, "The node [{0}] no longer exists, skipping release of [{1}].",
+                    new String[]{release.nodeName, release.resourceId});
+            return true;
+        }
+        ExternalResource resource = release.getResource(node);
+        if (resource == null) {
+            logger.log(Level.WARNING, "The external resource [{0}] is no longer attached to the node [{1}]."
+                    + " Skipping release.", new String[]{release.resourceId, release.nodeName});
+            return true;
+        }
+        StashInfo lockInfo = resource.getLocked();
+        if ((lockInfo == null && !release.restored) || (lockInfo != null && !sameKey(release.key, lockInfo.getKey()))) {
+            logger.log(Level.FINE, "The external resource [{0}] is no longer locked by [{1}].",
+                    new String[]{release.resourceId, release.releasedBy});
+            return true;
+        }
+        release.attempts++;
+        StashResult result = null;
+        Exception error = null;
+        try {
+            result = getManager().release(node, resource, release.key, release.releasedBy);
+        } catch (Exception e) {
+            error = e;
+        }
+        if (result != null && result.isOk()) {
+            logger.log(Level.FINE, "Resource [{0}] released by [{1}] after {2} attempt(s).",
+                    new Object[]{release.resourceId, release.releasedBy, release.attempts});
+            MetadataContainer<MetadataValue> container = resource.getMetadataContainer();
+            if (container != null) {
+                containers.put(container, Boolean.TRUE);
+            }
+            return true;
+        }
+        String reason = describe(result, error);
+        if (release.attempts >= maxAttempts) {
+            logger.log(Level.SEVERE, "Giving up releasing resource [{0}] on [{1}] for [{2}] after {3} attempts: {4}",
+                    new Object[]{release.resourceId, release.nodeName, release.releasedBy, release.attempts, reason});
+            notifyGiveUp(node, resource, release, reason);
+            return true;
+        }
+        long backoff = getBackoff(release.attempts);
+        release.nextAttempt = System.currentTimeMillis() + backoff;
+        logger.log(Level.WARNING, "Failed to release resource [{0}] on [{1}] for [{2}], retrying in {3} ms: {4}",
+                new Object[]{release.resourceId, release.nodeName, release.releasedBy, backoff, reason});
+        return false;
+    }
+
+    /**
+     * Compares two keys, either of which can be null.
+     *
+     * @param key   one key.
+     * @param other the other key.
+     * @return true if they are the same.
+     */
+    private static boolean sameKey(String key, String other) {
+        if (key == null) {
+            return other == null;
+        }
+        return key.equals(other);
+    }
+
+    /**
+     * Milliseconds to wait after the given number of failed attempts.
+     *
+     * @param attempts the number of failed attempts.
+     * @return the backoff.
+     */
+    long getBackoff(int attempts) {
+        long backoff = initialBackoff;
+        for (int i = 1; i < attempts && backoff < MAX_BACKOFF; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, MAX_BACKOFF);
+    }
+
+    /**
+     * Describes a failed release.
+     *
+     * @param result the result from the manager, if any.
+     * @param error  the exception thrown by the manager, if any.
+     * @return the description.
+     */
+    private static String describe(StashResult result, Exception error) {
+        if (error != null) {
+            return error.toString();
+        } else if (result != null) {
+            return "Status: " + result.getStatus() + ", Code: " + result.getErrorCode()
+                    + ", Message: " + result.getMessage();
+        } else {
+            return "No Result!";
+        }
+    }
+
+    /**
+     * Tells the admins that a resource is probably still locked on the monitor side.
+     *
+     * @param node     the node.
+     * @param resource the resource.
+     * @param release  the release that was given up on.
+     * @param reason   why the last attempt failed.
+     */
+    private void notifyGiveUp(Node node, ExternalResource resource, PendingRelease release, String reason) {
+        try {
+            AdminNotifier.getInstance().notify(AdminNotifier.MessageType.ERROR, AdminNotifier.OperationType.RELEASE,
+                    node, resource, "Failed to release external resource from " + release.releasedBy + " after "
+                    + release.attempts + " attempts. " + reason);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not notify the admins.", e);
+        }
+    }
+
+    /**
+     * The manager to release with.
+     *
+     * @return the manager.
+     */
+    private ExternalResourceManager getManager() {
+        if (manager != null) {
+            return manager;
+        }
+        return PluginImpl.getInstance().getManager();
+    }
+
+    /**
+     * A release waiting to be made. Serialized to the queue file.
+     */
+    public static final class PendingRelease {
+        private final String nodeName;
+        private final String resourceId;
+        private final String key;
+        private final String releasedBy;
+        private volatile int attempts;
+        private volatile long nextAttempt;
+        /**
+         * If the release was loaded from disk, when the lock state of the resource is no longer known.
+         */
+        private transient volatile boolean restored;
+        private transient Node node;
+        private transient ExternalResource resource;
+
+        /**
+         * Standard constructor.
+         *
+         * @param node       the node holding the resource.
+         * @param resource   the resource to release.
+         * @param key        the key that the resource was locked with.
+         * @param releasedBy a String describing what released the resource.
+         */
+        private PendingRelease(Node node, ExternalResource resource, String key, String releasedBy) {
+            this.node = node;
+            this.nodeName = node.getNodeName();
+            this.resource = resource;
+            this.resourceId = resource.getId();
+            this.key = key;
+            this.releasedBy = releasedBy;
+            this.nextAttempt = System.currentTimeMillis();
+        }
+
+        /**
+         * The node holding the resource, looked up by name after a restart.
+         *
+         * @return the node or null if it doesn't exist any more.
+         */
+        private Node getNode() {
+            if (node == null) {
+                Hudson hudson = Hudson.getInstance();
+                if (nodeName == null || nodeName.isEmpty()) {
+                    node = hudson;
+                } else {
+                    node = hudson.getNode(nodeName);
+                }
+            }
+            return node;
+        }
+
+        /**
+         * The resource to release, looked up by id after a restart.
+         *
+         * @param theNode the node holding the resource.
+         * @return the resource or null if it isn't attached to the node any more.
+         */
+        private ExternalResource getResource(Node theNode) {
+            if (resource == null || resource.getMetadataContainer() == null) {
+                resource = AvailabilityFilter.getInstance().getExternalResourceById(theNode, resourceId);
+            }
+            return resource;
+        }
+
+        /**
+         * The name of the node holding the resource.
+         *
+         * @return the node name.
+         */
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        /**
+         * The id of the resource.
+         *
+         * @return the id.
+         */
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        /**
+         * What released the resource.
+         *
+         * @return the description.
+         */
+        public String getReleasedBy() {
+            return releasedBy;
+        }
+
+        /**
+         * Number of failed attempts so far.
+         *
+         * @return the number of attempts.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * When the next attempt is made.
+         *
+         * @return the time in milliseconds.
+         */
+        public long getNextAttempt() {
+            return nextAttempt;
+        }
+    }
+}
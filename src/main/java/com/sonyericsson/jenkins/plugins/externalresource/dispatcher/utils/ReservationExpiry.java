@@ -0,0 +1,368 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Expires reservations that haven't been turned into locks in time, for managers that don't have an external service
+ * doing it for them.
+ *
+ * The timeouts are kept in a hashed timing wheel, an array of buckets where each bucket holds the timeouts that are
+ * due in the same tick. Scheduling and cancelling only puts the timeout on a queue, the buckets are handled by a
+ * single worker thread that wakes up once per tick. A timeout has a direct reference to the resource and to the
+ * reservation it should expire, so nothing has to be looked up when it fires and a reservation that has been
+ * replaced in the meantime is left alone. When the resource instance itself is replaced, because the metadata of the
+ * node was replaced, the timeout is moved to the new instance, see {@link #replaced(ExternalResource,
+ * ExternalResource)}. The resources that expire in the same tick are saved once per node.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class ReservationExpiry {
+
+    private static final Logger logger = Logger.getLogger(ReservationExpiry.class.getName());
+
+    /**
+     * Milliseconds per tick.
+     */
+    static final long TICK_MILLIS = 100;
+
+    /**
+     * Number of buckets in the wheel, a power of two. One turn of the wheel is a bit over 51 seconds,
+     * timeouts further away than that wait for more turns.
+     */
+    static final int WHEEL_SIZE = 512;
+
+    /**
+     * The most timeouts moved from the queue into the wheel per tick, so a burst doesn't delay the expiry.
+     */
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    /**
+     * Number of milliseconds that {@link #stop()} waits for the worker thread.
+     */
+    private static final long STOP_TIMEOUT = 10000;
+
+    private static ReservationExpiry ourInstance = new ReservationExpiry();
+
+    private final Set<Timeout>[] wheel;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final Map<ExternalResource, Timeout> pending =
+            Collections.synchronizedMap(new IdentityHashMap<ExternalResource, Timeout>());
+    private Thread worker;
+    private long startTime;
+    private long tick;
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static ReservationExpiry getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor.
+     */
+    @SuppressWarnings("unchecked")
+    private ReservationExpiry() {
+        wheel = new Set[WHEEL_SIZE];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new HashSet<Timeout>();
+        }
+    }
+
+    /**
+     * Schedules the reservation of the resource to expire. Any earlier timeout for the resource is cancelled.
+     *
+     * @param resource    the resource.
+     * @param reservation the reservation to expire, if the resource has another reservation by then nothing happens.
+     * @param delayMillis milliseconds from now.
+     */
+    public void schedule(ExternalResource resource, StashInfo reservation, long delayMillis) {
+        if (resource == null || reservation == null) {
+            return;
+        }
+        Timeout timeout = new Timeout(resource, reservation, System.currentTimeMillis() + delayMillis);
+        Timeout old = pending.put(resource, timeout);
+        if (old != null) {
+            old.cancel();
+        }
+        added.add(timeout);
+        ensureStarted();
+    }
+
+    /**
+     * Cancels the timeout of the resource, if there is one. Called when the resource is locked or released.
+     *
+     * @param resource the resource.
+     */
+    public void cancel(ExternalResource resource) {
+        Timeout timeout = pending.remove(resource);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Moves the timeout of a resource to the instance that replaces it, when the metadata of a node is replaced. The
+     * timeout keeps its deadline, as long as the replacement has taken over the same reservation.
+     *
+     * @param old         the resource that is replaced.
+     * @param replacement the resource that replaces it.
+     * @see ExternalResource#replacementOf(com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue)
+     */
+    public void replaced(ExternalResource old, ExternalResource replacement) {
+        Timeout timeout = pending.remove(old);
+        if (timeout == null) {
+            return;
+        }
+        timeout.cancel();
+        if (replacement.getReserved() == timeout.reservation) {
+            schedule(replacement, timeout.reservation, Math.max(0, timeout.deadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * The number of timeouts that are waiting.
+     *
+     * @return the number of pending timeouts.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the worker thread. The timeouts are kept, they are put back in the wheel when something is scheduled
+     * after this.
+     */
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            current = worker;
+            worker = null;
+        }
+        if (current != null) {
+            current.interrupt();
+            try {
+                current.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Starts the worker thread if it isn't running.
+     */
+    private synchronized void ensureStarted() {
+        if (worker == null) {
+            //The timeouts left in the wheel by a stopped worker are placed again from the new start time.
+            for (Set<Timeout> bucket : wheel) {
+                added.addAll(bucket);
+                bucket.clear();
+            }
+            tick = 0;
+            startTime = System.currentTimeMillis();
+            worker = new DaemonThreadFactory().newThread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+            worker.setName("External Resource Reservation Expiry");
+            worker.start();
+        }
+    }
+
+    /**
+     * The worker loop.
+     */
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long deadline = startTime + (tick + 1) * TICK_MILLIS;
+            long sleep = deadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            try {
+                removeCancelled();
+                transferAdded();
+                expire(wheel[(int)(tick & (WHEEL_SIZE - 1))], deadline);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Failed to expire reservations.", e);
+            }
+            tick++;
+        }
+        logger.log(Level.FINE, "Reservation expiry stopped.");
+        synchronized (this) {
+            if (worker == Thread.currentThread()) {
+                worker = null;
+            }
+        }
+    }
+
+    /**
+     * Removes the cancelled timeouts from their buckets.
+     */
+    private void removeCancelled() {
+        Timeout timeout = cancelled.poll();
+        while (timeout != null) {
+            if (timeout.bucket >= 0) {
+                wheel[timeout.bucket].remove(timeout);
+            }
+            timeout = cancelled.poll();
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into their buckets.
+     */
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.cancelled) {
+                continue;
+            }
+            long due = (timeout.deadline - startTime) / TICK_MILLIS;
+            timeout.remainingRounds = (due - tick) / WHEEL_SIZE;
+            long ticks = Math.max(due, tick);
+            timeout.bucket = (int)(ticks & (WHEEL_SIZE - 1));
+            wheel[timeout.bucket].add(timeout);
+        }
+    }
+
+    /**
+     * Expires the timeouts in the bucket that are due and saves the affected nodes.
+     *
+     * @param bucket   the bucket of the current tick.
+     * @param deadline the time of the current tick.
+     */
+    private void expire(Set<Timeout> bucket, long deadline) {
+        if (bucket.isEmpty()) {
+            return;
+        }
+        List<Timeout> due = new ArrayList<Timeout>();
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                iterator.remove();
+                if (timeout.deadline <= deadline) {
+                    due.add(timeout);
+                } else {
+                    //Too early, can happen when the clock is adjusted. Try again on the next turn.
+                    added.add(timeout);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+        Map<MetadataContainer<MetadataValue>, Boolean> containers =
+                new IdentityHashMap<MetadataContainer<MetadataValue>, Boolean>();
+        for (Timeout timeout : due) {
+            synchronized (pending) {
+                if (pending.get(timeout.resource) == timeout) {
+                    pending.remove(timeout.resource);
+                }
+            }
+            if (timeout.resource.expireReservation(timeout.reservation)) {
+                logger.log(Level.FINE, "Reservation of {0} expired.", timeout.resource.getId());
+                MetadataContainer<MetadataValue> container = timeout.resource.getMetadataContainer();
+                if (container != null) {
+                    containers.put(container, Boolean.TRUE);
+                }
+            }
+        }
+        for (MetadataContainer<MetadataValue> container : containers.keySet()) {
+            try {
+                ContainerSaver.getInstance().save(container);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to save the new reservation state to disk!", e);
+            }
+        }
+    }
+
+    /**
+     * A scheduled expiry of one reservation.
+     */
+    private final class Timeout {
+        private final ExternalResource resource;
+        private final StashInfo reservation;
+        private final long deadline;
+        private volatile boolean cancelled;
+        private long remainingRounds;
+        private int bucket = -1;
+
+        /**
+         * Standard constructor.
+         *
+         * @param resource    the resource.
+         * @param reservation the reservation to expire.
+         * @param deadline    when it expires.
+         */
+        private Timeout(ExternalResource resource, StashInfo reservation, long deadline) {
+            this.resource = resource;
+            this.reservation = reservation;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Marks the timeout as cancelled and lets the worker take it out of the wheel.
+         */
+        private void cancel() {
+            cancelled = true;
+            ReservationExpiry.this.cancelled.add(this);
+        }
+    }
+}
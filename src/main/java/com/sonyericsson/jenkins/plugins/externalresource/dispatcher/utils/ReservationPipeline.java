@@ -0,0 +1,336 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Performs reservations in the background on behalf of the
+ * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.ExternalResourceQueueTaskDispatcher},
+ * so that a slow {@link ExternalResourceManager} doesn't stall the Queue while it holds its lock.
+ *
+ * The dispatcher submits a {@link Ticket} for a queue item and blocks the item as pending. The reservation is made
+ * by a worker thread and the dispatcher picks up the finished ticket the next time it is asked about the item.
+ * There is at most one ticket per queue item.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class ReservationPipeline {
+
+    private static final Logger logger = Logger.getLogger(ReservationPipeline.class.getName());
+
+    /**
+     * Number of worker threads.
+     */
+    private static final int WORKER_THREADS = 4;
+
+    /**
+     * Finished tickets that haven't been picked up for this many milliseconds are thrown away,
+     * the item has most likely left the queue.
+     */
+    private static final long MAX_TICKET_AGE = 5 * 60 * 1000;
+
+    /**
+     * Number of milliseconds that {@link #stop()} waits for the running reservations.
+     */
+    private static final long STOP_TIMEOUT = 10000;
+
+    private static ReservationPipeline ourInstance = new ReservationPipeline();
+
+    private final Map<Integer, Ticket> tickets = new ConcurrentHashMap<Integer, Ticket>();
+    /**
+     * The workers, guarded by this. Started when needed.
+     */
+    private ExecutorService executor;
+    /**
+     * If {@link #stop()} is waiting for the workers, guarded by this.
+     */
+    private boolean stopping;
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static ReservationPipeline getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor.
+     */
+    private ReservationPipeline() {
+    }
+
+    /**
+     * The current ticket for the queue item.
+     *
+     * @param itemId the id of the queue item.
+     * @return the ticket or null if there is none.
+     */
+    public Ticket getTicket(int itemId) {
+        return tickets.get(itemId);
+    }
+
+    /**
+     * Removes the ticket for the queue item.
+     *
+     * @param itemId the id of the queue item.
+     * @return the removed ticket or null if there was none.
+     */
+    public Ticket remove(int itemId) {
+        return tickets.remove(itemId);
+    }
+
+    /**
+     * Submits a reservation to be made in the background. The resources are tried in order until one is reserved.
+     * If there already is a ticket for the item, that ticket is returned instead.
+     *
+     * @param itemId      the id of the queue item.
+     * @param node        the node the resources are attached to.
+     * @param candidates  the resources to try.
+     * @param manager     the manager to reserve with.
+     * @param reserveTime the number of seconds to reserve.
+     * @param reservedBy  the url of who is reserving.
+     * @return the ticket.
+     */
+    public synchronized Ticket submit(int itemId, Node node, List<ExternalResource> candidates,
+                                      ExternalResourceManager manager, int reserveTime, String reservedBy) {
+        Ticket ticket = tickets.get(itemId);
+        if (ticket != null) {
+            return ticket;
+        }
+        purge();
+        ticket = new Ticket(itemId, node, new ArrayList<ExternalResource>(candidates), manager, reserveTime,
+                reservedBy);
+        tickets.put(itemId, ticket);
+        ExecutorService workers = getExecutor();
+        if (workers == null) {
+            //Being stopped, reserve in the calling thread instead.
+            ticket.run();
+        } else {
+            workers.execute(ticket);
+        }
+        return ticket;
+    }
+
+    /**
+     * Stops the background workers and waits for the reservations that are already running. Reservations submitted
+     * while waiting are made by the caller of {@link #submit(int, hudson.model.Node, java.util.List,
+     * ExternalResourceManager, int, String)}, reservations submitted after this start new workers.
+     */
+    public void stop() {
+        ExecutorService current;
+        synchronized (this) {
+            stopping = true;
+            current = executor;
+            executor = null;
+        }
+        try {
+            if (current != null) {
+                current.shutdown();
+                if (!current.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    logger.log(Level.WARNING, "Timed out waiting for the reservations of external resources.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                stopping = false;
+            }
+        }
+    }
+
+    /**
+     * The workers, started if needed. Must hold the lock.
+     *
+     * @return the executor, or null if the pipeline is being stopped.
+     */
+    private ExecutorService getExecutor() {
+        if (executor == null && !stopping) {
+            executor = Executors.newFixedThreadPool(WORKER_THREADS, new DaemonThreadFactory());
+        }
+        return executor;
+    }
+
+    /**
+     * Removes finished tickets that nobody has picked up in a long while.
+     */
+    private void purge() {
+        long now = System.currentTimeMillis();
+        if (now - lastPurge < MAX_TICKET_AGE) {
+            return;
+        }
+        lastPurge = now;
+        Iterator<Ticket> iterator = tickets.values().iterator();
+        while (iterator.hasNext()) {
+            Ticket ticket = iterator.next();
+            if (ticket.isDone() && now - ticket.getFinished() > MAX_TICKET_AGE) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Pokes the Queue so that a finished reservation is picked up without waiting for the next periodic
+     * maintenance.
+     */
+    private static void scheduleQueueMaintenance() {
+        Hudson hudson = Hudson.getInstance();
+        if (hudson != null && hudson.getQueue() != null) {
+            hudson.getQueue().scheduleMaintenance();
+        }
+    }
+
+    /**
+     * A reservation for one queue item on one node.
+     */
+    public static final class Ticket implements Runnable {
+        private final int itemId;
+        private final Node node;
+        private final String nodeName;
+        private final List<ExternalResource> candidates;
+        private final ExternalResourceManager manager;
+        private final int reserveTime;
+        private final String reservedBy;
+        private volatile boolean done;
+        private volatile ExternalResource reserved;
+        private volatile long finished;
+
+        /**
+         * Standard constructor.
+         *
+         * @param itemId      the id of the queue item.
+         * @param node        the node the resources are attached to.
+         * @param candidates  the resources to try.
+         * @param manager     the manager to reserve with.
+         * @param reserveTime the number of seconds to reserve.
+         * @param reservedBy  the url of who is reserving.
+         */
+        private Ticket(int itemId, Node node, List<ExternalResource> candidates, ExternalResourceManager manager,
+                       int reserveTime, String reservedBy) {
+            this.itemId = itemId;
+            this.node = node;
+            this.nodeName = node.getNodeName();
+            this.candidates = candidates;
+            this.manager = manager;
+            this.reserveTime = reserveTime;
+            this.reservedBy = reservedBy;
+        }
+
+        @Override
+        public void run() {
+            try {
+                reserved = manager.reserveAny(node, candidates, reserveTime, reservedBy);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to reserve a resource on " + nodeName + " for queue item "
+                        + itemId, e);
+            } finally {
+                finished = System.currentTimeMillis();
+                done = true;
+                try {
+                    scheduleQueueMaintenance();
+                } catch (Exception e) {
+                    logger.log(Level.FINE, "Could not schedule queue maintenance.", e);
+                }
+            }
+        }
+
+        /**
+         * The id of the queue item.
+         *
+         * @return the id.
+         */
+        public int getItemId() {
+            return itemId;
+        }
+
+        /**
+         * The name of the node that the reservation is made on.
+         *
+         * @return the node name.
+         */
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        /**
+         * Checks if the ticket is for the given node.
+         *
+         * @param other the node.
+         * @return true if so.
+         */
+        public boolean isFor(Node other) {
+            String otherName = other.getNodeName();
+            if (nodeName == null) {
+                return otherName == null || otherName.isEmpty();
+            }
+            return nodeName.equals(otherName);
+        }
+
+        /**
+         * If the worker is done with the ticket.
+         *
+         * @return true if done.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * The resource that was reserved.
+         *
+         * @return the resource or null if nothing was reserved or the ticket isn't done.
+         */
+        public ExternalResource getReserved() {
+            return reserved;
+        }
+
+        /**
+         * When the worker finished.
+         *
+         * @return the time in milliseconds, 0 if not done.
+         */
+        public long getFinished() {
+            return finished;
+        }
+    }
+}
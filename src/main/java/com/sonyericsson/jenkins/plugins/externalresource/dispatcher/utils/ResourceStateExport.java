@@ -0,0 +1,214 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.Lease;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ResourceState;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.SelectionMatcher;
+import hudson.model.Node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Streams the state of external resources as newline delimited JSON, one resource per line, without building
+ * JSON trees in memory. The lock keys are left out since they can be used to release the resources.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ResourceStateExport {
+
+    /**
+     * The generator is flushed to the stream after this many resources.
+     */
+    private static final int FLUSH_EVERY = 100;
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final String nodeName;
+    private final StateFilter state;
+    private final SelectionMatcher matcher;
+
+    /**
+     * Standard constructor.
+     *
+     * @param nodeName only export resources on the node with this name, empty for the master or null for all nodes.
+     * @param state    only export resources in this state, or null for all.
+     * @param matcher  only export resources matching this, or null for all.
+     */
+    public ResourceStateExport(String nodeName, StateFilter state, SelectionMatcher matcher) {
+        this.nodeName = nodeName;
+        this.state = state;
+        this.matcher = matcher;
+    }
+
+    /**
+     * Writes the resources on the nodes that pass the filters.
+     *
+     * @param nodes the nodes.
+     * @param out   the stream to write to, it is flushed but not closed.
+     * @return the number of written resources.
+     * @throws IOException if so.
+     */
+    public int write(Iterable<? extends Node> nodes, OutputStream out) throws IOException {
+        JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.setRootValueSeparator(null);
+        int count = 0;
+        try {
+            for (Node node : nodes) {
+                if (nodeName != null && !nodeName.equals(node.getNodeName())) {
+                    continue;
+                }
+                List<ExternalResource> resources = ExternalResourceRegistry.getInstance().getExternalResources(node);
+                if (resources == null) {
+                    continue;
+                }
+                for (ExternalResource resource : resources) {
+                    //One snapshot so that the filter and the output agree.
+                    ResourceState current = resource.getState();
+                    if (accepts(resource, current)) {
+                        write(generator, node, resource, current);
+                        count++;
+                        if (count % FLUSH_EVERY == 0) {
+                            generator.flush();
+                        }
+                    }
+                }
+            }
+        } finally {
+            generator.close();
+        }
+        return count;
+    }
+
+    /**
+     * Checks the state and selection filters.
+     *
+     * @param resource the resource.
+     * @param current  the state of the resource.
+     * @return true if the resource should be exported.
+     */
+    private boolean accepts(ExternalResource resource, ResourceState current) {
+        if (state != null && !state.accepts(current)) {
+            return false;
+        }
+        return matcher == null || matcher.matches(resource);
+    }
+
+    /**
+     * Writes one resource as a line.
+     *
+     * @param generator the generator.
+     * @param node      the node the resource is on.
+     * @param resource  the resource.
+     * @param current   the state of the resource.
+     * @throws IOException if so.
+     */
+    private void write(JsonGenerator generator, Node node, ExternalResource resource, ResourceState current)
+            throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField(Constants.JSON_ATTR_ID, resource.getId());
+        generator.writeStringField("name", resource.getName());
+        generator.writeStringField("node", node.getNodeName());
+        generator.writeBooleanField(Constants.JSON_ATTR_ENABLED, resource.isEnabled());
+        write(generator, Constants.JSON_ATTR_RESERVED, current.getReserved());
+        write(generator, Constants.JSON_ATTR_LOCKED, current.getLocked());
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+
+    /**
+     * Writes a stash info field, null if there is none.
+     *
+     * @param generator the generator.
+     * @param field     the field name.
+     * @param info      the stash info.
+     * @throws IOException if so.
+     */
+    private void write(JsonGenerator generator, String field, StashInfo info) throws IOException {
+        if (info == null) {
+            generator.writeNullField(field);
+            return;
+        }
+        generator.writeObjectFieldStart(field);
+        generator.writeStringField(Constants.JSON_ATTR_STASHED_BY, info.getStashedBy());
+        generator.writeStringField(Constants.JSON_ATTR_TYPE, info.getType().name());
+        Lease lease = info.getLease();
+        if (lease != null && lease.getServerTime() != null) {
+            generator.writeObjectFieldStart(Constants.JSON_ATTR_LEASE);
+            generator.writeObjectFieldStart(Constants.JSON_ATTR_SERVER_TIME);
+            generator.writeNumberField(Constants.JSON_ATTR_TIME_MILLIS, lease.getServerTime().getTimeInMillis());
+            generator.writeStringField(Constants.JSON_ATTR_TIME_TIME_ZONE, lease.getServerTime().getTimeZone().getID());
+            generator.writeEndObject();
+            generator.writeStringField(Constants.JSON_ATTR_SLAVE_ISO_TIME, lease.getSlaveIsoTime());
+            generator.writeEndObject();
+        } else {
+            generator.writeNullField(Constants.JSON_ATTR_LEASE);
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * The states that the export can be filtered on.
+     */
+    public static enum StateFilter {
+        /**
+         * Neither reserved nor locked.
+         */
+        FREE,
+        /**
+         * Reserved but not locked.
+         */
+        RESERVED,
+        /**
+         * Locked.
+         */
+        LOCKED;
+
+        /**
+         * Checks if the state is of this kind.
+         *
+         * @param state the state.
+         * @return true if so.
+         */
+        public boolean accepts(ResourceState state) {
+            switch (this) {
+                case FREE:
+                    return state.isAvailable();
+                case RESERVED:
+                    return state.getReserved() != null && state.getLocked() == null;
+                default:
+                    return state.getLocked() != null;
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.model.Node;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of how each resource has been used since Jenkins started, so that the
+ * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies.ResourceChoiceStrategy}
+ * can spread the builds over the resources without asking anyone. Fed by the {@link ExternalResourceManager} on every
+ * reservation, lock and release. Nothing is persisted.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class ResourceUsageHistory {
+
+    /**
+     * How much the latest outcome weighs into {@link Usage#getHealth()}.
+     */
+    private static final double HEALTH_WEIGHT = 0.2;
+
+    private static ResourceUsageHistory ourInstance = new ResourceUsageHistory();
+
+    private final Map<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static ResourceUsageHistory getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor. Package-private so that the tests can have their own history.
+     */
+    ResourceUsageHistory() {
+    }
+
+    /**
+     * Records the outcome of a reservation.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @param result   the result of the reservation.
+     */
+    public void reserved(Node node, ExternalResource resource, StashResult result) {
+        Usage usage = getOrCreate(node, resource);
+        if (result != null && result.isOk()) {
+            usage.used(System.currentTimeMillis());
+        } else {
+            outcome(usage, result);
+        }
+    }
+
+    /**
+     * Records the outcome of a lock.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @param result   the result of the lock.
+     */
+    public void locked(Node node, ExternalResource resource, StashResult result) {
+        outcome(getOrCreate(node, resource), result);
+    }
+
+    /**
+     * Records the outcome of a release.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @param result   the result of the release.
+     */
+    public void released(Node node, ExternalResource resource, StashResult result) {
+        Usage usage = getOrCreate(node, resource);
+        if (result != null && result.isOk()) {
+            usage.released(System.currentTimeMillis());
+        }
+        outcome(usage, result);
+    }
+
+    /**
+     * The usage of the resource.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @return the usage or null if nothing has happened to the resource yet.
+     */
+    public Usage getUsage(Node node, ExternalResource resource) {
+        return usages.get(key(node, resource));
+    }
+
+    /**
+     * When the resource was last reserved.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @return the time in milliseconds, 0 if never.
+     */
+    public long getLastUsed(Node node, ExternalResource resource) {
+        Usage usage = getUsage(node, resource);
+        if (usage == null) {
+            return 0;
+        }
+        return usage.getLastUsed();
+    }
+
+    /**
+     * How healthy the resource has been lately.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @return a value between 0 and 1, 1 if nothing has happened to the resource yet.
+     * @see Usage#getHealth()
+     */
+    public double getHealth(Node node, ExternalResource resource) {
+        Usage usage = getUsage(node, resource);
+        if (usage == null) {
+            return 1;
+        }
+        return usage.getHealth();
+    }
+
+    /**
+     * Forgets everything.
+     */
+    public void clear() {
+        usages.clear();
+    }
+
+    /**
+     * Counts the result towards the health of the resource. A result telling that the resource was taken by someone
+     * else is not the resource's fault and doesn't count.
+     *
+     * @param usage  the usage of the resource.
+     * @param result the result.
+     */
+    private void outcome(Usage usage, StashResult result) {
+        if (result == null) {
+            usage.outcome(false);
+        } else if (result.isOk()) {
+            usage.outcome(true);
+        } else if (result.getErrorCode() != ExternalResourceManager.ERROR_CODE_TAKEN) {
+            usage.outcome(false);
+        }
+    }
+
+    /**
+     * Gets the usage of the resource, creating it if it doesn't exist.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @return the usage.
+     */
+    private Usage getOrCreate(Node node, ExternalResource resource) {
+        String key = key(node, resource);
+        Usage usage = usages.get(key);
+        if (usage == null) {
+            synchronized (usages) {
+                usage = usages.get(key);
+                if (usage == null) {
+                    usage = new Usage();
+                    usages.put(key, usage);
+                }
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * The key of the resource in {@link #usages}.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @return the key.
+     */
+    private static String key(Node node, ExternalResource resource) {
+        return node.getNodeName() + "/" + resource.getId();
+    }
+
+    /**
+     * The usage of one resource.
+     */
+    public static final class Usage {
+        private volatile long lastUsed;
+        private volatile long lastReleased;
+        private volatile int useCount;
+        private volatile int failures;
+        private volatile double health = 1;
+
+        /**
+         * Records a successful reservation.
+         *
+         * @param when the time in milliseconds.
+         */
+        private synchronized void used(long when) {
+            lastUsed = when;
+            useCount++;
+            outcome(true);
+        }
+
+        /**
+         * Records a successful release.
+         *
+         * @param when the time in milliseconds.
+         */
+        private synchronized void released(long when) {
+            lastReleased = when;
+        }
+
+        /**
+         * Moves the health towards the outcome.
+         *
+         * @param ok if the operation went well.
+         */
+        private synchronized void outcome(boolean ok) {
+            health = health * (1 - HEALTH_WEIGHT);
+            if (ok) {
+                health += HEALTH_WEIGHT;
+            } else {
+                failures++;
+            }
+        }
+
+        /**
+         * When the resource was last reserved.
+         *
+         * @return the time in milliseconds, 0 if never.
+         */
+        public long getLastUsed() {
+            return lastUsed;
+        }
+
+        /**
+         * When the resource was last released.
+         *
+         * @return the time in milliseconds, 0 if never.
+         */
+        public long getLastReleased() {
+            return lastReleased;
+        }
+
+        /**
+         * The number of times the resource has been reserved.
+         *
+         * @return the count.
+         */
+        public int getUseCount() {
+            return useCount;
+        }
+
+        /**
+         * The number of failed operations on the resource.
+         *
+         * @return the count.
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * How well the operations on the resource have gone lately, as an exponentially weighted average where a
+         * successful operation counts as 1 and a failed one as 0.
+         *
+         * @return a value between 0 and 1.
+         */
+        public double getHealth() {
+            return health;
+        }
+    }
+}
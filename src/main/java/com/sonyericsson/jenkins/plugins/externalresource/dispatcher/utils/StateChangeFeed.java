@@ -0,0 +1,488 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer;
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ResourceState;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import hudson.model.Node;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A feed of the state transitions of all {@link ExternalResource}s for
+ * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.cli.ExternalResourceHttpCommands#doEvents}.
+ *
+ * Every transition gets a sequence number and is kept in a ring of the latest events, so that a subscriber can
+ * resume from the last sequence number it saw. The sequence numbers start over when Jenkins restarts, so they are
+ * qualified by an epoch that is different for every start. Each subscriber has a bounded queue, a subscriber that
+ * doesn't keep up is dropped instead of holding up the transitions.
+ *
+ * The transitions are published after the state of the resource has changed, so two transitions of the same resource
+ * that happen at the same time can get their sequence numbers in the other order. Therefore each event also carries
+ * the state of the resource as it was when the event got its sequence number, and the latest event of a resource
+ * always has its current state.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public final class StateChangeFeed {
+
+    /**
+     * Number of events kept for resuming subscribers.
+     */
+    static final int HISTORY_SIZE = 1024;
+
+    /**
+     * Number of events that a subscriber can be behind before it is dropped.
+     */
+    static final int SUBSCRIBER_CAPACITY = 256;
+
+    /**
+     * Maximum number of concurrent subscribers.
+     */
+    static final int MAX_SUBSCRIBERS = 32;
+
+    private static StateChangeFeed ourInstance = new StateChangeFeed();
+
+    private final long epoch = System.currentTimeMillis();
+    private final Event[] history = new Event[HISTORY_SIZE];
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private long sequence;
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static StateChangeFeed getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor.
+     */
+    StateChangeFeed() {
+    }
+
+    /**
+     * Publishes a change of the reservation or lock state.
+     *
+     * @param resource the resource.
+     * @param previous the state before.
+     * @param current  the state after.
+     * @param type     the kind of transition or null to derive it from the states.
+     */
+    public void stateChanged(ExternalResource resource, ResourceState previous, ResourceState current,
+                             Type type) {
+        if (previous == current) {
+            return;
+        }
+        Type actual = type;
+        if (actual == null) {
+            actual = Type.of(previous, current);
+        }
+        publish(actual, resource);
+    }
+
+    /**
+     * Publishes that a resource was enabled or disabled.
+     *
+     * @param resource the resource.
+     */
+    public void enabledChanged(ExternalResource resource) {
+        Type type = Type.DISABLE;
+        if (resource.isEnabled()) {
+            type = Type.ENABLE;
+        }
+        publish(type, resource);
+    }
+
+    /**
+     * Creates the event, puts it in the history and hands it to the subscribers.
+     * The state of the resource is taken together with the sequence number, so that a later event never has an older
+     * state.
+     *
+     * @param type     the kind of transition.
+     * @param resource the resource.
+     */
+    private void publish(Type type, ExternalResource resource) {
+        MetadataContainer<MetadataValue> container = resource.getMetadataContainer();
+        if (!(container instanceof MetadataNodeProperty)) {
+            //Not attached to a node, e.g. being loaded, created from JSON or the copy attached to a build.
+            return;
+        }
+        String nodeName = null;
+        Node node = ((MetadataNodeProperty)container).getNode();
+        if (node != null) {
+            nodeName = node.getNodeName();
+        }
+        synchronized (this) {
+            sequence++;
+            ResourceState state = resource.getState();
+            StashInfo info = state.getLocked();
+            if (info == null) {
+                info = state.getReserved();
+            }
+            String by = null;
+            if (info != null) {
+                by = info.getStashedBy();
+            }
+            Event event = new Event(epoch, sequence, System.currentTimeMillis(), type, nodeName, resource.getId(),
+                    State.of(state), resource.isEnabled(), by);
+            history[(int)(sequence % HISTORY_SIZE)] = event;
+            for (Subscriber subscriber : subscribers) {
+                if (!subscriber.queue.offer(event)) {
+                    subscriber.dropped = true;
+                    subscribers.remove(subscriber);
+                }
+            }
+        }
+    }
+
+    /**
+     * Subscribes to the feed from a sequence number of the current epoch.
+     *
+     * @param since the last sequence number that the subscriber has seen, events after it that are still in the
+     *              history are queued right away. Negative to only get new events.
+     * @return the subscriber or null if there are too many subscribers already.
+     * @see #subscribe(long, long)
+     */
+    public Subscriber subscribe(long since) {
+        return subscribe(epoch, since);
+    }
+
+    /**
+     * Subscribes to the feed.
+     *
+     * @param sinceEpoch the epoch of the last sequence number that the subscriber has seen. If it isn't the current
+     *                   epoch Jenkins has restarted since, and the subscriber has missed events.
+     * @param since      the last sequence number that the subscriber has seen, events after it that are still in
+     *                   the history are queued right away. Negative to only get new events.
+     * @return the subscriber or null if there are too many subscribers already.
+     */
+    public synchronized Subscriber subscribe(long sinceEpoch, long since) {
+        if (subscribers.size() >= MAX_SUBSCRIBERS) {
+            return null;
+        }
+        Subscriber subscriber = new Subscriber();
+        if (since >= 0 && (sinceEpoch != epoch || since > sequence)) {
+            //From before a restart.
+            subscriber.missed = true;
+        } else if (since >= 0 && since < sequence) {
+            long first = Math.max(since + 1, sequence - HISTORY_SIZE + 1);
+            //Keep room for what happens while the backlog is sent.
+            first = Math.max(first, sequence - SUBSCRIBER_CAPACITY / 2 + 1);
+            subscriber.missed = first > since + 1;
+            for (long seq = first; seq <= sequence; seq++) {
+                subscriber.queue.offer(history[(int)(seq % HISTORY_SIZE)]);
+            }
+        }
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * Stops a subscription.
+     *
+     * @param subscriber the subscriber.
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * The sequence number of the latest event.
+     *
+     * @return the sequence number, 0 if nothing has happened yet.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The epoch of the sequence numbers, different for every start of Jenkins.
+     *
+     * @return the epoch.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * The number of subscribers.
+     *
+     * @return the count.
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * The kinds of transitions.
+     */
+    public static enum Type {
+        /**
+         * The resource was reserved.
+         */
+        RESERVE,
+        /**
+         * The resource was locked.
+         */
+        LOCK,
+        /**
+         * The reservation and/or lock was removed.
+         */
+        RELEASE,
+        /**
+         * The reservation ran out.
+         */
+        EXPIRE,
+        /**
+         * The resource was enabled.
+         */
+        ENABLE,
+        /**
+         * The resource was disabled.
+         */
+        DISABLE;
+
+        /**
+         * Derives the kind of transition from the states.
+         *
+         * @param previous the state before.
+         * @param current  the state after.
+         * @return the kind.
+         */
+        static Type of(ResourceState previous, ResourceState current) {
+            if (current.getLocked() != null && current.getLocked() != previous.getLocked()) {
+                return LOCK;
+            }
+            if (current.getReserved() != null && current.getReserved() != previous.getReserved()) {
+                return RESERVE;
+            }
+            return RELEASE;
+        }
+    }
+
+    /**
+     * The state of a resource as told by an event.
+     */
+    public static enum State {
+        /**
+         * Neither reserved nor locked.
+         */
+        FREE,
+        /**
+         * Reserved but not locked.
+         */
+        RESERVED,
+        /**
+         * Locked.
+         */
+        LOCKED;
+
+        /**
+         * The state told for a state of a resource.
+         *
+         * @param state the state of the resource.
+         * @return the state told.
+         */
+        static State of(ResourceState state) {
+            if (state.getLocked() != null) {
+                return LOCKED;
+            }
+            if (state.getReserved() != null) {
+                return RESERVED;
+            }
+            return FREE;
+        }
+    }
+
+    /**
+     * A subscription to the feed.
+     */
+    public static final class Subscriber {
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(SUBSCRIBER_CAPACITY);
+        private volatile boolean dropped;
+        private boolean missed;
+
+        /**
+         * Waits for the next event.
+         *
+         * @param timeout how long to wait.
+         * @param unit    the unit of the timeout.
+         * @return the event or null if nothing happened.
+         * @throws InterruptedException if so.
+         */
+        public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return queue.poll(timeout, unit);
+        }
+
+        /**
+         * Takes the events that are already queued.
+         *
+         * @return the events, possibly empty.
+         */
+        public List<Event> drain() {
+            List<Event> events = new ArrayList<Event>();
+            queue.drainTo(events);
+            return events;
+        }
+
+        /**
+         * If the subscriber fell too far behind and was dropped from the feed.
+         * The queued events can still be taken.
+         *
+         * @return true if so.
+         */
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        /**
+         * If some events between the requested sequence number and the first queued event are no longer in the
+         * history.
+         *
+         * @return true if so.
+         */
+        public boolean hasMissed() {
+            return missed;
+        }
+    }
+
+    /**
+     * A state transition.
+     */
+    public static final class Event {
+        private final long epoch;
+        private final long sequence;
+        private final long time;
+        private final Type type;
+        private final String nodeName;
+        private final String resourceId;
+        private final State state;
+        private final boolean enabled;
+        private final String by;
+
+        /**
+         * Standard constructor.
+         *
+         * @param epoch      the epoch of the sequence number.
+         * @param sequence   the sequence number.
+         * @param time       when it happened.
+         * @param type       the kind of transition.
+         * @param nodeName   the node the resource is on.
+         * @param resourceId the id of the resource.
+         * @param state      the state of the resource when the event got its sequence number.
+         * @param enabled    if the resource is enabled.
+         * @param by         who reserved or locked it.
+         */
+        Event(long epoch, long sequence, long time, Type type, String nodeName, String resourceId, State state,
+              boolean enabled, String by) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.time = time;
+            this.type = type;
+            this.nodeName = nodeName;
+            this.resourceId = resourceId;
+            this.state = state;
+            this.enabled = enabled;
+            this.by = by;
+        }
+
+        /**
+         * The sequence number.
+         *
+         * @return the sequence number.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * The id of the event, the epoch and the sequence number.
+         *
+         * @return the id.
+         */
+        public String getId() {
+            return epoch + "-" + sequence;
+        }
+
+        /**
+         * The kind of transition.
+         *
+         * @return the type.
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * The id of the resource.
+         *
+         * @return the id.
+         */
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        /**
+         * The state of the resource when the event got its sequence number.
+         *
+         * @return the state.
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * The event as JSON.
+         *
+         * @return the JSON.
+         */
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("epoch", epoch);
+            json.put("seq", sequence);
+            json.put("time", time);
+            json.put("type", type.name().toLowerCase(Locale.ENGLISH));
+            json.put("node", nodeName);
+            json.put("id", resourceId);
+            json.put("state", state.name().toLowerCase(Locale.ENGLISH));
+            json.put("enabled", enabled);
+            json.put("by", by);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
+import hudson.Extension;
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Shuffles the resources so that the chance of a resource coming first is in proportion to its health in the
+ * {@link ResourceUsageHistory}. Resources that keep failing are still tried now and then, so that they can get
+ * healthy again.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@Extension
+public class HealthWeightedChoiceStrategy extends ResourceChoiceStrategy {
+
+    /**
+     * The lowest weight a resource can get, however bad its health is.
+     */
+    static final double MIN_WEIGHT = 0.01;
+
+    private final Random random;
+
+    /**
+     * Default constructor.
+     */
+    public HealthWeightedChoiceStrategy() {
+        this(new Random());
+    }
+
+    /**
+     * Constructor with a given source of randomness, for the tests.
+     *
+     * @param random the random.
+     */
+    HealthWeightedChoiceStrategy(Random random) {
+        this.random = random;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.HealthWeightedChoiceStrategy_DisplayName();
+    }
+
+    @Override
+    public List<ExternalResource> order(Node node, List<ExternalResource> resources, ResourceUsageHistory history) {
+        //Weighted random sampling without replacement, sort by random^(1/weight) with the largest first.
+        final Map<ExternalResource, Double> keys = new IdentityHashMap<ExternalResource, Double>();
+        for (ExternalResource resource : resources) {
+            double weight = Math.max(history.getHealth(node, resource), MIN_WEIGHT);
+            keys.put(resource, Math.pow(random.nextDouble(), 1 / weight));
+        }
+        List<ExternalResource> ordered = new ArrayList<ExternalResource>(resources);
+        Collections.sort(ordered, new Comparator<ExternalResource>() {
+            @Override
+            public int compare(ExternalResource o1, ExternalResource o2) {
+                return keys.get(o2).compareTo(keys.get(o1));
+            }
+        });
+        return ordered;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
+import hudson.Extension;
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tries the resource that was reserved the longest time ago first. Resources that have never been reserved come
+ * first, in tree order.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@Extension
+public class LeastRecentlyUsedChoiceStrategy extends ResourceChoiceStrategy {
+
+    @Override
+    public String getDisplayName() {
+        return Messages.LeastRecentlyUsedChoiceStrategy_DisplayName();
+    }
+
+    @Override
+    public List<ExternalResource> order(final Node node, List<ExternalResource> resources,
+                                        final ResourceUsageHistory history) {
+        List<ExternalResource> ordered = new ArrayList<ExternalResource>(resources);
+        //Collections.sort is stable, so the tree order is kept between equals.
+        Collections.sort(ordered, new Comparator<ExternalResource>() {
+            @Override
+            public int compare(ExternalResource o1, ExternalResource o2) {
+                long lastUsed1 = history.getLastUsed(node, o1);
+                long lastUsed2 = history.getLastUsed(node, o2);
+                if (lastUsed1 < lastUsed2) {
+                    return -1;
+                } else if (lastUsed1 > lastUsed2) {
+                    return 1;
+                }
+                return 0;
+            }
+        });
+        return ordered;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
+import hudson.Extension;
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks two of the remaining resources at random and puts the one that was reserved the longest time ago next,
+ * until all are placed. Spreads the builds almost as evenly as least recently used, without everyone going for the
+ * very same resource when the history is the same.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@Extension
+public class PowerOfTwoChoicesStrategy extends ResourceChoiceStrategy {
+
+    private final Random random;
+
+    /**
+     * Default constructor.
+     */
+    public PowerOfTwoChoicesStrategy() {
+        this(new Random());
+    }
+
+    /**
+     * Constructor with a given source of randomness, for the tests.
+     *
+     * @param random the random.
+     */
+    PowerOfTwoChoicesStrategy(Random random) {
+        this.random = random;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.PowerOfTwoChoicesStrategy_DisplayName();
+    }
+
+    @Override
+    public List<ExternalResource> order(Node node, List<ExternalResource> resources, ResourceUsageHistory history) {
+        List<ExternalResource> remaining = new ArrayList<ExternalResource>(resources);
+        List<ExternalResource> ordered = new ArrayList<ExternalResource>(resources.size());
+        while (remaining.size() > 1) {
+            int first = random.nextInt(remaining.size());
+            int second = random.nextInt(remaining.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            int chosen = first;
+            if (history.getLastUsed(node, remaining.get(second)) < history.getLastUsed(node, remaining.get(first))) {
+                chosen = second;
+            }
+            ordered.add(remaining.remove(chosen));
+        }
+        ordered.addAll(remaining);
+        return ordered;
+    }
+}
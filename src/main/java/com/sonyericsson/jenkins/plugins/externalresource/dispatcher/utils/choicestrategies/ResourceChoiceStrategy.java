@@ -0,0 +1,61 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
+import hudson.ExtensionPoint;
+import hudson.model.Node;
+
+import java.util.List;
+
+/**
+ * Decides in what order the {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher
+ * .ExternalResourceQueueTaskDispatcher} tries to reserve the matching resources on a node. The manager reserves the
+ * first one in the list that it can, so the order decides which resources get worn out. Implementations must be quick
+ * and must not do any remote calls, they are consulted while the Queue is locked. Everything they need to know about
+ * earlier use is in the {@link ResourceUsageHistory}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public abstract class ResourceChoiceStrategy implements ExtensionPoint {
+
+    /**
+     * The name of the strategy to show the admin.
+     *
+     * @return the name.
+     */
+    public abstract String getDisplayName();
+
+    /**
+     * Orders the resources in the order they should be tried.
+     *
+     * @param node      the node the resources are attached to.
+     * @param resources the matching resources in tree order, must not be modified.
+     * @param history   the usage of the resources so far.
+     * @return the resources in the order they should be tried.
+     */
+    public abstract List<ExternalResource> order(Node node, List<ExternalResource> resources,
+                                                 ResourceUsageHistory history);
+}
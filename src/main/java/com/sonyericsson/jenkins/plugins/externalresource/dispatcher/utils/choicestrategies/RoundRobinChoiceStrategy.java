@@ -0,0 +1,86 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
+import hudson.Extension;
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts one step further down the list of matching resources each time it is asked about a node, and wraps around
+ * at the end.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@Extension
+public class RoundRobinChoiceStrategy extends ResourceChoiceStrategy {
+
+    private final Map<String, AtomicInteger> positions = new ConcurrentHashMap<String, AtomicInteger>();
+
+    @Override
+    public String getDisplayName() {
+        return Messages.RoundRobinChoiceStrategy_DisplayName();
+    }
+
+    @Override
+    public List<ExternalResource> order(Node node, List<ExternalResource> resources, ResourceUsageHistory history) {
+        if (resources.size() < 2) {
+            return resources;
+        }
+        int start = (getPosition(node).getAndIncrement() & Integer.MAX_VALUE) % resources.size();
+        List<ExternalResource> ordered = new ArrayList<ExternalResource>(resources.size());
+        ordered.addAll(resources.subList(start, resources.size()));
+        ordered.addAll(resources.subList(0, start));
+        return ordered;
+    }
+
+    /**
+     * The position counter of the node.
+     *
+     * @param node the node.
+     * @return the counter.
+     */
+    private AtomicInteger getPosition(Node node) {
+        String name = node.getNodeName();
+        AtomicInteger position = positions.get(name);
+        if (position == null) {
+            synchronized (positions) {
+                position = positions.get(name);
+                if (position == null) {
+                    position = new AtomicInteger();
+                    positions.put(name, position);
+                }
+            }
+        }
+        return position;
+    }
+}
@@ -28,9 +28,18 @@ import com.sonyericsson.hudson.plugins.metadata.model.values.AbstractMetadataVal
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.DispatcherMetrics;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.EventJournal;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReservationExpiry;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
 import hudson.ExtensionPoint;
 import hudson.model.Node;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * Manager for handling reservation of resources by external services. The Method Template pattern is used to allow for
  * sub-classes providing their own reservation functionality. For example the external resources on a slave might be 
@@ -41,6 +50,19 @@ import hudson.model.Node;
  */
 public abstract class ExternalResourceManager implements ExtensionPoint {
 
+    /**
+     * Error code of the result when the external service accepted a reservation or lock but the resource was taken
+     * by someone else in Jenkins in the meantime.
+     */
+    public static final int ERROR_CODE_TAKEN = -1;
+
+    /**
+     * Error code of the result when the external service isn't called because it is considered to be down.
+     */
+    public static final int ERROR_CODE_UNAVAILABLE = -2;
+
+    private static final Logger logger = Logger.getLogger(ExternalResourceManager.class.getName());
+
     /**
      * The name of the manager to show the admin.
      *
@@ -62,16 +84,99 @@ public abstract class ExternalResourceManager implements ExtensionPoint {
      * @return the result.
      */
     public StashResult reserve(Node node, ExternalResource resource, int seconds, String reservedBy){
+      long start = System.nanoTime();
       StashResult result = doReserve(node, resource, seconds, reservedBy);
+      DispatcherMetrics.getInstance().operation(EventJournal.Operation.RESERVE, node, System.nanoTime() - start);
 
       if (result != null && result.isOk()) {
-        resource.setReserved(new StashInfo(result, reservedBy));
+        if (!resource.tryReserve(new StashInfo(result, reservedBy))) {
+          result = taken(node, resource, result.getKey(), reservedBy);
+        }
       }
 
+      ResourceUsageHistory.getInstance().reserved(node, resource, result);
+      EventJournal.getInstance().record(EventJournal.Operation.RESERVE, node, resource, reservedBy, result,
+              System.nanoTime() - start);
       return result;
     }
 
 
+    /**
+     * Gives back what the external service just handed out when the resource turned out to be taken in Jenkins.
+     *
+     * @param node     the node holding the resource.
+     * @param resource the resource.
+     * @param key      the key that the service handed out.
+     * @param by       a String describing who tried to take the resource.
+     * @return an error result.
+     */
+    private StashResult taken(Node node, ExternalResource resource, String key, String by) {
+        logger.log(Level.FINE, "{0} was taken by someone else, releasing it again.", resource.getId());
+        StashResult release = doRelease(node, resource, key, by);
+        if (release == null || !release.isOk()) {
+            logger.log(Level.WARNING, "Could not give back {0} on {1}, it will be free when the lease expires.",
+                    new Object[]{resource.getId(), node.getNodeName()});
+        }
+        return new StashResult(ERROR_CODE_TAKEN, "The resource is already reserved or locked.");
+    }
+
+    /**
+     * Reserve any one of the resources on the node. The default implementation tries to
+     * {@link #reserve(hudson.model.Node, ExternalResource, int, String) reserve} them one at a time in the given order
+     * until one succeeds. Sub-classes that talk to a service that can do it in one call should override this method,
+     * and make sure that the reserved resource gets its
+     * {@link ExternalResource#setReserved(StashInfo)} set just like reserve does.
+     *
+     * @param node       the node to communicate with.
+     * @param resources  the resources to choose from, in order of preference.
+     * @param seconds    the number of seconds the lease should be.
+     * @param reservedBy a String describing what reserved the resource.
+     * @return the resource that got reserved, or null if none of them could be.
+     */
+    public ExternalResource reserveAny(Node node, List<ExternalResource> resources, int seconds, String reservedBy) {
+        for (ExternalResource resource : resources) {
+            StashResult result = reserve(node, resource, seconds, reservedBy);
+            if (result != null && result.isOk()) {
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reserves all of the resources on the node, or none of them. The resources are reserved one at a time and if one
+     * of them can't be, the ones already reserved are released again.
+     *
+     * @param node       the node to communicate with.
+     * @param resources  the resources to reserve.
+     * @param seconds    the number of seconds the lease should be.
+     * @param reservedBy a String describing what reserved the resources.
+     * @return true if all of them got reserved.
+     */
+    public boolean reserveAll(Node node, List<ExternalResource> resources, int seconds, String reservedBy) {
+        List<ExternalResource> reserved = new ArrayList<ExternalResource>(resources.size());
+        List<String> keys = new ArrayList<String>(resources.size());
+        for (ExternalResource resource : resources) {
+            StashResult result = reserve(node, resource, seconds, reservedBy);
+            if (result == null || !result.isOk()) {
+                logger.log(Level.FINE, "Could not reserve {0} on {1}, rolling back {2} reservations.",
+                        new Object[]{resource.getId(), node.getNodeName(), reserved.size()});
+                for (int i = 0; i < reserved.size(); i++) {
+                    StashResult release = release(node, reserved.get(i), keys.get(i), reservedBy);
+                    if (release == null || !release.isOk()) {
+                        logger.log(Level.WARNING, "Could not roll back the reservation of {0} on {1}, "
+                                + "it will be free when the lease expires.",
+                                new Object[]{reserved.get(i).getId(), node.getNodeName()});
+                    }
+                }
+                return false;
+            }
+            reserved.add(resource);
+            keys.add(result.getKey());
+        }
+        return true;
+    }
+
     /**
      * Implementation of the reservation mechanism itself. Sub-classes can call external sevices to do the actual locking 
      * if needed.
@@ -95,12 +200,21 @@ public abstract class ExternalResourceManager implements ExtensionPoint {
      * @return the result.
      */
     public StashResult lock(Node node, ExternalResource resource, String key, String lockedBy){
+      long start = System.nanoTime();
       StashResult result = doLock(node, resource, key, lockedBy);
+      DispatcherMetrics.getInstance().operation(EventJournal.Operation.LOCK, node, System.nanoTime() - start);
 
       if (result != null && result.isOk()) {
-        resource.setLocked(new StashInfo(result, lockedBy));
+        if (resource.tryLock(new StashInfo(result, lockedBy), key)) {
+          ReservationExpiry.getInstance().cancel(resource);
+        } else {
+          result = taken(node, resource, result.getKey(), lockedBy);
+        }
       }
 
+      ResourceUsageHistory.getInstance().locked(node, resource, result);
+      EventJournal.getInstance().record(EventJournal.Operation.LOCK, node, resource, lockedBy, result,
+              System.nanoTime() - start);
       return result;
     }
 
@@ -131,13 +245,18 @@ public abstract class ExternalResourceManager implements ExtensionPoint {
      * @return the result.
      */
     public StashResult release(Node node, ExternalResource resource, String key, String releasedBy){
+      long start = System.nanoTime();
       StashResult result = doRelease(node, resource, key, releasedBy);
+      DispatcherMetrics.getInstance().operation(EventJournal.Operation.RELEASE, node, System.nanoTime() - start);
 
       if (result != null && result.isOk()) {
-        resource.setReserved(null);
-        resource.setLocked(null);
+        resource.release();
+        ReservationExpiry.getInstance().cancel(resource);
       }
 
+      ResourceUsageHistory.getInstance().released(node, resource, result);
+      EventJournal.getInstance().record(EventJournal.Operation.RELEASE, node, resource, releasedBy, result,
+              System.nanoTime() - start);
       return result;
     }
 
@@ -156,6 +275,55 @@ public abstract class ExternalResourceManager implements ExtensionPoint {
      */
     protected abstract StashResult doRelease(Node node, ExternalResource resource, String key, String releasedBy);
 
+    /**
+     * Renews the leases of locks on the node, so that the external service doesn't drop them while the builds are
+     * still using the resources. Called by the
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.LeaseManager} for all locks on the
+     * node that are due at the same time.
+     *
+     * @param node      the node holding the resources.
+     * @param resources the locked resources.
+     * @param keys      the keys of the locks, in the same order.
+     * @return the results in the same order, where a null result means that the service couldn't be asked and a
+     *         result that isn't ok means that the service no longer holds the lock. Null if this manager doesn't
+     *         have leases that need to be renewed.
+     */
+    public List<StashResult> renew(Node node, List<ExternalResource> resources, List<String> keys) {
+        long start = System.nanoTime();
+        List<StashResult> results = doRenew(node, resources, keys);
+        if (results != null) {
+            logger.log(Level.FINE, "Renewed {0} leases on {1} in {2} ns.",
+                    new Object[]{resources.size(), node.getNodeName(), System.nanoTime() - start});
+        }
+        return results;
+    }
+
+    /**
+     * Implementation of the renewal of leases. The default implementation returns null, for managers whose locks
+     * don't expire.
+     *
+     * @param node      the node holding the resources.
+     * @param resources the locked resources.
+     * @param keys      the keys of the locks, in the same order.
+     * @return the results in the same order, or null if leases aren't renewed by this manager.
+     * @see #renew(hudson.model.Node, java.util.List, java.util.List)
+     */
+    protected List<StashResult> doRenew(Node node, List<ExternalResource> resources, List<String> keys) {
+        return null;
+    }
+
+    /**
+     * If whatever is managing the resources on the node can be reached right now. The
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.ExternalResourceQueueTaskDispatcher} doesn't
+     * try to reserve anything on a node where this is false. Must not do any remote calls.
+     *
+     * @param node the node.
+     * @return true if so, the default implementation always is.
+     */
+    public boolean isAvailable(Node node) {
+        return true;
+    }
+
     /**
      * Answers true if these operations are allowed using this ExternalResourceManager.
      *
@@ -0,0 +1,226 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Where the External Resource Monitor of a node can be reached. Every part is optional, a part that isn't set is
+ * taken from a less specific endpoint when they are combined with {@link #override(MonitorEndpoint)}, and in the end
+ * from the defaults and the host name of the node.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ * @see MonitorEndpointResolver
+ */
+public class MonitorEndpoint {
+
+    private static final Logger logger = Logger.getLogger(MonitorEndpoint.class.getName());
+
+    /**
+     * The scheme used when none is configured.
+     */
+    public static final String DEFAULT_SCHEME = "http";
+
+    /**
+     * The port used when none is configured.
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The highest valid port number.
+     */
+    private static final int MAX_PORT = 65535;
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final String path;
+
+    /**
+     * Standard constructor.
+     *
+     * @param scheme the scheme, null or empty to inherit.
+     * @param host   the host, null or empty to inherit.
+     * @param port   the port, 0 to inherit.
+     * @param path   the path, null or empty to inherit.
+     */
+    public MonitorEndpoint(String scheme, String host, int port, String path) {
+        this.scheme = trimToNull(scheme);
+        this.host = trimToNull(host);
+        this.port = port;
+        this.path = trimToNull(path);
+    }
+
+    /**
+     * The scheme.
+     *
+     * @return the scheme or null if inherited.
+     */
+    public String getScheme() {
+        return scheme;
+    }
+
+    /**
+     * The host.
+     *
+     * @return the host or null if inherited.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * The port.
+     *
+     * @return the port or 0 if inherited.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * The path.
+     *
+     * @return the path or null if inherited.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * If nothing is set, i.e. everything is inherited.
+     *
+     * @return true if so.
+     */
+    public boolean isEmpty() {
+        return scheme == null && host == null && port <= 0 && path == null;
+    }
+
+    /**
+     * Combines this endpoint with a more specific one.
+     *
+     * @param other the more specific endpoint, can be null.
+     * @return a new endpoint with the parts that are set in other and the rest from this one.
+     */
+    public MonitorEndpoint override(MonitorEndpoint other) {
+        if (other == null) {
+            return this;
+        }
+        String s = scheme;
+        if (other.scheme != null) {
+            s = other.scheme;
+        }
+        String h = host;
+        if (other.host != null) {
+            h = other.host;
+        }
+        int p = port;
+        if (other.port > 0) {
+            p = other.port;
+        }
+        String pa = path;
+        if (other.path != null) {
+            pa = other.path;
+        }
+        return new MonitorEndpoint(s, h, p, pa);
+    }
+
+    /**
+     * The URL of the monitor.
+     *
+     * @param defaultHost the host to use if none is set.
+     * @return the URL, or null if there is no host.
+     */
+    public String toUrl(String defaultHost) {
+        String h = host;
+        if (h == null) {
+            h = trimToNull(defaultHost);
+        }
+        if (h == null) {
+            return null;
+        }
+        StringBuilder url = new StringBuilder();
+        if (scheme != null) {
+            url.append(scheme);
+        } else {
+            url.append(DEFAULT_SCHEME);
+        }
+        url.append("://").append(h).append(':');
+        if (port > 0) {
+            url.append(port);
+        } else {
+            url.append(DEFAULT_PORT);
+        }
+        url.append('/');
+        if (path != null) {
+            String p = path;
+            while (p.startsWith("/")) {
+                p = p.substring(1);
+            }
+            url.append(p);
+        }
+        return url.toString();
+    }
+
+    /**
+     * Parses a port from a form field.
+     *
+     * @param port the text.
+     * @return the port, 0 if the text is empty or not a valid port.
+     */
+    public static int parsePort(String port) {
+        String p = trimToNull(port);
+        if (p == null) {
+            return 0;
+        }
+        try {
+            int value = Integer.parseInt(p);
+            if (value > 0 && value <= MAX_PORT) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            logger.log(Level.FINE, "Not a number: " + p, e);
+        }
+        logger.log(Level.WARNING, "Ignoring the invalid resource monitor port {0}", p);
+        return 0;
+    }
+
+    /**
+     * Trims the string.
+     *
+     * @param str the string.
+     * @return the trimmed string or null if it is null or empty.
+     */
+    private static String trimToNull(String str) {
+        if (str == null) {
+            return null;
+        }
+        String trimmed = str.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        return trimmed;
+    }
+}
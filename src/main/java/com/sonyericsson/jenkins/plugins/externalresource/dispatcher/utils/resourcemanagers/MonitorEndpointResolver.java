@@ -0,0 +1,247 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataParent;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResourceTreeNode;
+import hudson.model.Computer;
+import hudson.model.Node;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves and caches the URL of the External Resource Monitor for the resources on a node.
+ *
+ * The endpoint is put together from the defaults, the node's {@link ResourceMonitorNodeProperty} and the closest
+ * {@link ExternalResourceTreeNode} above the resource that has an endpoint of its own, in that order. When no host
+ * is configured the host name of the node is used, which is looked up once when the node comes online, see
+ * {@link #online(hudson.model.Computer)}. The reservation path never asks the computer for it, so it never has to
+ * wait for the channel or for DNS; a node whose host name isn't known yet has no URL.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ * @see ResourceMonitorEndpointListener
+ */
+public final class MonitorEndpointResolver {
+
+    private static final Logger logger = Logger.getLogger(MonitorEndpointResolver.class.getName());
+
+    /**
+     * Cache key for the URL of a node as a whole, i.e. for resources without a tree node endpoint.
+     */
+    private static final Object NODE_KEY = new Object();
+
+    private static MonitorEndpointResolver ourInstance = new MonitorEndpointResolver();
+
+    /**
+     * The resolved URLs per node name, keyed by tree node or {@link #NODE_KEY}.
+     */
+    private final Map<String, Map<Object, String>> cache = new ConcurrentHashMap<String, Map<Object, String>>();
+
+    /**
+     * The host names of the online nodes per node name.
+     */
+    private final Map<String, String> hosts = new ConcurrentHashMap<String, String>();
+
+    /**
+     * This singleton instance.
+     *
+     * @return the instance.
+     */
+    public static MonitorEndpointResolver getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Default constructor.
+     */
+    MonitorEndpointResolver() {
+    }
+
+    /**
+     * The URL of the monitor handling the resource on the node.
+     *
+     * @param node     the node.
+     * @param resource the resource, null for the node as a whole.
+     * @return the URL or null if it can't be resolved, for example when the host name of the node isn't known.
+     */
+    public String resolve(Node node, ExternalResource resource) {
+        if (node == null) {
+            return null;
+        }
+        ExternalResourceTreeNode tree = findTreeNode(resource);
+        Object key = NODE_KEY;
+        if (tree != null) {
+            key = tree;
+        }
+        Map<Object, String> urls = getUrls(node.getNodeName());
+        String url = urls.get(key);
+        if (url != null) {
+            return url;
+        }
+        MonitorEndpoint endpoint = new MonitorEndpoint(null, null, 0, null);
+        ResourceMonitorNodeProperty property = null;
+        if (node.getNodeProperties() != null) {
+            property = node.getNodeProperties().get(ResourceMonitorNodeProperty.class);
+        }
+        if (property != null) {
+            endpoint = endpoint.override(property.getEndpoint());
+        }
+        if (tree != null) {
+            endpoint = endpoint.override(tree.getMonitorEndpoint());
+        }
+        String hostName = null;
+        if (endpoint.getHost() == null) {
+            hostName = hosts.get(normalize(node.getNodeName()));
+        }
+        url = endpoint.toUrl(hostName);
+        if (url != null) {
+            urls.put(key, url);
+            logger.log(Level.FINE, "The resource monitor for {0} on {1} is at {2}",
+                    new Object[]{key, node.getNodeName(), url});
+        }
+        return url;
+    }
+
+    /**
+     * Finds the closest tree node above the resource that has an endpoint of its own.
+     *
+     * @param resource the resource.
+     * @return the tree node or null if there is none.
+     */
+    public static ExternalResourceTreeNode findTreeNode(ExternalResource resource) {
+        if (resource == null) {
+            return null;
+        }
+        MetadataParent<MetadataValue> parent = resource.getParent();
+        while (parent != null) {
+            if (parent instanceof ExternalResourceTreeNode) {
+                ExternalResourceTreeNode tree = (ExternalResourceTreeNode)parent;
+                if (tree.getMonitorEndpoint() != null) {
+                    return tree;
+                }
+            }
+            if (parent instanceof MetadataValue) {
+                parent = ((MetadataValue)parent).getParent();
+            } else {
+                parent = null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up and remembers the host name of a computer that has come online, and forgets its resolved URLs. Called
+     * from {@link ResourceMonitorEndpointListener}, outside of the queue, since the lookup might have to go over the
+     * channel. A failed lookup leaves the node without a URL, rather than failing the launch of the node.
+     *
+     * @param computer the computer.
+     */
+    public void online(Computer computer) {
+        String name = normalize(computer.getName());
+        String hostName = null;
+        try {
+            hostName = computer.getHostName();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not look up the host name of " + name, e);
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted while looking up the host name of " + name, e);
+            Thread.currentThread().interrupt();
+        }
+        if (hostName != null) {
+            hosts.put(name, hostName);
+        } else {
+            hosts.remove(name);
+        }
+        logger.log(Level.FINE, "The host name of {0} is {1}", new Object[]{name, hostName});
+        invalidate(name);
+    }
+
+    /**
+     * Forgets the host name and the resolved URLs of a node that has gone offline.
+     *
+     * @param nodeName the name of the node.
+     */
+    public void offline(String nodeName) {
+        hosts.remove(normalize(nodeName));
+        invalidate(nodeName);
+    }
+
+    /**
+     * Forgets the resolved URLs of the node. They are put together again from the remembered host name.
+     *
+     * @param nodeName the name of the node.
+     */
+    public void invalidate(String nodeName) {
+        cache.remove(normalize(nodeName));
+    }
+
+    /**
+     * Forgets all resolved URLs. They are put together again from the remembered host names.
+     */
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    /**
+     * The cached URLs of the node, created if needed.
+     *
+     * @param nodeName the name of the node.
+     * @return the URLs.
+     */
+    private Map<Object, String> getUrls(String nodeName) {
+        String name = normalize(nodeName);
+        Map<Object, String> urls = cache.get(name);
+        if (urls == null) {
+            synchronized (cache) {
+                urls = cache.get(name);
+                if (urls == null) {
+                    urls = Collections.synchronizedMap(new IdentityHashMap<Object, String>());
+                    cache.put(name, urls);
+                }
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * The master has an empty node name, but sometimes null shows up.
+     *
+     * @param nodeName the name of the node.
+     * @return the name, never null.
+     */
+    private static String normalize(String nodeName) {
+        if (nodeName == null) {
+            return "";
+        }
+        return nodeName;
+    }
+}
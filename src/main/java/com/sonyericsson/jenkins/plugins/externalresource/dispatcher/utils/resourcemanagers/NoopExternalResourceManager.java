@@ -25,19 +25,13 @@ package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resou
 
 import com.sonyericsson.hudson.plugins.metadata.model.values.AbstractMetadataValue;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
-import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.cli.ErCliUtils;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReservationExpiry;
 import hudson.Extension;
 import hudson.model.Node;
-import hudson.triggers.Trigger;
-import org.kohsuke.args4j.CmdLineException;
 
-import java.io.IOException;
-import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * A manager that does nothing.
@@ -57,10 +51,29 @@ public class NoopExternalResourceManager extends ExternalResourceManager {
      */
     protected final StashResult okResult = new StashResult("noop", "noop");
 
+    /**
+     * Reserves the resource and schedules the reservation to expire after the given number of seconds, since there is
+     * no external service that does it.
+     *
+     * @param node       the node to communicate with.
+     * @param resource   the resource to reserve.
+     * @param seconds    the number of seconds the lease should be.
+     * @param reservedBy a String describing what reserved the resource.
+     * @return the result.
+     * @see ReservationExpiry
+     */
+    @Override
+    public StashResult reserve(Node node, ExternalResource resource, int seconds, String reservedBy) {
+        StashResult result = super.reserve(node, resource, seconds, reservedBy);
+        if (result != null && result.isOk()) {
+            ReservationExpiry.getInstance().schedule(resource, resource.getReserved(),
+                    TimeUnit.SECONDS.toMillis(seconds));
+        }
+        return result;
+    }
+
     @Override
     public StashResult doReserve(Node node, ExternalResource resource, int seconds, String reservedBy) {
-        Trigger.timer.schedule(new ReservationTimeoutTask(node.getNodeName(), resource.getId()),
-                TimeUnit.SECONDS.toMillis(seconds));
         return okResult;
     }
 
@@ -83,40 +96,4 @@ public class NoopExternalResourceManager extends ExternalResourceManager {
     public void updateMetadata(AbstractMetadataValue value) {
         //nothing to do here.
     }
-
-    /**
-     * TimerTask to schedule when a Noop reservation times out.
-     */
-    static class ReservationTimeoutTask extends TimerTask {
-        /**
-         * The logger
-         */
-        private static final Logger logger = Logger.getLogger(ReservationTimeoutTask.class.getName());
-        private String node;
-        private String id;
-
-        /**
-         * standard Constructor.
-         *
-         * @param node the name of the node.
-         * @param id   the id of the resource.
-         */
-        ReservationTimeoutTask(String node, String id) {
-            this.node = node;
-            this.id = id;
-        }
-
-        @Override
-        public void run() {
-            try {
-                logger.fine("Reservation timeout.");
-                ExternalResource er = ErCliUtils.findExternalResource(node, id);
-                er.doExpireReservation();
-            } catch (CmdLineException e) {
-                logger.log(Level.WARNING, "Failed to timeout a reservation of " + id + " on node " + node + "!", e);
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Failed to save the new reservation state to disk!", e);
-            }
-        }
-    }
 }
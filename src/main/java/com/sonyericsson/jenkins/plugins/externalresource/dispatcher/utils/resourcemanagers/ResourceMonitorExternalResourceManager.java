@@ -24,13 +24,20 @@
 
 package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
 
+import com.googlecode.jsonrpc4j.JsonRpcClientException;
 import com.googlecode.jsonrpc4j.JsonRpcHttpClient;
 import com.sonyericsson.hudson.plugins.metadata.model.values.AbstractMetadataValue;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.Lease;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.CircuitBreaker;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.DispatcherMetrics;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.EventJournal;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.JsonRpcUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
 import hudson.Extension;
 import hudson.model.Hudson;
 import hudson.model.Node;
@@ -42,14 +49,22 @@ import org.codehaus.jackson.map.JsonMappingException;
 
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A manager that communicates via JSON-RPC to the External Resource Monitor.
  *
+ * Each node has a {@link CircuitBreaker} that keeps track of whether its monitor can be reached. While the monitor is
+ * considered to be down, calls fail right away without touching the network and {@link #isAvailable(Node)} tells the
+ * dispatcher to stay away from the node.
+ *
  * @author Robert Sandell &lt;robert.sandell@sonymobile.com&gt;
  */
 @Extension
@@ -76,15 +91,35 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
     private static final String RELEASE_METHOD = "ResourceMonitor.Resources.Release";
 
     /**
-     * the http url template of the RPC call. 0: the host name. 1: the port. 2: the suffix if existed.
+     * the method name of reserve any one of several resources.
+     */
+    private static final String RESERVE_ANY_METHOD = "ResourceMonitor.Resources.ReserveAny";
+
+    /**
+     * the method name of renew the leases of several locks.
+     */
+    private static final String RENEW_METHOD = "ResourceMonitor.Resources.Renew";
+
+    /**
+     * the JSON-RPC error code for a method that the service doesn't have.
      */
-    private static final String RPC_CALL_URL_TEMPLATE = "http://{0}:{1}/{2}";
+    private static final int METHOD_NOT_FOUND = -32601;
 
     /**
      * the key of the resource parameter in sent json.
      */
     private static final String RESOURCE = "resource";
 
+    /**
+     * the key of the resource list parameter in sent json.
+     */
+    private static final String RESOURCES = "resources";
+
+    /**
+     * the key of the lock list parameter in sent json.
+     */
+    private static final String LOCKS = "locks";
+
     /**
      * the key of the reserve key parameter in sent json.
      */
@@ -111,28 +146,50 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
     private static final String URL = "url";
 
     /**
-     * the default port the rpc call.
+     * the health of the monitor on each node, by node name.
+     */
+    private final transient Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /**
+     * the urls of the monitors that didn't know about {@link #RESERVE_ANY_METHOD}, and when they were asked.
+     */
+    private final transient Map<String, Long> reserveAnyUnsupported = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * the urls of the monitors that didn't know about {@link #RENEW_METHOD}, and when they were asked.
      */
-    private static final String PORT = "8080";
+    private final transient Map<String, Long> renewUnsupported = new ConcurrentHashMap<String, Long>();
 
     /**
-     * get the accessible address on the {@link hudson.model.Node}.
+     * get the accessible address of the monitor on the {@link hudson.model.Node}.
      *
      * @param node the specified {@link hudson.model.Node} we will connect.
-     * @return the hostName of the node.
+     * @return the url of the monitor.
      * @throws InterruptedException when {@link InterruptedException} happened when get host name.
      * @throws java.io.IOException  when {@link java.io.IOException} happened when get host name.
+     * @see MonitorEndpointResolver
      */
-    private String getURL(Node node) throws IOException, InterruptedException {
-        String nodeURL = null;
-        if (null != node) {
-            String hostName = node.toComputer().getHostName();
-            if (null != hostName) {
-                // TODO: hard code the port and suffix here. need a configure page to hold it somewhere later.
-                nodeURL = MessageFormat.format(RPC_CALL_URL_TEMPLATE, hostName, PORT, "");
-            }
+    protected String getURL(Node node) throws IOException, InterruptedException {
+        return MonitorEndpointResolver.getInstance().resolve(node, null);
+    }
+
+    /**
+     * get the accessible address of the monitor handling the resource on the {@link hudson.model.Node}.
+     * Resources that don't have an endpoint of their own in an
+     * {@link com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResourceTreeNode} use
+     * {@link #getURL(hudson.model.Node)}.
+     *
+     * @param node     the specified {@link hudson.model.Node} we will connect.
+     * @param resource the resource.
+     * @return the url of the monitor.
+     * @throws InterruptedException when {@link InterruptedException} happened when get host name.
+     * @throws java.io.IOException  when {@link java.io.IOException} happened when get host name.
+     */
+    protected String getURL(Node node, ExternalResource resource) throws IOException, InterruptedException {
+        if (MonitorEndpointResolver.findTreeNode(resource) == null) {
+            return getURL(node);
         }
-        return nodeURL;
+        return MonitorEndpointResolver.getInstance().resolve(node, resource);
     }
 
     /**
@@ -145,6 +202,115 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
         return resource.getId();
     }
 
+    /**
+     * The circuit breaker that keeps track of the health of the monitor on the node.
+     *
+     * @param node the node.
+     * @return the breaker.
+     */
+    public CircuitBreaker getCircuitBreaker(Node node) {
+        String nodeName = "";
+        if (node != null && node.getNodeName() != null) {
+            nodeName = node.getNodeName();
+        }
+        CircuitBreaker breaker = breakers.get(nodeName);
+        if (breaker == null) {
+            synchronized (breakers) {
+                breaker = breakers.get(nodeName);
+                if (breaker == null) {
+                    breaker = new CircuitBreaker(Constants.CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+                            Constants.CIRCUIT_BREAKER_OPEN_TIME);
+                    breakers.put(nodeName, breaker);
+                }
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * The monitor on the node is available unless it has failed too many times in a row and isn't due for a probe.
+     *
+     * @param node the node.
+     * @return true if the monitor can be called.
+     */
+    @Override
+    public boolean isAvailable(Node node) {
+        return getCircuitBreaker(node).isAvailable();
+    }
+
+    /**
+     * Records that a call reached the monitor.
+     *
+     * @param node    the node.
+     * @param breaker the breaker of the node.
+     */
+    private void succeeded(Node node, CircuitBreaker breaker) {
+        if (breaker.onSuccess()) {
+            logger.log(Level.INFO, "The resource monitor on {0} is reachable again.", getNodeName(node));
+        }
+    }
+
+    /**
+     * Records that a call couldn't reach the monitor.
+     *
+     * @param node    the node.
+     * @param breaker the breaker of the node.
+     */
+    private void failed(Node node, CircuitBreaker breaker) {
+        if (breaker.onFailure()) {
+            logger.log(Level.SEVERE, "The resource monitor on {0} failed {1} times in a row, "
+                    + "leaving it alone for {2} ms.", new Object[]{getNodeName(node), breaker.getFailures(),
+                    Constants.CIRCUIT_BREAKER_OPEN_TIME, });
+        }
+    }
+
+    /**
+     * The result of a call that wasn't made because the monitor is considered to be down.
+     *
+     * @param node       the node.
+     * @param resourceId the resource that the call was about.
+     * @return the result.
+     */
+    private StashResult unavailable(Node node, String resourceId) {
+        logger.log(Level.FINE, "The resource monitor on {0} is down, not calling it about {1}.",
+                new Object[]{getNodeName(node), resourceId});
+        return new StashResult(ERROR_CODE_UNAVAILABLE, "The resource monitor on " + getNodeName(node)
+                + " is not responding.");
+    }
+
+    /**
+     * checks if the monitor didn't know about a method when it was last asked. The monitor is asked again when
+     * {@link Constants#UNSUPPORTED_METHOD_RETRY_INTERVAL} has passed, it might have been upgraded since.
+     *
+     * @param unsupported the monitors that didn't know about the method.
+     * @param url         the url of the monitor.
+     * @return true if the method shouldn't be called.
+     */
+    private static boolean isUnsupported(Map<String, Long> unsupported, String url) {
+        Long asked = unsupported.get(url);
+        if (asked == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - asked >= Constants.UNSUPPORTED_METHOD_RETRY_INTERVAL) {
+            unsupported.remove(url);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The name of the node for log messages.
+     *
+     * @param node the node.
+     * @return the name.
+     */
+    private static String getNodeName(Node node) {
+        if (node == null) {
+            return null;
+        }
+        return node.getNodeName();
+    }
+
     @Override
     public String getDisplayName() {
         return Messages.ResourceMonitorExternalResourceManager_DisplayName();
@@ -154,9 +320,12 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
     public StashResult doReserve(Node node, ExternalResource resource, int seconds, String reservedBy) {
         RpcResult rpcRes = null;
         String resourceId = getResourceId(resource);
+        CircuitBreaker breaker = getCircuitBreaker(node);
+        if (!breaker.allowRequest()) {
+            return unavailable(node, resourceId);
+        }
         try {
-            JsonRpcHttpClient client = JsonRpcUtil.createJsonRpcClient(getURL(node),
-                    JsonRpcUtil.customizeObjectMapper());
+            JsonRpcHttpClient client = JsonRpcUtil.getJsonRpcClient(getURL(node, resource), true);
             if (null != client && null != resourceId) {
                 Map<String, Object> params = new HashMap<String, Object>();
                 params.put(RESOURCE, resourceId);
@@ -188,6 +357,7 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
             logger.log(Level.WARNING, MessageFormat.format(
                     "Can not reserve the resource {0}.",
                     resourceId), ioe);
+            failed(node, breaker);
         } catch (Error e) {
             // if error type, throw it.
             throw e;
@@ -196,17 +366,136 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
                     "Can not reserve the resource {0}.",
                     resourceId), e);
         }
+        if (rpcRes != null) {
+            succeeded(node, breaker);
+        }
         return convert(rpcRes);
     }
 
+    /**
+     * Reserves any one of the resources with a single call to the monitor. If the monitor doesn't know the method the
+     * resources are reserved one at a time as in
+     * {@link ExternalResourceManager#reserveAny(hudson.model.Node, java.util.List, int, String)}, and the monitor is
+     * remembered so the single call isn't tried again.
+     *
+     * @param node       the node to communicate with.
+     * @param resources  the resources to choose from, in order of preference.
+     * @param seconds    the number of seconds the lease should be.
+     * @param reservedBy a String describing what reserved the resource.
+     * @return the resource that got reserved, or null if none of them could be.
+     */
+    @Override
+    public ExternalResource reserveAny(Node node, List<ExternalResource> resources, int seconds, String reservedBy) {
+        if (resources.size() <= 1) {
+            return super.reserveAny(node, resources, seconds, reservedBy);
+        }
+        String url;
+        try {
+            url = getURL(node, resources.get(0));
+            for (ExternalResource resource : resources) {
+                if (url != null && !url.equals(getURL(node, resource))) {
+                    //Handled by different monitors, one call won't do.
+                    return super.reserveAny(node, resources, seconds, reservedBy);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Can not get the url of the resource monitor.", e);
+            return null;
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted while getting the url of the resource monitor.", e);
+            return null;
+        }
+        if (url == null || isUnsupported(reserveAnyUnsupported, url)) {
+            return super.reserveAny(node, resources, seconds, reservedBy);
+        }
+        CircuitBreaker breaker = getCircuitBreaker(node);
+        if (!breaker.allowRequest()) {
+            unavailable(node, String.valueOf(resources.size()) + " resources");
+            return null;
+        }
+        JsonRpcHttpClient client = JsonRpcUtil.getJsonRpcClient(url, true);
+        if (client == null) {
+            return null;
+        }
+        Map<String, ExternalResource> byId = new LinkedHashMap<String, ExternalResource>();
+        for (ExternalResource resource : resources) {
+            String resourceId = getResourceId(resource);
+            if (resourceId != null && !byId.containsKey(resourceId)) {
+                byId.put(resourceId, resource);
+            }
+        }
+        long start = System.nanoTime();
+        RpcResult rpcRes = null;
+        try {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put(RESOURCES, new ArrayList<String>(byId.keySet()));
+            params.put(TIMEOUT, seconds);
+            JSONObject clientInfo = new JSONObject();
+            clientInfo.put(ID, Hudson.getInstance().getRootUrl());
+            clientInfo.put(URL, reservedBy);
+            params.put(CLIENT_INFO, clientInfo);
+            logger.log(Level.FINE, "reserving any: {0}", params.toString());
+            rpcRes = (RpcResult)client.invoke(RESERVE_ANY_METHOD, new Object[]{params}, RpcResult.class);
+        } catch (JsonRpcClientException jce) {
+            succeeded(node, breaker);
+            if (jce.getCode() == METHOD_NOT_FOUND) {
+                logger.log(Level.INFO, "The resource monitor at {0} can not reserve any one of several resources, "
+                        + "reserving them one at a time instead.", url);
+                reserveAnyUnsupported.put(url, System.currentTimeMillis());
+                return super.reserveAny(node, resources, seconds, reservedBy);
+            }
+            logger.log(Level.WARNING, MessageFormat.format("Can not reserve any of the resources {0}.",
+                    byId.keySet()), jce);
+        } catch (IOException ioe) {
+            logger.log(Level.WARNING, MessageFormat.format("Can not reserve any of the resources {0}.",
+                    byId.keySet()), ioe);
+            failed(node, breaker);
+        } catch (Error e) {
+            // if error type, throw it.
+            throw e;
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, MessageFormat.format("Can not reserve any of the resources {0}.",
+                    byId.keySet()), e);
+        }
+        DispatcherMetrics.getInstance().operation(EventJournal.Operation.RESERVE, node, System.nanoTime() - start);
+        if (rpcRes != null) {
+            succeeded(node, breaker);
+        }
+        StashResult result = convert(rpcRes);
+        if (result == null || !result.isOk()) {
+            return null;
+        }
+        ExternalResource reserved = byId.get(rpcRes.getResource());
+        if (reserved == null) {
+            logger.log(Level.WARNING, "The resource monitor reserved the unknown resource {0}, "
+                    + "it will be released when the lease expires.", rpcRes.getResource());
+            return null;
+        }
+        if (!reserved.tryReserve(new StashInfo(result, reservedBy))) {
+            logger.log(Level.FINE, "{0} was taken by someone else, releasing it again.", reserved.getId());
+            doRelease(node, reserved, result.getKey(), reservedBy);
+            EventJournal.getInstance().record(EventJournal.Operation.RESERVE, node, reserved, reservedBy,
+                    new StashResult(ERROR_CODE_TAKEN, "The resource is already reserved or locked."),
+                    System.nanoTime() - start);
+            return null;
+        }
+        ResourceUsageHistory.getInstance().reserved(node, reserved, result);
+        EventJournal.getInstance().record(EventJournal.Operation.RESERVE, node, reserved, reservedBy, result,
+                System.nanoTime() - start);
+        return reserved;
+    }
+
     @Override
     public StashResult doLock(Node node, ExternalResource resource, String key, String lockedBy) {
         RpcResult rpcRes = null;
         String resourceId = getResourceId(resource);
+        CircuitBreaker breaker = getCircuitBreaker(node);
+        if (!breaker.allowRequest()) {
+            return unavailable(node, resourceId);
+        }
 
         try {
-            JsonRpcHttpClient client = JsonRpcUtil.createJsonRpcClient(getURL(node),
-                    JsonRpcUtil.customizeObjectMapper());
+            JsonRpcHttpClient client = JsonRpcUtil.getJsonRpcClient(getURL(node, resource), true);
             if (null != client && null != resourceId) {
                 Map<String, Object> params = new HashMap<String, Object>();
                 params.put(RESOURCE, resourceId);
@@ -238,6 +527,7 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
             logger.log(Level.WARNING, MessageFormat.format(
                     "Can not lock the resource {0}.",
                     resourceId), ioe);
+            failed(node, breaker);
         } catch (Error e) {
             // if error type, throw it.
             throw e;
@@ -246,6 +536,9 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
                     "Can not lock the resource {0}.",
                     resourceId), e);
         }
+        if (rpcRes != null) {
+            succeeded(node, breaker);
+        }
         // FIX the issue , missing key when release. because the reservekey is not
         // returned by the lock call. have to give the value here.
         // Reuse the previous one if null is returned.
@@ -259,9 +552,13 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
     public StashResult doRelease(Node node, ExternalResource resource, String key, String releasedBy) {
         RpcResult rpcRes = null;
         String resourceId = getResourceId(resource);
+        CircuitBreaker breaker = getCircuitBreaker(node);
+        if (!breaker.allowRequest()) {
+            return unavailable(node, resourceId);
+        }
 
         try {
-            JsonRpcHttpClient client = JsonRpcUtil.createJsonRpcClient(getURL(node));
+            JsonRpcHttpClient client = JsonRpcUtil.getJsonRpcClient(getURL(node, resource), false);
             if (null != client && null != resourceId) {
                 Map<String, Object> params = new HashMap<String, Object>();
                 params.put(RESOURCE, resourceId);
@@ -293,15 +590,138 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
             logger.log(Level.WARNING, MessageFormat.format(
                     "Can not release the resource {0}.",
                     resourceId), ioe);
+            failed(node, breaker);
         } catch (Error e) {
             // if error type, throw it.
             throw e;
         } catch (Throwable e) {
             logger.log(Level.WARNING, MessageFormat.format("Can not release the resource {0}.", resourceId), e);
         }
+        if (rpcRes != null) {
+            succeeded(node, breaker);
+        }
         return convert(rpcRes);
     }
 
+    /**
+     * Renews the leases with one call to each monitor that handles some of the resources. Monitors that don't know
+     * the method are remembered and not asked again, their locks are left to the lease they got when locked.
+     *
+     * @param node      the node holding the resources.
+     * @param resources the locked resources.
+     * @param keys      the keys of the locks, in the same order.
+     * @return the results in the same order.
+     */
+    @Override
+    protected List<StashResult> doRenew(Node node, List<ExternalResource> resources, List<String> keys) {
+        List<StashResult> results = new ArrayList<StashResult>(resources.size());
+        Map<String, List<Integer>> byUrl = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < resources.size(); i++) {
+            results.add(null);
+            String url;
+            try {
+                url = getURL(node, resources.get(i));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Can not get the url of the resource monitor.", e);
+                continue;
+            } catch (InterruptedException e) {
+                logger.log(Level.WARNING, "Interrupted while getting the url of the resource monitor.", e);
+                return results;
+            }
+            if (url != null && !isUnsupported(renewUnsupported, url)) {
+                List<Integer> indexes = byUrl.get(url);
+                if (indexes == null) {
+                    indexes = new ArrayList<Integer>();
+                    byUrl.put(url, indexes);
+                }
+                indexes.add(i);
+            }
+        }
+        CircuitBreaker breaker = getCircuitBreaker(node);
+        for (Map.Entry<String, List<Integer>> entry : byUrl.entrySet()) {
+            if (!breaker.allowRequest()) {
+                unavailable(node, String.valueOf(entry.getValue().size()) + " locks");
+                continue;
+            }
+            RpcResult[] rpcRes = renew(node, breaker, entry.getKey(), resources, keys, entry.getValue());
+            if (rpcRes == null) {
+                continue;
+            }
+            if (rpcRes.length != entry.getValue().size()) {
+                logger.log(Level.WARNING, "The resource monitor at {0} answered {1} renewals of {2} locks.",
+                        new Object[]{entry.getKey(), rpcRes.length, entry.getValue().size()});
+            }
+            for (int i = 0; i < rpcRes.length && i < entry.getValue().size(); i++) {
+                int index = entry.getValue().get(i);
+                if (rpcRes[i] != null && rpcRes[i].getKey() == null) {
+                    rpcRes[i].setKey(keys.get(index));
+                }
+                results.set(index, convert(rpcRes[i]));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Makes one renew call to a monitor.
+     *
+     * @param node      the node holding the resources.
+     * @param breaker   the breaker of the node.
+     * @param url       the url of the monitor.
+     * @param resources all the resources being renewed.
+     * @param keys      the keys of the locks, in the same order.
+     * @param indexes   the indexes of the resources handled by this monitor.
+     * @return the results in the same order as indexes, or null if the call failed.
+     */
+    private RpcResult[] renew(Node node, CircuitBreaker breaker, String url, List<ExternalResource> resources,
+                              List<String> keys, List<Integer> indexes) {
+        JsonRpcHttpClient client = JsonRpcUtil.getJsonRpcClient(url, true);
+        if (client == null) {
+            return null;
+        }
+        List<Map<String, Object>> locks = new ArrayList<Map<String, Object>>(indexes.size());
+        for (int index : indexes) {
+            Map<String, Object> lock = new HashMap<String, Object>();
+            lock.put(RESOURCE, getResourceId(resources.get(index)));
+            lock.put(RESERVE_KEY, keys.get(index));
+            locks.add(lock);
+        }
+        RpcResult[] rpcRes = null;
+        try {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put(LOCKS, locks);
+            JSONObject clientInfo = new JSONObject();
+            clientInfo.put(ID, Hudson.getInstance().getRootUrl());
+            params.put(CLIENT_INFO, clientInfo);
+            logger.log(Level.FINE, "renewing: {0}", params.toString());
+            rpcRes = (RpcResult[])client.invoke(RENEW_METHOD, new Object[]{params}, RpcResult[].class);
+        } catch (JsonRpcClientException jce) {
+            succeeded(node, breaker);
+            if (jce.getCode() == METHOD_NOT_FOUND) {
+                logger.log(Level.INFO, "The resource monitor at {0} can not renew leases, "
+                        + "its locks are left to the lease they got when locked.", url);
+                renewUnsupported.put(url, System.currentTimeMillis());
+                return null;
+            }
+            logger.log(Level.WARNING, MessageFormat.format("Can not renew the leases of {0} locks at {1}.",
+                    locks.size(), url), jce);
+        } catch (IOException ioe) {
+            logger.log(Level.WARNING, MessageFormat.format("Can not renew the leases of {0} locks at {1}.",
+                    locks.size(), url), ioe);
+            failed(node, breaker);
+        } catch (Error e) {
+            // if error type, throw it.
+            throw e;
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, MessageFormat.format("Can not renew the leases of {0} locks at {1}.",
+                    locks.size(), url), e);
+        }
+        if (rpcRes != null) {
+            succeeded(node, breaker);
+        }
+        return rpcRes;
+    }
+
     @Override
     public boolean isExternalLockingOk() {
         return true;
@@ -342,6 +762,7 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
         private int timezone;
         private long time;
         private String isotime;
+        private String resource;
 
         /**
          * the rpc call status.
@@ -468,5 +889,23 @@ public class ResourceMonitorExternalResourceManager extends ExternalResourceMana
         public void setIsotime(String isotime) {
             this.isotime = isotime;
         }
+
+        /**
+         * the id of the resource that was reserved by a reserve any call.
+         *
+         * @return the resource id.
+         */
+        public String getResource() {
+            return resource;
+        }
+
+        /**
+         * set the id of the reserved resource.
+         *
+         * @param resource the resource id.
+         */
+        public void setResource(String resource) {
+            this.resource = resource;
+        }
     }
 }
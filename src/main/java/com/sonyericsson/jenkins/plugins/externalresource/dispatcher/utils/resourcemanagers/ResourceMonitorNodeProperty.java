@@ -0,0 +1,133 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Messages;
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Tells the {@link ResourceMonitorExternalResourceManager} where the External Resource Monitor of a node is,
+ * when it isn't at the default port on the node's host.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ResourceMonitorNodeProperty extends NodeProperty<Node> {
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final String path;
+
+    /**
+     * Standard DataBoundConstructor.
+     *
+     * @param scheme the scheme, empty for the default.
+     * @param host   the host, empty for the host name of the node.
+     * @param port   the port, empty for the default.
+     * @param path   the path, empty for none.
+     */
+    @DataBoundConstructor
+    public ResourceMonitorNodeProperty(String scheme, String host, String port, String path) {
+        this(scheme, host, MonitorEndpoint.parsePort(port), path);
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param scheme the scheme, null for the default.
+     * @param host   the host, null for the host name of the node.
+     * @param port   the port, 0 for the default.
+     * @param path   the path, null for none.
+     */
+    public ResourceMonitorNodeProperty(String scheme, String host, int port, String path) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.path = path;
+    }
+
+    /**
+     * The scheme.
+     *
+     * @return the scheme.
+     */
+    public String getScheme() {
+        return scheme;
+    }
+
+    /**
+     * The host.
+     *
+     * @return the host.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * The port, for the config page.
+     *
+     * @return the port or an empty string if the default is used.
+     */
+    public String getPort() {
+        if (port > 0) {
+            return String.valueOf(port);
+        }
+        return "";
+    }
+
+    /**
+     * The path.
+     *
+     * @return the path.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * The configured endpoint.
+     *
+     * @return the endpoint.
+     */
+    public MonitorEndpoint getEndpoint() {
+        return new MonitorEndpoint(scheme, host, port, path);
+    }
+
+    /**
+     * Descriptor for {@link ResourceMonitorNodeProperty}.
+     */
+    @Extension
+    public static class ResourceMonitorNodePropertyDescriptor extends NodePropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.ResourceMonitorNodeProperty_DisplayName();
+        }
+    }
+}
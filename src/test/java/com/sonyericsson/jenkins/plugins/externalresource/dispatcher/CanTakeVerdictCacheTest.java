@@ -0,0 +1,111 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseNoMatchingResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.AbstractResourceSelection;
+import hudson.model.Node;
+import hudson.model.queue.CauseOfBlockage;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedList;
+
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link CanTakeVerdictCache}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class CanTakeVerdictCacheTest {
+
+    private CanTakeVerdictCache cache;
+    private Object property;
+    private SelectionCriteria criteria;
+    private CauseOfBlockage cause;
+
+    /**
+     * Creates the cache and some common data.
+     */
+    @Before
+    public void setUp() {
+        cache = new CanTakeVerdictCache();
+        property = new Object();
+        criteria = new SelectionCriteria(new LinkedList<AbstractResourceSelection>());
+        Node node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("node");
+        cause = new BecauseNoMatchingResource(node);
+    }
+
+    /**
+     * Tests that a stored verdict is returned for the same item, node and version.
+     */
+    @Test
+    public void testHit() {
+        cache.put(1, "node", property, criteria, 2, cause);
+        assertSame(cause, cache.get(1, "node", property, criteria, 2));
+        assertNull(cache.get(2, "node", property, criteria, 2));
+        assertNull(cache.get(1, "other", property, criteria, 2));
+    }
+
+    /**
+     * Tests that a new registry version invalidates the verdict.
+     */
+    @Test
+    public void testNewVersion() {
+        cache.put(1, "node", property, criteria, 2, cause);
+        //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: TestData.
+        assertNull(cache.get(1, "node", property, criteria, 3));
+        assertNull(cache.get(1, "node", property, criteria, 2));
+    }
+
+    /**
+     * Tests that a reconfigured node or project invalidates the verdict.
+     */
+    @Test
+    public void testReconfigured() {
+        cache.put(1, "node", property, criteria, 2, cause);
+        assertNull(cache.get(1, "node", new Object(), criteria, 2));
+        cache.put(1, "node", property, criteria, 2, cause);
+        assertNull(cache.get(1, "node", property,
+                new SelectionCriteria(new LinkedList<AbstractResourceSelection>()), 2));
+    }
+
+    /**
+     * Tests that a verdict with a time to live expires.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testExpires() throws Exception {
+        cache.put(1, null, property, criteria, 2, cause, 1);
+        //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: TestData.
+        Thread.sleep(20);
+        assertNull(cache.get(1, null, property, criteria, 2));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Tests for {@link MultiResourceAssignment}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class MultiResourceAssignmentTest {
+
+    private ExternalResource phone1 = new ExternalResource("phone1", "1");
+    private ExternalResource phone2 = new ExternalResource("phone2", "2");
+    private ExternalResource simBox = new ExternalResource("simBox", "3");
+
+    /**
+     * Tests that every slot gets its first choice when nothing overlaps.
+     */
+    @Test
+    public void testDisjoint() {
+        List<List<ExternalResource>> slots = new ArrayList<List<ExternalResource>>();
+        slots.add(Arrays.asList(phone1, phone2));
+        slots.add(Arrays.asList(phone1, phone2));
+        slots.add(Arrays.asList(simBox));
+        assertEquals(Arrays.asList(phone1, phone2, simBox), MultiResourceAssignment.assign(slots));
+    }
+
+    /**
+     * Tests that a slot that could take anything doesn't take the only resource of a later slot.
+     */
+    @Test
+    public void testOverlapping() {
+        List<List<ExternalResource>> slots = new ArrayList<List<ExternalResource>>();
+        slots.add(Arrays.asList(simBox, phone1));
+        slots.add(Arrays.asList(simBox));
+        assertEquals(Arrays.asList(phone1, simBox), MultiResourceAssignment.assign(slots));
+    }
+
+    /**
+     * Tests that an earlier choice is moved when that is the only way to fill all slots.
+     */
+    @Test
+    public void testAugmenting() {
+        List<List<ExternalResource>> slots = new ArrayList<List<ExternalResource>>();
+        slots.add(Arrays.asList(phone1, phone2));
+        slots.add(Arrays.asList(phone1, simBox));
+        slots.add(Arrays.asList(phone1, phone2));
+        assertEquals(Arrays.asList(phone1, simBox, phone2), MultiResourceAssignment.assign(slots));
+    }
+
+    /**
+     * Tests that nothing is assigned when there are too few resources.
+     */
+    @Test
+    public void testNotEnough() {
+        List<List<ExternalResource>> slots = new ArrayList<List<ExternalResource>>();
+        slots.add(Arrays.asList(phone1, phone2));
+        slots.add(Arrays.asList(phone1, phone2));
+        slots.add(Arrays.asList(phone2));
+        assertNull(MultiResourceAssignment.assign(slots));
+    }
+
+    /**
+     * Tests that builds are served in order of rank, that a build further down never takes from one before it and
+     * that a build that can't get everything gets nothing.
+     */
+    @Test
+    public void testAssignByRank() {
+        List<List<List<ExternalResource>>> demands = new ArrayList<List<List<ExternalResource>>>();
+        List<List<ExternalResource>> first = new ArrayList<List<ExternalResource>>();
+        first.add(Arrays.asList(phone1, phone2));
+        demands.add(first);
+        List<List<ExternalResource>> second = new ArrayList<List<ExternalResource>>();
+        second.add(Arrays.asList(phone1, phone2));
+        second.add(Arrays.asList(phone1, phone2));
+        demands.add(second);
+        List<List<ExternalResource>> third = new ArrayList<List<ExternalResource>>();
+        third.add(Arrays.asList(phone1));
+        third.add(Arrays.asList(simBox));
+        demands.add(third);
+        List<List<ExternalResource>> fourth = new ArrayList<List<ExternalResource>>();
+        fourth.add(Arrays.asList(simBox));
+        demands.add(fourth);
+
+        List<List<ExternalResource>> shares = MultiResourceAssignment.assignByRank(demands);
+        //CS IGNORE MagicNumber FOR NEXT 4 LINES. REASON: TestData.
+        assertEquals(4, shares.size());
+        assertEquals(Arrays.asList(phone1), shares.get(0));
+        assertNull(shares.get(1));
+        assertNull(shares.get(2));
+        assertEquals(Arrays.asList(simBox), shares.get(3));
+    }
+
+    /**
+     * Tests that a build before in line is moved to another resource to make room for one further down.
+     */
+    @Test
+    public void testAssignByRankMakesRoom() {
+        List<List<List<ExternalResource>>> demands = new ArrayList<List<List<ExternalResource>>>();
+        List<List<ExternalResource>> first = new ArrayList<List<ExternalResource>>();
+        first.add(Arrays.asList(phone1, phone2));
+        demands.add(first);
+        List<List<ExternalResource>> second = new ArrayList<List<ExternalResource>>();
+        second.add(Arrays.asList(phone1));
+        demands.add(second);
+
+        List<List<ExternalResource>> shares = MultiResourceAssignment.assignByRank(demands);
+        assertEquals(Arrays.asList(phone2), shares.get(0));
+        assertEquals(Arrays.asList(phone1), shares.get(1));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for {@link PlacementPlanner}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class PlacementPlannerTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData.
+
+    private final PlacementPlanner.Candidate common = new PlacementPlanner.Candidate("nodeA", "common");
+    private final PlacementPlanner.Candidate scarce = new PlacementPlanner.Candidate("nodeB", "scarce");
+
+    /**
+     * Tests that the item that can only use the scarce resource gets it, even though the generic item has waited
+     * longer.
+     */
+    @Test
+    public void testScarceFirst() {
+        PlacementPlanner.Demand generic = new PlacementPlanner.Demand(1, 100, Arrays.asList(scarce, common));
+        PlacementPlanner.Demand specific = new PlacementPlanner.Demand(2, 200, Arrays.asList(scarce));
+        Map<Integer, PlacementPlanner.Candidate> plan = PlacementPlanner.assign(Arrays.asList(generic, specific),
+                Collections.<Integer, PlacementPlanner.Candidate>emptyMap());
+        assertEquals(scarce, plan.get(2));
+        assertEquals(common, plan.get(1));
+    }
+
+    /**
+     * Tests that a previous assignment is kept when possible, and moved when that lets one more item be placed.
+     */
+    @Test
+    public void testPreviousAndAugment() {
+        PlacementPlanner.Candidate other = new PlacementPlanner.Candidate("nodeA", "other");
+        PlacementPlanner.Demand first = new PlacementPlanner.Demand(1, 100, Arrays.asList(scarce, common));
+        PlacementPlanner.Demand second = new PlacementPlanner.Demand(2, 200, Arrays.asList(scarce, other));
+        PlacementPlanner.Demand third = new PlacementPlanner.Demand(3, 300, Arrays.asList(scarce));
+        Map<Integer, PlacementPlanner.Candidate> previous = new HashMap<Integer, PlacementPlanner.Candidate>();
+        previous.put(1, scarce);
+        previous.put(2, other);
+        Map<Integer, PlacementPlanner.Candidate> plan = PlacementPlanner.assign(
+                Arrays.asList(first, second, third), previous);
+        assertEquals(3, plan.size());
+        assertEquals(scarce, plan.get(3));
+        assertEquals(common, plan.get(1));
+        assertEquals(other, plan.get(2));
+    }
+
+    /**
+     * Tests that items that can't all be satisfied are placed as many as possible, oldest first.
+     */
+    @Test
+    public void testNotEnough() {
+        PlacementPlanner.Demand older = new PlacementPlanner.Demand(1, 100, Arrays.asList(scarce));
+        PlacementPlanner.Demand newer = new PlacementPlanner.Demand(2, 200, Arrays.asList(scarce));
+        Map<Integer, PlacementPlanner.Candidate> plan = PlacementPlanner.assign(Arrays.asList(newer, older),
+                Collections.<Integer, PlacementPlanner.Candidate>emptyMap());
+        assertEquals(1, plan.size());
+        assertEquals(scarce, plan.get(1));
+        assertNull(plan.get(2));
+    }
+
+    /**
+     * Tests when the plan is considered to be stale.
+     */
+    @Test
+    public void testStale() {
+        PlacementPlanner planner = new PlacementPlanner();
+        assertTrue(planner.isStale(1, 1));
+        planner.update(Arrays.asList(new PlacementPlanner.Demand(1, 100, Arrays.asList(scarce))), 1);
+        assertFalse(planner.isStale(1, 1));
+        //Changed, but recomputed too recently.
+        assertFalse(planner.isStale(2, 1));
+        assertFalse(planner.isStale(1, 2));
+        assertEquals(scarce, planner.getAssignment(1));
+        assertTrue(planner.getAssignment(1).isOn("nodeB"));
+        assertFalse(planner.getAssignment(1).isOn(null));
+    }
+
+    /**
+     * Tests that a resource planned for one item is reported as taken for all other items.
+     */
+    @Test
+    public void testPlannedForOther() {
+        PlacementPlanner planner = new PlacementPlanner();
+        assertFalse(planner.isPlannedForOther(scarce, 2));
+        planner.update(Arrays.asList(new PlacementPlanner.Demand(1, 100, Arrays.asList(scarce))), 1);
+        assertFalse(planner.isPlannedForOther(scarce, 1));
+        assertTrue(planner.isPlannedForOther(scarce, 2));
+        assertFalse(planner.isPlannedForOther(common, 2));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Tests for {@link PriorityRanking}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class PriorityRankingTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData.
+
+    /**
+     * Tests that a build gains a point of priority for every aging interval it waits.
+     */
+    @Test
+    public void testScore() {
+        assertEquals(2.0, PriorityRanking.score(2, 0, 600000, 0), 0.0001);
+        assertEquals(12.0, PriorityRanking.score(2, 0, 600000, 60), 0.0001);
+        assertEquals(2.5, PriorityRanking.score(2, 570000, 600000, 60), 0.0001);
+        assertEquals(2.0, PriorityRanking.score(2, 700000, 600000, 60), 0.0001);
+    }
+
+    /**
+     * Tests that the highest priority goes first without aging and that ties are broken by waiting time.
+     */
+    @Test
+    public void testSortWithoutAging() {
+        List<PriorityRanking.Waiting> waiting = new ArrayList<PriorityRanking.Waiting>();
+        waiting.add(new PriorityRanking.Waiting(1, 1000, 0, null));
+        waiting.add(new PriorityRanking.Waiting(2, 5000, 5, null));
+        waiting.add(new PriorityRanking.Waiting(3, 500, 0, null));
+        PriorityRanking.sort(waiting, 600000, 0);
+        assertEquals(2, waiting.get(0).getItemId());
+        assertEquals(3, waiting.get(1).getItemId());
+        assertEquals(1, waiting.get(2).getItemId());
+    }
+
+    /**
+     * Tests that a build that has waited long enough passes a newer build with a higher priority.
+     */
+    @Test
+    public void testAging() {
+        List<PriorityRanking.Waiting> waiting = new ArrayList<PriorityRanking.Waiting>();
+        waiting.add(new PriorityRanking.Waiting(1, 590000, 5, null));
+        waiting.add(new PriorityRanking.Waiting(2, 0, 0, null));
+        PriorityRanking.sort(waiting, 600000, 60);
+        assertEquals(2, waiting.get(0).getItemId());
+        assertEquals(10.0, waiting.get(0).getScore(), 0.0001);
+
+        waiting.add(new PriorityRanking.Waiting(3, 0, 0, null));
+        PriorityRanking.sort(waiting, 60000, 60);
+        assertEquals(1, waiting.get(0).getItemId());
+    }
+
+    /**
+     * Tests that a build is placed in a sorted line the same way as sorting would.
+     */
+    @Test
+    public void testPosition() {
+        List<PriorityRanking.Waiting> waiting = new ArrayList<PriorityRanking.Waiting>();
+        PriorityRanking.Waiting first = new PriorityRanking.Waiting(1, 0, 5, null);
+        waiting.add(first);
+        waiting.add(new PriorityRanking.Waiting(2, 1000, 0, null));
+        waiting.add(new PriorityRanking.Waiting(3, 2000, 0, null));
+        PriorityRanking.sort(waiting, 600000, 0);
+
+        assertEquals(0, PriorityRanking.position(waiting, first, 600000, 0));
+        assertEquals(0, PriorityRanking.position(waiting, new PriorityRanking.Waiting(4, 5000, 9, null), 600000, 0));
+        assertEquals(2, PriorityRanking.position(waiting, new PriorityRanking.Waiting(5, 1500, 0, null), 600000, 0));
+        assertEquals(3, PriorityRanking.position(waiting, new PriorityRanking.Waiting(6, 3000, 0, null), 600000, 0));
+    }
+}
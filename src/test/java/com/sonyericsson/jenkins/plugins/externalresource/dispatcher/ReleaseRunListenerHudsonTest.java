@@ -31,6 +31,7 @@ import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.AbstractResourceSelection;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.StringResourceSelection;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ReleaseQueue;
 import hudson.model.Cause;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
@@ -90,6 +91,10 @@ public class ReleaseRunListenerHudsonTest extends HudsonTestCase {
                 Constants.getBuildLockedResourcePath());
         assertNotNull(buildResource);
         assertNull(buildResource.getLocked());
+        long start = System.currentTimeMillis();
+        while (ReleaseQueue.getInstance().getPendingCount() > 0 && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(50);
+        }
         assertNull(resource.getLocked());
     }
 }
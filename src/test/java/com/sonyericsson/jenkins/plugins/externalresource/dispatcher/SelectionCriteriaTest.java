@@ -24,10 +24,13 @@
  */
 package com.sonyericsson.jenkins.plugins.externalresource.dispatcher;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.AbstractResourceSelection;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.ResourceGroup;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.SelectionMatcher;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.StringResourceSelection;
 import junit.framework.Assert;
 import org.junit.Test;
@@ -71,4 +74,60 @@ public class SelectionCriteriaTest {
         Assert.assertEquals("Orange", TreeStructureUtil.getPath(matchingResources.get(0), "sim", "operator")
                 .getValue());
     }
+
+    /**
+     * Tests that the compiled matcher is reused between calls.
+     */
+    @Test
+    public void testMatcherIsReused() {
+        List<AbstractResourceSelection> resourceSelectionList = new LinkedList<AbstractResourceSelection>();
+        resourceSelectionList.add(new StringResourceSelection("sim.operator", "Orange"));
+        SelectionCriteria sc = new SelectionCriteria(true, resourceSelectionList);
+        Assert.assertSame(sc.getMatcher(), sc.getMatcher());
+        Assert.assertEquals(1, sc.getMatcher().size());
+        ExternalResource er = new ExternalResource("er", "1");
+        TreeStructureUtil.addValue(er, "Orange", "description", "sim", "operator");
+        Assert.assertTrue(sc.getMatcher().matches(er));
+    }
+
+    /**
+     * Tests the slots and the names they are exposed under for a criteria with groups.
+     */
+    @Test
+    public void testGroups() {
+        List<AbstractResourceSelection> resourceSelectionList = new LinkedList<AbstractResourceSelection>();
+        resourceSelectionList.add(new StringResourceSelection("sim.operator", "Orange"));
+        List<AbstractResourceSelection> phoneSelection = new LinkedList<AbstractResourceSelection>();
+        phoneSelection.add(new StringResourceSelection("product.label.name", "Anzu"));
+        List<ResourceGroup> groups = new LinkedList<ResourceGroup>();
+        groups.add(new ResourceGroup("phone", 2, phoneSelection));
+        groups.add(new ResourceGroup("", 1, new LinkedList<AbstractResourceSelection>()));
+        groups.add(new ResourceGroup("none", 0, phoneSelection));
+        SelectionCriteria sc = new SelectionCriteria(true, resourceSelectionList, groups);
+
+        Assert.assertTrue(sc.hasSelection());
+        Assert.assertTrue(sc.isMultiResource());
+        List<SelectionMatcher> slots = sc.getSlots();
+        //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: TestData.
+        Assert.assertEquals(4, slots.size());
+        Assert.assertSame(sc.getMatcher(), slots.get(0));
+        Assert.assertSame(groups.get(0).getMatcher(), slots.get(1));
+        Assert.assertSame(groups.get(0).getMatcher(), slots.get(2));
+        Assert.assertEquals(Arrays.asList(Constants.BUILD_LOCKED_RESOURCE_NAME, "phone1", "phone2",
+                Constants.BUILD_LOCKED_RESOURCE_NAME + "1"), sc.getSlotNames());
+    }
+
+    /**
+     * Tests that a criteria without groups is a single resource criteria, like before there were groups.
+     */
+    @Test
+    public void testNoGroups() {
+        List<AbstractResourceSelection> resourceSelectionList = new LinkedList<AbstractResourceSelection>();
+        resourceSelectionList.add(new StringResourceSelection("sim.operator", "Orange"));
+        SelectionCriteria sc = new SelectionCriteria(true, resourceSelectionList);
+        Assert.assertTrue(sc.hasSelection());
+        Assert.assertFalse(sc.isMultiResource());
+        Assert.assertEquals(1, sc.getSlots().size());
+        Assert.assertEquals(Arrays.asList(Constants.BUILD_LOCKED_RESOURCE_NAME), sc.getSlotNames());
+    }
 }
@@ -33,6 +33,7 @@ import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.MockUtils;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.PluginImpl;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ResourceMonitorExternalResourceManager;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
 import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.NoopExternalResourceManager;
@@ -40,16 +41,21 @@ import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.security.ACL;
 import hudson.util.DescribableList;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.mockito.ArgumentCaptor;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import javax.servlet.ServletOutputStream;
+import java.io.BufferedReader;
+import java.io.StringReader;
 import java.util.Collections;
 import java.util.LinkedList;
 
@@ -61,6 +67,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -336,4 +343,81 @@ public class ExternalResourceHttpCommandsTest {
         clientInfo.put("url", "");
         action.doLockResource("testNode", id, "IReservedIt", clientInfo.toString(), response);
     }
+
+    /**
+     * Tests {@link ExternalResourceHttpCommands#doBatch(org.kohsuke.stapler.StaplerRequest,
+     * org.kohsuke.stapler.StaplerResponse)} with a mix of good and bad operations.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testDoBatch() throws Exception {
+        ExternalResource one = new ExternalResource("One", "One", "1", true, Collections.<MetadataValue>emptyList());
+        ExternalResource two = new ExternalResource("Two", "Two", "2", true, Collections.<MetadataValue>emptyList());
+        two.setLocked(new StashInfo(StashInfo.StashType.EXTERNAL, "someone", null, null));
+        TreeStructureUtil.addValue(container, one, "test", "path");
+        TreeStructureUtil.addValue(container, two, "test", "path");
+        JSONArray operations = new JSONArray();
+        operations.add(batchOperation("lock", "1"));
+        operations.add(batchOperation("release", "2"));
+        operations.add(batchOperation("lock", "3"));
+        operations.add(batchOperation("explode", "1"));
+        StaplerRequest request = mock(StaplerRequest.class);
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(operations.toString())));
+
+        action.doBatch(request, response);
+
+        assertNotNull(one.getLocked());
+        assertEquals("batcher", one.getLocked().getStashedBy());
+        assertNull(two.getLocked());
+        verify(container, times(1)).save();
+        ArgumentCaptor<String> output = ArgumentCaptor.forClass(String.class);
+        verify(out).print(output.capture());
+        JSONObject json = JSONObject.fromObject(output.getValue());
+        assertEquals("ok", json.getString("type"));
+        JSONArray results = json.getJSONArray("results");
+        assertEquals(operations.size(), results.size());
+        assertEquals("ok", results.getJSONObject(0).getString("status"));
+        assertEquals("ok", results.getJSONObject(1).getString("status"));
+        assertEquals("error", results.getJSONObject(2).getString("status"));
+        assertEquals("error", results.getJSONObject(3).getString("status"));
+    }
+
+    /**
+     * Tests {@link ExternalResourceHttpCommands#doBatch(org.kohsuke.stapler.StaplerRequest,
+     * org.kohsuke.stapler.StaplerResponse)} with a body that is valid JSON but not a batch.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testDoBatchNotAnArray() throws Exception {
+        StaplerRequest request = mock(StaplerRequest.class);
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader("42")));
+
+        action.doBatch(request, response);
+
+        verify(container, never()).save();
+        ArgumentCaptor<String> output = ArgumentCaptor.forClass(String.class);
+        verify(out).print(output.capture());
+        JSONObject json = JSONObject.fromObject(output.getValue());
+        assertEquals("error", json.getString("type"));
+    }
+
+    /**
+     * Creates one operation for a batch.
+     *
+     * @param op the operation.
+     * @param id the resource id.
+     * @return the operation.
+     */
+    private JSONObject batchOperation(String op, String id) {
+        JSONObject operation = new JSONObject();
+        operation.put("op", op);
+        operation.put("node", "testNode");
+        operation.put("id", id);
+        operation.put("by", "batcher");
+        return operation;
+    }
 }
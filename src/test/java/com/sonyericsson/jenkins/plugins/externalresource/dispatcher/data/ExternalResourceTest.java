@@ -52,6 +52,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 //CS IGNORE MagicNumber FOR NEXT 200 LINES. REASON: Test data.
@@ -246,4 +248,46 @@ public class ExternalResourceTest {
         resource.setEnabled(true);
         assertTrue(resource.isEnabled());
     }
+
+    /**
+     * Tests the free, reserved, locked and free transitions of {@link ExternalResource#getState()}.
+     */
+    @Test
+    public void testStateTransitions() {
+        ExternalResource resource = new ExternalResource("name", "id");
+        assertSame(ResourceState.FREE, resource.getState());
+        StashInfo reservation = new StashInfo(StashInfo.StashType.INTERNAL, "me", null, "key");
+        assertTrue(resource.tryReserve(reservation));
+        assertSame(reservation, resource.getReserved());
+        assertFalse(resource.isAvailable());
+        assertFalse(resource.tryReserve(new StashInfo(StashInfo.StashType.INTERNAL, "other", null, "key2")));
+        assertSame(reservation, resource.getReserved());
+
+        StashInfo lock = new StashInfo(StashInfo.StashType.INTERNAL, "me", null, "key");
+        assertFalse(resource.tryLock(lock, "key2"));
+        assertTrue(resource.tryLock(lock, "key"));
+        assertNull(resource.getReserved());
+        assertSame(lock, resource.getLocked());
+        assertFalse(resource.tryLock(lock, "key"));
+
+        resource.release();
+        assertTrue(resource.isAvailable());
+        assertSame(ResourceState.FREE, resource.getState());
+    }
+
+    /**
+     * Tests that a compare and set with an old state fails.
+     */
+    @Test
+    public void testCompareAndSetState() {
+        ExternalResource resource = new ExternalResource("name", "id");
+        ResourceState free = resource.getState();
+        StashInfo reservation = new StashInfo(StashInfo.StashType.INTERNAL, "me", null, "key");
+        assertTrue(resource.compareAndSetState(free, ResourceState.reserved(reservation)));
+        assertFalse(resource.compareAndSetState(free, ResourceState.reserved(reservation)));
+        resource.setLocked(reservation);
+        assertNull(resource.getState().getReserved());
+        resource.setLocked(null);
+        assertSame(ResourceState.FREE, resource.getState());
+    }
 }
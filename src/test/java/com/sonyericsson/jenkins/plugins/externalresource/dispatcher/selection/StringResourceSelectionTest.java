@@ -0,0 +1,76 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection;
+
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for {@link StringResourceSelection}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class StringResourceSelectionTest {
+
+    /**
+     * Tests that {@link StringResourceSelection#splitPath(String)} gives the same result as a regexp split.
+     */
+    @Test
+    public void testSplitPath() {
+        String[] names = {"product.label.name", "name", "", "a..b", ".a", "a.b.", };
+        for (String name : names) {
+            assertEquals(name, Arrays.asList(name.split("\\.")),
+                    Arrays.asList(StringResourceSelection.splitPath(name)));
+        }
+    }
+
+    /**
+     * Tests that the path is only split once.
+     */
+    @Test
+    public void testPathIsCached() {
+        StringResourceSelection selection = new StringResourceSelection("product.label.name", "Anzu");
+        assertSame(selection.getPath(), selection.getPath());
+    }
+
+    /**
+     * Tests {@link StringResourceSelection#equalToExternalResourceValue(ExternalResource)}.
+     */
+    @Test
+    public void testEqualToExternalResourceValue() {
+        ExternalResource er = new ExternalResource("er", "1");
+        TreeStructureUtil.addValue(er, "Anzu", "description", "product", "label", "name");
+        assertTrue(new StringResourceSelection("product.label.name", "Anzu").equalToExternalResourceValue(er));
+        assertFalse(new StringResourceSelection("product.label.name", "Hallon").equalToExternalResourceValue(er));
+        assertFalse(new StringResourceSelection("product.label.other", "Anzu").equalToExternalResourceValue(er));
+    }
+}
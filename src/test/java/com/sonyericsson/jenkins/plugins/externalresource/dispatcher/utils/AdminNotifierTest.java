@@ -40,6 +40,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.text.MessageFormat;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.fail;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.StringContains.containsString;
@@ -88,6 +89,7 @@ public class AdminNotifierTest {
         AdminNotifier.getInstance().setAdminFile("/tmp/notify.csv");
         AdminNotifier.getInstance().notify(AdminNotifier.MessageType.ERROR,
                 AdminNotifier.OperationType.LOCK, node, er, message);
+        AdminNotifier.getInstance().flush();
         String lastLine = getLastLine("/tmp/notify.csv");
         assertThat(lastLine, containsString(expectedMessage));
         try {
@@ -97,6 +99,36 @@ public class AdminNotifierTest {
         }
     }
 
+    /**
+     * Tests that the file is rotated and compressed when it gets too big.
+     *
+     * @throws IOException if so.
+     */
+    @Test
+    public void testRotation() throws IOException {
+        File dir = new File("/tmp/notify-rotation");
+        cleanFile(dir.getPath());
+        AdminNotifier notifier = AdminNotifier.getInstance();
+        notifier.setAdminFile(new File(dir, "notify.csv").getPath());
+        notifier.setMaxFileSize(1);
+        try {
+            notifier.notify(AdminNotifier.MessageType.ERROR, AdminNotifier.OperationType.LOCK, node, null, "first");
+            notifier.flush();
+            notifier.notify(AdminNotifier.MessageType.ERROR, AdminNotifier.OperationType.LOCK, node, null, "second");
+            notifier.flush();
+            //Rotated again, most likely within the same second.
+            notifier.notify(AdminNotifier.MessageType.ERROR, AdminNotifier.OperationType.LOCK, node, null, "third");
+            notifier.flush();
+            String[] names = dir.list();
+            assertEquals(3, names.length);
+            assertThat(getLastLine(new File(dir, "notify.csv").getPath()), containsString("third"));
+        } finally {
+            notifier.setMaxFileSize(AdminNotifier.MAX_FILE_SIZE);
+            notifier.setAdminFile("/tmp/notify.csv");
+            cleanFile(dir.getPath());
+        }
+    }
+
     /**
      * Get the last line of the file.
      *
@@ -0,0 +1,108 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataContainer;
+import org.junit.After;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link ContainerSaver}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ContainerSaverTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData.
+
+    /**
+     * Turns the interval off again.
+     */
+    @After
+    public void tearDown() {
+        ContainerSaver.getInstance().setInterval(0);
+    }
+
+    /**
+     * Tests that the container is saved right away without an interval.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testSaveRightAway() throws Exception {
+        MetadataContainer container = mock(MetadataContainer.class);
+        ContainerSaver.getInstance().save(container);
+        verify(container).save();
+        assertEquals(0, ContainerSaver.getInstance().getDirtyCount());
+    }
+
+    /**
+     * Tests that several changes to the same container are saved once.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        ContainerSaver saver = ContainerSaver.getInstance();
+        saver.setInterval(200);
+        MetadataContainer container = mock(MetadataContainer.class);
+        MetadataContainer other = mock(MetadataContainer.class);
+        saver.save(container);
+        saver.save(container);
+        saver.save(other);
+        saver.save(container);
+        verify(container, never()).save();
+        assertEquals(2, saver.getDirtyCount());
+        long start = System.currentTimeMillis();
+        while (saver.getDirtyCount() > 0 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        //Waits for the background flush to finish.
+        saver.flush();
+        verify(container, times(1)).save();
+        verify(other, times(1)).save();
+    }
+
+    /**
+     * Tests that flush saves everything that is dirty.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        ContainerSaver saver = ContainerSaver.getInstance();
+        saver.setInterval(60000);
+        MetadataContainer container = mock(MetadataContainer.class);
+        saver.save(container);
+        saver.flush();
+        verify(container).save();
+        assertEquals(0, saver.getDirtyCount());
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import hudson.Util;
+import hudson.model.Node;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link EventJournal}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class EventJournalTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 250 LINES. REASON: TestData.
+
+    private File directory;
+    private EventJournal journal;
+
+    /**
+     * Creates a journal in a temporary directory.
+     *
+     * @throws Exception if so.
+     */
+    @Before
+    public void setUp() throws Exception {
+        directory = Util.createTempDir();
+        journal = new EventJournal();
+    }
+
+    /**
+     * Stops the journal and removes the directory.
+     *
+     * @throws Exception if so.
+     */
+    @After
+    public void tearDown() throws Exception {
+        journal.stop();
+        Util.deleteRecursive(directory);
+    }
+
+    /**
+     * Tests that recorded events can be read back.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRecordAndRead() throws Exception {
+        Node node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("journalNode");
+        ExternalResource resource = new ExternalResource("phone", "1");
+        journal.start(directory, 10, 10);
+        journal.record(EventJournal.Operation.RESERVE, node, resource, "job/test/", new StashResult("ok", "key"),
+                1000);
+        journal.record(EventJournal.Operation.LOCK, node, resource, "job/test/1/", new StashResult(3, "no"), 2000);
+        journal.record(EventJournal.Operation.RELEASE, node, resource, "job/test/1/", null, 3000);
+        journal.stop();
+
+        List<EventJournal.Event> events = readAll();
+        assertEquals(3, events.size());
+        EventJournal.Event reserve = events.get(0);
+        assertEquals(EventJournal.Operation.RESERVE, reserve.getOperation());
+        assertEquals(EventJournal.Status.OK, reserve.getStatus());
+        assertEquals("journalNode", reserve.getNodeName());
+        assertEquals("1", reserve.getResourceId());
+        assertEquals("job/test/", reserve.getOwner());
+        assertEquals(1000, reserve.getLatency());
+        assertTrue(reserve.getTime() > 0);
+        EventJournal.Event lock = events.get(1);
+        assertEquals(EventJournal.Status.FAILED, lock.getStatus());
+        assertEquals(3, lock.getResultCode());
+        assertEquals("job/test/1/", lock.getOwner());
+        assertEquals(EventJournal.Status.NONE, events.get(2).getStatus());
+    }
+
+    /**
+     * Tests that a full segment rolls over to a new one and that a restarted journal continues after the last record.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRollAndRestart() throws Exception {
+        journal.start(directory, 4, 10);
+        for (int i = 0; i < 6; i++) {
+            journal.record(i + 1, EventJournal.Operation.RESERVE, EventJournal.Status.OK, "node", "r" + i, null, 0,
+                    i);
+        }
+        journal.stop();
+        journal.start(directory, 4, 10);
+        assertTrue(journal.isStarted());
+        journal.record(7, EventJournal.Operation.RELEASE, EventJournal.Status.OK, "node", "r0", "owner", 0, 7);
+        journal.stop();
+        assertFalse(journal.isStarted());
+
+        List<EventJournal.Event> events = readAll();
+        assertEquals(7, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(i + 1, events.get(i).getTime());
+        }
+        assertEquals("r5", events.get(5).getResourceId());
+        assertNull(events.get(5).getOwner());
+        assertEquals("r0", events.get(6).getResourceId());
+        assertEquals(EventJournal.Operation.RELEASE, events.get(6).getOperation());
+    }
+
+    /**
+     * Tests that nothing is written when the journal isn't started.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testNotStarted() throws Exception {
+        journal.record(EventJournal.Operation.RESERVE, null, null, null, null, 0);
+        assertEquals(0, readAll().size());
+    }
+
+    /**
+     * Tests that only the newest segments are kept.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testPrune() throws Exception {
+        journal.start(directory, 2, 2);
+        for (int i = 0; i < 7; i++) {
+            journal.record(i + 1, EventJournal.Operation.RESERVE, EventJournal.Status.OK, "node", "r", null, 0, i);
+        }
+        journal.stop();
+        journal.start(directory, 2, 2);
+        journal.record(8, EventJournal.Operation.RELEASE, EventJournal.Status.OK, "node", "r", null, 0, 8);
+        journal.stop();
+
+        List<EventJournal.Event> events = readAll();
+        assertEquals(4, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(i + 5, events.get(i).getTime());
+        }
+    }
+
+    /**
+     * Tests that the builds of a project share the name of the project and still read back as build urls.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testOwners() throws Exception {
+        journal.start(directory, 10, 10);
+        String[] owners = {"job/test/1/", "job/test/2/", "job/test/", "job/test/01/", "job/test/3", "7/", "someone"};
+        for (int i = 0; i < owners.length; i++) {
+            journal.record(i + 1, EventJournal.Operation.LOCK, EventJournal.Status.OK, "node", "r", owners[i], 0, i);
+        }
+        journal.stop();
+
+        List<EventJournal.Event> events = readAll();
+        assertEquals(owners.length, events.size());
+        for (int i = 0; i < owners.length; i++) {
+            assertEquals(owners[i], events.get(i).getOwner());
+        }
+        String names = Util.loadFile(new File(directory, "names.txt"));
+        assertFalse(names.contains("job/test/1/"));
+        assertFalse(names.contains("job/test/2/"));
+    }
+
+    /**
+     * Tests that a restarted journal knows the owners it has already named.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testOwnersAfterRestart() throws Exception {
+        journal.start(directory, 10, 10);
+        journal.record(1, EventJournal.Operation.LOCK, EventJournal.Status.OK, "node", "r", "job/test/1/", 0, 1);
+        journal.stop();
+        journal.start(directory, 10, 10);
+        journal.record(2, EventJournal.Operation.LOCK, EventJournal.Status.OK, "node", "r", "job/test/2/", 0, 2);
+        journal.stop();
+
+        List<EventJournal.Event> events = readAll();
+        assertEquals("job/test/1/", events.get(0).getOwner());
+        assertEquals("job/test/2/", events.get(1).getOwner());
+        String names = Util.loadFile(new File(directory, "names.txt"));
+        assertEquals(names.indexOf("job/test/"), names.lastIndexOf("job/test/"));
+    }
+
+    /**
+     * Tests that the names that are only used by deleted segments are removed from the names file.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testPruneCompactsNames() throws Exception {
+        journal.start(directory, 2, 2);
+        for (int i = 0; i < 6; i++) {
+            journal.record(i + 1, EventJournal.Operation.RESERVE, EventJournal.Status.OK, "node", "r" + i, null, 0,
+                    i);
+        }
+        journal.stop();
+
+        List<EventJournal.Event> events = readAll();
+        assertEquals(4, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals("node", events.get(i).getNodeName());
+            assertEquals("r" + (i + 2), events.get(i).getResourceId());
+        }
+        String names = Util.loadFile(new File(directory, "names.txt"));
+        assertFalse(names.contains("\tr0\n"));
+        assertFalse(names.contains("\tr1\n"));
+        assertTrue(names.contains("\tr5\n"));
+    }
+
+    /**
+     * Tests that a record with an unknown operation is skipped when the journal is read.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testCorruptRecord() throws Exception {
+        journal.start(directory, 10, 10);
+        journal.record(1, EventJournal.Operation.RESERVE, EventJournal.Status.OK, "node", "r", null, 0, 1);
+        journal.record(2, EventJournal.Operation.LOCK, EventJournal.Status.OK, "node", "r", null, 0, 2);
+        journal.stop();
+        RandomAccessFile segment = new RandomAccessFile(new File(directory, "journal-00000000.bin"), "rw");
+        try {
+            //The operation of the first record.
+            segment.seek(EventJournal.HEADER_SIZE + 8);
+            segment.writeShort(99);
+        } finally {
+            segment.close();
+        }
+
+        List<EventJournal.Event> events = readAll();
+        assertEquals(1, events.size());
+        assertEquals(EventJournal.Operation.LOCK, events.get(0).getOperation());
+    }
+
+    /**
+     * Reads the whole journal into a list.
+     *
+     * @return the events.
+     * @throws Exception if so.
+     */
+    private List<EventJournal.Event> readAll() throws Exception {
+        final List<EventJournal.Event> events = new ArrayList<EventJournal.Event>();
+        EventJournal.read(directory, new EventJournal.Visitor() {
+            @Override
+            public void visit(EventJournal.Event event) {
+                events.add(event);
+            }
+        });
+        return events;
+    }
+}
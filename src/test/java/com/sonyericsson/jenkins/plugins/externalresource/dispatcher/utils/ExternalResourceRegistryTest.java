@@ -0,0 +1,217 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.AbstractResourceSelection;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.SelectionMatcher;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.StringResourceSelection;
+import hudson.model.Node;
+import hudson.util.DescribableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ExternalResourceRegistry}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ExternalResourceRegistryTest {
+
+    private Node node;
+    private DescribableList nodeProperties;
+    private MetadataNodeProperty property;
+    private ExternalResource one;
+    private ExternalResource two;
+
+    /**
+     * Creates a node with two resources on it.
+     */
+    @Before
+    public void setUp() {
+        property = new MetadataNodeProperty(new LinkedList<MetadataValue>());
+        one = new ExternalResource("one", "1");
+        TreeStructureUtil.addValue(one, "Anzu", "description", "product", "name");
+        TreeStructureUtil.addValue(one, "Orange", "description", "sim", "operator");
+        TreeStructureUtil.addValue(property, one, "attached");
+        two = new ExternalResource("two", "2");
+        TreeStructureUtil.addValue(two, "Anzu", "description", "product", "name");
+        TreeStructureUtil.addValue(two, "Telia", "description", "sim", "operator");
+        TreeStructureUtil.addValue(property, two, "attached", "deeper");
+
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("registryNode");
+        nodeProperties = mock(DescribableList.class);
+        when(nodeProperties.get(MetadataNodeProperty.class)).thenReturn(property);
+        when(node.getNodeProperties()).thenReturn(nodeProperties);
+        ExternalResourceRegistry.getInstance().invalidateAll();
+    }
+
+    /**
+     * Tests that the list is built once and reused.
+     */
+    @Test
+    public void testGetExternalResourcesIsCached() {
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        List<ExternalResource> first = registry.getExternalResources(node);
+        assertNotNull(first);
+        assertEquals(2, first.size());
+        assertSame(first, registry.getExternalResources(node));
+    }
+
+    /**
+     * Tests {@link ExternalResourceRegistry#getExternalResourceById(hudson.model.Node, String)}.
+     */
+    @Test
+    public void testGetExternalResourceById() {
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        assertEquals("1", registry.getExternalResourceById(node, "1").getId());
+        assertEquals("2", registry.getExternalResourceById(node, "2").getId());
+        assertNull(registry.getExternalResourceById(node, "3"));
+    }
+
+    /**
+     * Tests that an invalidated property is scanned again.
+     */
+    @Test
+    public void testInvalidate() {
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        List<ExternalResource> before = registry.getExternalResources(node);
+        long version = registry.getVersion();
+        TreeStructureUtil.addValue(property, new ExternalResource("three", "3"), "attached");
+        registry.invalidate(property);
+        assertTrue(registry.getVersion() > version);
+        List<ExternalResource> after = registry.getExternalResources(node);
+        assertEquals(2, before.size());
+        //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: TestData.
+        assertEquals(3, after.size());
+    }
+
+    /**
+     * Tests that a resource added without an invalidation is still found by id.
+     */
+    @Test
+    public void testUnindexedResourceIsFound() {
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        registry.getExternalResources(node);
+        TreeStructureUtil.addValue(property, new ExternalResource("three", "3"), "attached");
+        assertNotNull(registry.getExternalResourceById(node, "3"));
+        //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: TestData.
+        assertEquals(3, registry.getExternalResources(node).size());
+    }
+
+    /**
+     * Tests that a reconfigured node, with a new property instance, is scanned again.
+     */
+    @Test
+    public void testNewPropertyInstance() {
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        registry.getExternalResources(node);
+        MetadataNodeProperty newProperty = new MetadataNodeProperty(new LinkedList<MetadataValue>());
+        TreeStructureUtil.addValue(newProperty, new ExternalResource("other", "4"), "attached");
+        when(nodeProperties.get(MetadataNodeProperty.class)).thenReturn(newProperty);
+        List<ExternalResource> list = registry.getExternalResources(node);
+        assertEquals(1, list.size());
+        assertEquals("4", list.get(0).getId());
+    }
+
+    /**
+     * Tests {@link ExternalResourceRegistry#getMatchingResources(hudson.model.Node, SelectionMatcher)}.
+     */
+    @Test
+    public void testGetMatchingResources() {
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        List<ExternalResource> list = registry.getMatchingResources(node, matcher("product.name", "Anzu"));
+        assertEquals(2, list.size());
+        assertSame(one, list.get(0));
+        assertSame(two, list.get(1));
+
+        list = registry.getMatchingResources(node, matcher("product.name", "Anzu", "sim.operator", "Telia"));
+        assertEquals(1, list.size());
+        assertSame(two, list.get(0));
+
+        list = registry.getMatchingResources(node, matcher("product.name", "Hallon"));
+        assertTrue(list.isEmpty());
+    }
+
+    /**
+     * Tests that reserving, locking and disabling a resource removes it from the matching resources,
+     * and that releasing it brings it back.
+     */
+    @Test
+    public void testStateChanges() {
+        ExternalResourceRegistry registry = ExternalResourceRegistry.getInstance();
+        SelectionMatcher matcher = matcher("product.name", "Anzu");
+        assertEquals(2, registry.getMatchingResources(node, matcher).size());
+        long version = registry.getVersion();
+
+        one.setReserved(new StashInfo(StashInfo.StashType.INTERNAL, "me", null, "key"));
+        assertTrue(registry.getVersion() > version);
+        List<ExternalResource> list = registry.getMatchingResources(node, matcher);
+        assertEquals(1, list.size());
+        assertSame(two, list.get(0));
+
+        two.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "me", null, "key"));
+        assertTrue(registry.getMatchingResources(node, matcher).isEmpty());
+        assertFalse(registry.hasEnabledAndAvailable(node));
+
+        one.setReserved(null);
+        two.setLocked(null);
+        two.setEnabled(false);
+        list = registry.getMatchingResources(node, matcher);
+        assertEquals(1, list.size());
+        assertSame(one, list.get(0));
+        assertTrue(registry.hasEnabledAndAvailable(node));
+    }
+
+    /**
+     * Creates a matcher of string selections.
+     *
+     * @param nameValues name, value pairs.
+     * @return the matcher.
+     */
+    private SelectionMatcher matcher(String... nameValues) {
+        List<AbstractResourceSelection> list = new LinkedList<AbstractResourceSelection>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            list.add(new StringResourceSelection(nameValues[i], nameValues[i + 1]));
+        }
+        return SelectionMatcher.compile(list);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.googlecode.jsonrpc4j.JsonRpcHttpClient;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants;
+import org.junit.After;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+/**
+ * Tests for the cached clients in {@link JsonRpcUtil}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class JsonRpcUtilTest {
+
+    /**
+     * Restores the default timeouts and clears the cache.
+     */
+    @After
+    public void tearDown() {
+        JsonRpcUtil.setTimeouts(Constants.DEFAULT_RPC_CONNECTION_TIMEOUT, Constants.DEFAULT_RPC_READ_TIMEOUT);
+        JsonRpcUtil.clearClientCache();
+    }
+
+    /**
+     * Tests that the same client is returned for the same url and mapper.
+     */
+    @Test
+    public void testClientIsCached() {
+        JsonRpcHttpClient client = JsonRpcUtil.getJsonRpcClient("http://host1:8080/", true);
+        assertNotNull(client);
+        assertSame(client, JsonRpcUtil.getJsonRpcClient("http://host1:8080/", true));
+        assertNotSame(client, JsonRpcUtil.getJsonRpcClient("http://host1:8080/", false));
+        assertNotSame(client, JsonRpcUtil.getJsonRpcClient("http://host2:8080/", true));
+    }
+
+    /**
+     * Tests that changed timeouts gives new clients.
+     */
+    @Test
+    public void testNewTimeouts() {
+        JsonRpcHttpClient client = JsonRpcUtil.getJsonRpcClient("http://host1:8080/", true);
+        //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: TestData.
+        JsonRpcUtil.setTimeouts(1000, 2000);
+        assertNotSame(client, JsonRpcUtil.getJsonRpcClient("http://host1:8080/", true));
+    }
+
+    /**
+     * Tests that a malformed url gives no client.
+     */
+    @Test
+    public void testMalformedUrl() {
+        assertNull(JsonRpcUtil.getJsonRpcClient("nothing://at all", true));
+        assertNull(JsonRpcUtil.getJsonRpcClient(null, false));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.veto.BecauseNoMatchingResource;
+import hudson.model.Node;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link LatencyHistogram} and {@link DispatcherMetrics}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class LatencyHistogramTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData.
+
+    /**
+     * Tests that every value falls within its bucket and that buckets don't overlap.
+     */
+    @Test
+    public void testBuckets() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789L, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.highestValueOf(bucket));
+            if (bucket > 0) {
+                assertTrue(value > LatencyHistogram.highestValueOf(bucket - 1));
+            }
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    /**
+     * Tests the percentiles of a uniform distribution.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        long p50 = histogram.getValueAtPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.125);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(50));
+    }
+
+    /**
+     * Tests that the metrics are counted and show up in the JSON.
+     */
+    @Test
+    public void testMetricsJson() {
+        DispatcherMetrics metrics = new DispatcherMetrics();
+        Node node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("metricsNode");
+        metrics.canTake(null, 2000);
+        metrics.canTake(new BecauseNoMatchingResource(node), 3000);
+        metrics.canTake(new BecauseNoMatchingResource(node), 4000);
+        metrics.candidates(3);
+        metrics.operation(EventJournal.Operation.RESERVE, node, 5000000);
+        metrics.operation(EventJournal.Operation.RELEASE, null, 1000);
+
+        assertEquals(1, metrics.getVerdictCount(DispatcherMetrics.VERDICT_OK));
+        assertEquals(2, metrics.getVerdictCount("BecauseNoMatchingResource"));
+        JSONObject json = metrics.toJson();
+        assertEquals(3, json.getJSONObject("canTake").getLong("count"));
+        assertEquals(4, json.getJSONObject("canTake").getLong("max"));
+        assertEquals(3, json.getJSONObject("candidates").getLong("max"));
+        assertEquals(2, json.getJSONObject("verdicts").getLong("BecauseNoMatchingResource"));
+        JSONObject operations = json.getJSONObject("operations");
+        assertEquals(5000, operations.getJSONObject("reserve").getJSONObject("metricsNode").getLong("max"));
+        assertEquals(1, operations.getJSONObject("release").getJSONObject("(master)").getLong("count"));
+        assertTrue(operations.getJSONObject("lock").isEmpty());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.Lease;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.model.BuildListener;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Node;
+import hudson.model.Result;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link LeaseManager}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(AdminNotifier.class)
+@SuppressStaticInitializationFor("com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.AdminNotifier")
+public class LeaseManagerTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 150 LINES. REASON: TestData.
+
+    private static final long NOW = 1000000;
+
+    private Node node;
+    private ExternalResource first;
+    private ExternalResource second;
+    private ExternalResourceManager manager;
+    private FreeStyleBuild build;
+    private BuildListener listener;
+
+    /**
+     * Creates a lease that expires at the given time.
+     *
+     * @param millis the time.
+     * @return the lease.
+     */
+    private static Lease lease(long millis) {
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(millis);
+        return new Lease(time, null);
+    }
+
+    /**
+     * Creates two resources on a node, a running build and mocks for the manager and the admin notifier.
+     */
+    @Before
+    public void setUp() {
+        PowerMockito.mockStatic(AdminNotifier.class);
+        when(AdminNotifier.getInstance()).thenReturn(PowerMockito.mock(AdminNotifier.class));
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("leaseNode");
+        MetadataNodeProperty property = new MetadataNodeProperty(new LinkedList<MetadataValue>());
+        first = new ExternalResource("first", "1");
+        second = new ExternalResource("second", "2");
+        TreeStructureUtil.addValue(property, first, "attached");
+        TreeStructureUtil.addValue(property, second, "attached");
+        manager = mock(ExternalResourceManager.class);
+        build = mock(FreeStyleBuild.class);
+        when(build.isBuilding()).thenReturn(true);
+        listener = mock(BuildListener.class);
+        when(listener.getLogger()).thenReturn(new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    /**
+     * Tests that the leases that are about to expire are renewed in one call for the node,
+     * and that the others are left alone.
+     */
+    @Test
+    public void testRenew() {
+        first.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", lease(NOW + 30000), "key1"));
+        second.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", lease(NOW + 300000), "key2"));
+        StashResult result = new StashResult(0, "ok", "key1", StashResult.Status.OK, lease(NOW + 120000));
+        when(manager.renew(same(node), eq(Arrays.asList(first)), eq(Arrays.asList("key1"))))
+                .thenReturn(Arrays.asList(result));
+        LeaseManager leases = new LeaseManager(manager, 60000);
+        leases.track(build, listener, node, first);
+        leases.track(build, listener, node, second);
+
+        leases.heartbeat(NOW);
+        assertEquals(NOW + 120000, first.getLocked().getLease().getServerTime().getTimeInMillis());
+        assertEquals("key1", first.getLocked().getKey());
+        assertEquals(NOW + 300000, second.getLocked().getLease().getServerTime().getTimeInMillis());
+        assertEquals(2, leases.getActiveCount());
+        verify(build, never()).setResult(any(Result.class));
+    }
+
+    /**
+     * Tests that a lock the service no longer holds is removed and the build marked as unstable.
+     */
+    @Test
+    public void testLostMarksUnstable() {
+        first.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", lease(NOW + 30000), "key1"));
+        when(manager.renew(same(node), anyListOf(ExternalResource.class), anyListOf(String.class)))
+                .thenReturn(Arrays.asList(new StashResult(2, "not locked")));
+        LeaseManager leases = new LeaseManager(manager, 60000);
+        leases.track(build, listener, node, first);
+
+        leases.heartbeat(NOW);
+        assertNull(first.getLocked());
+        assertEquals(0, leases.getActiveCount());
+        verify(build).setResult(Result.UNSTABLE);
+    }
+
+    /**
+     * Tests that the build is aborted when so configured.
+     */
+    @Test
+    public void testLostAborts() {
+        Executor executor = mock(Executor.class);
+        when(build.getExecutor()).thenReturn(executor);
+        first.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", null, "key1"));
+        when(manager.renew(same(node), anyListOf(ExternalResource.class), anyListOf(String.class)))
+                .thenReturn(Arrays.asList(new StashResult(2, "not locked")));
+        LeaseManager leases = new LeaseManager(manager, 60000);
+        leases.setAbortOnLostLock(true);
+        leases.track(build, listener, node, first);
+
+        //A lock without a lease is checked once per margin.
+        leases.heartbeat(System.currentTimeMillis());
+        verify(executor, never()).interrupt(any(Result.class));
+        leases.heartbeat(System.currentTimeMillis() + 60000);
+        assertNull(first.getLocked());
+        verify(executor).interrupt(Result.ABORTED);
+        verify(build, never()).setResult(any(Result.class));
+    }
+
+    /**
+     * Tests that a lock that couldn't be renewed is kept, and that locks of completed builds aren't renewed.
+     */
+    @Test
+    public void testNotRenewedAndUntrack() {
+        first.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", lease(NOW - 1000), "key1"));
+        when(manager.renew(same(node), anyListOf(ExternalResource.class), anyListOf(String.class)))
+                .thenReturn(Arrays.<StashResult>asList((StashResult)null));
+        LeaseManager leases = new LeaseManager(manager, 60000);
+        leases.track(build, listener, node, first);
+
+        leases.heartbeat(NOW);
+        assertEquals("key1", first.getLocked().getKey());
+        assertEquals(1, leases.getActiveCount());
+        verify(build, never()).setResult(any(Result.class));
+
+        leases.untrack(build);
+        assertEquals(0, leases.getActiveCount());
+    }
+}
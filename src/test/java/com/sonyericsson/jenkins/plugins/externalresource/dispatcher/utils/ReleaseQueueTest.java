@@ -0,0 +1,247 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.model.Node;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ReleaseQueue}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ReleaseQueueTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 150 LINES. REASON: TestData.
+
+    private Node node;
+    private ExternalResource first;
+    private ExternalResource second;
+    private ExternalResourceManager manager;
+
+    /**
+     * Creates two locked resources on a node and a mocked manager.
+     */
+    @Before
+    public void setUp() {
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("releaseNode");
+        MetadataNodeProperty property = new MetadataNodeProperty(new LinkedList<MetadataValue>());
+        first = new ExternalResource("first", "1");
+        first.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", null, "key1"));
+        second = new ExternalResource("second", "2");
+        second.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/2/", null, "key2"));
+        TreeStructureUtil.addValue(property, first, "attached");
+        TreeStructureUtil.addValue(property, second, "attached");
+        manager = mock(ExternalResourceManager.class);
+    }
+
+    /**
+     * Waits for the queue to become empty, or for five seconds.
+     *
+     * @param queue the queue.
+     * @throws InterruptedException if so.
+     */
+    private void waitForEmpty(ReleaseQueue queue) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (queue.getPendingCount() > 0 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Tests that a failed release is retried until it succeeds.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRetry() throws Exception {
+        when(manager.release(same(node), same(first), eq("key1"), anyString()))
+                .thenReturn(new StashResult(1, "host down"), new StashResult("ok", "key1"));
+        ReleaseQueue queue = new ReleaseQueue(manager, 10, 5);
+        queue.submit(node, first, "key1", "job/a/1/");
+        waitForEmpty(queue);
+        assertEquals(0, queue.getPendingCount());
+        verify(manager, times(2)).release(same(node), same(first), eq("key1"), anyString());
+    }
+
+    /**
+     * Tests that nothing is done when the resource is no longer locked with the same key.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testNoLongerLocked() throws Exception {
+        ReleaseQueue queue = new ReleaseQueue(manager, 10, 5);
+        queue.submit(node, first, "otherKey", "job/a/1/");
+        waitForEmpty(queue);
+        assertEquals(0, queue.getPendingCount());
+        verify(manager, never()).release(same(node), same(first), anyString(), anyString());
+    }
+
+    /**
+     * Tests that the rest of the batch waits when a release on the same node fails.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testBatchWaitsAfterFailure() throws Exception {
+        when(manager.release(same(node), same(first), eq("key1"), anyString()))
+                .thenReturn(new StashResult(1, "host down"));
+        ReleaseQueue queue = new ReleaseQueue(manager, 60000, 5);
+        //Hold the queue so both releases end up in the same batch.
+        synchronized (queue) {
+            queue.submit(node, first, "key1", "job/a/1/");
+            queue.submit(node, second, "key2", "job/a/2/");
+        }
+        long start = System.currentTimeMillis();
+        while (queue.getPending().get(0).getAttempts() == 0 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(2, queue.getPendingCount());
+        verify(manager, never()).release(same(node), same(second), anyString(), anyString());
+        for (ReleaseQueue.PendingRelease release : queue.getPending()) {
+            assertEquals(queue.getPending().get(0).getNextAttempt(), release.getNextAttempt());
+        }
+    }
+
+    /**
+     * Tests that pending releases are loaded from the file on start.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testPersisted() throws Exception {
+        when(manager.release(same(node), same(first), eq("key1"), anyString()))
+                .thenReturn(new StashResult(1, "host down"));
+        File file = File.createTempFile("releaseQueue", ".xml");
+        file.deleteOnExit();
+        ReleaseQueue queue = new ReleaseQueue(manager, 60000, 5);
+        queue.start(file);
+        queue.submit(node, first, "key1", "job/a/1/");
+        long start = System.currentTimeMillis();
+        while (queue.getPending().get(0).getAttempts() == 0 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+
+        ReleaseQueue restarted = new ReleaseQueue(manager, 60000, 5);
+        restarted.start(file);
+        List<ReleaseQueue.PendingRelease> pending = restarted.getPending();
+        assertEquals(1, pending.size());
+        assertEquals("releaseNode", pending.get(0).getNodeName());
+        assertEquals("1", pending.get(0).getResourceId());
+        assertEquals("job/a/1/", pending.get(0).getReleasedBy());
+        assertEquals(1, pending.get(0).getAttempts());
+    }
+
+    /**
+     * Tests that stopping the queue writes what is still pending, so it is loaded again on the next start.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testStop() throws Exception {
+        when(manager.release(same(node), same(first), eq("key1"), anyString()))
+                .thenReturn(new StashResult(1, "host down"));
+        File file = File.createTempFile("releaseQueue", ".xml");
+        file.deleteOnExit();
+        ReleaseQueue queue = new ReleaseQueue(manager, 60000, 5);
+        queue.start(file);
+        queue.submit(node, first, "key1", "job/a/1/");
+        queue.stop();
+
+        ReleaseQueue restarted = new ReleaseQueue(manager, 60000, 5);
+        restarted.start(file);
+        assertEquals(1, restarted.getPendingCount());
+        assertEquals("1", restarted.getPending().get(0).getResourceId());
+    }
+
+    /**
+     * Tests that releases submitted after the queue has been stopped are still made.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testSubmitAfterStop() throws Exception {
+        when(manager.release(same(node), same(first), eq("key1"), anyString()))
+                .thenReturn(new StashResult("ok", "key1"));
+        ReleaseQueue queue = new ReleaseQueue(manager, 10, 5);
+        queue.stop();
+        queue.submit(node, first, "key1", "job/a/1/");
+        waitForEmpty(queue);
+        assertEquals(0, queue.getPendingCount());
+        verify(manager).release(same(node), same(first), eq("key1"), anyString());
+    }
+
+    /**
+     * Tests that a lock without a key doesn't break the batch.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testNullKey() throws Exception {
+        first.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", null, null));
+        ReleaseQueue queue = new ReleaseQueue(manager, 10, 5);
+        queue.submit(node, first, "key1", "job/a/1/");
+        waitForEmpty(queue);
+        assertEquals(0, queue.getPendingCount());
+        verify(manager, never()).release(same(node), same(first), anyString(), anyString());
+    }
+
+    /**
+     * Tests the exponential backoff.
+     */
+    @Test
+    public void testBackoff() {
+        ReleaseQueue queue = new ReleaseQueue(manager, 1000, 5);
+        assertEquals(1000, queue.getBackoff(1));
+        assertEquals(2000, queue.getBackoff(2));
+        assertEquals(8000, queue.getBackoff(4));
+        assertEquals(ReleaseQueue.MAX_BACKOFF, queue.getBackoff(100));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for {@link ReservationExpiry}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ReservationExpiryTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData.
+
+    /**
+     * Tests that a reservation expires.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testExpires() throws Exception {
+        ExternalResource resource = reserved("expires");
+        ReservationExpiry.getInstance().schedule(resource, resource.getReserved(), 200);
+        assertFalse(resource.isAvailable());
+        waitForAvailable(resource, 5000);
+        assertTrue(resource.isAvailable());
+    }
+
+    /**
+     * Tests that a cancelled timeout doesn't expire the reservation.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        ExternalResource resource = reserved("cancel");
+        ReservationExpiry.getInstance().schedule(resource, resource.getReserved(), 100);
+        ReservationExpiry.getInstance().cancel(resource);
+        waitForAvailable(resource, 500);
+        assertFalse(resource.isAvailable());
+    }
+
+    /**
+     * Tests that a resource that has been locked is left alone.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testLockedIsLeftAlone() throws Exception {
+        ExternalResource resource = reserved("locked");
+        ReservationExpiry.getInstance().schedule(resource, resource.getReserved(), 100);
+        StashInfo lock = new StashInfo(StashInfo.StashType.INTERNAL, "me", null, "key");
+        resource.setLocked(lock);
+        waitForAvailable(resource, 500);
+        assertSame(lock, resource.getLocked());
+        assertNull(resource.getReserved());
+    }
+
+    /**
+     * Tests that the reservation of a resource whose instance has been replaced expires on the replacement.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testReplaced() throws Exception {
+        ExternalResource old = reserved("replaced");
+        ReservationExpiry.getInstance().schedule(old, old.getReserved(), 200);
+        ExternalResource replacement = new ExternalResource("replaced", "replaced");
+        replacement.replacementOf(old);
+        assertSame(old.getReserved(), replacement.getReserved());
+        waitForAvailable(replacement, 5000);
+        assertTrue(replacement.isAvailable());
+    }
+
+    /**
+     * Tests that timeouts scheduled before a stop still expire when the worker is started again.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testStop() throws Exception {
+        ExternalResource before = reserved("beforeStop");
+        ReservationExpiry.getInstance().schedule(before, before.getReserved(), 300);
+        ReservationExpiry.getInstance().stop();
+        ExternalResource after = reserved("afterStop");
+        ReservationExpiry.getInstance().schedule(after, after.getReserved(), 100);
+        waitForAvailable(before, 5000);
+        assertTrue(before.isAvailable());
+        assertTrue(after.isAvailable());
+    }
+
+    /**
+     * Creates a reserved resource.
+     *
+     * @param id the id.
+     * @return the resource.
+     */
+    private ExternalResource reserved(String id) {
+        ExternalResource resource = new ExternalResource(id, id);
+        assertTrue(resource.tryReserve(new StashInfo(StashInfo.StashType.INTERNAL, "me", null, "key")));
+        return resource;
+    }
+
+    /**
+     * Waits for the resource to become available.
+     *
+     * @param resource the resource.
+     * @param millis   the maximum time to wait.
+     * @throws InterruptedException if so.
+     */
+    private void waitForAvailable(ExternalResource resource, long millis) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!resource.isAvailable() && System.currentTimeMillis() - start < millis) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.model.Node;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ReservationPipeline}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ReservationPipelineTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 150 LINES. REASON: TestData.
+
+    /**
+     * Creates a mocked manager that reserves any of the resources with the default implementation.
+     *
+     * @return the manager.
+     */
+    private ExternalResourceManager mockManager() {
+        ExternalResourceManager manager = mock(ExternalResourceManager.class);
+        when(manager.reserveAny(any(Node.class), anyListOf(ExternalResource.class), anyInt(), anyString()))
+                .thenCallRealMethod();
+        return manager;
+    }
+
+    /**
+     * Tests that the first resource that can be reserved ends up in the ticket.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testSubmit() throws Exception {
+        Node node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("pipelineNode");
+        ExternalResource first = new ExternalResource("first", "1");
+        ExternalResource second = new ExternalResource("second", "2");
+        ExternalResourceManager manager = mockManager();
+        when(manager.reserve(same(node), same(first), anyInt(), anyString()))
+                .thenReturn(new StashResult(1, "taken"));
+        when(manager.reserve(same(node), same(second), anyInt(), anyString()))
+                .thenReturn(new StashResult("ok", "key"));
+
+        ReservationPipeline pipeline = ReservationPipeline.getInstance();
+        ReservationPipeline.Ticket ticket = pipeline.submit(4711, node, Arrays.asList(first, second), manager, 3,
+                "job/test/");
+        assertSame(ticket, pipeline.submit(4711, node, Arrays.asList(first), manager, 3, "job/test/"));
+        long start = System.currentTimeMillis();
+        while (!ticket.isDone() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertTrue(ticket.isDone());
+        assertTrue(ticket.isFor(node));
+        assertSame(second, ticket.getReserved());
+        assertSame(ticket, pipeline.remove(4711));
+        assertNull(pipeline.getTicket(4711));
+    }
+
+    /**
+     * Tests that a ticket where nothing could be reserved is done without a resource.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testNothingReserved() throws Exception {
+        Node node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("pipelineNode");
+        ExternalResource first = new ExternalResource("first", "1");
+        ExternalResourceManager manager = mockManager();
+        when(manager.reserve(same(node), same(first), eq(3), anyString()))
+                .thenReturn(new StashResult(1, "taken"));
+
+        ReservationPipeline pipeline = ReservationPipeline.getInstance();
+        ReservationPipeline.Ticket ticket = pipeline.submit(4712, node, Arrays.asList(first), manager, 3,
+                "job/test/");
+        long start = System.currentTimeMillis();
+        while (!ticket.isDone() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertTrue(ticket.isDone());
+        assertNull(ticket.getReserved());
+        pipeline.remove(4712);
+        assertFalse(ticket.getFinished() == 0);
+    }
+
+    /**
+     * Tests that reservations submitted after the pipeline has been stopped are still made by a worker thread, and
+     * not by the caller.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testSubmitAfterStop() throws Exception {
+        Node node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("pipelineNode");
+        ExternalResource first = new ExternalResource("first", "1");
+        ExternalResourceManager manager = mockManager();
+        final Thread[] reservingThread = new Thread[1];
+        when(manager.reserve(same(node), same(first), anyInt(), anyString())).thenAnswer(new Answer<StashResult>() {
+            @Override
+            public StashResult answer(InvocationOnMock invocation) throws Throwable {
+                reservingThread[0] = Thread.currentThread();
+                return new StashResult("ok", "key");
+            }
+        });
+
+        ReservationPipeline pipeline = ReservationPipeline.getInstance();
+        pipeline.stop();
+        ReservationPipeline.Ticket ticket = pipeline.submit(4713, node, Arrays.asList(first), manager, 3,
+                "job/test/");
+        long start = System.currentTimeMillis();
+        while (!ticket.isDone() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertTrue(ticket.isDone());
+        assertSame(first, ticket.getReserved());
+        assertNotSame(Thread.currentThread(), reservingThread[0]);
+        pipeline.remove(4713);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.AbstractResourceSelection;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.SelectionMatcher;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.selection.StringResourceSelection;
+import hudson.model.Node;
+import hudson.util.DescribableList;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ResourceStateExport}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ResourceStateExportTest {
+
+    private List<Node> nodes;
+
+    /**
+     * Creates two nodes with a free, a reserved and a locked resource.
+     */
+    @Before
+    public void setUp() {
+        ExternalResource free = new ExternalResource("free", "1");
+        TreeStructureUtil.addValue(free, "Anzu", "description", "product", "name");
+        ExternalResource reserved = new ExternalResource("reserved", "2");
+        TreeStructureUtil.addValue(reserved, "Nozomi", "description", "product", "name");
+        reserved.setReserved(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/", null, "secret"));
+        ExternalResource locked = new ExternalResource("locked", "3");
+        TreeStructureUtil.addValue(locked, "Anzu", "description", "product", "name");
+        locked.setLocked(new StashInfo(StashInfo.StashType.EXTERNAL, "job/b/1/", null, "secret"));
+        nodes = Arrays.asList(mockNode("first", free, reserved), mockNode("second", locked));
+        ExternalResourceRegistry.getInstance().invalidateAll();
+    }
+
+    /**
+     * Creates a node with the resources attached.
+     *
+     * @param name      the node name.
+     * @param resources the resources.
+     * @return the node.
+     */
+    private Node mockNode(String name, ExternalResource... resources) {
+        MetadataNodeProperty property = new MetadataNodeProperty(new LinkedList<MetadataValue>());
+        for (ExternalResource resource : resources) {
+            TreeStructureUtil.addValue(property, resource, "attached");
+        }
+        Node node = mock(Node.class);
+        when(node.getNodeName()).thenReturn(name);
+        DescribableList properties = mock(DescribableList.class);
+        when(properties.get(MetadataNodeProperty.class)).thenReturn(property);
+        when(node.getNodeProperties()).thenReturn(properties);
+        return node;
+    }
+
+    /**
+     * Exports and parses the lines.
+     *
+     * @param export the export.
+     * @return the lines.
+     * @throws Exception if so.
+     */
+    private List<JSONObject> export(ResourceStateExport export) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int count = export.write(nodes, out);
+        List<JSONObject> lines = new LinkedList<JSONObject>();
+        for (String line : out.toString("UTF-8").split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(JSONObject.fromObject(line));
+            }
+        }
+        assertEquals(count, lines.size());
+        return lines;
+    }
+
+    /**
+     * Tests that everything is exported one resource per line without the keys.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testExportAll() throws Exception {
+        List<JSONObject> lines = export(new ResourceStateExport(null, null, null));
+        //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: TestData.
+        assertEquals(3, lines.size());
+        assertEquals("1", lines.get(0).getString("id"));
+        assertEquals("first", lines.get(0).getString("node"));
+        assertTrue(lines.get(0).getJSONObject("reserved").isNullObject());
+        JSONObject reserved = lines.get(1).getJSONObject("reserved");
+        assertEquals("job/a/", reserved.getString("stashed-by"));
+        assertTrue(!reserved.has("key"));
+        assertEquals("second", lines.get(2).getString("node"));
+        assertEquals("EXTERNAL", lines.get(2).getJSONObject("locked").getString("type"));
+    }
+
+    /**
+     * Tests the node, state and selection filters.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testFilters() throws Exception {
+        assertEquals(2, export(new ResourceStateExport("first", null, null)).size());
+        List<JSONObject> locked = export(new ResourceStateExport(null, ResourceStateExport.StateFilter.LOCKED, null));
+        assertEquals(1, locked.size());
+        assertEquals("3", locked.get(0).getString("id"));
+        SelectionMatcher anzu = SelectionMatcher.compile(Collections.<AbstractResourceSelection>singletonList(
+                new StringResourceSelection("product.name", "Anzu")));
+        assertEquals(2, export(new ResourceStateExport(null, null, anzu)).size());
+        List<JSONObject> freeAnzu = export(new ResourceStateExport(null, ResourceStateExport.StateFilter.FREE, anzu));
+        assertEquals(1, freeAnzu.size());
+        assertEquals("1", freeAnzu.get(0).getString("id"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers.ExternalResourceManager;
+import hudson.model.Node;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ResourceUsageHistory}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ResourceUsageHistoryTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData.
+
+    private ResourceUsageHistory history;
+    private Node node;
+    private ExternalResource resource;
+
+    /**
+     * Creates the history and some common data.
+     */
+    @Before
+    public void setUp() {
+        history = new ResourceUsageHistory();
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("historyNode");
+        resource = new ExternalResource("phone", "1");
+    }
+
+    /**
+     * Tests that a resource without history is considered unused and healthy.
+     */
+    @Test
+    public void testUnknown() {
+        assertNull(history.getUsage(node, resource));
+        assertEquals(0, history.getLastUsed(node, resource));
+        assertEquals(1.0, history.getHealth(node, resource), 0.0001);
+    }
+
+    /**
+     * Tests that a successful reservation is recorded.
+     */
+    @Test
+    public void testReserved() {
+        long before = System.currentTimeMillis();
+        history.reserved(node, resource, new StashResult("ok", "key"));
+        assertTrue(history.getLastUsed(node, resource) >= before);
+        assertEquals(1, history.getUsage(node, resource).getUseCount());
+        assertEquals(1.0, history.getHealth(node, resource), 0.0001);
+    }
+
+    /**
+     * Tests that failures lower the health but a resource taken by someone else doesn't.
+     */
+    @Test
+    public void testHealth() {
+        history.reserved(node, resource, new StashResult(ExternalResourceManager.ERROR_CODE_TAKEN, "taken"));
+        assertEquals(1.0, history.getHealth(node, resource), 0.0001);
+        assertEquals(0, history.getUsage(node, resource).getUseCount());
+
+        history.locked(node, resource, new StashResult(17, "broken"));
+        history.released(node, resource, null);
+        assertEquals(0.64, history.getHealth(node, resource), 0.0001);
+        assertEquals(2, history.getUsage(node, resource).getFailures());
+
+        history.reserved(node, resource, new StashResult("ok", "key"));
+        assertEquals(0.712, history.getHealth(node, resource), 0.0001);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils;
+
+import com.sonyericsson.hudson.plugins.metadata.model.MetadataNodeProperty;
+import com.sonyericsson.hudson.plugins.metadata.model.values.MetadataValue;
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashInfo;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for {@link StateChangeFeed}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class StateChangeFeedTest {
+
+    private ExternalResource resource;
+
+    /**
+     * Creates a resource attached to a node property.
+     */
+    @Before
+    public void setUp() {
+        MetadataNodeProperty property = new MetadataNodeProperty(new LinkedList<MetadataValue>());
+        resource = new ExternalResource("feed", "1");
+        TreeStructureUtil.addValue(property, resource, "attached");
+    }
+
+    /**
+     * Tests that every kind of transition ends up in the feed.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testTransitions() throws Exception {
+        StateChangeFeed feed = StateChangeFeed.getInstance();
+        StateChangeFeed.Subscriber subscriber = feed.subscribe(-1);
+        try {
+            StashInfo reservation = new StashInfo(StashInfo.StashType.INTERNAL, "job/a/", null, "key");
+            resource.tryReserve(reservation);
+            resource.expireReservation(reservation);
+            resource.tryReserve(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/", null, "key"));
+            resource.tryLock(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", null, "key"), "key");
+            resource.release();
+            resource.release();
+            resource.setEnabled(false);
+
+            StateChangeFeed.Type[] expected = {StateChangeFeed.Type.RESERVE, StateChangeFeed.Type.EXPIRE,
+                    StateChangeFeed.Type.RESERVE, StateChangeFeed.Type.LOCK, StateChangeFeed.Type.RELEASE,
+                    StateChangeFeed.Type.DISABLE, };
+            StateChangeFeed.State[] states = {StateChangeFeed.State.RESERVED, StateChangeFeed.State.FREE,
+                    StateChangeFeed.State.RESERVED, StateChangeFeed.State.LOCKED, StateChangeFeed.State.FREE,
+                    StateChangeFeed.State.FREE, };
+            for (int i = 0; i < expected.length; i++) {
+                StateChangeFeed.Event event = subscriber.poll(1, TimeUnit.SECONDS);
+                assertNotNull(event);
+                assertEquals(expected[i], event.getType());
+                assertEquals(states[i], event.getState());
+                assertEquals("1", event.getResourceId());
+            }
+            assertTrue(subscriber.drain().isEmpty());
+        } finally {
+            feed.unsubscribe(subscriber);
+        }
+    }
+
+    /**
+     * Tests that a subscriber can resume from a sequence number.
+     */
+    @Test
+    public void testResume() {
+        StateChangeFeed feed = StateChangeFeed.getInstance();
+        long cursor = feed.getSequence();
+        resource.setEnabled(false);
+        resource.setEnabled(true);
+        StateChangeFeed.Subscriber subscriber = feed.subscribe(cursor);
+        try {
+            List<StateChangeFeed.Event> events = subscriber.drain();
+            assertEquals(2, events.size());
+            assertEquals(cursor + 1, events.get(0).getSequence());
+            assertEquals(StateChangeFeed.Type.ENABLE, events.get(1).getType());
+            assertFalse(subscriber.hasMissed());
+        } finally {
+            feed.unsubscribe(subscriber);
+        }
+    }
+
+    /**
+     * Tests that a subscriber resuming from a sequence number of before a restart is told that it has missed events.
+     */
+    @Test
+    public void testResumeAfterRestart() {
+        StateChangeFeed feed = new StateChangeFeed();
+        feed.enabledChanged(resource);
+        StateChangeFeed.Subscriber subscriber = feed.subscribe(5);
+        assertTrue(subscriber.hasMissed());
+        assertTrue(subscriber.drain().isEmpty());
+        subscriber = feed.subscribe(feed.getEpoch() - 1, 0);
+        assertTrue(subscriber.hasMissed());
+        assertTrue(subscriber.drain().isEmpty());
+        subscriber = feed.subscribe(feed.getEpoch(), 0);
+        assertFalse(subscriber.hasMissed());
+        assertEquals(1, subscriber.drain().size());
+    }
+
+    /**
+     * Tests that changes to a resource that isn't attached to a node, like the copy attached to a build, aren't
+     * published.
+     */
+    @Test
+    public void testDetachedCopy() {
+        StateChangeFeed feed = StateChangeFeed.getInstance();
+        ExternalResource copy = new ExternalResource("feed", "1");
+        copy.setLocked(new StashInfo(StashInfo.StashType.INTERNAL, "job/a/1/", null, "key"));
+        StateChangeFeed.Subscriber subscriber = feed.subscribe(-1);
+        try {
+            copy.setLocked(null);
+            copy.setEnabled(false);
+            assertTrue(subscriber.drain().isEmpty());
+        } finally {
+            feed.unsubscribe(subscriber);
+        }
+    }
+
+    /**
+     * Tests that a subscriber that doesn't keep up is dropped.
+     */
+    @Test
+    public void testSlowSubscriberIsDropped() {
+        StateChangeFeed feed = StateChangeFeed.getInstance();
+        StateChangeFeed.Subscriber subscriber = feed.subscribe(-1);
+        int subscribers = feed.getSubscriberCount();
+        for (int i = 0; i <= StateChangeFeed.SUBSCRIBER_CAPACITY; i++) {
+            resource.setEnabled(i % 2 == 0);
+        }
+        assertTrue(subscriber.isDropped());
+        assertEquals(subscribers - 1, feed.getSubscriberCount());
+        assertEquals(StateChangeFeed.SUBSCRIBER_CAPACITY, subscriber.drain().size());
+    }
+}
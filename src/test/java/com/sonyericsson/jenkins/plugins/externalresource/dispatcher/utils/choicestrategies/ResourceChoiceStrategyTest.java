@@ -0,0 +1,159 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.choicestrategies;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.ResourceUsageHistory;
+import hudson.model.Node;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link ResourceChoiceStrategy} implementations.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class ResourceChoiceStrategyTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 200 LINES. REASON: TestData.
+
+    private Node node;
+    private ExternalResource first;
+    private ExternalResource second;
+    private ExternalResource third;
+    private List<ExternalResource> resources;
+    private ResourceUsageHistory history;
+
+    /**
+     * Creates some common data. The history is mocked so that the tests decide when things were used.
+     */
+    @Before
+    public void setUp() {
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("strategyNode");
+        first = new ExternalResource("first", "1");
+        second = new ExternalResource("second", "2");
+        third = new ExternalResource("third", "3");
+        resources = Arrays.asList(first, second, third);
+        history = mock(ResourceUsageHistory.class);
+        when(history.getHealth(node, first)).thenReturn(1.0);
+        when(history.getHealth(node, second)).thenReturn(1.0);
+        when(history.getHealth(node, third)).thenReturn(1.0);
+    }
+
+    /**
+     * Tests that {@link TreeOrderChoiceStrategy} keeps the order.
+     */
+    @Test
+    public void testTreeOrder() {
+        assertSame(resources, new TreeOrderChoiceStrategy().order(node, resources, history));
+    }
+
+    /**
+     * Tests that {@link LeastRecentlyUsedChoiceStrategy} puts never used resources first and the most recently used
+     * one last.
+     */
+    @Test
+    public void testLeastRecentlyUsed() {
+        when(history.getLastUsed(node, first)).thenReturn(2000L);
+        when(history.getLastUsed(node, second)).thenReturn(1000L);
+        when(history.getLastUsed(node, third)).thenReturn(0L);
+        assertEquals(Arrays.asList(third, second, first),
+                new LeastRecentlyUsedChoiceStrategy().order(node, resources, history));
+    }
+
+    /**
+     * Tests that {@link LeastRecentlyUsedChoiceStrategy} works with the real history.
+     */
+    @Test
+    public void testLeastRecentlyUsedWithHistory() {
+        ResourceUsageHistory real = ResourceUsageHistory.getInstance();
+        real.clear();
+        real.reserved(node, first, new StashResult("ok", "key"));
+        List<ExternalResource> ordered = new LeastRecentlyUsedChoiceStrategy().order(node, resources, real);
+        assertEquals(Arrays.asList(second, third, first), ordered);
+        real.clear();
+    }
+
+    /**
+     * Tests that {@link RoundRobinChoiceStrategy} starts one step further down each time and wraps around.
+     */
+    @Test
+    public void testRoundRobin() {
+        RoundRobinChoiceStrategy strategy = new RoundRobinChoiceStrategy();
+        assertEquals(Arrays.asList(first, second, third), strategy.order(node, resources, history));
+        assertEquals(Arrays.asList(second, third, first), strategy.order(node, resources, history));
+        assertEquals(Arrays.asList(third, first, second), strategy.order(node, resources, history));
+        assertEquals(Arrays.asList(first, second, third), strategy.order(node, resources, history));
+    }
+
+    /**
+     * Tests that {@link PowerOfTwoChoicesStrategy} never puts the most recently used resource first when there are
+     * more than two to choose from, and that it returns all of them.
+     */
+    @Test
+    public void testPowerOfTwoChoices() {
+        when(history.getLastUsed(node, first)).thenReturn(3000L);
+        when(history.getLastUsed(node, second)).thenReturn(1000L);
+        when(history.getLastUsed(node, third)).thenReturn(2000L);
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy(new Random(4711));
+        for (int i = 0; i < 50; i++) {
+            List<ExternalResource> ordered = strategy.order(node, resources, history);
+            assertEquals(3, ordered.size());
+            assertEquals(new HashSet<ExternalResource>(resources), new HashSet<ExternalResource>(ordered));
+            assertTrue(ordered.get(0) != first);
+        }
+    }
+
+    /**
+     * Tests that {@link HealthWeightedChoiceStrategy} puts the healthy resources first most of the time, but still
+     * tries the unhealthy one now and then.
+     */
+    @Test
+    public void testHealthWeighted() {
+        when(history.getHealth(node, first)).thenReturn(0.05);
+        HealthWeightedChoiceStrategy strategy = new HealthWeightedChoiceStrategy(new Random(4711));
+        int firstIsFirst = 0;
+        for (int i = 0; i < 1000; i++) {
+            List<ExternalResource> ordered = strategy.order(node, resources, history);
+            assertEquals(3, ordered.size());
+            if (ordered.get(0) == first) {
+                firstIsFirst++;
+            }
+        }
+        assertTrue("Unhealthy first " + firstIsFirst + " times", firstIsFirst > 0 && firstIsFirst < 100);
+    }
+}
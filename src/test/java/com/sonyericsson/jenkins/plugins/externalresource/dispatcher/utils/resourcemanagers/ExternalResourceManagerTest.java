@@ -24,7 +24,7 @@
  */
 package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
 
-//CS IGNORE LineLength FOR NEXT 35 LINES. REASON: imports.
+//CS IGNORE LineLength FOR NEXT 38 LINES. REASON: imports.
 
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.assertEquals;
@@ -41,12 +41,14 @@ import hudson.model.Node;
 
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.sf.json.JSONObject;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.api.mockito.PowerMockito;
@@ -83,6 +85,11 @@ public class ExternalResourceManagerTest {
      */
     private static final String RELEASE_METHOD = "ResourceMonitor.Resources.Release";
 
+    /**
+     * the method of renew.
+     */
+    private static final String RENEW_METHOD = "ResourceMonitor.Resources.Renew";
+
     /**
      * test reserve method.
      */
@@ -254,6 +261,66 @@ public class ExternalResourceManagerTest {
         assertEquals(reserveKey, sRes.getKey());
     }
 
+    /**
+     * test renew method, the leases of all locks are renewed with one call to the monitor.
+     */
+    @Test
+    public void testRenew() {
+        Hudson mockHudson = MockUtils.mockHudson();
+        when(mockHudson.getRootUrl()).thenReturn("jenkins");
+        ExternalResource first = new ExternalResource("id_1", "id_1");
+        ExternalResource second = new ExternalResource("id_2", "id_2");
+        String nodeName = "slave1";
+
+        RpcResult renewed = new RpcResult();
+        renewed.setCode(0);
+        renewed.setMessage("the lease is renewed");
+        renewed.setStatus(Status.OK);
+        renewed.setTime(new Date().getTime());
+        RpcResult dropped = new RpcResult();
+        dropped.setCode(1);
+        dropped.setMessage("not locked");
+        dropped.setStatus(Status.NO);
+
+        List<Map<String, Object>> locks = new ArrayList<Map<String, Object>>();
+        Map<String, Object> lock = new HashMap<String, Object>();
+        lock.put("resource", "id_1");
+        lock.put("key", "key1");
+        locks.add(lock);
+        lock = new HashMap<String, Object>();
+        lock.put("resource", "id_2");
+        lock.put("key", "key2");
+        locks.add(lock);
+        Map<String, Object> paramMap = new HashMap<String, Object>();
+        paramMap.put("locks", locks);
+        JSONObject clientInfo = new JSONObject();
+        clientInfo.put("id", "jenkins");
+        paramMap.put("clientInfo", clientInfo);
+
+        JsonRpcHttpClient mockRpcClient = PowerMockito.mock(JsonRpcHttpClient.class);
+        try {
+            when(mockRpcClient.invoke(RENEW_METHOD, new Object[]{paramMap},
+                    ResourceMonitorExternalResourceManager.RpcResult[].class)).thenReturn(
+                    new RpcResult[]{renewed, dropped});
+        } catch (Throwable e) {
+            e.printStackTrace();
+            fail();
+        }
+        mockJsonRpcUtil(mockRpcClient, nodeName);
+        Node n = mockNode(nodeName);
+
+        ExternalResourceManager rpcCallERM = new ResourceMonitorExternalResourceManager();
+
+        List<StashResult> results = rpcCallERM.renew(n, Arrays.asList(first, second), Arrays.asList("key1", "key2"));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isOk());
+        assertEquals("key1", results.get(0).getKey());
+        assertNotNull(results.get(0).getLease());
+        assertFalse(results.get(1).isOk());
+        assertEquals("not locked", results.get(1).getMessage());
+    }
+
     /**
      * mock job for the reserve method.
      * @param expectedOutput the expected {@link RpcResult}
@@ -281,24 +348,20 @@ public class ExternalResourceManagerTest {
      */
     private void mockJsonRpcUtil(JsonRpcHttpClient expectedClient, String nodeName) {
         PowerMockito.mockStatic(JsonRpcUtil.class);
-        when(JsonRpcUtil.createJsonRpcClient(MessageFormat.format("http://{0}:{1}/", nodeName, "8080"))).thenReturn(
-                expectedClient);
-
-        ObjectMapper om = JsonRpcUtil.customizeObjectMapper();
-        when(JsonRpcUtil.customizeObjectMapper()).thenReturn(om);
-
-        when(JsonRpcUtil.createJsonRpcClient(MessageFormat.format("http://{0}:{1}/", nodeName, "8080"), om))
-                .thenReturn(expectedClient);
+        String url = MessageFormat.format("http://{0}:{1}/", nodeName, "8080");
+        when(JsonRpcUtil.getJsonRpcClient(url, false)).thenReturn(expectedClient);
+        when(JsonRpcUtil.getJsonRpcClient(url, true)).thenReturn(expectedClient);
     }
 
     /**
-     * mock a node which will return the expected node name.
+     * mock a node which will return the expected node name, and which has come online with the node name as its host.
      * @param nodeName the expected nodeName.
      * @return the {@link Node} which will return the nodeName.
      */
     private Node mockNode(String nodeName) {
         Computer com = PowerMockito.mock(Computer.class);
         try {
+            when(com.getName()).thenReturn(nodeName);
             when(com.getHostName()).thenReturn(nodeName);
         } catch (IOException e) {
             e.printStackTrace();
@@ -310,6 +373,8 @@ public class ExternalResourceManagerTest {
 
         Node n = PowerMockito.mock(Node.class);
         PowerMockito.doReturn(com).when(n).toComputer();
+        PowerMockito.doReturn(nodeName).when(n).getNodeName();
+        MonitorEndpointResolver.getInstance().online(com);
 
         return n;
     }
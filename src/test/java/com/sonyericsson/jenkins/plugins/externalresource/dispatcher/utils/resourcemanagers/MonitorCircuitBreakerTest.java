@@ -0,0 +1,107 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.Constants;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.MockUtils;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.StashResult;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.CircuitBreaker;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link CircuitBreaker} handling in {@link ResourceMonitorExternalResourceManager} against a monitor that
+ * can't be reached.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Hudson.class)
+public class MonitorCircuitBreakerTest {
+
+    private ResourceMonitorExternalResourceManager manager;
+    private Node node;
+    private ExternalResource one;
+    private ExternalResource two;
+
+    /**
+     * Creates a manager that talks to a port where nobody is listening.
+     *
+     * @throws Exception if so.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Hudson hudson = MockUtils.mockHudson();
+        when(hudson.getRootUrl()).thenReturn("jenkins");
+        manager = new ResourceMonitorExternalResourceManager() {
+            @Override
+            protected String getURL(Node n) {
+                return "http://127.0.0.1:1/";
+            }
+        };
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("deadNode");
+        one = new ExternalResource("one", "1");
+        two = new ExternalResource("two", "2");
+    }
+
+    /**
+     * Tests that the node is considered unavailable after a number of failures and that calls fail right away.
+     */
+    @Test
+    public void testOpensOnConnectionFailures() {
+        assertTrue(manager.isAvailable(node));
+        for (int i = 0; i < Constants.CIRCUIT_BREAKER_FAILURE_THRESHOLD; i++) {
+            assertNull(manager.reserveAny(node, Arrays.asList(one, two), 1, "me"));
+        }
+        assertFalse(manager.isAvailable(node));
+        CircuitBreaker breaker = manager.getCircuitBreaker(node);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        long failures = breaker.getTotalFailures();
+
+        StashResult result = manager.doReserve(node, one, 1, "me");
+        assertNotNull(result);
+        assertFalse(result.isOk());
+        assertEquals(ExternalResourceManager.ERROR_CODE_UNAVAILABLE, result.getErrorCode());
+        assertNull(manager.reserveAny(node, Arrays.asList(one, two), 1, "me"));
+        assertEquals(failures, breaker.getTotalFailures());
+        assertTrue(one.isAvailable());
+    }
+}
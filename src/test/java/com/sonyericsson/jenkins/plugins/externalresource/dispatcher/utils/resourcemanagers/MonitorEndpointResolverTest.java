@@ -0,0 +1,161 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
+
+import com.sonyericsson.hudson.plugins.metadata.model.values.TreeStructureUtil;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResourceTreeNode;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.DescribableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link MonitorEndpointResolver} and {@link MonitorEndpoint}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class MonitorEndpointResolverTest {
+
+    //CS IGNORE MagicNumber FOR NEXT 150 LINES. REASON: TestData.
+
+    private Node node;
+    private Computer computer;
+    private DescribableList<NodeProperty<?>, NodePropertyDescriptor> properties;
+    private MonitorEndpointResolver resolver;
+
+    /**
+     * Creates a node with a computer on host "device-host" that has come online.
+     *
+     * @throws Exception if so.
+     */
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("resolverNode");
+        computer = mock(Computer.class);
+        when(computer.getName()).thenReturn("resolverNode");
+        when(computer.getHostName()).thenReturn("device-host");
+        when(node.toComputer()).thenReturn(computer);
+        properties = mock(DescribableList.class);
+        when(node.getNodeProperties()).thenReturn(properties);
+        resolver = new MonitorEndpointResolver();
+        resolver.online(computer);
+    }
+
+    /**
+     * Tests the defaults and that the host name is only asked for when the node comes online, not when resolving or
+     * when the URLs are invalidated.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testDefaultAndCache() throws Exception {
+        assertEquals("http://device-host:8080/", resolver.resolve(node, null));
+        assertEquals("http://device-host:8080/", resolver.resolve(node, new ExternalResource("one", "1")));
+        resolver.invalidate("resolverNode");
+        assertEquals("http://device-host:8080/", resolver.resolve(node, null));
+        verify(computer, times(1)).getHostName();
+        when(computer.getHostName()).thenReturn("new-host");
+        resolver.online(computer);
+        assertEquals("http://new-host:8080/", resolver.resolve(node, null));
+        verify(computer, times(2)).getHostName();
+    }
+
+    /**
+     * Tests that there is no URL, and that the computer isn't asked, while the host name is unknown.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testOffline() throws Exception {
+        resolver.offline("resolverNode");
+        assertNull(resolver.resolve(node, null));
+        when(computer.getHostName()).thenReturn(null);
+        resolver.online(computer);
+        assertNull(resolver.resolve(node, null));
+        verify(computer, times(2)).getHostName();
+        when(computer.getHostName()).thenReturn("device-host");
+        resolver.online(computer);
+        assertEquals("http://device-host:8080/", resolver.resolve(node, null));
+    }
+
+    /**
+     * Tests that the node property is used, also when the host name of the node isn't known.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testNodeProperty() throws Exception {
+        when(properties.get(ResourceMonitorNodeProperty.class)).thenReturn(
+                new ResourceMonitorNodeProperty("https", "monitor.example.com", "9090", "/rpc"));
+        resolver.offline("resolverNode");
+        assertEquals("https://monitor.example.com:9090/rpc", resolver.resolve(node, null));
+    }
+
+    /**
+     * Tests that the closest tree node with an endpoint overrides the node property, part by part.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testTreeNode() throws Exception {
+        when(properties.get(ResourceMonitorNodeProperty.class)).thenReturn(
+                new ResourceMonitorNodeProperty("https", null, "9090", "rpc"));
+        ExternalResourceTreeNode tree = new ExternalResourceTreeNode("bank");
+        tree.setMonitorEndpoint(new MonitorEndpoint(null, null, 7070, null));
+        ExternalResource resource = new ExternalResource("one", "1");
+        TreeStructureUtil.addValue(tree, resource, "attached", "rack");
+        ExternalResource other = new ExternalResource("two", "2");
+
+        assertSame(tree, MonitorEndpointResolver.findTreeNode(resource));
+        assertNull(MonitorEndpointResolver.findTreeNode(other));
+        assertEquals("https://device-host:7070/rpc", resolver.resolve(node, resource));
+        assertEquals("https://device-host:9090/rpc", resolver.resolve(node, other));
+    }
+
+    /**
+     * Tests the parsing of ports from the config page.
+     */
+    @Test
+    public void testParsePort() {
+        assertEquals(0, MonitorEndpoint.parsePort(""));
+        assertEquals(0, MonitorEndpoint.parsePort(null));
+        assertEquals(0, MonitorEndpoint.parsePort("http"));
+        assertEquals(0, MonitorEndpoint.parsePort("70000"));
+        assertEquals(8081, MonitorEndpoint.parsePort(" 8081 "));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
+
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.MockUtils;
+import com.sonyericsson.jenkins.plugins.externalresource.dispatcher.data.ExternalResource;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests {@link ResourceMonitorExternalResourceManager#reserveAny(Node, List, int, String)} against a
+ * {@link StubResourceMonitor}.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Hudson.class)
+public class ReserveAnyTest {
+
+    private StubResourceMonitor monitor;
+    private ResourceMonitorExternalResourceManager manager;
+    private Node node;
+    private ExternalResource one;
+    private ExternalResource two;
+    private ExternalResource three;
+
+    /**
+     * Starts the stub monitor with resource 2 and 3 free.
+     *
+     * @throws Exception if so.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Hudson hudson = MockUtils.mockHudson();
+        when(hudson.getRootUrl()).thenReturn("jenkins");
+        monitor = new StubResourceMonitor("2", "3");
+        final String url = monitor.getUrl();
+        manager = new ResourceMonitorExternalResourceManager() {
+            @Override
+            protected String getURL(Node n) {
+                return url;
+            }
+        };
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("stubNode");
+        one = new ExternalResource("one", "1");
+        two = new ExternalResource("two", "2");
+        three = new ExternalResource("three", "3");
+    }
+
+    /**
+     * Stops the stub monitor.
+     */
+    @After
+    public void tearDown() {
+        monitor.stop();
+    }
+
+    /**
+     * Tests that a resource is reserved with a single call.
+     */
+    @Test
+    public void testOneRoundTrip() {
+        ExternalResource reserved = manager.reserveAny(node, Arrays.asList(one, two, three), 1, "me");
+        assertSame(two, reserved);
+        assertNotNull(two.getReserved());
+        assertEquals("key1", two.getReserved().getKey());
+        assertTrue(one.isAvailable());
+        assertFalse(monitor.isFree("2"));
+        assertTrue(monitor.isFree("3"));
+        assertEquals(1, monitor.getCalls(StubResourceMonitor.RESERVE_ANY_METHOD));
+        assertEquals(0, monitor.getCalls(StubResourceMonitor.RESERVE_METHOD));
+    }
+
+    /**
+     * Tests that nothing is returned when nothing is free.
+     */
+    @Test
+    public void testNothingFree() {
+        assertNull(manager.reserveAny(node, Arrays.asList(one, one), 1, "me"));
+        assertTrue(one.isAvailable());
+        assertEquals(1, monitor.getCalls(StubResourceMonitor.RESERVE_ANY_METHOD));
+    }
+
+    /**
+     * Tests that a monitor without ReserveAny gets one call per resource, and that it isn't asked again.
+     */
+    @Test
+    public void testFallback() {
+        monitor.setReserveAnySupported(false);
+        List<ExternalResource> resources = Arrays.asList(one, two, three);
+        assertSame(two, manager.reserveAny(node, resources, 1, "me"));
+        assertEquals(1, monitor.getCalls(StubResourceMonitor.RESERVE_ANY_METHOD));
+        //CS IGNORE MagicNumber FOR NEXT 4 LINES. REASON: TestData.
+        assertEquals(2, monitor.getCalls(StubResourceMonitor.RESERVE_METHOD));
+        assertSame(three, manager.reserveAny(node, resources, 1, "me"));
+        assertEquals(1, monitor.getCalls(StubResourceMonitor.RESERVE_ANY_METHOD));
+        assertEquals(5, monitor.getCalls(StubResourceMonitor.RESERVE_METHOD));
+    }
+
+    /**
+     * Tests that {@link ExternalResourceManager#reserveAll(Node, List, int, String)} reserves everything when it can.
+     */
+    @Test
+    public void testReserveAll() {
+        assertTrue(manager.reserveAll(node, Arrays.asList(two, three), 1, "me"));
+        assertNotNull(two.getReserved());
+        assertNotNull(three.getReserved());
+        assertFalse(monitor.isFree("2"));
+        assertFalse(monitor.isFree("3"));
+    }
+
+    /**
+     * Tests that {@link ExternalResourceManager#reserveAll(Node, List, int, String)} gives back what it got when one
+     * of the resources can't be reserved.
+     */
+    @Test
+    public void testReserveAllRollsBack() {
+        assertFalse(manager.reserveAll(node, Arrays.asList(two, three, one), 1, "me"));
+        assertTrue(two.isAvailable());
+        assertTrue(three.isAvailable());
+        assertTrue(monitor.isFree("2"));
+        assertTrue(monitor.isFree("3"));
+        assertEquals(2, monitor.getCalls(StubResourceMonitor.RELEASE_METHOD));
+    }
+}
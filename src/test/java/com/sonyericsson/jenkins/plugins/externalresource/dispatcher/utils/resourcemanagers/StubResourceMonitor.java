@@ -0,0 +1,244 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2012 Sony Mobile Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonyericsson.jenkins.plugins.externalresource.dispatcher.utils.resourcemanagers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny JSON-RPC server on localhost that acts like the External Resource Monitor, so that
+ * {@link ResourceMonitorExternalResourceManager} can be tested without a real monitor.
+ * It knows about Reserve, ReserveAny and Release on a set of free resource ids.
+ *
+ * @author Robert Sandell &lt;robert.sandell@sonyericsson.com&gt;
+ */
+public class StubResourceMonitor implements HttpHandler {
+
+    /**
+     * the method name of reserve.
+     */
+    public static final String RESERVE_METHOD = "ResourceMonitor.Resources.Reserve";
+
+    /**
+     * the method name of reserve any.
+     */
+    public static final String RESERVE_ANY_METHOD = "ResourceMonitor.Resources.ReserveAny";
+
+    /**
+     * the method name of release.
+     */
+    public static final String RELEASE_METHOD = "ResourceMonitor.Resources.Release";
+
+    /**
+     * The JSON-RPC error code for an unknown method.
+     */
+    private static final int METHOD_NOT_FOUND = -32601;
+
+    /**
+     * The HTTP OK status.
+     */
+    private static final int HTTP_OK = 200;
+
+    private final HttpServer server;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Set<String> free = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger keys = new AtomicInteger();
+    private volatile boolean reserveAnySupported = true;
+
+    /**
+     * Starts the server on a free port.
+     *
+     * @param freeResources the ids of the resources that can be reserved.
+     * @throws IOException if the server couldn't be started.
+     */
+    public StubResourceMonitor(String... freeResources) throws IOException {
+        Collections.addAll(free, freeResources);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this);
+        server.start();
+    }
+
+    /**
+     * The url to the server.
+     *
+     * @return the url.
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * If the server should know about the ReserveAny method or answer that the method is not found.
+     *
+     * @param reserveAnySupported true if it should.
+     */
+    public void setReserveAnySupported(boolean reserveAnySupported) {
+        this.reserveAnySupported = reserveAnySupported;
+    }
+
+    /**
+     * The number of calls that has been made to the method.
+     *
+     * @param method the name of the method.
+     * @return the number of calls.
+     */
+    public int getCalls(String method) {
+        AtomicInteger count = calls.get(method);
+        if (count == null) {
+            return 0;
+        }
+        return count.get();
+    }
+
+    /**
+     * If the resource is free.
+     *
+     * @param id the id of the resource.
+     * @return true if it can be reserved.
+     */
+    public boolean isFree(String id) {
+        return free.contains(id);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        JsonNode request = mapper.readTree(exchange.getRequestBody());
+        String method = request.path("method").asText();
+        JsonNode params = request.path("params");
+        if (params.isArray()) {
+            params = params.path(0);
+        }
+        count(method);
+
+        ObjectNode response = mapper.createObjectNode();
+        response.put("jsonrpc", "2.0");
+        response.set("id", request.get("id"));
+        if (RESERVE_METHOD.equals(method)) {
+            response.set("result", reserve(Collections.singletonList(params.path("resource").asText())));
+        } else if (RESERVE_ANY_METHOD.equals(method) && reserveAnySupported) {
+            List<String> ids = new ArrayList<String>();
+            for (JsonNode id : params.path("resources")) {
+                ids.add(id.asText());
+            }
+            response.set("result", reserve(ids));
+        } else if (RELEASE_METHOD.equals(method)) {
+            free.add(params.path("resource").asText());
+            response.set("result", result("OK", "released", params.path("key").asText(), null));
+        } else {
+            ObjectNode error = mapper.createObjectNode();
+            error.put("code", METHOD_NOT_FOUND);
+            error.put("message", "Method not found");
+            response.set("error", error);
+        }
+
+        byte[] body = mapper.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json-rpc");
+        exchange.sendResponseHeaders(HTTP_OK, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reserves the first free resource among the ids.
+     *
+     * @param ids the resource ids.
+     * @return the rpc result.
+     */
+    private ObjectNode reserve(List<String> ids) {
+        synchronized (free) {
+            for (String id : ids) {
+                if (free.remove(id)) {
+                    return result("OK", "reserved", "key" + keys.incrementAndGet(), id);
+                }
+            }
+        }
+        return result("NO", "nothing free", null, null);
+    }
+
+    /**
+     * Creates a result object.
+     *
+     * @param status   OK or NO.
+     * @param message  the message.
+     * @param key      the reservation key.
+     * @param resource the reserved resource.
+     * @return the result.
+     */
+    private ObjectNode result(String status, String message, String key, String resource) {
+        ObjectNode result = mapper.createObjectNode();
+        result.put("status", status);
+        result.put("message", message);
+        if ("OK".equals(status)) {
+            result.put("code", 0);
+        } else {
+            result.put("code", 1);
+        }
+        result.put("key", key);
+        result.put("time", System.currentTimeMillis());
+        result.put("resource", resource);
+        return result;
+    }
+
+    /**
+     * Counts a call to the method.
+     *
+     * @param method the name of the method.
+     */
+    private synchronized void count(String method) {
+        AtomicInteger count = calls.get(method);
+        if (count == null) {
+            count = new AtomicInteger();
+            calls.put(method, count);
+        }
+        count.incrementAndGet();
+    }
+}